@@ -0,0 +1,42 @@
+package me.scai.benchmark;
+
+import me.scai.handwriting.TestHelper;
+import me.scai.parsetree.Node;
+import me.scai.parsetree.TokenSetParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of TokenSetParser.parse() within a time budget, on the longer token sets of the synthetic corpus, for which
+ * exhaustive parsing (ParseBenchmark) takes minutes. The results are approximate: once the budget is spent, the
+ * tree is built by the greedy fallback, which gets the same budget again. As in ParseBenchmark, every operation is a
+ * cold parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnytimeParseBenchmark {
+    @Param({"7", "11", "15"})
+    public int nTokens;
+
+    @Param({"100"})
+    public long parseTimeBudgetMillis;
+
+    private TokenSetParser tokenSetParser;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tokenSetParser = TestHelper.getTestWorkerTuple().tokenSetParser;
+        tokenSetParser.setPersistentCacheCapacity(0);
+        tokenSetParser.setParseTimeBudget(parseTimeBudgetMillis);
+    }
+
+    @Benchmark
+    public Node parse() throws Exception {
+        return tokenSetParser.parse(SyntheticCorpus.getTokenSet(nTokens));
+    }
+}
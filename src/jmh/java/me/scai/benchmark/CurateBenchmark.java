@@ -0,0 +1,77 @@
+package me.scai.benchmark;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import me.scai.handwriting.CStroke;
+import me.scai.handwriting.StrokeCuratorConfigurable;
+import me.scai.handwriting.TestHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of StrokeCuratorConfigurable.addStroke(). Each operation starts from an empty curator and adds the strokes
+ * of an expression of the synthetic corpus one by one, which includes the recognition of the tokens and the merging of
+ * strokes into tokens. The remote token engine of the configuration is disabled, so that only the local token
+ * engine is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CurateBenchmark {
+    /* Constants */
+    private static final String STROKE_CURATOR_CONFIG_PATH = TestHelper.TEST_ROOT_DIR + File.separator +
+                                                             "resources" + File.separator +
+                                                             "config" + File.separator +
+                                                             "stroke_curator_config.json";
+
+    @Param({"1", "3", "5", "7", "11", "15"})
+    public int nTokens;
+
+    private StrokeCuratorConfigurable strokeCurator;
+    private List<CStroke> strokes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        URL configUrl = Thread.currentThread().getContextClassLoader().getResource(STROKE_CURATOR_CONFIG_PATH);
+
+        strokeCurator = new StrokeCuratorConfigurable(getLocalConfigUrl(configUrl), TestHelper.readTokenEngine());
+        strokes = SyntheticCorpus.getStrokes(nTokens);
+    }
+
+    /* Write a copy of the configuration without the remote token engine URL to a temporary file */
+    private static URL getLocalConfigUrl(URL configUrl) throws IOException {
+        JsonObject configObj;
+        try (Reader reader = new InputStreamReader(configUrl.openStream(), StandardCharsets.UTF_8)) {
+            configObj = new JsonParser().parse(reader).getAsJsonObject();
+        }
+        configObj.addProperty("remoteTokenEngineUrl", "");
+
+        File configFile = File.createTempFile("stroke_curator_config", ".json");
+        configFile.deleteOnExit();
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(configFile), StandardCharsets.UTF_8)) {
+            writer.write(configObj.toString());
+        }
+
+        return configFile.toURI().toURL();
+    }
+
+    @Benchmark
+    public int addStrokes() {
+        strokeCurator.clear();
+
+        for (CStroke stroke : strokes) {
+            strokeCurator.addStroke(new CStroke(stroke)); /* The curator keeps the stroke */
+        }
+
+        return strokeCurator.getNumTokens();
+    }
+}
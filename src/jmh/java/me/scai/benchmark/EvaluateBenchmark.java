@@ -0,0 +1,47 @@
+package me.scai.benchmark;
+
+import me.scai.handwriting.TestHelper;
+import me.scai.parsetree.Node;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the consumers of parse trees: ParseTreeEvaluator.eval(), ParseTreeStringizer.stringize() and
+ * ParseTreeMathTexifier.texify(). The parse trees of the synthetic corpus are created once per trial, by exhaustive
+ * parsing, which limits the number of tokens to 7.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluateBenchmark {
+    @Param({"1", "3", "5", "7"})
+    public int nTokens;
+
+    private TestHelper.WorkerTuple workerTuple;
+    private Node parseTree;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workerTuple = TestHelper.getTestWorkerTuple();
+        parseTree = workerTuple.tokenSetParser.parse(SyntheticCorpus.getTokenSet(nTokens));
+    }
+
+    @Benchmark
+    public Object eval() throws Exception {
+        return workerTuple.evaluator.eval(parseTree);
+    }
+
+    @Benchmark
+    public String stringize() {
+        return workerTuple.stringizer.stringize(parseTree);
+    }
+
+    @Benchmark
+    public String texify() {
+        return workerTuple.mathTexifier.texify(parseTree);
+    }
+}
@@ -0,0 +1,37 @@
+package me.scai.benchmark;
+
+import me.scai.handwriting.TestHelper;
+import me.scai.parsetree.Node;
+import me.scai.parsetree.TokenSetParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of TokenSetParser.parse() on the token sets of the synthetic corpus. The persistent cache of the parser is
+ * disabled, so that every operation is a cold parse. The token set is created in the operation, as the parser caches
+ * derived data on it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"1", "3", "5", "7"})
+    public int nTokens;
+
+    private TokenSetParser tokenSetParser;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tokenSetParser = TestHelper.getTestWorkerTuple().tokenSetParser;
+        tokenSetParser.setPersistentCacheCapacity(0);
+    }
+
+    @Benchmark
+    public Node parse() throws Exception {
+        return tokenSetParser.parse(SyntheticCorpus.getTokenSet(nTokens));
+    }
+}
@@ -0,0 +1,56 @@
+package me.scai.benchmark;
+
+import me.scai.handwriting.CStroke;
+import me.scai.handwriting.CWrittenToken;
+import me.scai.handwriting.TestHelper;
+import me.scai.handwriting.TokenRecogEngine;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of TokenRecogEngineSDV.recognize() on the tokens of the synthetic corpus. Each operation recognizes all
+ * the tokens of an expression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecognizeBenchmark {
+    @Param({"1", "3", "5", "7", "11", "15"})
+    public int nTokens;
+
+    private TokenRecogEngine tokenEngine;
+    private List<CWrittenToken> writtenTokens;
+    private double[] ps;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        tokenEngine = TestHelper.readTokenEngine();
+        ps = new double[tokenEngine.getAllTokenNames().size()];
+
+        String expr = SyntheticCorpus.getExpression(nTokens);
+        writtenTokens = new ArrayList<>(nTokens);
+        for (int i = 0; i < nTokens; ++i) {
+            CWrittenToken wt = new CWrittenToken();
+            for (CStroke stroke : SyntheticCorpus.getTokenStrokes(expr.charAt(i), 0f)) {
+                wt.addStroke(stroke);
+            }
+            wt.normalizeAxes();
+
+            writtenTokens.add(wt);
+        }
+    }
+
+    @Benchmark
+    public void recognize(Blackhole bh) {
+        for (CWrittenToken wt : writtenTokens) {
+            bh.consume(tokenEngine.recognize(wt, ps));
+        }
+    }
+}
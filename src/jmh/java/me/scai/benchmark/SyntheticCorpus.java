@@ -0,0 +1,132 @@
+package me.scai.benchmark;
+
+import me.scai.handwriting.CStroke;
+import me.scai.handwriting.CWrittenTokenSetNoStroke;
+import me.scai.handwriting.TestHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic corpus for the benchmarks: sums of single digits written from left to right, e.g., "1+2+3" for 5 tokens.
+ * The digits cycle through 1 to 4. The number of tokens is odd and scales the work of the whole pipeline. Exhaustive
+ * parsing is limited to 7 tokens, because it takes minutes on longer sums; see AnytimeParseBenchmark.
+ *
+ * Every token can be obtained both as a mock token with bounds only (for parsing) and as a list of strokes (for
+ * recognition and stroke curation).
+ */
+public final class SyntheticCorpus {
+    /* Constants */
+    private static final float TOKEN_SPACING = 1.5f;   /* Horizontal distance between the left edges of tokens */
+    private static final float STROKE_SCALE = 40f;     /* Token size in stroke coordinates, i.e., pixels */
+    private static final int NUM_POINTS_PER_SEGMENT = 8;
+    private static final int NUM_DIGITS = 4;           /* Digits with glyphs: 1 to 4 */
+
+    /* Polylines of the glyphs in the unit box, y pointing downwards: {x0, y0, x1, y1, ...} per stroke */
+    private static final float[][] GLYPH_1 = {{0.3f, 0.2f, 0.5f, 0f, 0.5f, 1f}};
+    private static final float[][] GLYPH_2 = {{0f, 0.25f, 0.5f, 0f, 1f, 0.25f, 0f, 1f, 1f, 1f}};
+    private static final float[][] GLYPH_3 = {{0f, 0f, 1f, 0.25f, 0.3f, 0.5f, 1f, 0.75f, 0f, 1f}};
+    private static final float[][] GLYPH_4 = {{0.6f, 0f, 0f, 0.7f, 1f, 0.7f}, {0.7f, 0.3f, 0.7f, 1f}};
+    private static final float[][] GLYPH_PLUS = {{0.1f, 0.5f, 0.9f, 0.5f}, {0.5f, 0.1f, 0.5f, 0.9f}};
+
+    private static final float[] PLUS_BOUNDS = {0.1f, 0.3f, 0.9f, 0.7f};
+
+    private SyntheticCorpus() {}
+
+    /**
+     * Get the expression of a given number of tokens
+     * @param nTokens  Number of tokens: a positive odd number
+     * @return         Expression, e.g., "1+2+3"
+     */
+    public static String getExpression(int nTokens) {
+        if (nTokens < 1 || nTokens % 2 == 0) {
+            throw new IllegalArgumentException("Unsupported number of tokens: " + nTokens);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nTokens; ++i) {
+            sb.append(i % 2 == 0 ? (char) ('1' + (i / 2) % NUM_DIGITS) : '+');
+        }
+
+        return sb.toString();
+    }
+
+    /* Token set with the bounds and recognition results of the tokens, but no strokes */
+    public static CWrittenTokenSetNoStroke getTokenSet(int nTokens) {
+        String expr = getExpression(nTokens);
+
+        float[][] bounds = new float[nTokens][];
+        String[] tokenNames = new String[nTokens];
+
+        for (int i = 0; i < nTokens; ++i) {
+            char c = expr.charAt(i);
+            float x = i * TOKEN_SPACING;
+
+            if (c == '+') {
+                bounds[i] = new float[] {x + PLUS_BOUNDS[0], PLUS_BOUNDS[1], x + PLUS_BOUNDS[2], PLUS_BOUNDS[3]};
+            } else {
+                bounds[i] = new float[] {x, 0f, x + 1f, 1f};
+            }
+            tokenNames[i] = String.valueOf(c);
+        }
+
+        return TestHelper.getMockTokenSet(bounds, tokenNames);
+    }
+
+    /* Strokes of all tokens, in writing order */
+    public static List<CStroke> getStrokes(int nTokens) {
+        String expr = getExpression(nTokens);
+
+        List<CStroke> strokes = new ArrayList<>();
+        for (int i = 0; i < nTokens; ++i) {
+            strokes.addAll(getTokenStrokes(expr.charAt(i), i * TOKEN_SPACING));
+        }
+
+        return strokes;
+    }
+
+    /* Strokes of a single token, with the left edge at x0 */
+    public static List<CStroke> getTokenStrokes(char c, float x0) {
+        float[][] glyph;
+        switch (c) {
+            case '1': glyph = GLYPH_1; break;
+            case '2': glyph = GLYPH_2; break;
+            case '3': glyph = GLYPH_3; break;
+            case '4': glyph = GLYPH_4; break;
+            case '+': glyph = GLYPH_PLUS; break;
+            default:
+                throw new IllegalArgumentException("Unsupported token: " + c);
+        }
+
+        List<CStroke> strokes = new ArrayList<>(glyph.length);
+        for (float[] polyline : glyph) {
+            strokes.add(getPolylineStroke(polyline, x0));
+        }
+
+        return strokes;
+    }
+
+    /* Resample a polyline into evenly spaced points along each of its segments and scale it to stroke coordinates */
+    private static CStroke getPolylineStroke(float[] polyline, float x0) {
+        final int nSegs = polyline.length / 2 - 1;
+        final int np = nSegs * NUM_POINTS_PER_SEGMENT + 1;
+
+        float[] xs = new float[np];
+        float[] ys = new float[np];
+
+        int k = 0;
+        for (int s = 0; s < nSegs; ++s) {
+            for (int j = 0; j < NUM_POINTS_PER_SEGMENT; ++j) {
+                float t = (float) j / NUM_POINTS_PER_SEGMENT;
+
+                xs[k] = (x0 + polyline[2 * s] + t * (polyline[2 * s + 2] - polyline[2 * s])) * STROKE_SCALE;
+                ys[k] = (polyline[2 * s + 1] + t * (polyline[2 * s + 3] - polyline[2 * s + 1])) * STROKE_SCALE;
+                k++;
+            }
+        }
+        xs[k] = (x0 + polyline[2 * nSegs]) * STROKE_SCALE;
+        ys[k] = polyline[2 * nSegs + 1] * STROKE_SCALE;
+
+        return TestHelper.getMockStroke(xs, ys);
+    }
+}
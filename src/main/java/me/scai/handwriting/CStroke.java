@@ -1,13 +1,23 @@
 package me.scai.handwriting;
 
-import java.util.LinkedList;
+import java.util.Arrays;
 
 /* CStroke: class for supporting a single, continuous stroke */
 public class CStroke {
+	/* Constants */
+	private static final int INITIAL_CAPACITY = 16;
+
 	/* Member variables */
-	private LinkedList<Float> xs = new LinkedList<Float>();
-	private LinkedList<Float> ys = new LinkedList<Float>();
+	/* Coordinates of the points. Only the first np elements are valid: the capacity of the arrays grows by doubling
+	 * on addPoint() and is never trimmed. The arrays are not exposed; getXs() and getYs() return copies. */
+	private float[] xs;
+	private float[] ys;
+	private int np = 0;
 	private boolean bNormalized = false;
+
+	/* Cumulative arc length at each point in the current coordinates, with cumLengths[0] == 0. Computed on demand and
+	 * discarded when the points change. Never modified once computed, so copies of the stroke can share it. */
+	private float[] cumLengths;
 	
 	public float min_x = Float.POSITIVE_INFINITY, max_x = Float.NEGATIVE_INFINITY; /* Record bounds */
 	public float min_y = Float.POSITIVE_INFINITY, max_y = Float.NEGATIVE_INFINITY; /* Record bounds */
@@ -15,25 +25,41 @@ public class CStroke {
 
 	/* Constructor: no initial point: empty initially */
 	public CStroke() {
-		
+		xs = new float[INITIAL_CAPACITY];
+		ys = new float[INITIAL_CAPACITY];
 	}
 	
 	/* Constructor: supply the initial x and y coordinates */
 	public CStroke(float x, float y) {
+		this();
+
 		addPoint(x, y);
 	}
+
+	/* Constructor: supply all the x and y coordinates. The arrays are copied. */
+	public CStroke(float[] t_xs, float[] t_ys) {
+		if (t_xs.length != t_ys.length) {
+			throw new IllegalArgumentException("Mismatch between the lengths of xs (" + t_xs.length +
+			                                   ") and ys (" + t_ys.length + ")");
+		}
+
+		xs = Arrays.copyOf(t_xs, t_xs.length);
+		ys = Arrays.copyOf(t_ys, t_ys.length);
+		np = t_xs.length;
+
+		for (int i = 0; i < np; ++i) {
+			updateBounds(xs[i], ys[i]);
+		}
+	}
 	
 	/* Copy constructor */
 	public CStroke(CStroke s0) {
-		xs = new LinkedList<Float>();
-		ys = new LinkedList<Float>();
-		
-		for (int i = 0; i < s0.xs.size(); ++i) {
-			xs.add(s0.xs.get(i));
-			ys.add(s0.ys.get(i));
-		}
+		xs = Arrays.copyOf(s0.xs, s0.np);
+		ys = Arrays.copyOf(s0.ys, s0.np);
+		np = s0.np;
 		
 		bNormalized = s0.bNormalized;
+		cumLengths = s0.cumLengths;
 		
 		min_x = s0.min_x;
 		max_x = s0.max_x;
@@ -42,10 +68,24 @@ public class CStroke {
 	}
 	
 	/* Add a single point */
-	public void addPoint(Float x, Float y) {
-		xs.add(x);
-		ys.add(y);
-		
+	public void addPoint(float x, float y) {
+		if (np == xs.length) {
+			int capacity = Math.max(INITIAL_CAPACITY, np * 2);
+
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+		}
+
+		xs[np] = x;
+		ys[np] = y;
+		np++;
+
+		cumLengths = null;
+
+		updateBounds(x, y);
+	}
+
+	private void updateBounds(float x, float y) {
 		if ( x < min_x ) {
             min_x = x;
         }
@@ -62,7 +102,16 @@ public class CStroke {
 	
 	/* Get the number of points */
 	public int nPoints() {
-		return xs.size();
+		return np;
+	}
+
+	/* Get the x and y coordinates of point #i */
+	public float getX(int i) {
+		return xs[i];
+	}
+
+	public float getY(int i) {
+		return ys[i];
 	}
 	
 	/* Normalize axes */
@@ -70,23 +119,48 @@ public class CStroke {
 			                  float min_y, float max_y) {
 		float rng_x = max_x - min_x;
 		float rng_y = max_y - min_y;
-		for (int i = 0; i < xs.size(); ++i) {
-			if (rng_x == 0.0f) {
-				xs.set(i, 0.0f); /* Edge case: Zero width */
-			}
-			else {
-				xs.set(i, (xs.get(i) - min_x) / rng_x);
-			}
-			
-			if (rng_y == 0.0f) {
-				ys.set(i, 0.0f); /* Edge case: Zero height */
+
+		if (rng_x == 0.0f) {
+			Arrays.fill(xs, 0, np, 0.0f); /* Edge case: Zero width */
+		} else {
+			for (int i = 0; i < np; ++i) {
+				xs[i] = (xs[i] - min_x) / rng_x;
 			}
-			else {
-				ys.set(i, (ys.get(i) - min_y) / rng_y);
+		}
+
+		if (rng_y == 0.0f) {
+			Arrays.fill(ys, 0, np, 0.0f); /* Edge case: Zero height */
+		} else {
+			for (int i = 0; i < np; ++i) {
+				ys[i] = (ys[i] - min_y) / rng_y;
 			}
 		}
 		
 		bNormalized = true;
+		cumLengths = null;
+	}
+
+	/**
+	 * Get the cumulative arc length of the stroke at each point, in the current (e.g., normalized) coordinates. The
+	 * result is computed once and cached until the points change.
+	 * @return  Array of length nPoints(), starting with 0. Must not be modified.
+	 */
+	public float[] getCumulativeLengths() {
+		float[] cuml = cumLengths;
+
+		if (cuml == null) {
+			cuml = new float[np];
+			for (int i = 1; i < np; ++i) {
+				float dx = xs[i] - xs[i - 1];
+				float dy = ys[i] - ys[i - 1];
+
+				cuml[i] = cuml[i - 1] + (float) Math.sqrt((double) (dx * dx + dy * dy));
+			}
+
+			cumLengths = cuml;
+		}
+
+		return cuml;
 	}
 	
 	/* Fill imageMap: do this only after calling normalizeAxes() 
@@ -105,12 +179,12 @@ public class CStroke {
 		
 		int prev_ix = 0;
 		int prev_iy = 0;
-		for (int i = 0; i < xs.size(); ++i) {
-			int ix = (int)(xs.get(i) * w);
+		for (int i = 0; i < np; ++i) {
+			int ix = (int)(xs[i] * w);
 			if ( ix == w )
 				ix--;
 			
-			int iy = (int)(ys.get(i) * h);
+			int iy = (int)(ys[i] * h);
 			if ( iy == h )
 				iy--;
 			
@@ -176,50 +250,36 @@ public class CStroke {
 		}
 	}
 	
-	/* Get a float array of the xs and ys coordinates */
+	/**
+	 * Get a copy of the x coordinates of all points, of length nPoints(). For reading individual points without
+	 * copying, use getX().
+	 */
 	public float[] getXs() {
-		float [] oxs = new float[xs.size()];		
-		
-		for (int i = 0; i < xs.size(); ++i) {
-			oxs[i] = xs.get(i);
-		}
-		
-		return oxs;
+		return Arrays.copyOf(xs, np);
 	}
 	
+	/* Get a copy of the y coordinates of all points. See getXs(). */
 	public float[] getYs() {
-		float [] oys = new float[ys.size()];
-		
-		for (int i = 0; i < ys.size(); ++i) {
-			oys[i] = ys.get(i);
-		}
-		
-		return oys;
+		return Arrays.copyOf(ys, np);
 	}
 	
 	@Override
 	public String toString() {
-		String s = new String();
+		StringBuilder sb = new StringBuilder();
 		
-		s += "Stroke (np=" + xs.size() + "):\n\txs=[";
-		for (int i = 0; i < xs.size(); ++i) {
-			s += String.format("%.3f", xs.get(i));
-			if ( i != xs.size() - 1 )
-				s += ", ";
-			else
-				s += "]"; 	
+		sb.append("Stroke (np=").append(np).append("):\n\txs=[");
+		for (int i = 0; i < np; ++i) {
+			sb.append(String.format("%.3f", xs[i]));
+			sb.append(i != np - 1 ? ", " : "]");
 		}
 		
-		s += "\n\tys=[";
-		for (int i = 0; i < ys.size(); ++i) {
-			s += String.format("%.3f", ys.get(i));
-			if ( i != ys.size() - 1 )
-				s += ", ";
-			else
-				s += "]";
+		sb.append("\n\tys=[");
+		for (int i = 0; i < np; ++i) {
+			sb.append(String.format("%.3f", ys[i]));
+			sb.append(i != np - 1 ? ", " : "]");
 		}
 		
-		return s;
+		return sb.toString();
 	}
 	
 	public boolean isNormalized() {
@@ -11,7 +11,6 @@ import java.io.PrintWriter;
 import java.io.IOException;
 
 import me.scai.parsetree.TerminalSet;
-import me.scai.parsetree.MathHelper;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
@@ -549,14 +548,13 @@ public class CWrittenToken extends AbstractToken {
 		int ns = (nStrokes() <= maxNumStrokes) ? nStrokes() : maxNumStrokes;
 
 		for (int i = 0; i < ns; ++i) {
-			int np = strokes.get(i).nPoints(); /* Number of points */
-			float [] sxs = strokes.get(i).getXs(); /* Stroke X values */
-			float [] sys = strokes.get(i).getYs(); /* Stroke Y values */
+			CStroke stroke = strokes.get(i);
+			int np = stroke.nPoints(); /* Number of points */
 
-			sepv[i * 4] = sxs[0];
-			sepv[i * 4 + 1] = sys[0];
-			sepv[i * 4 + 2] = sxs[np - 1];
-			sepv[i * 4 + 3] = sys[np - 1];
+			sepv[i * 4] = stroke.getX(0);
+			sepv[i * 4 + 1] = stroke.getY(0);
+			sepv[i * 4 + 2] = stroke.getX(np - 1);
+			sepv[i * 4 + 3] = stroke.getY(np - 1);
 		}
 
 		return sepv;
@@ -660,37 +658,29 @@ public class CWrittenToken extends AbstractToken {
 		
 		int sdvIdx = 0;
 		for (int i = 0; i < nStrokesToProcess; ++i) {
-			float [] xs = strokes.get(i).getXs();
-			float [] ys = strokes.get(i).getYs();
+			CStroke stroke = strokes.get(i);
 			
-			int N = xs.length;
+			int N = stroke.nPoints();
 			
 			if ( N <= 2 ) {
 				sdvIdx += (npPerStroke - 1);
 				continue; /* TODO: Think about what this means for dots */
 			}
 			
-			float [] dx = MathHelper.diff(xs);
-			float [] dy = MathHelper.diff(ys);
-			
-			float [] ls = new float[dx.length];
-			for (int j = 0; j < dx.length; ++j)
-				ls[j] = (float) Math.sqrt((double) (dx[j] * dx[j] + dy[j] * dy[j]));
-			
-			float [] cuml = MathHelper.cumsum(ls, true);	/* Include initial zero */
-			float suml = MathHelper.sum(ls);
+			float [] cuml = stroke.getCumulativeLengths();	/* Cached by the stroke; includes initial zero */
+			float suml = cuml[N - 1];
 			float ulen = suml / (npPerStroke - 1);
 
-			float cx = xs[0];
-			float cy = ys[0];
+			float cx = stroke.getX(0);
+			float cy = stroke.getY(0);
 			float cl = 0f;
 			int cp = 0;
 
 			for (int k = 0; k < npPerStroke - 1; ++k) {
 				cl += ulen;
 				
-				while ( cuml[cp] < cl && cp + 1 < cuml.length - 1 )
-					++cp;
+				/* First point at or beyond the arc length cl, but not beyond the second last point */
+				cp = lowerBound(cuml, cp, N - 2, cl);
 				
 				float cf;
 				float cx1;
@@ -709,8 +699,8 @@ public class CWrittenToken extends AbstractToken {
 				else {
 					cf = (cl - cuml[cp - 1]) / (cuml[cp] - cuml[cp - 1]);
 					
-					cx1 = xs[cp - 1] + (xs[cp] - xs[cp - 1]) * cf;
-					cy1 = ys[cp - 1] + (ys[cp] - ys[cp - 1]) * cf;
+					cx1 = stroke.getX(cp - 1) + (stroke.getX(cp) - stroke.getX(cp - 1)) * cf;
+					cy1 = stroke.getY(cp - 1) + (stroke.getY(cp) - stroke.getY(cp - 1)) * cf;
 					
 					sdv[sdvIdx] = (float) Math.atan2((double) ((cy1 - cy) * hwRatio), 
 							                         (double) (cx1 - cx));
@@ -727,6 +717,22 @@ public class CWrittenToken extends AbstractToken {
 		return sdv;
 	}
 	
+	/* Index of the first element of the non-decreasing array x in [begin, last) that is >= value, or last if none */
+	private static int lowerBound(final float [] x, int begin, final int last, final float value) {
+		int end = last;
+		while ( begin < end ) {
+			int mid = (begin + end) >>> 1;
+			if ( x[mid] < value ) {
+				begin = mid + 1;
+			}
+			else {
+				end = mid;
+			}
+		}
+
+		return begin;
+	}
+	
 	/* Get the terminal type of token */
     @Override
 	public void getTokenTerminalType(TerminalSet termSet) {
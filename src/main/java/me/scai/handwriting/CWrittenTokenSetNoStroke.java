@@ -10,6 +10,7 @@ import java.io.FileNotFoundException;
 import java.io.InputStreamReader;
 import java.util.List;
 
+import me.scai.parsetree.TermTypeSignature;
 import me.scai.parsetree.TerminalSet;
 
 public class CWrittenTokenSetNoStroke extends CAbstractWrittenTokenSet {
@@ -21,6 +22,13 @@ public class CWrittenTokenSetNoStroke extends CAbstractWrittenTokenSet {
 
     private boolean hasNodeToken = false;
 
+    /* Cached terminal-type signature of the tokens, for production exclusion during parsing.
+     * Calculated by getAllTokensTerminalTypes() and invalidated when tokens are added or removed. */
+    private transient TermTypeSignature termTypeSignature;
+
+    /* Spatial index over the token bounds, built on demand. Invalidated when tokens or token bounds change. */
+    private transient TokenSetSpatialIndex spatialIndex;
+
 	/* ~Member variables */
 	
 	/* ************ Methods ************ */
@@ -38,18 +46,29 @@ public class CWrittenTokenSetNoStroke extends CAbstractWrittenTokenSet {
 			addToken(owts.tokens.get(indices[i]), owts.getConstituentTokenUuids(indices[i]), owts.tokenIDs.get(indices[i]));
 		}
 
+		if (owts.termTypeSignature != null) {
+			termTypeSignature = owts.termTypeSignature.subset(indices);
+		}
+
 		calcBounds();
 	}
 	
 	/* Constructor: convert a CWrittenTokenSet into a CWrittenTokenSetNoStroke */
 	public CWrittenTokenSetNoStroke(CWrittenTokenSet wts, List<String> wtUuids) {
+		this(wts, wtUuids, null);
+	}
+
+	/* Constructor: convert a CWrittenTokenSet into a CWrittenTokenSetNoStroke, with specified token IDs.
+	 * Keeping the IDs of unchanged tokens stable across edits allows the parser to reuse cached results.
+	 * If tokenIDs is null, the token indices are used as the IDs. */
+	public CWrittenTokenSetNoStroke(CWrittenTokenSet wts, List<String> wtUuids, List<Integer> tokenIDs) {
 		setTokenNames(wts.tokenNames);
 		
 		for (int i = 0; i < wts.nTokens(); ++i) {
             List<String> constituentUuids = new ArrayList<>();
             constituentUuids.add(wtUuids.get(i)); // Length-1 list
 
-			addToken(wts.tokens.get(i), constituentUuids, i);
+			addToken(wts.tokens.get(i), constituentUuids, tokenIDs == null ? i : tokenIDs.get(i));
 		}
 
 //        if (wts instanceof CWrittenTokenSetNoStroke) {
@@ -146,6 +165,9 @@ public class CWrittenTokenSetNoStroke extends CAbstractWrittenTokenSet {
         tokenUuids.add(wtUuids);
         tokenIDs.add(tokenID);
 
+        termTypeSignature = null;
+        spatialIndex = null;
+
 		addOneToken();
 
         assert(tokens.size() == nt);
@@ -296,6 +318,9 @@ public class CWrittenTokenSetNoStroke extends CAbstractWrittenTokenSet {
 		tokens.clear();
         tokenUuids.clear();
 		tokenIDs.clear();
+
+        termTypeSignature = null;
+        spatialIndex = null;
 		
 		min_x = min_y = Float.POSITIVE_INFINITY;
 		max_x = max_y = Float.NEGATIVE_INFINITY;
@@ -314,6 +339,7 @@ public class CWrittenTokenSetNoStroke extends CAbstractWrittenTokenSet {
         float[] oldBounds = tokens.get(i).getBounds();
 
         tokens.get(i).setBounds(newBounds);
+        spatialIndex = null;
 
         return oldBounds;
     }
@@ -346,6 +372,32 @@ public class CWrittenTokenSetNoStroke extends CAbstractWrittenTokenSet {
 		for (int i = 0; i < tokens.size(); ++i) {
 			tokens.get(i).getTokenTerminalType(termSet);
 		}
+
+		termTypeSignature = termSet.getTermTypeSignature(tokens);
+
+		/* The tokens are shared with the stroke curator, which may have moved them since the last parsing */
+		spatialIndex = null;
+	}
+
+	/* Get the spatial index over the token bounds. Built on the first call after a change of the tokens. */
+	public TokenSetSpatialIndex getSpatialIndex() {
+		TokenSetSpatialIndex index = spatialIndex;
+
+		if (index == null) {
+			index = new TokenSetSpatialIndex(this);
+			spatialIndex = index;
+		}
+
+		return index;
+	}
+
+	public TermTypeSignature getTermTypeSignature() {
+		return termTypeSignature;
+	}
+
+	/* The signature must describe the current tokens, in order */
+	public void setTermTypeSignature(TermTypeSignature termTypeSignature) {
+		this.termTypeSignature = termTypeSignature;
 	}
 	
 	@Override
@@ -354,16 +406,16 @@ public class CWrittenTokenSetNoStroke extends CAbstractWrittenTokenSet {
 	}
 
 	public String toString() {
-		String s = "";
+		StringBuilder sb = new StringBuilder();
 		
 		for (int i = 0; i < tokens.size(); ++i) {
-			s += tokenIDs.get(i);
+			sb.append(tokenIDs.get(i));
 			
 			if ( i < tokens.size() - 1 )
-				s += ",";
+				sb.append(",");
 		}
 		
-		return s;
+		return sb.toString();
 	}
 
     @Override
@@ -401,7 +453,14 @@ public class CWrittenTokenSetNoStroke extends CAbstractWrittenTokenSet {
             UUIDs.add(this.tokenUuids.get(tokenIndex));
         }
 
-        return from(tokens, UUIDs);
+        CWrittenTokenSetNoStroke r = from(tokens, UUIDs);
+
+        // Preserve the token IDs, so that the parser can reuse results cached for the original token set
+        for (int i = 0; i < tokenIndices.length; ++i) {
+            r.tokenIDs.set(i, this.tokenIDs.get(tokenIndices[i]));
+        }
+
+        return r;
 
     }
 
@@ -419,6 +478,9 @@ public class CWrittenTokenSetNoStroke extends CAbstractWrittenTokenSet {
         tokenUuids.remove(i);
         tokenIDs.remove(i); // Is this okay?
 
+        termTypeSignature = null;
+        spatialIndex = null;
+
         calcBounds();
 
         // Update hasNodeToken
@@ -0,0 +1,179 @@
+package me.scai.handwriting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Undo/redo history that records, for each user action, the reversible difference (delta) between the states before
+ * and after the action, instead of a full copy of the state. Undo applies the inverse of the delta to the current
+ * state and redo re-applies the delta, so both cost O(change).
+ *
+ * Every checkpointInterval-th action also keeps the full state after it as a checkpoint. Undoing or redoing onto a
+ * checkpoint returns the checkpointed state itself, which bounds the number of consecutive delta applications between
+ * full states.
+ *
+ * The states are expected to be immutable values (e.g., StrokeCuratorSnapshot), so that keeping them does not require
+ * copying.
+ *
+ * @param <S>  State type
+ * @param <D>  Delta type
+ */
+public class DeltaStateStack<S, D> {
+    /* Calculation and application of deltas between states */
+    public interface Codec<S, D> {
+        /* Delta that turns state "from" into state "to" */
+        D diff(S from, S to);
+
+        /* Apply a delta to a state, without modifying the state */
+        S apply(S state, D delta);
+
+        /* Delta that reverts the specified delta */
+        D inverse(D delta);
+    }
+
+    private static final class Entry<S, D> {
+        private final String userAction;
+        private final D delta;
+        private final S checkpoint; // State after the action, or null if this entry is not a checkpoint
+
+        Entry(String userAction, D delta, S checkpoint) {
+            this.userAction = userAction;
+            this.delta = delta;
+            this.checkpoint = checkpoint;
+        }
+    }
+
+    /* Member variables */
+    private final Codec<S, D> codec;
+    private final int capacity;
+    private final int checkpointInterval;
+
+    private final List<Entry<S, D>> entries = new ArrayList<>();
+    private int position;     // Number of entries that are currently applied, i.e., not undone
+    private long numPushed;   // Total number of pushed entries, for the checkpoint cadence
+
+    private S state;          // State at the current position
+
+    /* Constructors */
+    /**
+     * @param codec               Delta codec
+     * @param initialState        State before any action
+     * @param capacity            Maximum number of actions that can be undone
+     * @param checkpointInterval  Number of actions between full-state checkpoints
+     */
+    public DeltaStateStack(Codec<S, D> codec, S initialState, int capacity, int checkpointInterval) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("Invalid checkpoint interval: " + checkpointInterval);
+        }
+
+        this.codec = codec;
+        this.capacity = capacity;
+        this.checkpointInterval = checkpointInterval;
+
+        this.state = initialState;
+    }
+
+    /* Methods */
+    /**
+     * Record an action. The actions that have been undone are discarded.
+     * @param userAction  Name of the user action
+     * @param newState    State after the action
+     */
+    public void push(String userAction, S newState) {
+        /* Discard the undone entries */
+        entries.subList(position, entries.size()).clear();
+
+        numPushed++;
+        S checkpoint = (numPushed % checkpointInterval == 0) ? newState : null;
+
+        entries.add(new Entry<>(userAction, codec.diff(state, newState), checkpoint));
+
+        if (entries.size() > capacity) {
+            entries.remove(0);
+        }
+
+        position = entries.size();
+        state = newState;
+    }
+
+    /**
+     * Undo the last action
+     * @return  State before the action
+     */
+    public S undo() {
+        if ( !canUndo() ) {
+            throw new IllegalStateException("No more state to undo");
+        }
+
+        Entry<S, D> entry = entries.get(position - 1);
+        Entry<S, D> prevEntry = (position >= 2) ? entries.get(position - 2) : null;
+
+        if (prevEntry != null && prevEntry.checkpoint != null) {
+            state = prevEntry.checkpoint;
+        } else {
+            state = codec.apply(state, codec.inverse(entry.delta));
+        }
+
+        position--;
+
+        return state;
+    }
+
+    /**
+     * Redo the last undone action
+     * @return  State after the action
+     */
+    public S redo() {
+        if ( !canRedo() ) {
+            throw new IllegalStateException("No more state to redo");
+        }
+
+        Entry<S, D> entry = entries.get(position);
+
+        state = (entry.checkpoint != null) ? entry.checkpoint : codec.apply(state, entry.delta);
+
+        position++;
+
+        return state;
+    }
+
+    public boolean canUndo() {
+        return position > 0;
+    }
+
+    public boolean canRedo() {
+        return position < entries.size();
+    }
+
+    /* Name of the last action that has not been undone, or null if there is no such action */
+    public String getLastUserAction() {
+        return (position > 0) ? entries.get(position - 1).userAction : null;
+    }
+
+    /* State at the current position of the history */
+    public S getState() {
+        return state;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Get the number of actions that have been undone, but are still in the stack and can potentially be redone.
+     */
+    public int getUndoneSize() {
+        return entries.size() - position;
+    }
+}
@@ -0,0 +1,251 @@
+package me.scai.handwriting;
+
+import org.encog.engine.network.activation.ActivationFunction;
+import org.encog.neural.flat.FlatNetwork;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * Forward pass of an Encog feed-forward FlatNetwork over a batch of input vectors.
+ *
+ * The evaluator reads the flat weight array of the network directly. Each weight row is applied to a block of input
+ * vectors before moving on to the next row, so that the row stays in cache across the block. For every input vector,
+ * the sums are accumulated in the same order as FlatNetwork.compute(), so the outputs are identical to those of
+ * BasicNetwork.compute(). Unlike the latter, the evaluator keeps its own work buffers and does not modify the state of
+ * the network, so it can be used by multiple threads at once.
+ *
+ * The evaluator is a lightweight view of the network: it reflects changes to the weights during training, but must be
+ * recreated if the network is replaced.
+ *
+ * An evaluator can also be created from the layout and the weights of a network that were read from a binary model
+ * file (see TokenEngineModel), without a FlatNetwork. The weights are then read from a read-only DoubleBuffer, which
+ * may be memory-mapped.
+ */
+final class FlatNetworkBatchEvaluator {
+    /* Constants */
+    static final int BLOCK_SIZE = 8; /* Number of input vectors that share a pass over each weight row */
+
+    /* Member variables */
+    private final FlatNetwork flat;
+    private final double[] weights;          /* null if the weights are in weightBuffer */
+    private final DoubleBuffer weightBuffer; /* null if the weights are in weights */
+    private final int[] layerIndex;
+    private final int[] layerCounts;
+    private final int[] layerFeedCounts;
+    private final int[] weightIndex;
+    private final ActivationFunction[] activationFunctions;
+
+    private final int inputCount;
+    private final int outputCount;
+    private final int inputOffset;
+
+    /* Layer outputs with the bias activations in place, as set up by the network. Neuron values are overwritten. */
+    private final double[] layerOutputTemplate;
+
+    /* Constructors */
+    FlatNetworkBatchEvaluator(FlatNetwork flat) {
+        if (flat.getHasContext()) {
+            throw new IllegalArgumentException("Networks with context layers are not supported");
+        }
+
+        this.flat = flat;
+
+        weights = flat.getWeights();
+        weightBuffer = null;
+        layerIndex = flat.getLayerIndex();
+        layerCounts = flat.getLayerCounts();
+        layerFeedCounts = flat.getLayerFeedCounts();
+        weightIndex = flat.getWeightIndex();
+        activationFunctions = flat.getActivationFunctions();
+
+        inputCount = flat.getInputCount();
+        outputCount = flat.getOutputCount();
+
+        layerOutputTemplate = flat.getLayerOutput().clone();
+        inputOffset = layerOutputTemplate.length - layerCounts[layerCounts.length - 1];
+    }
+
+    /**
+     * @param layerCounts          Same as FlatNetwork.getLayerCounts()
+     * @param layerFeedCounts      Same as FlatNetwork.getLayerFeedCounts()
+     * @param layerIndex           Same as FlatNetwork.getLayerIndex()
+     * @param weightIndex          Same as FlatNetwork.getWeightIndex()
+     * @param activationFunctions  Same as FlatNetwork.getActivationFunctions()
+     * @param layerOutputTemplate  Same as FlatNetwork.getLayerOutput(), i.e., with the bias activations in place
+     * @param weightBuffer         Weights, in the same layout as FlatNetwork.getWeights()
+     */
+    FlatNetworkBatchEvaluator(int[] layerCounts, int[] layerFeedCounts, int[] layerIndex, int[] weightIndex,
+                              ActivationFunction[] activationFunctions, double[] layerOutputTemplate,
+                              DoubleBuffer weightBuffer) {
+        final int nLayers = layerCounts.length;
+        if (nLayers < 2 || layerFeedCounts.length != nLayers || layerIndex.length != nLayers ||
+            weightIndex.length != nLayers || activationFunctions.length != nLayers) {
+            throw new IllegalArgumentException("Inconsistent network layout");
+        }
+
+        final int nWeights = weightIndex[nLayers - 1];
+        if (weightBuffer.limit() < nWeights) {
+            throw new IllegalArgumentException("Too few weights: " + weightBuffer.limit() + " < " + nWeights);
+        }
+        if (layerOutputTemplate.length != layerIndex[nLayers - 1] + layerCounts[nLayers - 1]) {
+            throw new IllegalArgumentException("Wrong length of layer output template: " + layerOutputTemplate.length);
+        }
+
+        this.flat = null;
+
+        this.weights = null;
+        this.weightBuffer = weightBuffer.asReadOnlyBuffer();
+        this.layerCounts = layerCounts.clone();
+        this.layerFeedCounts = layerFeedCounts.clone();
+        this.layerIndex = layerIndex.clone();
+        this.weightIndex = weightIndex.clone();
+        this.activationFunctions = activationFunctions.clone();
+
+        inputCount = layerFeedCounts[nLayers - 1];
+        outputCount = layerFeedCounts[0];
+
+        this.layerOutputTemplate = layerOutputTemplate.clone();
+        inputOffset = this.layerOutputTemplate.length - layerCounts[nLayers - 1];
+    }
+
+    /* Whether this evaluator still reflects a network, i.e., neither the network nor its weight array was replaced */
+    boolean isViewOf(FlatNetwork network) {
+        return flat != null && flat == network && weights == network.getWeights();
+    }
+
+    int getInputCount() {
+        return inputCount;
+    }
+
+    int getOutputCount() {
+        return outputCount;
+    }
+
+    /* Layout of the network, for writing it to a binary model file. The arrays must not be modified. */
+    int[] getLayerCounts() {
+        return layerCounts;
+    }
+
+    int[] getLayerFeedCounts() {
+        return layerFeedCounts;
+    }
+
+    int[] getLayerIndex() {
+        return layerIndex;
+    }
+
+    int[] getWeightIndex() {
+        return weightIndex;
+    }
+
+    ActivationFunction[] getActivationFunctions() {
+        return activationFunctions;
+    }
+
+    double[] getLayerOutputTemplate() {
+        return layerOutputTemplate;
+    }
+
+    int getWeightCount() {
+        return weightIndex[weightIndex.length - 1];
+    }
+
+    double getWeight(int i) {
+        return (weights != null) ? weights[i] : weightBuffer.get(i);
+    }
+
+    /**
+     * Compute the outputs of the network for a batch of input vectors
+     * @param inputs    Input vectors, each of length getInputCount()
+     * @param outputs   Output: output vectors, each of length at least getOutputCount()
+     * @param winners   Output: index of the maximum output for each input vector, with ties resolved in favor of the
+     *                  lowest index, as in BasicNetwork.winner(). Can be null.
+     */
+    void compute(float[][] inputs, double[][] outputs, int[] winners) {
+        final int n = inputs.length;
+        final int blockSize = Math.min(BLOCK_SIZE, n);
+
+        double[][] layerOutputs = new double[blockSize][];
+        for (int b = 0; b < blockSize; ++b) {
+            layerOutputs[b] = new double[layerOutputTemplate.length];
+        }
+
+        for (int b0 = 0; b0 < n; b0 += blockSize) {
+            final int nb = Math.min(blockSize, n - b0);
+
+            for (int b = 0; b < nb; ++b) {
+                float[] input = inputs[b0 + b];
+                if (input.length != inputCount) {
+                    throw new IllegalArgumentException("Wrong length of input vector #" + (b0 + b) + ": " +
+                                                       input.length + " (expected: " + inputCount + ")");
+                }
+
+                double[] layerOutput = layerOutputs[b];
+                System.arraycopy(layerOutputTemplate, 0, layerOutput, 0, layerOutput.length);
+                for (int j = 0; j < inputCount; ++j) {
+                    layerOutput[inputOffset + j] = input[j];
+                }
+            }
+
+            /* The input layer is the last one and the output layer is #0 */
+            for (int layer = layerIndex.length - 1; layer > 0; --layer) {
+                computeLayer(layer, layerOutputs, nb);
+            }
+
+            for (int b = 0; b < nb; ++b) {
+                double[] output = outputs[b0 + b];
+                System.arraycopy(layerOutputs[b], 0, output, 0, outputCount);
+
+                if (winners != null) {
+                    winners[b0 + b] = maxIndex(output, outputCount);
+                }
+            }
+        }
+    }
+
+    /* Feed layer #layer into layer #(layer - 1), for the first nb vectors of the block */
+    private void computeLayer(int layer, double[][] layerOutputs, int nb) {
+        final int inputIndex = layerIndex[layer];
+        final int outputIndex = layerIndex[layer - 1];
+        final int inputSize = layerCounts[layer];          /* Includes the bias neuron */
+        final int outputSize = layerFeedCounts[layer - 1];
+
+        int rowIndex = weightIndex[layer - 1];
+        for (int x = outputIndex; x < outputIndex + outputSize; ++x) {
+            for (int b = 0; b < nb; ++b) {
+                final double[] layerOutput = layerOutputs[b];
+
+                double sum = 0.0;
+                if (weights != null) {
+                    for (int y = 0; y < inputSize; ++y) {
+                        sum += weights[rowIndex + y] * layerOutput[inputIndex + y];
+                    }
+                } else {
+                    for (int y = 0; y < inputSize; ++y) {
+                        sum += weightBuffer.get(rowIndex + y) * layerOutput[inputIndex + y];
+                    }
+                }
+
+                layerOutput[x] = sum;
+            }
+
+            rowIndex += inputSize;
+        }
+
+        for (int b = 0; b < nb; ++b) {
+            activationFunctions[layer - 1].activationFunction(layerOutputs[b], outputIndex, outputSize);
+        }
+    }
+
+    /* Same as EngineArray.maxIndex() */
+    private static int maxIndex(double[] xs, int n) {
+        int idx = -1;
+        for (int i = 0; i < n; ++i) {
+            if (idx == -1 || xs[i] > xs[idx]) {
+                idx = i;
+            }
+        }
+
+        return idx;
+    }
+}
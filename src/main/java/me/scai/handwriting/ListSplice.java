@@ -0,0 +1,124 @@
+package me.scai.handwriting;
+
+import me.scai.handwriting.utils.PersistentVector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A reversible change to a list: a contiguous range of elements starting at an index is replaced with a (possibly
+ * empty) list of new elements. The difference between two versions of a list that share their unchanged elements can
+ * be expressed as a splice that covers only the changed range, so that recording and replaying the change costs
+ * O(change) in elements, not O(list size).
+ *
+ * Elements are compared by identity: unchanged elements are expected to be the same instances in both versions.
+ */
+public final class ListSplice<T> {
+    /* Member variables */
+    private final int index;
+    private final List<T> removed;
+    private final List<T> inserted;
+
+    /* Constructor */
+    public ListSplice(int index, List<T> removed, List<T> inserted) {
+        if (index < 0) {
+            throw new IllegalArgumentException("Negative splice index: " + index);
+        }
+
+        this.index = index;
+        this.removed = Collections.unmodifiableList(new ArrayList<>(removed));
+        this.inserted = Collections.unmodifiableList(new ArrayList<>(inserted));
+    }
+
+    /* Methods */
+
+    /**
+     * Calculate the splice that turns one list into another. The common prefix and suffix of the two lists (by
+     * identity) are excluded from the splice.
+     * @param from  Old version of the list
+     * @param to    New version of the list
+     * @return  The splice, which may be empty
+     */
+    public static <T> ListSplice<T> diff(List<T> from, List<T> to) {
+        int prefix = 0;
+        while (prefix < from.size() && prefix < to.size() && from.get(prefix) == to.get(prefix)) {
+            prefix++;
+        }
+
+        return diff(from, to, prefix);
+    }
+
+    /* Same as diff(List, List), but skips the leaves that the two vectors share when looking for the common prefix
+     * and suffix */
+    public static <T> ListSplice<T> diff(PersistentVector<T> from, PersistentVector<T> to) {
+        final int prefix = from.commonPrefixLength(to);
+        final int suffix = from.commonSuffixLength(to, Math.min(from.size(), to.size()) - prefix);
+
+        return new ListSplice<>(prefix, from.subList(prefix, from.size() - suffix),
+                                to.subList(prefix, to.size() - suffix));
+    }
+
+    private static <T> ListSplice<T> diff(List<T> from, List<T> to, int prefix) {
+        final int nFrom = from.size();
+        final int nTo = to.size();
+
+        int suffix = 0;
+        while (suffix < nFrom - prefix && suffix < nTo - prefix &&
+               from.get(nFrom - 1 - suffix) == to.get(nTo - 1 - suffix)) {
+            suffix++;
+        }
+
+        return new ListSplice<>(prefix, from.subList(prefix, nFrom - suffix), to.subList(prefix, nTo - suffix));
+    }
+
+    /**
+     * Apply the splice to a list, in place
+     * @param list  The list, which must contain the removed elements at the splice index
+     */
+    public void applyTo(List<T> list) {
+        if (index + removed.size() > list.size()) {
+            throw new IllegalStateException("Splice range [" + index + ", " + (index + removed.size()) +
+                                            ") exceeds list size " + list.size());
+        }
+
+        list.subList(index, index + removed.size()).clear();
+        list.addAll(index, inserted);
+    }
+
+    /**
+     * Apply the splice to a copy of a list
+     * @param list  The list, which is not modified
+     * @return  New list with the splice applied
+     */
+    public List<T> applyToCopy(List<T> list) {
+        List<T> r = new ArrayList<>(list.size() - removed.size() + inserted.size());
+        r.addAll(list.subList(0, index));
+        r.addAll(inserted);
+        r.addAll(list.subList(index + removed.size(), list.size()));
+
+        return r;
+    }
+
+    /* The splice that reverts this splice */
+    public ListSplice<T> inverse() {
+        return new ListSplice<>(index, inserted, removed);
+    }
+
+    public boolean isEmpty() {
+        return removed.isEmpty() && inserted.isEmpty();
+    }
+
+    /* Getters */
+    public int getIndex() {
+        return index;
+    }
+
+    public List<T> getRemoved() {
+        return removed;
+    }
+
+    public List<T> getInserted() {
+        return inserted;
+    }
+}
@@ -76,6 +76,14 @@ public interface StrokeCurator {
     JsonObject getStateSerialization();
     String getStateSerializationString();
 
+    /**
+     * Get the state in the compact binary form, an alternative to getStateSerialization() for persisting and migrating
+     * sessions
+     * @param maxNumRecogPs  If > 0, only the largest maxNumRecogPs recognition probabilities of each token are kept
+     * @return  The state, to be passed to injectSerializedStateBinary()
+     */
+    byte[] getStateSerializationBinary(int maxNumRecogPs);
+
     /**
      * Get the last user action;
      *
@@ -90,6 +98,11 @@ public interface StrokeCurator {
 
     /* Injection of serialized state */
     void injectSerializedState(JsonObject json);
+    void injectSerializedStateBinary(byte[] state);
+
+    /* In-memory state snapshots, for undo/redo. Restoring a snapshot does not push to the state stack. */
+    StrokeCuratorSnapshot getStateSnapshot();
+    void restoreStateSnapshot(StrokeCuratorSnapshot snapshot);
 
     /**
      * Get all possible toke names (NOT display names)
@@ -1,6 +1,9 @@
 package me.scai.handwriting;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
 import java.net.URL;
@@ -14,90 +17,210 @@ class TokenPairRule {
 	public String tokenB;
 	public List<String> predicaments;
 	public String recommendation;
-	
-	public boolean applyPredicaments(float [] boundsA, float [] boundsB, 
-			                         List<Float> wtCtrXs, List<Float> wtCtrYs) {
-		boolean allPredSatisfied = true;
-		
-		for (int i = 0; i < predicaments.size(); ++i) {
-			String pred = predicaments.get(i);	/* TODO: Fine-tune performance */
-			
+
+	/* Compiled form of the predicaments and the recommendation. See compile(). */
+	private transient Predicament[] compiledPredicaments;
+	private transient String mergeRecommendation;
+
+	/* Type of a predicament: the value that is compared with the criterion */
+	enum PredicamentType {
+		relativeWidthDifference {
+			@Override
+			float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+				return GeometryHelper.absoluteRelativeDifference(boundsA[2] - boundsA[0], boundsB[2] - boundsB[0]);
+			}
+		},
+		relativeHeightDifference {
+			@Override
+			float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+				return GeometryHelper.absoluteRelativeDifference(boundsA[3] - boundsA[1], boundsB[3] - boundsB[1]);
+			}
+		},
+		relativeLeftXOffset {
+			@Override
+			float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+				return GeometryHelper.absoluteRelativeLeftXOffset(boundsA, boundsB);
+			}
+		},
+		relativeRightXOffset {
+			@Override
+			float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+				return GeometryHelper.absoluteRelativeRightXOffset(boundsA, boundsB);
+			}
+		},
+		relativeRightToLeftOffset {
+			@Override
+			float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+				return GeometryHelper.relativeRightToLeftOffset(boundsA, boundsB);
+			}
+		},
+		relativeTopYOffset {
+			@Override
+			float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+				return GeometryHelper.absoluteRelativeTopYOffset(boundsA, boundsB);
+			}
+		},
+		relativeBottomYOffset {
+			@Override
+			float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+				return GeometryHelper.absoluteRelativeBottomYOffset(boundsA, boundsB);
+			}
+		},
+		numTokensInBetweenX {
+			@Override
+			float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+				return (float) GeometryHelper.getNumTokensInBetween("X", boundsA, boundsB, wtCtrXs, wtCtrYs);
+			}
+		},
+		numTokensInBetweenY {
+			@Override
+			float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+				return (float) GeometryHelper.getNumTokensInBetween("Y", boundsA, boundsB, wtCtrXs, wtCtrYs);
+			}
+		},
+		isWidthAContainingWidthB {
+			@Override
+			float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+				return (GeometryHelper.pctOverlap(boundsA[0], boundsA[2], boundsB[0], boundsB[2], false) == 1.0f) ?
+				       1.0f : 0.0f;
+			}
+		},
+		isHeightABelowHeightBNonOverlapping {
+			@Override
+			float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+				return (GeometryHelper.pctOverlap(boundsA[1], boundsA[3], boundsB[1], boundsB[3], false) == 0.0f &&
+				        boundsA[1] > boundsB[3]) ? 1.0f : 0.0f;
+			}
+		},
+		unknown {
+			@Override
+			float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+				return 0.0F; /* TODO: Implement */
+			}
+		};
+
+		abstract float evaluate(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs);
+
+		static PredicamentType fromString(String str) {
+			for (PredicamentType type : values()) {
+				if (type != unknown && type.name().equals(str)) {
+					return type;
+				}
+			}
+
+			return unknown;
+		}
+	}
+
+	/* Comparison between the value of a predicament and the criterion */
+	enum Comparison {
+		LT("<") {
+			@Override
+			boolean test(float val, float criterionVal) {
+				return val < criterionVal;
+			}
+		},
+		GT(">") {
+			@Override
+			boolean test(float val, float criterionVal) {
+				return val > criterionVal;
+			}
+		},
+		LE("<=") {
+			@Override
+			boolean test(float val, float criterionVal) {
+				return val <= criterionVal;
+			}
+		},
+		GE(">=") {
+			@Override
+			boolean test(float val, float criterionVal) {
+				return val >= criterionVal;
+			}
+		},
+		EQ("==") {
+			@Override
+			boolean test(float val, float criterionVal) {
+				return val == criterionVal;
+			}
+		};
+
+		private final String symbol;
+
+		Comparison(String symbol) {
+			this.symbol = symbol;
+		}
+
+		abstract boolean test(float val, float criterionVal);
+
+		static Comparison fromString(String str) {
+			for (Comparison comparison : values()) {
+				if (comparison.symbol.equals(str)) {
+					return comparison;
+				}
+			}
+
+			throw new RuntimeException("Unrecognized comparison types: \"" + str + "\"");
+		}
+	}
+
+	/* Parsed predicament, e.g., "relativeWidthDifference < 0.5" */
+	static final class Predicament {
+		final PredicamentType type;
+		final Comparison comparison;
+		final float criterionVal;
+
+		Predicament(String pred) {
 			String [] items = pred.split(" ");
 			assert(items.length == 3);
-			
-			String predType = items[0].trim();
-			String compareType = items[1].trim();
-			float criterionVal = Float.parseFloat(items[2].trim());
-			
-			float val = 0.0F;
-			if (predType.equals("relativeWidthDifference")) {
-				val = GeometryHelper.absoluteRelativeDifference(boundsA[2] - boundsA[0], boundsB[2] - boundsB[0]);
-			} else if (predType.equals("relativeHeightDifference")) {
-				val = GeometryHelper.absoluteRelativeDifference(boundsA[3] - boundsA[1], boundsB[3] - boundsB[1]);
-			} else if (predType.equals("relativeLeftXOffset")) {
-				val = GeometryHelper.absoluteRelativeLeftXOffset(boundsA, boundsB);
-			} else if (predType.equals("relativeRightXOffset")) {
-				val = GeometryHelper.absoluteRelativeRightXOffset(boundsA, boundsB);
-			} else if (predType.equals("relativeRightToLeftOffset")) {
-				val = GeometryHelper.relativeRightToLeftOffset(boundsA, boundsB);
-			} else if (predType.equals("relativeTopYOffset")) {
-				val = GeometryHelper.absoluteRelativeTopYOffset(boundsA, boundsB);
-			} else if (predType.equals("relativeBottomYOffset")) {
-				val = GeometryHelper.absoluteRelativeBottomYOffset(boundsA, boundsB);
-			} else if (predType.equals("numTokensInBetweenX")) {
-				val = (float) GeometryHelper.getNumTokensInBetween("X", boundsA, boundsB, wtCtrXs, wtCtrYs);				
-			} else if (predType.equals("numTokensInBetweenY")) {
-				val = (float) GeometryHelper.getNumTokensInBetween("Y", boundsA, boundsB, wtCtrXs, wtCtrYs);				
-			} else if (predType.equals("isWidthAContainingWidthB")) {
-                if (GeometryHelper.pctOverlap(boundsA[0], boundsA[2], boundsB[0], boundsB[2], false) == 1.0f) {
-                    val = 1.0f;
-                } else {
-                    val = 0.0f;
-                }
-
-            } else if (predType.equals("isHeightABelowHeightBNonOverlapping")) {
-                if (GeometryHelper.pctOverlap(boundsA[1], boundsA[3], boundsB[1], boundsB[3], false) == 0.0f
-                    && boundsA[1] > boundsB[3]) {
-                    val = 1.0f;
-                } else {
-                    val = 0.0f;
-                }
-
-            } else {
-				val = 0.0F; /* TODO: Implement */
-			}
-			
-			boolean predSat = false;
-			if (compareType.equals("<")) {
-				predSat = val < criterionVal;
-			}
-			else if (compareType.equals(">")) {
-				predSat = val > criterionVal;
-			}
-			else if (compareType.equals("<=")) {
-				predSat = val <= criterionVal;
-			}
-			else if (compareType.equals(">=")) {
-				predSat = val >= criterionVal;
-			}
-			else if (compareType.equals("==")) {
-				predSat = val == criterionVal;
-			}
-			else {
-				throw new RuntimeException("Unrecognized comparison types: \"" + compareType + "\"");
-			}
-			
-			if (!predSat) {
-				allPredSatisfied = false;
-				break;
+
+			type = PredicamentType.fromString(items[0].trim());
+			comparison = Comparison.fromString(items[1].trim());
+			criterionVal = Float.parseFloat(items[2].trim());
+		}
+
+		boolean isSatisfied(float [] boundsA, float [] boundsB, List<Float> wtCtrXs, List<Float> wtCtrYs) {
+			return comparison.test(type.evaluate(boundsA, boundsB, wtCtrXs, wtCtrYs), criterionVal);
+		}
+	}
+
+	/* Parse the predicaments and the recommendation. Called once, when the config is loaded. */
+	void compile() {
+		int np = (predicaments == null) ? 0 : predicaments.size();
+
+		compiledPredicaments = new Predicament[np];
+		for (int i = 0; i < np; ++i) {
+			compiledPredicaments[i] = new Predicament(predicaments.get(i));
+		}
+
+		mergeRecommendation = parseMergeRecommendation();
+	}
+
+	/* All of the predicaments have to be satisfied */
+	public boolean applyPredicaments(float [] boundsA, float [] boundsB, 
+			                         List<Float> wtCtrXs, List<Float> wtCtrYs) {
+		if (compiledPredicaments == null) {
+			compile();
+		}
+
+		for (Predicament pred : compiledPredicaments) {
+			if ( !pred.isSatisfied(boundsA, boundsB, wtCtrXs, wtCtrYs) ) {
+				return false;
 			}
-		
 		}
-		
-		return allPredSatisfied;
+
+		return true;
 	}
 	
 	public String getMergeRecommendation() {
+		if (compiledPredicaments == null) {
+			compile();
+		}
+
+		return mergeRecommendation;
+	}
+
+	private String parseMergeRecommendation() {
 		final String assertPrefix = "mergeAs: \"";
 		final String assertSuffix = "\"";
 		
@@ -118,10 +241,110 @@ public class StrokeCuratorConfig {
 	public Map<String, List<String> > mergePartners;
 
 	private String remoteTokenEngineUrl;
+
+	/* If > 0, local recognition runs in parallel with each remote request, and the remote result is used only if it
+	 * arrives within this many milliseconds. If 0, remote requests are waited for until they succeed or fail. */
+	private long remoteTokenEngineDeadlineMillis;
 	
+	/* Token ID of the token names that do not appear in any rule or merge-partner list */
+	public static final int NO_RULES_TOKEN_ID = -1;
+
+	/* Compiled form of the rules, built by compile() when the config is loaded. The token names that appear in the
+	 * rules and the merge-partner lists are mapped to integer IDs 0, 1, 2, .... */
+	private transient Map<String, Integer> tokenIds;
+	private transient Map<Long, TokenPairRule[]> rulesByTokenPair; 	/* Key: pairKey(), value: rules in config order */
+	private transient boolean [] tokenHasRules;
+	private transient BitSet [] mergePartnerSets; 					/* null for tokens without merge-partner list */
+
 	/* Factory method: From JSON String */
 	public static StrokeCuratorConfig fromJson(String json) {
-		return (StrokeCuratorConfig) gson.fromJson(json, StrokeCuratorConfig.class);
+		StrokeCuratorConfig config = (StrokeCuratorConfig) gson.fromJson(json, StrokeCuratorConfig.class);
+		if (config != null) {
+			config.compile();
+		}
+
+		return config;
+	}
+
+	/* Build the lookup tables for potentiallyMergeable() and applyRule(), and parse the predicaments */
+	private void compile() {
+		tokenIds = new HashMap<>();
+
+		if (tokenPairRules != null) {
+			for (TokenPairRule rule : tokenPairRules) {
+				rule.compile();
+				getOrAddTokenId(rule.tokenA);
+				getOrAddTokenId(rule.tokenB);
+			}
+		}
+
+		if (mergePartners != null) {
+			for (Map.Entry<String, List<String>> entry : mergePartners.entrySet()) {
+				getOrAddTokenId(entry.getKey());
+				for (String partner : entry.getValue()) {
+					getOrAddTokenId(partner);
+				}
+			}
+		}
+
+		final int nIds = tokenIds.size();
+
+		/* Rules. A rule applies to its token pair in either order. */
+		rulesByTokenPair = new HashMap<>();
+		tokenHasRules = new boolean[nIds];
+		if (tokenPairRules != null) {
+			for (TokenPairRule rule : tokenPairRules) {
+				int idA = tokenIds.get(rule.tokenA);
+				int idB = tokenIds.get(rule.tokenB);
+
+				Long key = pairKey(idA, idB);
+				TokenPairRule [] rules = rulesByTokenPair.get(key);
+				if (rules == null) {
+					rules = new TokenPairRule[] {rule};
+				} else {
+					rules = Arrays.copyOf(rules, rules.length + 1);
+					rules[rules.length - 1] = rule;
+				}
+				rulesByTokenPair.put(key, rules);
+
+				tokenHasRules[idA] = true;
+				tokenHasRules[idB] = true;
+			}
+		}
+
+		/* Merge partners */
+		mergePartnerSets = new BitSet[nIds];
+		if (mergePartners != null) {
+			for (Map.Entry<String, List<String>> entry : mergePartners.entrySet()) {
+				BitSet partnerSet = new BitSet(nIds);
+				for (String partner : entry.getValue()) {
+					partnerSet.set(tokenIds.get(partner));
+				}
+
+				mergePartnerSets[tokenIds.get(entry.getKey())] = partnerSet;
+			}
+		}
+	}
+
+	private void getOrAddTokenId(String tokenName) {
+		if ( !tokenIds.containsKey(tokenName) ) {
+			tokenIds.put(tokenName, tokenIds.size());
+		}
+	}
+
+	/* Unordered pair of token IDs */
+	private static long pairKey(int idA, int idB) {
+		return (idA <= idB) ? (((long) idA << 32) | idB) : (((long) idB << 32) | idA);
+	}
+
+	/**
+	 * Get the ID of a token name, for use with the ID-based methods
+	 * @param tokenName  Token name
+	 * @return  The ID, or NO_RULES_TOKEN_ID if the token name does not appear in any rule or merge-partner list
+	 */
+	public int getTokenId(String tokenName) {
+		Integer id = tokenIds.get(tokenName);
+		return (id == null) ? NO_RULES_TOKEN_ID : id;
 	}
 	
 	public static StrokeCuratorConfig fromJsonFile(String configFilePath) {
@@ -153,40 +376,66 @@ public class StrokeCuratorConfig {
 		return mergePartners.get(token);
 	}
 	
-	public boolean potentiallyMergeable(String tokenA, String tokenB) {				
-		if (mergePartners.containsKey(tokenA)) {
-			return mergePartners.get(tokenA).contains(tokenB);
-		} else if (mergePartners.containsKey(tokenB)) {
-			return mergePartners.get(tokenB).contains(tokenA);
+	public boolean potentiallyMergeable(String tokenA, String tokenB) {
+		return potentiallyMergeable(getTokenId(tokenA), getTokenId(tokenB));
+	}
+
+	/* Same as potentiallyMergeable(String, String), with token IDs from getTokenId() */
+	public boolean potentiallyMergeable(int tokenIdA, int tokenIdB) {
+		if (tokenIdA != NO_RULES_TOKEN_ID && mergePartnerSets[tokenIdA] != null) {
+			return tokenIdB != NO_RULES_TOKEN_ID && mergePartnerSets[tokenIdA].get(tokenIdB);
+		} else if (tokenIdB != NO_RULES_TOKEN_ID && mergePartnerSets[tokenIdB] != null) {
+			return tokenIdA != NO_RULES_TOKEN_ID && mergePartnerSets[tokenIdB].get(tokenIdA);
 		} else {
 			return true;
 		}
 	}
-	
+
+	/* Whether any token-pair rule involves the specified token name. If not, applyRule() returns null for all
+	 * pairs that include the token. */
+	public boolean hasRulesFor(String tokenName) {
+		return hasRulesFor(getTokenId(tokenName));
+	}
+
+	public boolean hasRulesFor(int tokenId) {
+		return tokenId != NO_RULES_TOKEN_ID && tokenHasRules[tokenId];
+	}
+
 	/* Return value: the name of the recommended merged. If merge is not recommended, return null. */
 	public String applyRule(String tokenNameA, String tokenNameB, 
 			                float [] boundsA, float [] boundsB, 
 			                List<Float> wtCtrXs, List<Float> wtCtrYs) {
-		String out = null;
-		
-		for (int i = 0; i < tokenPairRules.size(); ++i) {
-			TokenPairRule rule = tokenPairRules.get(i);
-			
-			/* Iterate through the predicaments. All of them have to be satisfied */
-			if ( (rule.tokenA.equals(tokenNameA) && rule.tokenB.equals(tokenNameB)) || 
-				 (rule.tokenA.equals(tokenNameB) && rule.tokenB.equals(tokenNameA)) ) {
-				if ( rule.applyPredicaments(boundsA, boundsB, wtCtrXs, wtCtrYs) || 
-				     rule.applyPredicaments(boundsB, boundsA, wtCtrXs, wtCtrYs) ) {
-					out = rule.getMergeRecommendation();
-					break;
-				}
+		return applyRule(getTokenId(tokenNameA), getTokenId(tokenNameB), boundsA, boundsB, wtCtrXs, wtCtrYs);
+	}
+
+	/* Same as applyRule(String, String, ...), with token IDs from getTokenId() */
+	public String applyRule(int tokenIdA, int tokenIdB,
+							float [] boundsA, float [] boundsB,
+							List<Float> wtCtrXs, List<Float> wtCtrYs) {
+		if (tokenIdA == NO_RULES_TOKEN_ID || tokenIdB == NO_RULES_TOKEN_ID) {
+			return null;
+		}
+
+		TokenPairRule [] rules = rulesByTokenPair.get(pairKey(tokenIdA, tokenIdB));
+		if (rules == null) {
+			return null;
+		}
+
+		for (TokenPairRule rule : rules) {
+			if ( rule.applyPredicaments(boundsA, boundsB, wtCtrXs, wtCtrYs) || 
+			     rule.applyPredicaments(boundsB, boundsA, wtCtrXs, wtCtrYs) ) {
+				return rule.getMergeRecommendation();
 			}
 		}
-		
-		return out;
+
+		return null;
 	}
 
 	public String getRemoteTokenEngineUrl() {
 		return remoteTokenEngineUrl;
 	}
+
+	public long getRemoteTokenEngineDeadlineMillis() {
+		return remoteTokenEngineDeadlineMillis;
+	}
 }
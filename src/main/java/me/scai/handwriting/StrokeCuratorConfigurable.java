@@ -2,14 +2,20 @@ package me.scai.handwriting;
 
 import java.util.*;
 import java.net.URL;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import com.google.gson.*;
+import me.scai.handwriting.remote.AsyncTokenRecogRemoteEngine;
+import me.scai.handwriting.remote.CancellationToken;
+import me.scai.handwriting.remote.PendingTokenRecognition;
 import me.scai.handwriting.remote.TokenRecogRemoteEngine;
 import me.scai.handwriting.remote.TokenRecogRemoteEngineException;
 import me.scai.handwriting.remote.TokenRecogRemoteEngineImpl;
 import me.scai.handwriting.tokens.TokenSettings;
+import me.scai.handwriting.utils.PersistentVector;
 import me.scai.plato.helpers.CStrokeJsonHelper;
+import me.scai.plato.helpers.CompactStateCodec;
 import me.scai.plato.helpers.CWrittenTokenSetJsonHelper;
 import org.apache.commons.lang.ArrayUtils;
 
@@ -41,15 +47,34 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
     private static final String SERIALIZATION_WT_CTR_YS_KEY            = "wtCtrYs";
     private static final String SERIALIZATION_TOKEN_UUIDS_KEY          = "tokenUuids";
 
-    private static final int STATE_STACK_CAPACITY = 20;
+    /* Compact binary form of the state: "GSCS" */
+    private static final int BINARY_STATE_MAGIC = 0x47534353;
+    private static final int BINARY_STATE_VERSION = 1;
+
+    private static final int STATE_STACK_CAPACITY = 200;
+    private static final int STATE_CHECKPOINT_INTERVAL = 10;
 
     /* Member variables */
     /* Parameters */
     private final String configFileCommentString = "#";
 
-    /* State stack, for undo/redo */
+    /* State stack, for undo/redo. Records the deltas between in-memory snapshots of the state. */
+    private DeltaStateStack<StrokeCuratorSnapshot, StrokeCuratorSnapshot.Delta> stateStack;
+
+    /* The last snapshot taken or restored. The next snapshot is derived from it, by updating only the strokes and
+     * tokens that have changed since. */
+    private StrokeCuratorSnapshot lastSnapshot = StrokeCuratorSnapshot.EMPTY;
+
+    /* Changes since lastSnapshot: the lowest stroke and token indices from which the lists may have changed
+     * (Integer.MAX_VALUE if unchanged), and the indices of individual tokens that have been changed in place */
+    private int strokesChangedFrom = Integer.MAX_VALUE;
+    private int tokensChangedFrom = Integer.MAX_VALUE;
+    private Set<Integer> changedTokenIndices = new HashSet<>();
 
-    private StateStack<StrokeCuratorState> stateStack = new StateStack<>(STATE_STACK_CAPACITY);
+    /* Spatial index of the token bounds, for finding the tokens that a new stroke overlaps. Invalidated along with the
+     * change marks above and synced lazily before each query. */
+    private transient TokenBoundsGrid tokenGrid = new TokenBoundsGrid();
+    private transient boolean scanningAllTokens = false;    /* Test all tokens instead, for comparison in tests */
 
 //	private List<String> noMergeTokens = new ArrayList<String>();
     private StrokeCuratorConfig config;
@@ -63,29 +88,36 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
 
     private TokenRecogEngine tokenEngine = null;
     private transient TokenRecogRemoteEngine remoteTokenEngine;
+    private transient AsyncTokenRecogRemoteEngine asyncRemoteTokenEngine;
+    private long remoteTokenEngineDeadlineMillis;
+
+    /* Cache of the results of callTokenEngine(). null if disabled, or if the token engine does not provide feature
+     * vectors. */
+    private TokenRecogCache recogCache;
+
+    /* Indices of the token names of the token engine, for mapping the output of the remote token engine */
+    private transient Map<String, Integer> tokenNameIndices;
 
     private CWrittenTokenSet wtSet = new CWrittenTokenSet();
 
     private List<String> tokenUuids = new ArrayList<>(); // UUIDs of the tokens
 
-    private List<CStroke> strokes = new LinkedList<>();
-    private List<CStroke> strokesUN = new LinkedList<>(); 	/* Unnormalized */
+    private List<CStroke> strokes = new ArrayList<>();
+    private List<CStroke> strokesUN = new ArrayList<>(); 	/* Unnormalized */
 
-    private List<Integer> strokeState = new LinkedList<>();  /* Stroke status */
+    private List<Integer> strokeState = new ArrayList<>();  /* Stroke status */
 
     /* -1: unincorporated (unprocessed); >= 0: index to the containing token */
-    private List<Float> wtCtrXs = new LinkedList<>(); 	/* Central X coordinate of the written tokens */
-    private List<Float> wtCtrYs = new LinkedList<>(); 	/* Central X coordinate of the written tokens */
+    private List<Float> wtCtrXs = new ArrayList<>(); 	/* Central X coordinate of the written tokens */
+    private List<Float> wtCtrYs = new ArrayList<>(); 	/* Central X coordinate of the written tokens */
 
-    private List<String> wtRecogWinners = new LinkedList<>();
-    private List<double []> wtRecogPs = new LinkedList<>();
-    private List<Double> wtRecogMaxPs = new LinkedList<>();
+    private List<String> wtRecogWinners = new ArrayList<>();
+    private List<double []> wtRecogPs = new ArrayList<>();
+    private List<Double> wtRecogMaxPs = new ArrayList<>();
 
-    private List<int []> wtConstStrokeIdx = new LinkedList<>();	/* Indices to constituents stroke indices */
+    private List<int []> wtConstStrokeIdx = new ArrayList<>();	/* Indices to constituents stroke indices */
 
     private float mergePValueRatioThresh = 0.5F;
-
-    private JsonObject initialState;
     /* ~Member variables */
 
     /* Methods */
@@ -115,13 +147,15 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
             remoteTokenEngine = new TokenRecogRemoteEngineImpl(config.getRemoteTokenEngineUrl(), tokenSettings);
 
             logger.info("Obtained remote token engine: " + remoteTokenEngine);
+
+            asyncRemoteTokenEngine = new AsyncTokenRecogRemoteEngine(remoteTokenEngine);
+            setRemoteTokenEngineDeadline(config.getRemoteTokenEngineDeadlineMillis());
         }
 
-        generateInitialStateSerialization();
-    }
+        setRecogCacheCapacity(TokenRecogCache.DEFAULT_CAPACITY);
 
-    private void generateInitialStateSerialization() {
-        initialState = getStateSerialization();
+        stateStack = new DeltaStateStack<>(StrokeCuratorSnapshot.CODEC, getStateSnapshot(),
+                                           STATE_STACK_CAPACITY, STATE_CHECKPOINT_INTERVAL);
     }
 
     /* Constructor */
@@ -183,6 +217,11 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
         double[] newPs = recogOut.getCandidatePsAsDoubleArray();
 
         if ( (!toCompareMaxPs) || (newMaxP > wtRecogMaxPs.get(oldWrittenTokenIdx) * mergePValueRatioThresh ) ) {
+            /* The token keeps its index, but its UUID is removed and a new one is appended, which shifts the UUIDs
+             * of all the later tokens */
+            markTokensChanged(oldWrittenTokenIdx);
+            markStrokesChanged(strokeState.size() - 1);
+
             /* Replace the old token set with a new one that includes the new stroke */
             wtRecogWinners.set(oldWrittenTokenIdx, newWinnerTokenName);
             wtRecogPs.set(oldWrittenTokenIdx, newPs);
@@ -222,6 +261,8 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
     }
 
     private void addStroke(CStroke s, boolean internal) {
+        markStrokesChanged(strokes.size());
+
         strokes.add(s);
         strokesUN.add(new CStroke(s)); 	/* Uses copy constructor */
         strokeState.add(-1);
@@ -243,18 +284,68 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
             /* More than one strokes exist */
             boolean merged = false;
 
-            /* Inclusion coefficients */
-            float [] negOverlapCoeffs = new float[wtSet.nTokens()];
-            int recomMergeIdx = -1;			/* TODO: Remove this var? */
-            String recomMergeToken = null;	/* TODO: Remove this var? */
-            for (int i = 0; i < wtSet.nTokens(); ++i) {
-                String tokenRecogWinner = wtSet.recogWinners.get(i);
+            float [] s_bounds = new float[4];
+            s_bounds[0] = s.min_x;
+            s_bounds[1] = s.min_y;
+            s_bounds[2] = s.max_x;
+            s_bounds[3] = s.max_y;
 
-                if ( !config.potentiallyMergeable(strokeRecogWinner, tokenRecogWinner) ) {
+            /* 1. Apply rules in StrokeCuratorConfig. The rule predicates are relative (offsets in proportion to the
+             * token sizes, tokens in between), so rule partners need not be close to the stroke and all tokens are
+             * tested, unless no rule involves the stroke's recognition winner. */
+            final int strokeTokenId = config.getTokenId(strokeRecogWinner);
+
+            if (config.hasRulesFor(strokeTokenId)) {
+                for (int i = 0; i < wtSet.nTokens(); ++i) {
+                    int tokenId = config.getTokenId(wtSet.recogWinners.get(i));
+
+                    if ( !config.potentiallyMergeable(strokeTokenId, tokenId) ) {
+                        continue;
+                    }
+
+                    String recomMergeToken = config.applyRule(strokeTokenId, tokenId,
+                                                              s_bounds, wtSet.getTokenBounds(i),
+                                                              wtCtrXs, wtCtrYs);	/* Assume, the first argument is the new stroke. TODO: Make this assumption a necessity. */
+                    if (recomMergeToken != null) {
+                        mergeTokenWithStroke(false, i, strokesUN.size() - 1); /* Obey the rule and perform the merging */
+                        merged = true;
+                        break;
+                    }
+                }
+            }
+
+            /* 2. Overlap coefficients. Only the tokens whose bounds intersect the stroke's bounds can have non-zero
+             * coefficients, so only those are looked up in the grid and tested. */
+            int [] candidates = new int[0];
+            float [] negOverlapCoeffs = new float[0];
+            if (!merged) {
+                if (scanningAllTokens) {
+                    candidates = new int[wtSet.nTokens()];
+                    for (int i = 0; i < candidates.length; ++i) {
+                        candidates[i] = i;
+                    }
+                } else {
+                    tokenGrid.sync(wtSet);
+                    candidates = tokenGrid.query(s_bounds);
+                }
+                negOverlapCoeffs = new float[candidates.length];
+            }
+
+            float [] s_xBounds = new float[2];
+            s_xBounds[0] = s.min_x;
+            s_xBounds[1] = s.max_x;
+            float [] s_yBounds = new float[2];
+            s_yBounds[0] = s.min_y;
+            s_yBounds[1] = s.max_y;
+
+            for (int k = 0; k < candidates.length; ++k) {
+                int i = candidates[k];
+                int tokenId = config.getTokenId(wtSet.recogWinners.get(i));
+
+                if ( !config.potentiallyMergeable(strokeTokenId, tokenId) ) {
                     continue;
                 }
 
-                /* 2. ... TODO */
                 float [] t_bounds = wtSet.getTokenBounds(i);
                 float [] t_xBounds = new float[2];
                 t_xBounds[0] = t_bounds[0];
@@ -263,36 +354,12 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
                 t_yBounds[0] = t_bounds[1];
                 t_yBounds[1] = t_bounds[3];
 
-                float [] s_xBounds = new float[2];
-                s_xBounds[0] = s.min_x;
-                s_xBounds[1] = s.max_x;
-                float [] s_yBounds = new float[2];
-                s_yBounds[0] = s.min_y;
-                s_yBounds[1] = s.max_y;
-                float [] s_bounds = new float[4];
-                s_bounds[0] = s.min_x;
-                s_bounds[1] = s.min_y;
-                s_bounds[2] = s.max_x;
-                s_bounds[3] = s.max_y;
-
-                /* Apply rules in StrokeCuratorConfig */
-                if (recomMergeIdx == -1) {
-                    recomMergeToken = config.applyRule(strokeRecogWinner, tokenRecogWinner,
-                                                       s_bounds, t_bounds,
-                                                       wtCtrXs, wtCtrYs);	/* Assume, the first argument is the new stroke. TODO: Make this assumption a necessity. */
-                    if (recomMergeToken != null) {
-                        recomMergeIdx = i;
-
-                        mergeTokenWithStroke(false, i, strokesUN.size() - 1); /* Obey the rule and perform the merging */
-                        merged = true;
-                    }
-                }
-
                 /* Calculate the negative overlap coefficient */
-                negOverlapCoeffs[i] = -1f * GeometryHelper.pctOverlap(t_xBounds, s_xBounds) *
+                negOverlapCoeffs[k] = -1f * GeometryHelper.pctOverlap(t_xBounds, s_xBounds) *
                                             GeometryHelper.pctOverlap(t_yBounds, s_yBounds);
             }
 
+            /* Stable sort: ties stay in the order of the token indices */
             int [] idxInSorted = new int[negOverlapCoeffs.length];
             MathHelper.sort(negOverlapCoeffs, idxInSorted);
 
@@ -302,10 +369,10 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
                         break;
                     }
 
-                    int wtIdx = idxInSorted[n];
-                    String tokenRecogWinner = wtSet.recogWinners.get(wtIdx);
+                    int wtIdx = candidates[idxInSorted[n]];
+                    int tokenId = config.getTokenId(wtSet.recogWinners.get(wtIdx));
 
-                    if ( !config.potentiallyMergeable(strokeRecogWinner, tokenRecogWinner) ) {
+                    if ( !config.potentiallyMergeable(strokeTokenId, tokenId) ) {
                         continue;
                     }
 
@@ -362,6 +429,8 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
         TokenRecogOutput recogOut = callTokenEngine(wt);
         double[] ps = recogOut.getCandidatePsAsDoubleArray();
 
+        markTokensChanged(wtSet.nTokens());
+
         wtRecogWinners.add(recogOut.getWinner());
         wtRecogPs.add(ps);
         wtRecogMaxPs.add((double) recogOut.getMaxP());
@@ -393,6 +462,8 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
             throw new IllegalArgumentException("idxToken exceeds number of tokens");
         }
 
+        markTokensChanged(idxToken);
+
         wtCtrXs.remove(idxToken);
         wtCtrYs.remove(idxToken);
 
@@ -410,6 +481,8 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
         }
 
         for (int n = constIdx.length - 1; n >= 0; --n) {
+            markStrokesChanged(constIdx[n]);
+
             strokes.remove(constIdx[n]);
             strokesUN.remove(constIdx[n]);
             strokeState.remove(constIdx[n]);
@@ -422,7 +495,12 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
             int[] strokeIndices = wtConstStrokeIdx.get(j);
 
             for (int k = 0; k < strokeIndices.length; ++k) {
-                strokeIndices[k] = getDecrementedStrokeIndexAfterStrokesRemoval(strokeIndices[k], constIdx);
+                int newIdx = getDecrementedStrokeIndexAfterStrokesRemoval(strokeIndices[k], constIdx);
+                if (newIdx != strokeIndices[k]) {
+                    markTokenChanged(j);
+                }
+
+                strokeIndices[k] = newIdx;
             }
         }
 
@@ -516,6 +594,10 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
             return;
         }
 
+        for (int idx : removedTokenIndices) {
+            markTokensChanged(idx);
+        }
+
 
         boolean[] toPreserve = new boolean[getNumTokens()];
         LinkedList<String> preservedTokenUuids = new LinkedList<>();
@@ -531,12 +613,12 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
         CWrittenTokenSet new_wtSet = new CWrittenTokenSet();
         List<String> new_tokenUuids = new ArrayList<>();
 
-        List<Float> new_wtCtrXs = new LinkedList<>(); 	/* Central X coordinate of the written tokens */
-        List<Float> new_wtCtrYs = new LinkedList<>(); 	/* Central X coordinate of the written tokens */
-        List<String> new_wtRecogWinners = new LinkedList<>();
-        List<double []> new_wtRecogPs = new LinkedList<>();
-        List<Double> new_wtRecogMaxPs = new LinkedList<>();
-        List<int[]> new_wtConstStrokeIdx = new LinkedList<>();	/* Indices to constituents stroke indices */
+        List<Float> new_wtCtrXs = new ArrayList<>(); 	/* Central X coordinate of the written tokens */
+        List<Float> new_wtCtrYs = new ArrayList<>(); 	/* Central X coordinate of the written tokens */
+        List<String> new_wtRecogWinners = new ArrayList<>();
+        List<double []> new_wtRecogPs = new ArrayList<>();
+        List<Double> new_wtRecogMaxPs = new ArrayList<>();
+        List<int[]> new_wtConstStrokeIdx = new ArrayList<>();	/* Indices to constituents stroke indices */
 
         Iterator<String> preservedTokenUuidIter = preservedTokenUuids.iterator();
         for (int k = 0; k < toPreserve.length; ++k) {
@@ -578,6 +660,8 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
             int tokenIdx = idxTokensToPluck.get(i);
             int [] constIdx = wtConstStrokeIdx.get(tokenIdx);
 
+            markTokenChanged(tokenIdx);
+
             int [] strokesToRemove = idxStrokeIndicesToPluck.get(i);
             for (int j = 0; j < strokesToRemove.length; ++j) {
                 strokesToRemove[j] = constIdx[strokesToRemove[j]];
@@ -634,6 +718,8 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
             return;
         }
 
+        markTokenChanged(tokenIdx);
+
         wtRecogWinners.set(tokenIdx, recogWinner);
 
         wtRecogPs.set(tokenIdx, null);   /* Is this appropriate? */
@@ -721,6 +807,8 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
         tmpWT.setRecogResult(output.getWinner()); /* TODO: Refactor into tokenEngine.recognize() */
         tmpWT.setRecogPs(ps);
 
+        markTokensChanged(wtSet.getNumTokens());
+
         wtSet.addToken(wtSet.getNumTokens(), tmpWT, output.getWinner(), ps);
         addNewTokenUuid();
 
@@ -748,6 +836,9 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
     }
 
     private void clear(boolean internal) {
+        markStrokesChanged(0);
+        markTokensChanged(0);
+
         wtSet.clear();
         tokenUuids.clear();
 
@@ -908,31 +999,89 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
 
     }
 
+    @Override
+    public byte[] getStateSerializationBinary(int maxNumRecogPs) {
+        CompactStateCodec.Writer writer = new CompactStateCodec.Writer();
+
+        writer.writeMagic(BINARY_STATE_MAGIC);
+        writer.writeVarint(BINARY_STATE_VERSION);
+
+        /* strokes */
+        writer.writeVarint(strokes.size());
+        for (CStroke stroke : strokes) {
+            writer.writeStroke(stroke);
+        }
+
+        final int nt = wtSet.getNumTokens();
+        writer.writeVarint(nt);
+
+        /* Constituent stroke indices */
+        for (int[] constIdx : wtConstStrokeIdx) {
+            writer.writeVarint(constIdx.length);
+            for (int idx : constIdx) {
+                writer.writeVarint(idx);
+            }
+        }
+
+        /* Token bounds */
+        for (int i = 0; i < nt; ++i) {
+            for (float b : wtSet.getTokenBounds(i)) {
+                writer.writeFloat(b);
+            }
+        }
+
+        /* wtRecogWinners, as indices into a table of the distinct names */
+        Map<String, Integer> nameIndices = new LinkedHashMap<>();
+        for (String winner : wtRecogWinners) {
+            if ( !nameIndices.containsKey(winner) ) {
+                nameIndices.put(winner, nameIndices.size());
+            }
+        }
+        writer.writeVarint(nameIndices.size());
+        for (String name : nameIndices.keySet()) {
+            writer.writeNullableString(name);
+        }
+        for (String winner : wtRecogWinners) {
+            writer.writeVarint(nameIndices.get(winner));
+        }
+
+        /* wtRecogPs and wtRecogMaxPs */
+        for (double[] ps : wtRecogPs) {
+            writer.writeProbabilities(ps, maxNumRecogPs);
+        }
+        for (double maxP : wtRecogMaxPs) {
+            writer.writeFloat((float) maxP);
+        }
+
+        /* Token UUIDs */
+        writer.writeVarint(tokenUuids.size());
+        for (String uuid : tokenUuids) {
+            writer.writeUuid(uuid);
+        }
+
+        return writer.toByteArray();
+    }
+
     /* Deserialization */
     @Override
     public void injectSerializedState(JsonObject state) {
-        /* Clear state before injecting the state */
-        clear(true);        // true: Marking internal calls, to prevent the pushing of user action stack. Same below.
-
         /* strokes */
         if (!(state.has(SERIALIZATION_STROKES_KEY) && state.get(SERIALIZATION_STROKES_KEY).isJsonArray())) {
             throw new RuntimeException("Serialized state is missing field: " + SERIALIZATION_STROKES_KEY);
         }
 
         JsonArray jsonStrokes = state.get(SERIALIZATION_STROKES_KEY).getAsJsonArray();
-        strokes = new LinkedList<>();
 
+        List<CStroke> newStrokes = new ArrayList<>(jsonStrokes.size());
         for (int i = 0; i < jsonStrokes.size(); ++i) {
             try {
-                CStroke stroke = CStrokeJsonHelper.json2CStroke(gson.toJson(jsonStrokes.get(i)));
-
-                addStroke(stroke, true);
+                newStrokes.add(CStrokeJsonHelper.json2CStroke(gson.toJson(jsonStrokes.get(i))));
             } catch (CStrokeJsonHelper.CStrokeJsonConversionException exc) {
                 throw new RuntimeException("Failed to convert stroke of index " + i + " to CStroke, due to: " + exc.getMessage());
             }
         }
 
-        /* Merge according to constituent stroke indices */
+        /* Constituent stroke indices */
         if (!(state.has(SERIALIZATION_CONST_STROKE_INDICES_KEY) && state.get(SERIALIZATION_CONST_STROKE_INDICES_KEY).isJsonArray())) {
             throw new RuntimeException("Serialized state is missing field: " + SERIALIZATION_CONST_STROKE_INDICES_KEY);
         }
@@ -942,6 +1091,7 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
             throw new RuntimeException("jsonWtConstStrokeIdx");
         }
 
+        List<int[]> newConstStrokeIndices = new ArrayList<>(jsonWtConstStrokeIdx.size());
         for (int i = 0; i < jsonWtConstStrokeIdx.size(); ++i) {
             if (!jsonWtConstStrokeIdx.get(i).isJsonArray()) {
                 throw new RuntimeException("Unexpectedly encountered non-JSON array element at index-" + i);
@@ -954,12 +1104,13 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
                 strokeIndices[j] = jsonStrokeIndices.get(j).getAsInt();
             }
 
-            mergeStrokesAsToken(strokeIndices, true);
+            newConstStrokeIndices.add(strokeIndices);
         }
 
-        /* Force set token bounds: For actions such as MoveToken */
+        /* Token bounds: For actions such as MoveToken */
         JsonArray tokenBounds = state.get(SERIALIZATION_TOKEN_BOUNDS_KEY).getAsJsonArray();
 
+        List<float[]> newTokenBounds = new ArrayList<>(tokenBounds.size());
         for (int i = 0; i < tokenBounds.size(); ++i) {
             JsonArray thisTokenBounds = tokenBounds.get(i).getAsJsonArray();
             float[] tb = new float[thisTokenBounds.size()];
@@ -967,10 +1118,10 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
                 tb[j] = thisTokenBounds.get(j).getAsFloat();
             }
 
-            this.moveToken(i, tb, true);
+            newTokenBounds.add(tb);
         }
 
-        /* Force set recognition winners */
+        /* Recognition winners */
         if (!(state.has(SERIALIZATION_WT_RECOG_WINNERS_KEY) && state.get(SERIALIZATION_WT_RECOG_WINNERS_KEY).isJsonArray())) {
             throw new RuntimeException("Serialized state is missing field: " + SERIALIZATION_WT_RECOG_WINNERS_KEY);
         }
@@ -982,29 +1133,162 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
         JsonArray jsonRecogWinners = state.get(SERIALIZATION_WT_RECOG_WINNERS_KEY).getAsJsonArray();
 //            JsonArray jsonWtRecogPs = state.get(SERIALIZATION_WT_RECOG_PS_KEY).getAsJsonArray();
 
-        List<String> currRecogWinners = getWrittenTokenRecogWinners();
-
+        List<String> newRecogWinners = new ArrayList<>(jsonRecogWinners.size());
         for (int i = 0; i < jsonRecogWinners.size(); ++i) {
-            if ( !currRecogWinners.get(i).equals(jsonRecogWinners.get(i).getAsString()) ) {
-                forceSetRecogWinner(i, jsonRecogWinners.get(i).getAsString(), true);
-            }
+            newRecogWinners.add(jsonRecogWinners.get(i).getAsString());
         }
 
-
         /* Token UUIDs */
         if (!(state.has(SERIALIZATION_TOKEN_UUIDS_KEY) && state.get(SERIALIZATION_TOKEN_UUIDS_KEY).isJsonArray())) {
             throw new RuntimeException("Serialized state is missing field: " + SERIALIZATION_WT_RECOG_WINNERS_KEY);
         }
 
-        tokenUuids = new ArrayList<>();
-        ((ArrayList) tokenUuids).ensureCapacity(wtSet.getNumTokens());
-
         JsonArray tokenUuidsArray = state.get(SERIALIZATION_TOKEN_UUIDS_KEY).getAsJsonArray();
+
+        List<String> newTokenUuids = new ArrayList<>(tokenUuidsArray.size());
         for (int i = 0; i < tokenUuidsArray.size(); ++i) {
-            tokenUuids.add(tokenUuidsArray.get(i).getAsString());
+            newTokenUuids.add(tokenUuidsArray.get(i).getAsString());
+        }
+
+        injectState(newStrokes, newConstStrokeIndices, newTokenBounds, newRecogWinners, newTokenUuids);
+    }
+
+    @Override
+    public void injectSerializedStateBinary(byte[] state) {
+        CompactStateCodec.Reader reader = new CompactStateCodec.Reader(state);
+
+        reader.readMagic(BINARY_STATE_MAGIC, "stroke curator state");
+        long version = reader.readVarint();
+        if (version != BINARY_STATE_VERSION) {
+            throw new IllegalArgumentException("Unsupported version of compact stroke curator state: " + version);
+        }
+
+        /* strokes. Counts are checked against the remaining data, at one byte per element, before allocating. */
+        final int ns = reader.readCount(1);
+        List<CStroke> newStrokes = new ArrayList<>(ns);
+        for (int i = 0; i < ns; ++i) {
+            newStrokes.add(reader.readStroke());
+        }
+
+        final int nt = reader.readCount(1);
+
+        /* Constituent stroke indices */
+        List<int[]> newConstStrokeIndices = new ArrayList<>(nt);
+        for (int i = 0; i < nt; ++i) {
+            int[] strokeIndices = new int[reader.readCount(1)];
+            for (int j = 0; j < strokeIndices.length; ++j) {
+                strokeIndices[j] = reader.readCount();
+            }
+
+            newConstStrokeIndices.add(strokeIndices);
+        }
+
+        /* Token bounds */
+        List<float[]> newTokenBounds = new ArrayList<>(nt);
+        for (int i = 0; i < nt; ++i) {
+            float[] tb = new float[4];
+            for (int j = 0; j < tb.length; ++j) {
+                tb[j] = reader.readFloat();
+            }
+
+            newTokenBounds.add(tb);
+        }
+
+        /* Recognition winners */
+        String[] names = new String[reader.readCount(1)];
+        for (int k = 0; k < names.length; ++k) {
+            names[k] = reader.readNullableString();
+        }
+
+        List<String> newRecogWinners = new ArrayList<>(nt);
+        for (int i = 0; i < nt; ++i) {
+            int k = reader.readCount();
+            if (k >= names.length) {
+                throw new IllegalArgumentException("Invalid token name index " + k + " for token " + i);
+            }
+
+            newRecogWinners.add(names[k]);
         }
 
+        /* Recognition probabilities: not needed for injection, as the tokens are recognized again */
+        for (int i = 0; i < nt; ++i) {
+            reader.readProbabilities();
+        }
+        for (int i = 0; i < nt; ++i) {
+            reader.readFloat();
+        }
+
+        /* Token UUIDs */
+        final int nUuids = reader.readCount(1);
+        List<String> newTokenUuids = new ArrayList<>(nUuids);
+        for (int i = 0; i < nUuids; ++i) {
+            newTokenUuids.add(reader.readUuid());
+        }
 
+        if ( !reader.isAtEnd() ) {
+            throw new IllegalArgumentException("Unexpected data after the end of compact stroke curator state");
+        }
+
+        injectState(newStrokes, newConstStrokeIndices, newTokenBounds, newRecogWinners, newTokenUuids);
+    }
+
+    /* Rebuild the state from the strokes, by adding them and merging them into the specified tokens, and then
+     * setting the token bounds, recognition winners and UUIDs. Shared by the JSON and the binary forms. */
+    private void injectState(List<CStroke> newStrokes, List<int[]> newConstStrokeIndices, List<float[]> newTokenBounds,
+                             List<String> newRecogWinners, List<String> newTokenUuids) {
+        /* Clear state before injecting the state */
+        clear(true);        // true: Marking internal calls, to prevent the pushing of user action stack. Same below.
+
+        /* Recognize the single strokes and the final tokens in one batch */
+        List<CWrittenToken> wtsToPrefetch = new ArrayList<>();
+        for (int i = 0; i < newStrokes.size(); ++i) {
+            wtsToPrefetch.add(getWrittenTokenOfStrokes(newStrokes, new int[] {i}));
+        }
+        for (int[] strokeIndices : newConstStrokeIndices) {
+            CWrittenToken wt = getWrittenTokenOfStrokes(newStrokes, strokeIndices);
+            if (wt != null) {
+                wtsToPrefetch.add(wt);
+            }
+        }
+        /* The cache may be grown for the batch; it is restored to its configured capacity once the batch is used */
+        final TokenRecogCache cache = recogCache;
+        final int cacheCapacity = (cache == null) ? 0 : cache.getCapacity();
+
+        try {
+            prefetchRecogResults(wtsToPrefetch);
+
+            for (CStroke stroke : newStrokes) {
+                addStroke(stroke, true);
+            }
+
+            /* Merge according to constituent stroke indices */
+            for (int[] strokeIndices : newConstStrokeIndices) {
+                mergeStrokesAsToken(strokeIndices, true);
+            }
+        } finally {
+            if (cache != null) {
+                cache.setCapacity(cacheCapacity);
+            }
+        }
+
+        /* Force set token bounds: For actions such as MoveToken */
+        for (int i = 0; i < newTokenBounds.size(); ++i) {
+            this.moveToken(i, newTokenBounds.get(i), true);
+        }
+
+        /* Force set recognition winners */
+        List<String> currRecogWinners = getWrittenTokenRecogWinners();
+
+        for (int i = 0; i < newRecogWinners.size(); ++i) {
+            if ( !currRecogWinners.get(i).equals(newRecogWinners.get(i)) ) {
+                forceSetRecogWinner(i, newRecogWinners.get(i), true);
+            }
+        }
+
+        /* Token UUIDs */
+        markTokensChanged(0);
+
+        tokenUuids = new ArrayList<>(newTokenUuids);
     }
 
     @Override
@@ -1021,6 +1305,8 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
                     newBounds.length);
         }
 
+        markTokenChanged(tokenIdx);
+
         float[] oldBounds = wtSet.getTokenBounds(tokenIdx);
         wtSet.tokens.get(tokenIdx).setBounds(newBounds);
 
@@ -1034,6 +1320,178 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
         return oldBounds;
     }
 
+    /* Get a snapshot of the current state. The snapshot is derived from the last one, by replacing only the rows of
+     * the strokes and tokens that have changed since; it is the last snapshot itself if nothing has changed. */
+    @Override
+    public StrokeCuratorSnapshot getStateSnapshot() {
+        if (strokesChangedFrom == Integer.MAX_VALUE && tokensChangedFrom == Integer.MAX_VALUE &&
+            changedTokenIndices.isEmpty()) {
+            return lastSnapshot;
+        }
+
+        /* Strokes */
+        PersistentVector<StrokeCuratorSnapshot.StrokeRow> oldStrokeRows = lastSnapshot.getStrokeRows();
+        final int nStrokes = strokes.size();
+        final int strokesFrom = Math.min(strokesChangedFrom, Math.min(oldStrokeRows.size(), nStrokes));
+        final int strokeShift = oldStrokeRows.size() - nStrokes;
+
+        PersistentVector<StrokeCuratorSnapshot.StrokeRow> strokeRows = oldStrokeRows.truncate(strokesFrom);
+        for (int i = strokesFrom; i < nStrokes; ++i) {
+            strokeRows = strokeRows.append(getStrokeRow(i, oldStrokeRows, strokeShift));
+        }
+
+        /* Written tokens */
+        PersistentVector<StrokeCuratorSnapshot.TokenRow> oldTokenRows = lastSnapshot.getTokenRows();
+        final int nTokens = wtSet.getNumTokens();
+        final int tokensFrom = Math.min(tokensChangedFrom, Math.min(oldTokenRows.size(), nTokens));
+        final int tokenShift = oldTokenRows.size() - nTokens;
+
+        PersistentVector<StrokeCuratorSnapshot.TokenRow> tokenRows = oldTokenRows.truncate(tokensFrom);
+        for (int i : changedTokenIndices) {
+            if (i < tokensFrom) {
+                tokenRows = tokenRows.withElement(i, getTokenRow(i, oldTokenRows, 0));
+            }
+        }
+        for (int i = tokensFrom; i < nTokens; ++i) {
+            tokenRows = tokenRows.append(getTokenRow(i, oldTokenRows, tokenShift));
+        }
+
+        lastSnapshot = new StrokeCuratorSnapshot(strokeRows, tokenRows);
+        clearChangeMarks();
+
+        return lastSnapshot;
+    }
+
+    /* Get the row of the i-th stroke, reusing the row of the old snapshot at the same index, or at the same index
+     * from the end, if it still matches */
+    private StrokeCuratorSnapshot.StrokeRow getStrokeRow(int i,
+                                                         PersistentVector<StrokeCuratorSnapshot.StrokeRow> oldRows,
+                                                         int shift) {
+        CStroke stroke = strokes.get(i);
+        CStroke strokeUN = strokesUN.get(i);
+        int state = strokeState.get(i);
+
+        for (int j : new int[] {i, i + shift}) {
+            if (j >= 0 && j < oldRows.size() && oldRows.get(j).matches(stroke, strokeUN, state)) {
+                return oldRows.get(j);
+            }
+        }
+
+        return new StrokeCuratorSnapshot.StrokeRow(stroke, strokeUN, state);
+    }
+
+    /* Get the row of the i-th written token, reusing the row of the old snapshot at the same index, or at the same
+     * index from the end, if it still matches */
+    private StrokeCuratorSnapshot.TokenRow getTokenRow(int i,
+                                                       PersistentVector<StrokeCuratorSnapshot.TokenRow> oldRows,
+                                                       int shift) {
+        CWrittenToken token = wtSet.tokens.get(i);
+        String setRecogWinner = wtSet.recogWinners.get(i);
+        double[] setRecogPs = wtSet.recogPs.get(i);
+        String uuid = tokenUuids.get(i);
+        float ctrX = wtCtrXs.get(i);
+        float ctrY = wtCtrYs.get(i);
+        String winner = wtRecogWinners.get(i);
+        double[] ps = wtRecogPs.get(i);
+        double maxP = wtRecogMaxPs.get(i);
+        int[] constIdx = wtConstStrokeIdx.get(i);
+
+        for (int j : new int[] {i, i + shift}) {
+            if (j >= 0 && j < oldRows.size() &&
+                oldRows.get(j).matches(token, setRecogWinner, setRecogPs, uuid, ctrX, ctrY, winner, ps, maxP,
+                                       constIdx)) {
+                return oldRows.get(j);
+            }
+        }
+
+        return new StrokeCuratorSnapshot.TokenRow(token, setRecogWinner, setRecogPs, uuid, ctrX, ctrY,
+                                                  winner, ps, maxP, constIdx);
+    }
+
+    private void markStrokesChanged(int fromIdx) {
+        strokesChangedFrom = Math.min(strokesChangedFrom, fromIdx);
+    }
+
+    private void markTokensChanged(int fromIdx) {
+        tokensChangedFrom = Math.min(tokensChangedFrom, fromIdx);
+        tokenGrid.invalidateFrom(fromIdx);
+    }
+
+    private void markTokenChanged(int idx) {
+        changedTokenIndices.add(idx);
+        tokenGrid.invalidate(idx);
+    }
+
+    private void clearChangeMarks() {
+        strokesChangedFrom = Integer.MAX_VALUE;
+        tokensChangedFrom = Integer.MAX_VALUE;
+        changedTokenIndices.clear();
+    }
+
+    /* Restore a snapshot by splicing only the strokes and tokens that differ from the current state. Does not
+     * push to the state stack. */
+    @Override
+    public void restoreStateSnapshot(StrokeCuratorSnapshot snapshot) {
+        StrokeCuratorSnapshot.Delta delta = StrokeCuratorSnapshot.Delta.diff(getStateSnapshot(), snapshot);
+
+        /* Strokes */
+        ListSplice<StrokeCuratorSnapshot.StrokeRow> strokeSplice = delta.getStrokeSplice();
+        int idx = strokeSplice.getIndex();
+
+        for (int k = 0; k < strokeSplice.getRemoved().size(); ++k) {
+            strokes.remove(idx);
+            strokesUN.remove(idx);
+            strokeState.remove(idx);
+        }
+
+        for (StrokeCuratorSnapshot.StrokeRow row : strokeSplice.getInserted()) {
+            strokes.add(idx, row.stroke);
+            strokesUN.add(idx, row.strokeUN);
+            strokeState.add(idx, row.state);
+            idx++;
+        }
+
+        /* Written tokens */
+        ListSplice<StrokeCuratorSnapshot.TokenRow> tokenSplice = delta.getTokenSplice();
+        idx = tokenSplice.getIndex();
+
+        if (tokenSplice.getRemoved().size() == tokenSplice.getInserted().size()) {
+            for (int k = 0; k < tokenSplice.getInserted().size(); ++k) {
+                tokenGrid.invalidate(idx + k);
+            }
+        } else {
+            tokenGrid.invalidateFrom(idx);
+        }
+
+        for (int k = 0; k < tokenSplice.getRemoved().size(); ++k) {
+            wtSet.deleteToken(idx);
+            tokenUuids.remove(idx);
+            wtCtrXs.remove(idx);
+            wtCtrYs.remove(idx);
+            wtRecogWinners.remove(idx);
+            wtRecogPs.remove(idx);
+            wtRecogMaxPs.remove(idx);
+            wtConstStrokeIdx.remove(idx);
+        }
+
+        for (StrokeCuratorSnapshot.TokenRow row : tokenSplice.getInserted()) {
+            row.restoreTokenFields();
+
+            wtSet.addToken(idx, row.token, row.setRecogWinner, row.setRecogPs);
+            tokenUuids.add(idx, row.uuid);
+            wtCtrXs.add(idx, row.ctrX);
+            wtCtrYs.add(idx, row.ctrY);
+            wtRecogWinners.add(idx, row.recogWinner);
+            wtRecogPs.add(idx, row.recogPs);
+            wtRecogMaxPs.add(idx, row.recogMaxP);
+            wtConstStrokeIdx.add(idx, row.constStrokeIdx.clone()); // Copy: removeToken() updates the indices in place
+            idx++;
+        }
+
+        lastSnapshot = snapshot;
+        clearChangeMarks();
+    }
+
     @Override
     public StrokeCuratorUserAction getLastUserAction() {
         StrokeCuratorUserAction userAction = null;
@@ -1046,19 +1504,12 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
 
     @Override
     public void undoUserAction() {
-        stateStack.undo();
-
-        injectSerializedState(stateStack.getLastSerializedState() == null ?
-                              initialState :
-                              stateStack.getLastSerializedState().getAsJsonObject());
-
+        restoreStateSnapshot(stateStack.undo());
     }
 
     @Override
     public void redoUserAction() {
-        stateStack.redo();
-
-        injectSerializedState(stateStack.getLastSerializedState());
+        restoreStateSnapshot(stateStack.redo());
     }
 
     @Override
@@ -1089,7 +1540,7 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
     }
 
     private void pushStateStack(StrokeCuratorUserAction action) {
-        stateStack.push(new StrokeCuratorState(action, getStateSerialization()));
+        stateStack.push(action.toString(), getStateSnapshot());
     }
 
     private void addNewTokenUuid() {
@@ -1104,57 +1555,276 @@ public class StrokeCuratorConfigurable implements StrokeCurator {
      * @return
      */
     private TokenRecogOutput callTokenEngine(CWrittenToken wt) {
+        /* Hard-coded tokens are cheap to recognize and are not cached */
+        float[] features = null;
+        TokenRecogCache.Key cacheKey = null;
+        if (recogCache != null && !tokenEngine.isTokenHardCoded(wt)) {
+            features = ((TokenRecogEngineSDV) tokenEngine).getFeatureVector(wt);
+            cacheKey = recogCache.getKey(features);
+
+            TokenRecogOutput cachedOutput = recogCache.get(cacheKey);
+            if (cachedOutput != null) {
+                return cachedOutput;
+            }
+        }
+
         TokenRecogOutput output = null;
+        boolean remoteFailed = false;
 
         if (remoteTokenEngine != null && !tokenEngine.isTokenHardCoded(wt)) {
             // Hard-coded tokens, such as ".", will not be run through the remote token engine, and will be recognized
             // locally.
 
-            try {
-                output = remoteTokenEngine.recognize(wt);
+            if (remoteTokenEngineDeadlineMillis > 0) {
+                /* Hedging: run the local token engine while the remote request is pending */
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remoteTokenEngineDeadlineMillis);
+                PendingTokenRecognition pending = asyncRemoteTokenEngine.recognizeAsync(wt);
+
+                TokenRecogOutput localOutput = callLocalTokenEngine(wt, features);
+
+                TokenRecogOutput remoteOutput = asyncRemoteTokenEngine.getWithinDeadline(pending, deadline);
+                if (remoteOutput != null) {
+                    output = getFullRemoteOutput(remoteOutput);
+                } else {
+                    output = localOutput;
+                    remoteFailed = true;
+                }
+            } else {
+                try {
+                    output = getFullRemoteOutput(remoteTokenEngine.recognize(wt));
+                } catch (TokenRecogRemoteEngineException e) {
+                    logger.severe("Call to remote token engine failed due to: " + e.getMessage() +
+                                  ". Will fall back to local (Java) token engine");
+                    remoteFailed = true;
+                }
+            }
+        }
 
-                /* Generate the full list of ps, by filling zeros in the tokens not in remote engine output */
-                List<String> candidateNames = output.getCandidateNames();
-                List<Float> candidatePs = output.getCandidatePs();
+        // Fall back to local token engine if remote engine if unavailable or failing
+        if (output == null) {
+            output = callLocalTokenEngine(wt, features);
+        }
 
-                List<String> allNames = tokenEngine.tokenNames;
-                ArrayList<Float> allPs = new ArrayList<>();
-                allPs.ensureCapacity(allNames.size());
+        /* Fallback results are not cached, so that the remote engine is tried again once it recovers */
+        if (cacheKey != null && !remoteFailed) {
+            recogCache.put(cacheKey, output);
+        }
 
-                for (int i = 0; i < allNames.size(); ++i) {
-                    final String tokenName = allNames.get(i);
+        return output;
+    }
 
-                    if (candidateNames.contains(tokenName)) {
-                        allPs.add(candidatePs.get(candidateNames.indexOf(tokenName)));
-                    } else {
-                        allPs.add(0f);
-                    }
-                }
+    /* Recognize with the local token engine, from the feature vector if it is available already */
+    private TokenRecogOutput callLocalTokenEngine(CWrittenToken wt, float[] features) {
+        double[] ps = new double[tokenEngine.tokenNames.size()];
+        int recogIdx = (features != null) ? ((TokenRecogEngineSDV) tokenEngine).recognize(features, ps) :
+                                            tokenEngine.recognize(wt, ps);
 
-                output = new TokenRecogOutput(output.getWinner(), output.getMaxP(), allNames, allPs);
+        String winnerTokenName = tokenEngine.getTokenName(recogIdx);
+        float maxP = (float) ps[recogIdx];
 
-            } catch (TokenRecogRemoteEngineException e) {
-                logger.severe("Call to remote token engine failed due to: " + e.getMessage() +
-                              ". Will fall back to local (Java) token engine");
+        List<Float> candidatePs = new ArrayList<>();
+        for (double p : ps) {
+            candidatePs.add((float) p);
+        }
+
+        return new TokenRecogOutput(winnerTokenName, maxP, tokenEngine.tokenNames, candidatePs);
+    }
+
+    /* Generate the full list of ps, by filling zeros in the tokens not in remote engine output */
+    private TokenRecogOutput getFullRemoteOutput(TokenRecogOutput output) {
+        List<String> candidateNames = output.getCandidateNames();
+        List<Float> candidatePs = output.getCandidatePs();
+
+        Map<String, Integer> nameIndices = getTokenNameIndices();
+        List<String> allNames = tokenEngine.tokenNames;
+
+        Float[] allPs = new Float[allNames.size()];
+        Arrays.fill(allPs, 0f);
+
+        /* In reverse order, so that the first occurrence of a repeated name wins */
+        for (int i = candidateNames.size() - 1; i >= 0; --i) {
+            Integer idx = nameIndices.get(candidateNames.get(i));
+
+            if (idx != null) {
+                allPs[idx] = candidatePs.get(i);
             }
         }
 
-        // Fall back to local token engine if remote engine if unavailable or failing
-        if (output == null) {
-            double[] ps = new double[tokenEngine.tokenNames.size()];
-            int recogIdx = tokenEngine.recognize(wt, ps);
+        return new TokenRecogOutput(output.getWinner(), output.getMaxP(), allNames,
+                                    new ArrayList<>(Arrays.asList(allPs)));
+    }
 
-            String winnerTokenName = tokenEngine.getTokenName(recogIdx);
-            float maxP = (float) ps[recogIdx];
+    /* Create a written token from strokes in the same way as mergeStrokesAsToken(). null if any index is invalid. */
+    private static CWrittenToken getWrittenTokenOfStrokes(List<CStroke> strokes, int[] indices) {
+        if (indices.length == 0) {
+            return null;
+        }
 
-            List<Float> candidatePs = new ArrayList<>();
-            for (double p : ps) {
-                candidatePs.add((float) p);
+        CWrittenToken wt = new CWrittenToken();
+        for (int idx : indices) {
+            if (idx < 0 || idx >= strokes.size()) {
+                return null;
             }
 
-            output = new TokenRecogOutput(winnerTokenName, maxP, tokenEngine.tokenNames, candidatePs);
+            wt.addStroke(new CStroke(strokes.get(idx)));
         }
+        wt.normalizeAxes();
 
-        return output;
+        return wt;
+    }
+
+    private Map<String, Integer> getTokenNameIndices() {
+        if (tokenNameIndices == null) {
+            List<String> allNames = tokenEngine.tokenNames;
+
+            Map<String, Integer> nameIndices = new HashMap<>();
+            for (int i = allNames.size() - 1; i >= 0; --i) {
+                nameIndices.put(allNames.get(i), i);
+            }
+
+            tokenNameIndices = nameIndices;
+        }
+
+        return tokenNameIndices;
+    }
+
+    /**
+     * Recognize written tokens ahead of time, and store the results in the recognition cache, so that the subsequent
+     * recognition of the same tokens does not call the token engines again. The tokens are sent to the remote token
+     * engine, if any, in a single request, or otherwise recognized by the local token engine as a batch. Hard-coded
+     * tokens and tokens that are cached already are skipped. The cache is grown to the size of the batch, if necessary,
+     * so that the prefetched results do not evict each other before they are used. The caller restores its capacity
+     * afterwards.
+     *
+     * The cache is keyed by the feature vectors of the local token engine, whereas the remote token engine is sent its
+     * own feature vectors, as for the recognition of single tokens, as the two may differ (e.g., in the width-height
+     * ratio of tokens of zero width or height). The deadline of the remote token engine, if any, applies to the batch
+     * request as a whole.
+     * @param wts  Written tokens, with normalized axes
+     */
+    private void prefetchRecogResults(List<CWrittenToken> wts) {
+        if (recogCache == null) {
+            return;
+        }
+
+        List<CWrittenToken> wtsToRecognize = new ArrayList<>();
+        List<float[]> featureVectors = new ArrayList<>();
+        List<TokenRecogCache.Key> keys = new ArrayList<>();
+        Set<TokenRecogCache.Key> keySet = new HashSet<>();
+
+        for (CWrittenToken wt : wts) {
+            if (tokenEngine.isTokenHardCoded(wt)) {
+                continue;
+            }
+
+            float[] features = ((TokenRecogEngineSDV) tokenEngine).getFeatureVector(wt);
+            TokenRecogCache.Key key = recogCache.getKey(features);
+
+            if (!recogCache.containsKey(key) && keySet.add(key)) {
+                wtsToRecognize.add(wt);
+                featureVectors.add(features);
+                keys.add(key);
+            }
+        }
+
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        /* Headroom for the merge candidates that are recognized while the prefetched results are being used */
+        recogCache.ensureCapacity(2 * keys.size());
+
+        if (remoteTokenEngine != null) {
+            List<float[]> remoteFeatureVectors = new ArrayList<>(wtsToRecognize.size());
+            for (CWrittenToken wt : wtsToRecognize) {
+                remoteFeatureVectors.add(remoteTokenEngine.getFeatureVector(wt));
+            }
+
+            List<TokenRecogOutput> outputs;
+            if (remoteTokenEngineDeadlineMillis > 0) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remoteTokenEngineDeadlineMillis);
+                outputs = asyncRemoteTokenEngine.recognizeBatchWithinDeadline(remoteFeatureVectors, deadline);
+
+                if (outputs == null) {
+                    return; /* The tokens will be recognized one by one, with the usual hedging */
+                }
+            } else {
+                try {
+                    outputs = remoteTokenEngine.recognizeBatch(remoteFeatureVectors, new CancellationToken());
+                } catch (TokenRecogRemoteEngineException e) {
+                    /* The tokens will be recognized one by one, with the usual fallback */
+                    logger.severe("Batch call to remote token engine failed due to: " + e.getMessage());
+                    return;
+                }
+            }
+
+            for (int i = 0; i < keys.size(); ++i) {
+                recogCache.put(keys.get(i), getFullRemoteOutput(outputs.get(i)));
+            }
+        } else {
+            final int nTokenNames = tokenEngine.tokenNames.size();
+
+            double[][] ps = new double[featureVectors.size()][nTokenNames];
+            int[] winners = ((TokenRecogEngineSDV) tokenEngine).recognizeBatch(
+                    featureVectors.toArray(new float[featureVectors.size()][]), ps);
+
+            for (int i = 0; i < keys.size(); ++i) {
+                List<Float> candidatePs = new ArrayList<>(nTokenNames);
+                for (double p : ps[i]) {
+                    candidatePs.add((float) p);
+                }
+
+                recogCache.put(keys.get(i), new TokenRecogOutput(tokenEngine.getTokenName(winners[i]),
+                                                                 (float) ps[i][winners[i]],
+                                                                 tokenEngine.tokenNames, candidatePs));
+            }
+        }
+    }
+
+    /**
+     * Set the deadline of the remote token engine. If it is greater than 0, the local token engine runs in parallel
+     * with each remote request, and the remote result is used only if it arrives within the deadline. Otherwise, the
+     * pending request is cancelled and the local result is used. If it is 0, the remote token engine is waited for
+     * until it succeeds or exhausts its retries.
+     * @param deadlineMillis  Deadline in milliseconds (>= 0)
+     */
+    public void setRemoteTokenEngineDeadline(long deadlineMillis) {
+        if (deadlineMillis < 0) {
+            throw new IllegalArgumentException("Negative remote token engine deadline: " + deadlineMillis);
+        }
+
+        remoteTokenEngineDeadlineMillis = deadlineMillis;
+    }
+
+    public long getRemoteTokenEngineDeadline() {
+        return remoteTokenEngineDeadlineMillis;
+    }
+
+    /* Look up the merge candidates of new strokes by testing all tokens instead of querying the grid of token bounds.
+     * The results must be the same. */
+    void setScanningAllTokens(boolean scanningAllTokens) {
+        this.scanningAllTokens = scanningAllTokens;
+    }
+
+    /**
+     * Set the capacity of the cache of recognition results. Written tokens with the same quantized feature vector
+     * share a cached result. The cache is only available if the token engine is a TokenRecogEngineSDV.
+     * @param capacity  Maximum number of cached results (>= 0). 0 disables the cache.
+     */
+    public void setRecogCacheCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative recognition cache capacity: " + capacity);
+        }
+
+        if (capacity == 0 || !(tokenEngine instanceof TokenRecogEngineSDV)) {
+            recogCache = null;
+        } else {
+            recogCache = new TokenRecogCache(capacity, TokenRecogCache.DEFAULT_QUANTUM);
+        }
+    }
+
+    /* Get the cache of recognition results, with its hit and miss counters. null if the cache is disabled. */
+    public TokenRecogCache getRecogCache() {
+        return recogCache;
     }
 }
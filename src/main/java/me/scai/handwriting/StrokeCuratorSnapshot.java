@@ -0,0 +1,187 @@
+package me.scai.handwriting;
+
+import me.scai.handwriting.utils.PersistentVector;
+
+import java.util.Arrays;
+
+/**
+ * Immutable in-memory snapshot of the state of a StrokeCuratorConfigurable, for undo/redo.
+ *
+ * The state is held as two persistent vectors of immutable rows: one row per stroke and one row per written token. A
+ * row holds references to the (unchanged) stroke and token objects, plus copies of the fields that the curator mutates
+ * in place. Consecutive snapshots share the rows that did not change, as well as the trie nodes of the vectors that
+ * contain only unchanged rows, so that keeping many snapshots costs memory in proportion to the changes only. The
+ * Delta between two snapshots consists only of the changed rows.
+ */
+public final class StrokeCuratorSnapshot {
+    /* Codec for DeltaStateStack */
+    public static final DeltaStateStack.Codec<StrokeCuratorSnapshot, Delta> CODEC =
+            new DeltaStateStack.Codec<StrokeCuratorSnapshot, Delta>() {
+        @Override
+        public Delta diff(StrokeCuratorSnapshot from, StrokeCuratorSnapshot to) {
+            return Delta.diff(from, to);
+        }
+
+        @Override
+        public StrokeCuratorSnapshot apply(StrokeCuratorSnapshot state, Delta delta) {
+            return delta.applyTo(state);
+        }
+
+        @Override
+        public Delta inverse(Delta delta) {
+            return delta.inverse();
+        }
+    };
+
+    /* State of a stroke */
+    static final class StrokeRow {
+        final CStroke stroke;
+        final CStroke strokeUN;
+        final int state;
+
+        StrokeRow(CStroke stroke, CStroke strokeUN, int state) {
+            this.stroke = stroke;
+            this.strokeUN = strokeUN;
+            this.state = state;
+        }
+
+        boolean matches(CStroke stroke, CStroke strokeUN, int state) {
+            return this.stroke == stroke && this.strokeUN == strokeUN && this.state == state;
+        }
+    }
+
+    /* State of a written token, including the fields of the token object that the curator mutates in place */
+    static final class TokenRow {
+        final CWrittenToken token;
+        final float[] bounds;
+        final String tokenRecogWinner;
+        final double[] tokenRecogPs;
+        final String setRecogWinner;     // Recognition results in the written token set
+        final double[] setRecogPs;
+        final String uuid;
+        final float ctrX;
+        final float ctrY;
+        final String recogWinner;        // Recognition results of the curator
+        final double[] recogPs;
+        final double recogMaxP;
+        final int[] constStrokeIdx;
+
+        TokenRow(CWrittenToken token, String setRecogWinner, double[] setRecogPs, String uuid,
+                 float ctrX, float ctrY, String recogWinner, double[] recogPs, double recogMaxP,
+                 int[] constStrokeIdx) {
+            this.token = token;
+            this.bounds = token.getBounds().clone();
+            this.tokenRecogWinner = token.getRecogResult();
+            this.tokenRecogPs = token.getRecogPs();
+            this.setRecogWinner = setRecogWinner;
+            this.setRecogPs = setRecogPs;
+            this.uuid = uuid;
+            this.ctrX = ctrX;
+            this.ctrY = ctrY;
+            this.recogWinner = recogWinner;
+            this.recogPs = recogPs;
+            this.recogMaxP = recogMaxP;
+            this.constStrokeIdx = constStrokeIdx.clone();
+        }
+
+        boolean matches(CWrittenToken token, String setRecogWinner, double[] setRecogPs, String uuid,
+                        float ctrX, float ctrY, String recogWinner, double[] recogPs, double recogMaxP,
+                        int[] constStrokeIdx) {
+            return this.token == token &&
+                   Arrays.equals(this.bounds, token.getBounds()) &&
+                   equal(this.tokenRecogWinner, token.getRecogResult()) &&
+                   this.tokenRecogPs == token.getRecogPs() &&
+                   equal(this.setRecogWinner, setRecogWinner) &&
+                   this.setRecogPs == setRecogPs &&
+                   equal(this.uuid, uuid) &&
+                   Float.compare(this.ctrX, ctrX) == 0 &&
+                   Float.compare(this.ctrY, ctrY) == 0 &&
+                   equal(this.recogWinner, recogWinner) &&
+                   this.recogPs == recogPs &&
+                   Double.compare(this.recogMaxP, recogMaxP) == 0 &&
+                   Arrays.equals(this.constStrokeIdx, constStrokeIdx);
+        }
+
+        /* Write the in-place mutable fields back to the token object */
+        void restoreTokenFields() {
+            token.setBounds(bounds.clone());
+            token.setRecogResult(tokenRecogWinner);
+            token.setRecogPs(tokenRecogPs);
+        }
+
+        private static boolean equal(String a, String b) {
+            return (a == null) ? (b == null) : a.equals(b);
+        }
+    }
+
+    /* Reversible difference between two snapshots */
+    public static final class Delta {
+        private final ListSplice<StrokeRow> strokeSplice;
+        private final ListSplice<TokenRow> tokenSplice;
+
+        private Delta(ListSplice<StrokeRow> strokeSplice, ListSplice<TokenRow> tokenSplice) {
+            this.strokeSplice = strokeSplice;
+            this.tokenSplice = tokenSplice;
+        }
+
+        public static Delta diff(StrokeCuratorSnapshot from, StrokeCuratorSnapshot to) {
+            return new Delta(ListSplice.diff(from.strokeRows, to.strokeRows),
+                             ListSplice.diff(from.tokenRows, to.tokenRows));
+        }
+
+        public StrokeCuratorSnapshot applyTo(StrokeCuratorSnapshot snapshot) {
+            return new StrokeCuratorSnapshot(splice(snapshot.strokeRows, strokeSplice),
+                                             splice(snapshot.tokenRows, tokenSplice));
+        }
+
+        private static <T> PersistentVector<T> splice(PersistentVector<T> rows, ListSplice<T> splice) {
+            return rows.splice(splice.getIndex(), splice.getRemoved().size(), splice.getInserted());
+        }
+
+        public Delta inverse() {
+            return new Delta(strokeSplice.inverse(), tokenSplice.inverse());
+        }
+
+        public boolean isEmpty() {
+            return strokeSplice.isEmpty() && tokenSplice.isEmpty();
+        }
+
+        ListSplice<StrokeRow> getStrokeSplice() {
+            return strokeSplice;
+        }
+
+        ListSplice<TokenRow> getTokenSplice() {
+            return tokenSplice;
+        }
+    }
+
+    /* Member variables */
+    private final PersistentVector<StrokeRow> strokeRows;
+    private final PersistentVector<TokenRow> tokenRows;
+
+    static final StrokeCuratorSnapshot EMPTY = new StrokeCuratorSnapshot(PersistentVector.<StrokeRow>empty(),
+                                                                         PersistentVector.<TokenRow>empty());
+
+    /* Constructor */
+    StrokeCuratorSnapshot(PersistentVector<StrokeRow> strokeRows, PersistentVector<TokenRow> tokenRows) {
+        this.strokeRows = strokeRows;
+        this.tokenRows = tokenRows;
+    }
+
+    /* Getters */
+    PersistentVector<StrokeRow> getStrokeRows() {
+        return strokeRows;
+    }
+
+    PersistentVector<TokenRow> getTokenRows() {
+        return tokenRows;
+    }
+
+    public int getNumStrokes() {
+        return strokeRows.size();
+    }
+
+    public int getNumTokens() {
+        return tokenRows.size();
+    }
+}
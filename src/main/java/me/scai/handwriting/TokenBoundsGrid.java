@@ -0,0 +1,258 @@
+package me.scai.handwriting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Uniform-grid index over the bounds of the tokens of a written token set, for finding the tokens whose bounds
+ * intersect a rectangle (e.g., the bounds of a new stroke) without testing every token.
+ *
+ * Unlike TokenSetSpatialIndex, the grid is mutable and kept in sync with the token set incrementally. The owner marks
+ * the changes with invalidateFrom() (tokens added or removed, which shifts the indices after the change) and
+ * invalidate() (bounds of a token changed in place), and calls sync() before querying. Only the invalidated tokens are
+ * re-filed. The cell size follows the mean token size: it is recalculated, and all tokens re-filed, whenever the number
+ * of tokens has doubled since the last recalculation, so the amortized cost of adding a token is O(1).
+ *
+ * Tokens that would span too many cells (e.g., a long fraction line) are kept in a separate list that every query
+ * scans.
+ */
+final class TokenBoundsGrid {
+    /* Constants */
+    private static final int MAX_CELLS_PER_TOKEN = 16;
+
+    private static final float DEFAULT_CELL_SIZE = 1f; // Used if all tokens have zero extent
+
+    /* Member variables */
+    private float cellSize = 0f;                          /* 0: not calculated yet */
+    private int resizeAt = 1;                             /* Number of tokens that triggers recalculating the cell size */
+
+    private final Map<Long, List<Integer>> cells = new HashMap<>();
+    private final List<Integer> oversized = new ArrayList<>();
+
+    private final List<float[]> filedBounds = new ArrayList<>();
+    private final List<long[]> filedCells = new ArrayList<>(); /* Cell keys of each token, or null if oversized */
+
+    private int validCount = 0;                           /* Tokens at and after this index must be re-filed */
+    private final Set<Integer> staleIndices = new HashSet<>(); /* Tokens whose bounds changed in place */
+
+    /* Methods */
+
+    /* Mark the tokens from an index on as changed, e.g., after tokens have been added or removed at the index */
+    void invalidateFrom(int idx) {
+        validCount = Math.max(0, Math.min(validCount, idx));
+    }
+
+    /* Mark the bounds of a token as changed */
+    void invalidate(int idx) {
+        if (idx < validCount) {
+            staleIndices.add(idx);
+        }
+    }
+
+    /* Mark all tokens as changed */
+    void invalidateAll() {
+        invalidateFrom(0);
+    }
+
+    /**
+     * Bring the grid up to date with the token set
+     * @param wts  The token set, which must be the one that the invalidations refer to
+     */
+    void sync(CAbstractWrittenTokenSet wts) {
+        /* Unfile the tokens from validCount on, in reverse order */
+        for (int i = filedBounds.size() - 1; i >= validCount; --i) {
+            unfile(i);
+            filedBounds.remove(i);
+            filedCells.remove(i);
+        }
+
+        for (int i : staleIndices) {
+            if (i < validCount) {
+                unfile(i);
+                file(i, wts.getTokenBounds(i).clone());
+            }
+        }
+        staleIndices.clear();
+
+        final int nt = wts.getNumTokens();
+        for (int i = validCount; i < nt; ++i) {
+            filedBounds.add(null);
+            filedCells.add(null);
+            file(i, wts.getTokenBounds(i).clone());
+        }
+        validCount = nt;
+
+        if (nt >= resizeAt) {
+            resize();
+            resizeAt = 2 * nt;
+        }
+    }
+
+    /* Number of tokens in the grid */
+    int size() {
+        return filedBounds.size();
+    }
+
+    /**
+     * Find the tokens whose bounds intersect a rectangle. Bounds that only touch the rectangle count as intersecting.
+     * @param bounds  The rectangle: [minX, minY, maxX, maxY]
+     * @return  Indices of the tokens, in ascending order
+     */
+    int[] query(float[] bounds) {
+        final int nt = filedBounds.size();
+
+        int[] r = new int[nt];
+        int n = 0;
+
+        if (cellSize == 0f || numCells(bounds) > nt) {
+            /* Scanning all tokens is cheaper than visiting the cells */
+            for (int i = 0; i < nt; ++i) {
+                if (intersects(filedBounds.get(i), bounds)) {
+                    r[n++] = i;
+                }
+            }
+
+            return Arrays.copyOf(r, n);
+        }
+
+        final int cx0 = cellCoord(bounds[0]);
+        final int cx1 = cellCoord(bounds[2]);
+        final int cy0 = cellCoord(bounds[1]);
+        final int cy1 = cellCoord(bounds[3]);
+
+        int[] candidates = new int[nt];
+        int nc = 0;
+
+        for (int cx = cx0; cx <= cx1; ++cx) {
+            for (int cy = cy0; cy <= cy1; ++cy) {
+                List<Integer> cell = cells.get(cellKey(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+
+                for (int i : cell) {
+                    if (nc == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, 2 * nc);
+                    }
+                    candidates[nc++] = i;
+                }
+            }
+        }
+
+        for (int i : oversized) {
+            if (nc == candidates.length) {
+                candidates = Arrays.copyOf(candidates, 2 * nc);
+            }
+            candidates[nc++] = i;
+        }
+
+        /* A token that spans several cells is found once per cell */
+        Arrays.sort(candidates, 0, nc);
+        for (int k = 0; k < nc; ++k) {
+            int i = candidates[k];
+            if (k > 0 && candidates[k - 1] == i) {
+                continue;
+            }
+
+            if (intersects(filedBounds.get(i), bounds)) {
+                r[n++] = i;
+            }
+        }
+
+        return Arrays.copyOf(r, n);
+    }
+
+    /* Private methods */
+    private void file(int i, float[] bounds) {
+        filedBounds.set(i, bounds);
+
+        if (cellSize == 0f || numCells(bounds) > MAX_CELLS_PER_TOKEN) {
+            filedCells.set(i, null);
+            oversized.add(i);
+            return;
+        }
+
+        final int cx0 = cellCoord(bounds[0]);
+        final int cx1 = cellCoord(bounds[2]);
+        final int cy0 = cellCoord(bounds[1]);
+        final int cy1 = cellCoord(bounds[3]);
+
+        long[] keys = new long[(cx1 - cx0 + 1) * (cy1 - cy0 + 1)];
+        int k = 0;
+        for (int cx = cx0; cx <= cx1; ++cx) {
+            for (int cy = cy0; cy <= cy1; ++cy) {
+                long key = cellKey(cx, cy);
+
+                List<Integer> cell = cells.get(key);
+                if (cell == null) {
+                    cell = new ArrayList<>(2);
+                    cells.put(key, cell);
+                }
+                cell.add(i);
+
+                keys[k++] = key;
+            }
+        }
+
+        filedCells.set(i, keys);
+    }
+
+    private void unfile(int i) {
+        final long[] keys = filedCells.get(i);
+        final Integer boxed = i;
+
+        if (keys == null) {
+            oversized.remove(boxed);
+            return;
+        }
+
+        for (long key : keys) {
+            List<Integer> cell = cells.get(key);
+            cell.remove(boxed);
+            if (cell.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+    }
+
+    /* Recalculate the cell size from the mean token size and re-file all tokens */
+    private void resize() {
+        final int nt = filedBounds.size();
+
+        double sumExtent = 0.0;
+        for (float[] bounds : filedBounds) {
+            sumExtent += Math.max(bounds[2] - bounds[0], bounds[3] - bounds[1]);
+        }
+
+        cellSize = (sumExtent > 0.0) ? (float) (sumExtent / nt) : DEFAULT_CELL_SIZE;
+
+        cells.clear();
+        oversized.clear();
+        for (int i = 0; i < nt; ++i) {
+            file(i, filedBounds.get(i));
+        }
+    }
+
+    /* Number of cells covered by a rectangle, as a long to avoid overflow for large rectangles */
+    private long numCells(float[] bounds) {
+        return ((long) cellCoord(bounds[2]) - cellCoord(bounds[0]) + 1L) *
+               ((long) cellCoord(bounds[3]) - cellCoord(bounds[1]) + 1L);
+    }
+
+    private int cellCoord(float v) {
+        return (int) Math.floor(v / cellSize);
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    private static boolean intersects(float[] a, float[] b) {
+        return a[0] <= b[2] && b[0] <= a[2] && a[1] <= b[3] && b[1] <= a[3];
+    }
+}
@@ -1,5 +1,6 @@
 package me.scai.handwriting;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
@@ -19,22 +20,36 @@ public class TokenDegeneracy {
 	private Map<String, String> tab = new HashMap<>();	
 	private Map<String, Set<String> > altMap = new HashMap<>(); /* Full map of alternatives */
 	
-	/* Constructor */
+	/* Constructors */
 	public TokenDegeneracy(JsonObject obj) {
 		for (Map.Entry<String, JsonElement> kv : obj.entrySet()) {
-			String tokenName = kv.getKey();
-			String substituteTokenName = kv.getValue().getAsString();
-			
-			if (tokenName.equals(substituteTokenName)) {
-				throw new RuntimeException("The token name \"" + tokenName + "\" and its alternative \"" + substituteTokenName + "\" are identical, which is not allowed in a token degeneracy table");
-			}
-			
-			tab.put(tokenName, substituteTokenName);
+			putEntry(kv.getKey(), kv.getValue().getAsString());
+		}
+		
+		prepareAlternatives();
+	}
+	
+	public TokenDegeneracy(Map<String, String> table) {
+		for (Map.Entry<String, String> kv : table.entrySet()) {
+			putEntry(kv.getKey(), kv.getValue());
 		}
 		
 		prepareAlternatives();
 	}
 	
+	private void putEntry(String tokenName, String substituteTokenName) {
+		if (tokenName.equals(substituteTokenName)) {
+			throw new RuntimeException("The token name \"" + tokenName + "\" and its alternative \"" + substituteTokenName + "\" are identical, which is not allowed in a token degeneracy table");
+		}
+		
+		tab.put(tokenName, substituteTokenName);
+	}
+	
+	/* Get the table of token names and their substitutes */
+	public Map<String, String> getTable() {
+		return Collections.unmodifiableMap(tab);
+	}
+	
 	/* Get the degenerated token name */
 	public String getDegenerated(String tokenName) {
 		String degen = tab.get(tokenName);
@@ -0,0 +1,536 @@
+package me.scai.handwriting;
+
+import org.encog.engine.network.activation.ActivationFunction;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Read-only token engine model, in a compact, versioned binary format. The model holds everything that
+ * TokenRecogEngineSDV needs for recognition: the feature settings, the token names, the hard-coded tokens, the token
+ * degeneracy table and the layout and weights of the network. Engines created from the same model share it, including
+ * the weights.
+ *
+ * Models loaded from files are memory-mapped, so the weights are paged in by the OS instead of being copied to the
+ * heap, and are shared by all the engines that load the same file in the JVM.
+ *
+ * File format (all numbers little-endian):
+ *   int     magic number (MAGIC) and format version (FORMAT_VERSION)
+ *   int     number of points per stroke, maximum number of strokes
+ *   byte    include token size, include token width-height ratio, include token number of strokes (0 or 1)
+ *   float   maximum width and height of the dot token
+ *   strings token names; hard-coded tokens (count -1 if null)
+ *   int     number of entries of the token degeneracy table (-1 if null), followed by the pairs of strings
+ *   int     number of layers, followed by the layer counts, feed counts, layer indices and weight indices of the
+ *           network, in the same layout as in FlatNetwork
+ *   per layer: string class name of the activation function (empty if null), int number of params, double params
+ *   int     length of the layer output template, followed by the template as doubles
+ *   int     number of weights, followed by zero padding to a multiple of 8 bytes and the weights as doubles
+ * Strings are written as the int length of their UTF-8 encoding followed by the bytes; lists of strings, as the int
+ * count followed by the strings.
+ */
+public final class TokenEngineModel {
+    /* Constants */
+    public static final int MAGIC = 0x4d454b54; /* "TKEM" */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ACTIVATION_PACKAGE = "org.encog.engine.network.activation.";
+
+    /* Models loaded from files, by canonical path */
+    private static final Map<String, TokenEngineModel> loadedModels = new HashMap<>();
+
+    /* Member variables */
+    private final int npPerStroke;
+    private final int maxNumStrokes;
+    private final boolean includeTokenSize;
+    private final boolean includeTokenWHRatio;
+    private final boolean includeTokenNumStrokes;
+    private final float dotMaxWidth;
+    private final float dotMaxHeight;
+
+    private final List<String> tokenNames;
+    private final String[] hardCodedTokens;
+    private final TokenDegeneracy tokenDegen;
+
+    private final FlatNetworkBatchEvaluator evaluator;
+
+    /* For reloading the file if it changes */
+    private long fileLastModified;
+    private long fileLength;
+
+    /* Constructor */
+    private TokenEngineModel(int npPerStroke, int maxNumStrokes,
+                             boolean includeTokenSize, boolean includeTokenWHRatio, boolean includeTokenNumStrokes,
+                             float dotMaxWidth, float dotMaxHeight,
+                             List<String> tokenNames, String[] hardCodedTokens, TokenDegeneracy tokenDegen,
+                             FlatNetworkBatchEvaluator evaluator) {
+        this.npPerStroke = npPerStroke;
+        this.maxNumStrokes = maxNumStrokes;
+        this.includeTokenSize = includeTokenSize;
+        this.includeTokenWHRatio = includeTokenWHRatio;
+        this.includeTokenNumStrokes = includeTokenNumStrokes;
+        this.dotMaxWidth = dotMaxWidth;
+        this.dotMaxHeight = dotMaxHeight;
+
+        this.tokenNames = Collections.unmodifiableList(tokenNames);
+        this.hardCodedTokens = hardCodedTokens;
+        this.tokenDegen = tokenDegen;
+
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Load a model from a file, by memory-mapping it. Models are loaded only once per file in the JVM and shared
+     * afterwards, unless the file has been modified since.
+     * @param file  Model file
+     * @return      Model
+     * @throws IOException  If the file cannot be read or is not a valid model file
+     */
+    public static TokenEngineModel load(File file) throws IOException {
+        final String path = file.getCanonicalPath();
+
+        synchronized (loadedModels) {
+            TokenEngineModel model = loadedModels.get(path);
+
+            if (model == null || model.fileLastModified != file.lastModified() || model.fileLength != file.length()) {
+                model = map(file);
+                loadedModels.put(path, model);
+            }
+
+            return model;
+        }
+    }
+
+    private static TokenEngineModel map(File file) throws IOException {
+        final long lastModified = file.lastModified();
+
+        ByteBuffer buffer;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            FileChannel channel = fis.getChannel();
+
+            /* The mapping remains valid after the channel is closed */
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        TokenEngineModel model = read(buffer);
+        model.fileLastModified = lastModified;
+        model.fileLength = buffer.capacity();
+
+        return model;
+    }
+
+    /**
+     * Read a model from a stream, e.g., of a resource in a jar file, into the heap. The model is not shared.
+     * @param in  Input stream, which is read to its end but not closed
+     * @return    Model
+     * @throws IOException  If the stream cannot be read or does not contain a valid model
+     */
+    public static TokenEngineModel read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            bytes.write(chunk, 0, n);
+        }
+
+        return read(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    private static TokenEngineModel read(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a token engine model file");
+            }
+
+            int version = buffer.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported token engine model format version: " + version);
+            }
+
+            int npPerStroke = buffer.getInt();
+            int maxNumStrokes = buffer.getInt();
+            boolean includeTokenSize = buffer.get() != 0;
+            boolean includeTokenWHRatio = buffer.get() != 0;
+            boolean includeTokenNumStrokes = buffer.get() != 0;
+            float dotMaxWidth = buffer.getFloat();
+            float dotMaxHeight = buffer.getFloat();
+
+            String[] tokenNameArray = readStrings(buffer);
+            if (tokenNameArray == null) {
+                throw new IOException("Token engine model has no token names");
+            }
+
+            List<String> tokenNames = Arrays.asList(tokenNameArray);
+            String[] hardCodedTokens = readStrings(buffer);
+
+            TokenDegeneracy tokenDegen = null;
+            int nDegen = buffer.getInt();
+            if (nDegen >= 0) {
+                Map<String, String> table = new HashMap<>();
+                for (int i = 0; i < nDegen; ++i) {
+                    String tokenName = readString(buffer);
+                    table.put(tokenName, readString(buffer));
+                }
+
+                tokenDegen = new TokenDegeneracy(table);
+            }
+
+            int nLayers = buffer.getInt();
+            if (nLayers < 2) {
+                throw new IOException("Invalid number of layers: " + nLayers);
+            }
+
+            int[] layerCounts = readInts(buffer, nLayers);
+            int[] layerFeedCounts = readInts(buffer, nLayers);
+            int[] layerIndex = readInts(buffer, nLayers);
+            int[] weightIndex = readInts(buffer, nLayers);
+
+            ActivationFunction[] activationFunctions = new ActivationFunction[nLayers];
+            for (int i = 0; i < nLayers; ++i) {
+                String className = readString(buffer);
+                double[] params = readDoubles(buffer, buffer.getInt());
+
+                activationFunctions[i] = className.isEmpty() ? null : createActivationFunction(className, params);
+            }
+
+            double[] layerOutputTemplate = readDoubles(buffer, buffer.getInt());
+
+            int nWeights = buffer.getInt();
+            buffer.position(align8(buffer.position()));
+            if (nWeights < 0 || buffer.remaining() < (long) nWeights * 8L) {
+                throw new IOException("Truncated token engine model: expected " + nWeights + " weights");
+            }
+
+            ByteBuffer weightBytes = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            DoubleBuffer weights = weightBytes.asDoubleBuffer();
+            weights.limit(nWeights);
+
+            FlatNetworkBatchEvaluator evaluator;
+            try {
+                evaluator = new FlatNetworkBatchEvaluator(layerCounts, layerFeedCounts, layerIndex, weightIndex,
+                                                          activationFunctions, layerOutputTemplate, weights);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid network in token engine model: " + e.getMessage());
+            }
+
+            return new TokenEngineModel(npPerStroke, maxNumStrokes,
+                                        includeTokenSize, includeTokenWHRatio, includeTokenNumStrokes,
+                                        dotMaxWidth, dotMaxHeight,
+                                        tokenNames, hardCodedTokens, tokenDegen, evaluator);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated token engine model");
+        }
+    }
+
+    /**
+     * Write the model of a token engine
+     * @param tokEngine  Token engine, ready to recognize
+     * @param out        Output stream, which is not closed
+     * @throws IOException  If writing fails
+     */
+    public static void write(TokenRecogEngineSDV tokEngine, OutputStream out) throws IOException {
+        if ( !tokEngine.isReadyToRecognize() ) {
+            throw new IllegalArgumentException("Token engine is not ready to recognize");
+        }
+
+        FlatNetworkBatchEvaluator evaluator = tokEngine.getBatchEvaluator();
+        boolean[] features = tokEngine.getFeatures();
+
+        LittleEndianOutput leOut = new LittleEndianOutput();
+
+        leOut.writeInt(MAGIC);
+        leOut.writeInt(FORMAT_VERSION);
+
+        leOut.writeInt(tokEngine.getNpPerStroke());
+        leOut.writeInt(tokEngine.getMaxNumStrokes());
+        for (boolean feature : features) {
+            leOut.writeByte(feature ? 1 : 0);
+        }
+        leOut.writeFloat(tokEngine.getDotMaxWidth());
+        leOut.writeFloat(tokEngine.getDotMaxHeight());
+
+        List<String> tokenNames = tokEngine.getAllTokenNames();
+        leOut.writeStrings(tokenNames.toArray(new String[tokenNames.size()]));
+        leOut.writeStrings(tokEngine.getHardCodedTokens());
+
+        TokenDegeneracy tokenDegen = tokEngine.getTokenDegen();
+        if (tokenDegen == null) {
+            leOut.writeInt(-1);
+        } else {
+            Map<String, String> table = new TreeMap<>(tokenDegen.getTable()); /* Sorted, for reproducible files */
+
+            leOut.writeInt(table.size());
+            for (Map.Entry<String, String> entry : table.entrySet()) {
+                leOut.writeString(entry.getKey());
+                leOut.writeString(entry.getValue());
+            }
+        }
+
+        int[] layerCounts = evaluator.getLayerCounts();
+        leOut.writeInt(layerCounts.length);
+        leOut.writeInts(layerCounts);
+        leOut.writeInts(evaluator.getLayerFeedCounts());
+        leOut.writeInts(evaluator.getLayerIndex());
+        leOut.writeInts(evaluator.getWeightIndex());
+
+        for (ActivationFunction activationFunction : evaluator.getActivationFunctions()) {
+            if (activationFunction == null) {
+                leOut.writeString("");
+                leOut.writeInt(0);
+            } else {
+                double[] params = activationFunction.getParams();
+
+                leOut.writeString(activationFunction.getClass().getName());
+                leOut.writeInt(params.length);
+                leOut.writeDoubles(params);
+            }
+        }
+
+        double[] layerOutputTemplate = evaluator.getLayerOutputTemplate();
+        leOut.writeInt(layerOutputTemplate.length);
+        leOut.writeDoubles(layerOutputTemplate);
+
+        final int nWeights = evaluator.getWeightCount();
+        leOut.writeInt(nWeights);
+        while (leOut.size() != align8(leOut.size())) {
+            leOut.writeByte(0);
+        }
+        for (int i = 0; i < nWeights; ++i) {
+            leOut.writeDouble(evaluator.getWeight(i));
+        }
+
+        leOut.writeTo(out);
+    }
+
+    /**
+     * Write the model of a token engine to a file. The model is written to a temporary file in the same directory first
+     * and then moved into place, so that an existing model file is never truncated while it is memory-mapped by load().
+     * @param tokEngine  Token engine
+     * @param file       Model file
+     * @throws IOException  On failure to write the file
+     */
+    public static void write(TokenRecogEngineSDV tokEngine, File file) throws IOException {
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+                write(tokEngine, out);
+            }
+
+            Files.move(tmpFile.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (tmpFile.exists()) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /* Getters */
+    public int getNpPerStroke() {
+        return npPerStroke;
+    }
+
+    public int getMaxNumStrokes() {
+        return maxNumStrokes;
+    }
+
+    /* Include token size, width-height ratio and number of strokes, as in TokenRecogEngineSDV.getFeatures() */
+    public boolean[] getFeatures() {
+        return new boolean[] {includeTokenSize, includeTokenWHRatio, includeTokenNumStrokes};
+    }
+
+    public float getDotMaxWidth() {
+        return dotMaxWidth;
+    }
+
+    public float getDotMaxHeight() {
+        return dotMaxHeight;
+    }
+
+    public List<String> getTokenNames() {
+        return tokenNames;
+    }
+
+    public String[] getHardCodedTokens() {
+        return (hardCodedTokens == null) ? null : hardCodedTokens.clone();
+    }
+
+    public TokenDegeneracy getTokenDegen() {
+        return tokenDegen;
+    }
+
+    FlatNetworkBatchEvaluator getEvaluator() {
+        return evaluator;
+    }
+
+    /* Helper methods */
+    private static int align8(int position) {
+        return (position + 7) & ~7;
+    }
+
+    private static ActivationFunction createActivationFunction(String className, double[] params)
+        throws IOException {
+        if (!className.startsWith(ACTIVATION_PACKAGE)) {
+            throw new IOException("Unsupported activation function: " + className);
+        }
+
+        ActivationFunction activationFunction;
+        try {
+            activationFunction = (ActivationFunction) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IOException("Failed to create activation function " + className + ": " + e.getMessage());
+        }
+
+        for (int i = 0; i < params.length; ++i) {
+            activationFunction.setParam(i, params[i]);
+        }
+
+        return activationFunction;
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid string length: " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+
+        return new String(bytes, UTF_8);
+    }
+
+    private static String[] readStrings(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0) {
+            return null;
+        }
+
+        String[] strings = new String[count];
+        for (int i = 0; i < count; ++i) {
+            strings[i] = readString(buffer);
+        }
+
+        return strings;
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int count) throws IOException {
+        if ((long) count * 4L > buffer.remaining()) {
+            throw new IOException("Invalid number of values: " + count);
+        }
+
+        int[] xs = new int[count];
+        buffer.asIntBuffer().get(xs);
+        buffer.position(buffer.position() + count * 4);
+
+        return xs;
+    }
+
+    private static double[] readDoubles(ByteBuffer buffer, int count) throws IOException {
+        if (count < 0 || (long) count * 8L > buffer.remaining()) {
+            throw new IOException("Invalid number of values: " + count);
+        }
+
+        double[] xs = new double[count];
+        buffer.asDoubleBuffer().get(xs);
+        buffer.position(buffer.position() + count * 8);
+
+        return xs;
+    }
+
+    /* In-memory output of little-endian values */
+    private static final class LittleEndianOutput {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+        void writeByte(int x) {
+            bytes.write(x);
+        }
+
+        void writeInt(int x) {
+            scratch.clear();
+            scratch.putInt(x);
+            bytes.write(scratch.array(), 0, 4);
+        }
+
+        void writeFloat(float x) {
+            scratch.clear();
+            scratch.putFloat(x);
+            bytes.write(scratch.array(), 0, 4);
+        }
+
+        void writeDouble(double x) {
+            scratch.clear();
+            scratch.putDouble(x);
+            bytes.write(scratch.array(), 0, 8);
+        }
+
+        void writeInts(int[] xs) {
+            for (int x : xs) {
+                writeInt(x);
+            }
+        }
+
+        void writeDoubles(double[] xs) {
+            for (double x : xs) {
+                writeDouble(x);
+            }
+        }
+
+        void writeString(String s) {
+            byte[] utf8 = s.getBytes(UTF_8);
+
+            writeInt(utf8.length);
+            bytes.write(utf8, 0, utf8.length);
+        }
+
+        void writeStrings(String[] strings) {
+            if (strings == null) {
+                writeInt(-1);
+                return;
+            }
+
+            writeInt(strings.length);
+            for (String s : strings) {
+                writeString(s);
+            }
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            bytes.writeTo(out);
+        }
+    }
+
+    /* Convert a Java-serialized token engine (.ser) to a binary model file */
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        if (args.length != 2) {
+            System.err.println("Usage: TokenEngineModel <token engine .ser file> <output model file>");
+            System.exit(1);
+        }
+
+        TokenRecogEngineSDV tokEngine;
+        try (ObjectInputStream objInStream = new ObjectInputStream(new BufferedInputStream(
+                new FileInputStream(args[0])))) {
+            tokEngine = (TokenRecogEngineSDV) objInStream.readObject();
+        }
+
+        write(tokEngine, new File(args[1]));
+    }
+}
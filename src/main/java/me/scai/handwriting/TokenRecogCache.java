@@ -0,0 +1,181 @@
+package me.scai.handwriting;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of token recognition results, keyed by the quantized feature vector (e.g., the SDV with its extra
+ * dimensions) of the written token. Written tokens whose feature vectors fall into the same quantization cells share
+ * a result, so repeated recognition of identical or nearly identical stroke combinations, such as the merge candidates
+ * tried by the stroke curator and the tokens recreated on undo/redo, skips the token engine.
+ *
+ * Keys compare the full quantized vectors, not only their hashes, so distinct cells never share a result.
+ */
+public class TokenRecogCache {
+    /* Constants */
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final float DEFAULT_QUANTUM = 1e-3f;
+
+    /* Key: quantized feature vector */
+    public static final class Key {
+        private final int[] cells;
+        private final int hash;
+
+        private Key(int[] cells) {
+            this.cells = cells;
+            this.hash = Arrays.hashCode(cells);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key that = (Key) obj;
+            return hash == that.hash && Arrays.equals(cells, that.cells);
+        }
+    }
+
+    /* Member variables */
+    private volatile int capacity;
+    private final float quantum;
+
+    private final LinkedHashMap<Key, TokenRecogOutput> map;
+
+    private long nHits = 0;
+    private long nMisses = 0;
+
+    /* Constructors */
+    public TokenRecogCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_QUANTUM);
+    }
+
+    /**
+     * @param capacity  Maximum number of cached results (>= 1). The least recently used result is evicted first.
+     * @param quantum   Size of the quantization cells of the feature values (> 0)
+     */
+    public TokenRecogCache(int capacity, float quantum) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        if (!(quantum > 0f)) {
+            throw new IllegalArgumentException("Invalid quantum: " + quantum);
+        }
+
+        this.capacity = capacity;
+        this.quantum = quantum;
+
+        map = new LinkedHashMap<Key, TokenRecogOutput>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, TokenRecogOutput> eldest) {
+                return size() > TokenRecogCache.this.capacity;
+            }
+        };
+    }
+
+    /* Get the key of a feature vector */
+    public Key getKey(float[] features) {
+        int[] cells = new int[features.length];
+        for (int i = 0; i < features.length; ++i) {
+            cells[i] = Math.round(features[i] / quantum);
+        }
+
+        return new Key(cells);
+    }
+
+    /**
+     * Look up a recognition result. Counts a hit or a miss.
+     * @param key  Key, from getKey()
+     * @return     Cached result, or null if there is none
+     */
+    public synchronized TokenRecogOutput get(Key key) {
+        TokenRecogOutput output = map.get(key);
+
+        if (output != null) {
+            nHits++;
+        } else {
+            nMisses++;
+        }
+
+        return output;
+    }
+
+    /* Whether a result is cached, without counting a hit or a miss, or affecting the eviction order */
+    public synchronized boolean containsKey(Key key) {
+        return map.containsKey(key);
+    }
+
+    public synchronized void put(Key key, TokenRecogOutput output) {
+        map.put(key, output);
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the capacity. If it is reduced below the number of cached results, the least recently used ones are
+     * evicted.
+     * @param capacity  Maximum number of cached results (>= 1)
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+
+        this.capacity = capacity;
+
+        Iterator<Key> keyIter = map.keySet().iterator();
+        while (map.size() > capacity) {
+            keyIter.next();
+            keyIter.remove();
+        }
+    }
+
+    /**
+     * Grow the capacity, e.g., so that a batch of prefetched results does not evict its own entries while it is being
+     * used. The caller restores the capacity with setCapacity() afterwards.
+     * @param minCapacity  Minimum capacity
+     */
+    public synchronized void ensureCapacity(int minCapacity) {
+        if (minCapacity > capacity) {
+            capacity = minCapacity;
+        }
+    }
+
+    public float getQuantum() {
+        return quantum;
+    }
+
+    public synchronized long getHitCount() {
+        return nHits;
+    }
+
+    public synchronized long getMissCount() {
+        return nMisses;
+    }
+
+    public synchronized void resetCounters() {
+        nHits = 0;
+        nMisses = 0;
+    }
+}
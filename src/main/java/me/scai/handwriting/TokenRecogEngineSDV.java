@@ -5,6 +5,7 @@ import java.util.*;
 
 import me.scai.handwriting.ml.DataSet;
 import me.scai.handwriting.ml.DataSetWithStringLabels;
+import me.scai.handwriting.ml.FeatureCache;
 import me.scai.handwriting.ml.MachineLearningHelper;
 import me.scai.handwriting.tokens.TokenSettings;
 import me.scai.handwriting.utils.DataIOHelper;
@@ -56,6 +57,15 @@ public class TokenRecogEngineSDV extends TokenRecogEngine implements Serializabl
     /* Validation data */
     transient List<float []> sdveDataTest = null;
     transient List<Integer> trueLabelsTest = null;
+
+    /* Forward pass over the flat weights of bnet, created on demand */
+    private transient volatile FlatNetworkBatchEvaluator batchEvaluator = null;
+
+    /* Binary model that this engine was created from, if any. Used for recognition while bnet is null. */
+    private transient TokenEngineModel model = null;
+
+    /* On-disk cache of the feature vectors of the training data (null for no caching) */
+    private transient FeatureCache featureCache = null;
 	
 	/* Constructors */
 	public TokenRecogEngineSDV() {
@@ -70,6 +80,32 @@ public class TokenRecogEngineSDV extends TokenRecogEngine implements Serializabl
 		useTanh = false;		
 	}
 	
+	/**
+	 * Create an engine that recognizes with a binary model. The model is shared, not copied, so engines created from
+	 * the same model take little memory of their own.
+	 * @param model  Model, e.g., from TokenEngineModel.load()
+	 */
+	public TokenRecogEngineSDV(TokenEngineModel model) {
+		this();
+		
+		npPerStroke = model.getNpPerStroke();
+		maxNumStrokes = model.getMaxNumStrokes();
+		
+		boolean [] features = model.getFeatures();
+		bIncludeTokenSize = features[0];
+		bIncludeTokenWHRatio = features[1];
+		bIncludeTokenNumStrokes = features[2];
+		
+		dotMaxWidth = model.getDotMaxWidth();
+		dotMaxHeight = model.getDotMaxHeight();
+		
+		tokenNames = new ArrayList<>(model.getTokenNames());
+		hardCodedTokens = model.getHardCodedTokens();
+		tokenDegen = model.getTokenDegen();
+		
+		this.model = model;
+	}
+	
 	public void loadTokenDegeneracy(JsonObject tokenDegenObj) {
 		tokenDegen = new TokenDegeneracy(tokenDegenObj);
 	}
@@ -77,6 +113,10 @@ public class TokenRecogEngineSDV extends TokenRecogEngine implements Serializabl
 	public void setHardCodedTokens(String [] tHardCodedTokens) {
 		hardCodedTokens = tHardCodedTokens;
 	}
+
+	public void setFeatureCache(FeatureCache featureCache) {
+		this.featureCache = featureCache;
+	}
 	
 	public TokenRecogEngineSDV(int t_hiddenLayer1_size, 
 						       int t_hiddenLayer2_size, 
@@ -150,7 +190,7 @@ public class TokenRecogEngineSDV extends TokenRecogEngine implements Serializabl
         );
 
         DataSetWithStringLabels dataSetWithStringLabels =
-				MachineLearningHelper.readDataFromDir(inDirName, tokenSettings, newImageSize);
+				MachineLearningHelper.readDataFromDir(inDirName, tokenSettings, newImageSize, featureCache);
         DataSet dataSet = MachineLearningHelper.convertStringLabelsToIndices(dataSetWithStringLabels);
 
         assert(labels != null);
@@ -527,7 +567,7 @@ public class TokenRecogEngineSDV extends TokenRecogEngine implements Serializabl
 	/* Status: is the engine trained and ready to recognize tokens? */
 	@Override
 	public boolean isReadyToRecognize() {
-		return (bnet != null) && (tokenNames != null);
+		return (bnet != null || model != null) && (tokenNames != null);
 	}
 		
 	/* Recognize using the currently version of network */
@@ -536,18 +576,112 @@ public class TokenRecogEngineSDV extends TokenRecogEngine implements Serializabl
 			System.err.println("ERROR: Letter recognition engine not ready to perform recognition");
 			return -1;
 		}
-		
-		MLData sdveMLData = getMLData(sdve);
-		final double [] ps = bnet.compute(sdveMLData).getData();
-		if ( outPs.length == ps.length ) {
-			for (int i = 0; i < ps.length; ++i)
-				outPs[i] = ps[i];
+
+		FlatNetworkBatchEvaluator evaluator = getBatchEvaluator();
+
+		/* The winner is taken from the same forward pass as the probabilities */
+		double [][] ps = new double[1][evaluator.getOutputCount()];
+		int [] winners = new int[1];
+		evaluator.compute(new float[][] {sdve}, ps, winners);
+
+		if ( outPs.length == ps[0].length ) {
+			System.arraycopy(ps[0], 0, outPs, 0, ps[0].length);
 		}
 		else {
 			System.err.println("WRONG_OUTPS_LENGTH: Wrong length of input argument: outPs");
 		}
 		
-		return bnet.winner(getMLData(sdve));
+		return winners[0];
+	}
+
+	/**
+	 * Recognize a batch of feature vectors (SDVEs) in one forward pass of the network. The results are identical to
+	 * those of calling recognize(float[], double[]) on each of the vectors.
+	 * @param sdves   Feature vectors
+	 * @param outPs   Output: probabilities of the tokens for each feature vector. Each row must have a length of
+	 *                tokenNames.size().
+	 * @return        Indices of the winning tokens, or null if the engine is not ready to recognize
+	 */
+	public int [] recognizeBatch(float [][] sdves, double [][] outPs) {
+		if ( !isReadyToRecognize() ) {
+			System.err.println("ERROR: Letter recognition engine not ready to perform recognition");
+			return null;
+		}
+
+		if ( outPs.length != sdves.length ) {
+			throw new IllegalArgumentException("Mismatch between the number of feature vectors (" + sdves.length +
+			                                   ") and the number of rows of outPs (" + outPs.length + ")");
+		}
+
+		FlatNetworkBatchEvaluator evaluator = getBatchEvaluator();
+		for (int i = 0; i < outPs.length; ++i) {
+			if ( outPs[i].length != evaluator.getOutputCount() ) {
+				throw new IllegalArgumentException("Wrong length of row #" + i + " of outPs: " + outPs[i].length);
+			}
+		}
+
+		int [] winners = new int[sdves.length];
+		evaluator.compute(sdves, outPs, winners);
+
+		return winners;
+	}
+
+	/**
+	 * Recognize a batch of written tokens. Hard-coded tokens (dots) are recognized as in recognize(CWrittenToken,
+	 * double[]); all the others are run through the network in one batch.
+	 * @param wts     Written tokens
+	 * @param outPs   Output: probabilities of the tokens for each written token. Each row must have a length of
+	 *                tokenNames.size().
+	 * @return        Indices of the winning tokens
+	 */
+	public int [] recognizeBatch(List<CWrittenToken> wts, double [][] outPs) {
+		final int n = wts.size();
+		int [] winners = new int[n];
+
+		int [] batchIdx = new int[n];
+		float [][] sdves = new float[n][];
+		int nb = 0;
+		for (int i = 0; i < n; ++i) {
+			CWrittenToken wt = wts.get(i);
+
+			int dotIdx = recognizeAsDot(wt, outPs[i]);
+			if (dotIdx >= 0) {
+				winners[i] = dotIdx;
+			} else {
+				batchIdx[nb] = i;
+				sdves[nb++] = getFeatureVector(wt);
+			}
+		}
+
+		if (nb > 0) {
+			float [][] batchSdves = Arrays.copyOf(sdves, nb);
+			double [][] batchPs = new double[nb][];
+			for (int k = 0; k < nb; ++k) {
+				batchPs[k] = outPs[batchIdx[k]];
+			}
+
+			int [] batchWinners = recognizeBatch(batchSdves, batchPs);
+			for (int k = 0; k < nb; ++k) {
+				winners[batchIdx[k]] = (batchWinners == null) ? -1 : batchWinners[k];
+			}
+		}
+
+		return winners;
+	}
+
+	FlatNetworkBatchEvaluator getBatchEvaluator() {
+		if ( bnet == null && model != null ) {
+			return model.getEvaluator();
+		}
+		
+		FlatNetworkBatchEvaluator evaluator = batchEvaluator;
+
+		if ( evaluator == null || !evaluator.isViewOf(bnet.getFlat()) ) {
+			evaluator = new FlatNetworkBatchEvaluator(bnet.getFlat());
+			batchEvaluator = evaluator;
+		}
+
+		return evaluator;
 	}
 	
 
@@ -561,9 +695,17 @@ public class TokenRecogEngineSDV extends TokenRecogEngine implements Serializabl
 	 */
 	@Override
 	public int recognize(CWrittenToken wt, double [] outPs) {
-		float [] wh = null;
-		
-		/* If the token is small enough in both width and height, recognize it as a dot */
+		int dotIdx = recognizeAsDot(wt, outPs);
+		if (dotIdx >= 0) {
+			return dotIdx;
+		}
+
+		return recognize(getFeatureVector(wt), outPs);
+	}
+
+	/* If the token is small enough in both width and height, recognize it as a dot. 
+	 * Returns the index of the dot token, or -1 if the token is not recognized as a dot. */
+	private int recognizeAsDot(CWrittenToken wt, double [] outPs) {
 		if ( wt.width <= dotMaxWidth && wt.height <= dotMaxHeight ) {
 			if (dotTokenIndex == -1) {
 				dotTokenIndex = tokenNames.indexOf(DOT);
@@ -584,6 +726,13 @@ public class TokenRecogEngineSDV extends TokenRecogEngine implements Serializabl
 				return dotTokenIndex;
 			}
 		}
+
+		return -1;
+	}
+
+	/* Feature vector of a written token, as input to the network: SDV, with the extra dimensions */
+	public float [] getFeatureVector(CWrittenToken wt) {
+		float [] wh = null;
 		
 		if ( wt.width != 0.0f && wt.height != 0.0f ) {
 			wh = new float[2];
@@ -594,12 +743,10 @@ public class TokenRecogEngineSDV extends TokenRecogEngine implements Serializabl
 		float [] sdv = wt.getSDV(npPerStroke, maxNumStrokes, wh);
 		float [] sepv = wt.getSEPV(maxNumStrokes); /* TODO: Make optional */
 
-		float [] sdve = MachineLearningHelper.addExtraDimsToSDV(sdv, sepv, wt.width, wt.height, wt.nStrokes(),
+		return MachineLearningHelper.addExtraDimsToSDV(sdv, sepv, wt.width, wt.height, wt.nStrokes(),
                 bIncludeTokenSize,
                 bIncludeTokenWHRatio,
                 bIncludeTokenNumStrokes);
-
-		return recognize(sdve, outPs);
 	}
 	
 	/* Get error rate on test data set */
@@ -607,39 +754,29 @@ public class TokenRecogEngineSDV extends TokenRecogEngine implements Serializabl
 		if ( sdveDataValidation == null || trueLabelsValidation == null )
 			throw new RuntimeException("Test data have not be generated yet");
 		
-		int nTested = 0;
-		int nErr = 0;
-		double [] ps = new double[tokenNames.size()];
-		for (int i = 0; i < sdveDataValidation.size(); ++i) {
-			int recogIdx = recognize(sdveDataValidation.get(i), ps);
-			
-			int trueIdx = trueLabelsValidation.get(i);
-			
-			nTested++;
-			if (recogIdx != trueIdx)
-				nErr++;
-
-		}
-
-		return (float) nErr / (float) nTested;
+		return getErrorRate(sdveDataValidation, trueLabelsValidation);
 	}
 
     public float getTestErrorRate() {
         if ( sdveDataTest == null || trueLabelsTest == null )
             throw new RuntimeException("Test data have not be generated yet");
 
+        return getErrorRate(sdveDataTest, trueLabelsTest);
+    }
+
+    /* Error rate of the recognition of a data set, with all the feature vectors recognized in one batch */
+    private float getErrorRate(List<float []> sdves, List<Integer> trueLabels) {
+        double [][] ps = new double[sdves.size()][tokenNames.size()];
+        int [] recogIdxs = recognizeBatch(sdves.toArray(new float[sdves.size()][]), ps);
+
         int nTested = 0;
         int nErr = 0;
-        double [] ps = new double[tokenNames.size()];
-        for (int i = 0; i < sdveDataTest.size(); ++i) {
-            int recogIdx = recognize(sdveDataTest.get(i), ps);
-
-            int trueIdx = trueLabelsTest.get(i);
+        for (int i = 0; i < sdves.size(); ++i) {
+            int trueIdx = trueLabels.get(i);
 
             nTested++;
-            if (recogIdx != trueIdx)
+            if (recogIdxs[i] != trueIdx)
                 nErr++;
-
         }
 
         return (float) nErr / (float) nTested;
@@ -653,6 +790,14 @@ public class TokenRecogEngineSDV extends TokenRecogEngine implements Serializabl
         return maxNumStrokes;
     }
 
+    float getDotMaxWidth() {
+        return dotMaxWidth;
+    }
+
+    float getDotMaxHeight() {
+        return dotMaxHeight;
+    }
+
     public String[] getHardCodedTokens() {
         return hardCodedTokens;
     }
@@ -0,0 +1,183 @@
+package me.scai.handwriting;
+
+import me.scai.parsetree.MathHelper;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index over the token bounds of a token set, for range queries such as "tokens that overlap the head
+ * horizontally" or "tokens whose centers are to the east of the head".
+ *
+ * For each axis (X and Y), the tokens are sorted by the lower edge of their bounds and by their centers. Together with
+ * the maximum token extent along the axis, the first order turns an interval-overlap query into two binary searches
+ * plus a scan of the candidates in between. The index is immutable: CWrittenTokenSetNoStroke builds it on demand and
+ * discards it when its tokens or bounds change.
+ */
+public final class TokenSetSpatialIndex {
+    /* Constants */
+    public static final int X = 0;
+    public static final int Y = 1;
+
+    /* Member variables */
+    private final int nt;
+
+    private final float[][] mins = new float[2][];       /* [axis][token] */
+    private final float[][] maxs = new float[2][];
+    private final float[][] centers = new float[2][];
+
+    private final int[][] orderByMin = new int[2][];     /* [axis][rank]: token indices, sorted by lower edge */
+    private final float[][] sortedMins = new float[2][];
+    private final float[] maxExtents = new float[2];
+
+    private final int[][] orderByCenter = new int[2][];  /* [axis][rank]: token indices, sorted by center */
+    private final float[][] sortedCenters = new float[2][];
+
+    /* Constructor */
+    public TokenSetSpatialIndex(CAbstractWrittenTokenSet wts) {
+        nt = wts.getNumTokens();
+
+        for (int axis = X; axis <= Y; ++axis) {
+            mins[axis] = new float[nt];
+            maxs[axis] = new float[nt];
+            centers[axis] = new float[nt];
+        }
+
+        for (int i = 0; i < nt; ++i) {
+            float[] bounds = wts.getTokenBounds(i);
+
+            for (int axis = X; axis <= Y; ++axis) {
+                mins[axis][i] = bounds[axis];
+                maxs[axis][i] = bounds[axis + 2];
+                centers[axis][i] = (bounds[axis] + bounds[axis + 2]) * 0.5f;
+
+                float extent = bounds[axis + 2] - bounds[axis];
+                if (extent > maxExtents[axis]) {
+                    maxExtents[axis] = extent;
+                }
+            }
+        }
+
+        for (int axis = X; axis <= Y; ++axis) {
+            /* MathHelper.sort() is stable, so ties are in the order of the token indices */
+            sortedMins[axis] = Arrays.copyOf(mins[axis], nt);
+            orderByMin[axis] = new int[nt];
+            MathHelper.sort(sortedMins[axis], orderByMin[axis]);
+
+            sortedCenters[axis] = Arrays.copyOf(centers[axis], nt);
+            orderByCenter[axis] = new int[nt];
+            MathHelper.sort(sortedCenters[axis], orderByCenter[axis]);
+        }
+    }
+
+    public int nTokens() {
+        return nt;
+    }
+
+    public float getMin(int axis, int i) {
+        return mins[axis][i];
+    }
+
+    public float getMax(int axis, int i) {
+        return maxs[axis][i];
+    }
+
+    /* Center of token #i along an axis: (min + max) * 0.5f */
+    public float getCenter(int axis, int i) {
+        return centers[axis][i];
+    }
+
+    /**
+     * Get the token indices sorted by center along an axis, in ascending order. Ties are in ascending index order.
+     * @param axis  X or Y
+     * @return      Sorted token indices. Must not be modified.
+     */
+    public int[] getOrderByCenter(int axis) {
+        return orderByCenter[axis];
+    }
+
+    /**
+     * Number of tokens whose centers along an axis are less than a value. The tokens are the first ones in the
+     * order of getOrderByCenter(axis).
+     * @param axis   X or Y
+     * @param value  Threshold value
+     * @return       Number of tokens
+     */
+    public int countCentersBelow(int axis, float value) {
+        return lowerBound(sortedCenters[axis], value);
+    }
+
+    /**
+     * Number of tokens whose centers along an axis are less than or equal to a value. The tokens are the first ones
+     * in the order of getOrderByCenter(axis).
+     * @param axis   X or Y
+     * @param value  Threshold value
+     * @return       Number of tokens
+     */
+    public int countCentersAtMost(int axis, float value) {
+        return upperBound(sortedCenters[axis], value);
+    }
+
+    /**
+     * Find the tokens whose bounds along an axis intersect the closed interval [lb, ub]
+     * @param axis     X or Y
+     * @param lb       Lower bound
+     * @param ub       Upper bound
+     * @param indices  Output: indices of the tokens, in no particular order. Must have a length of at least
+     *                 nTokens().
+     * @return         Number of tokens found
+     */
+    public int queryOverlapping(int axis, float lb, float ub, int[] indices) {
+        final float[] sorted = sortedMins[axis];
+        final int[] order = orderByMin[axis];
+
+        /* Tokens with min > ub cannot intersect. Tokens with min < lb - maxExtent have max < lb. The lower limit is
+         * widened by a few ulps against rounding; the candidates are filtered by their max anyway. */
+        float minLimit = lb - maxExtents[axis];
+        minLimit -= 2.0f * (Math.ulp(minLimit) + Math.ulp(lb));
+
+        int begin = lowerBound(sorted, minLimit);
+        int end = upperBound(sorted, ub);
+
+        int n = 0;
+        for (int r = begin; r < end; ++r) {
+            int i = order[r];
+            if (maxs[axis][i] >= lb) {
+                indices[n++] = i;
+            }
+        }
+
+        return n;
+    }
+
+    /* Index of the first element that is >= value */
+    private static int lowerBound(float[] sorted, float value) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    /* Index of the first element that is > value */
+    private static int upperBound(float[] sorted, float value) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+}
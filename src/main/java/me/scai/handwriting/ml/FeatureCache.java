@@ -0,0 +1,154 @@
+package me.scai.handwriting.ml;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache of token feature vectors, keyed by a hash of the content the features are extracted from (e.g., the
+ * token data files and the feature settings). Repeated training runs over the same token data can then skip feature
+ * extraction. Each entry is stored in a separate file, so the cache can be shared by concurrent readers and writers.
+ *
+ * Entry file format (big-endian, as written by DataOutputStream):
+ *   int     MAGIC
+ *   UTF     Token name
+ *   int     Number of features (n)
+ *   float   Features (x n)
+ */
+public class FeatureCache {
+    /* Constants */
+    private static final int MAGIC = 0x46454143; // "FEAC"
+    private static final String ENTRY_FILE_SUFFIX = ".feat";
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    /* Member variables */
+    private final File cacheDir;
+
+    /* Cache entry: token name and feature vector */
+    public static class Entry {
+        private final String tokenName;
+        private final float[] features;
+
+        public Entry(String tokenName, float[] features) {
+            this.tokenName = tokenName;
+            this.features = features;
+        }
+
+        public String getTokenName() {
+            return tokenName;
+        }
+
+        public float[] getFeatures() {
+            return features;
+        }
+    }
+
+    /* Constructor */
+    public FeatureCache(File cacheDir) {
+        if ( !cacheDir.isDirectory() && !cacheDir.mkdirs() ) {
+            throw new IllegalArgumentException("Cannot create feature cache directory: " + cacheDir.getPath());
+        }
+
+        this.cacheDir = cacheDir;
+    }
+
+    /* Methods */
+
+    /**
+     * Calculate the cache key of a list of content parts. The length of each part is included, so that different
+     * divisions of the same bytes into parts lead to different keys.
+     * @param parts  Content parts
+     * @return  Hexadecimal hash string
+     */
+    public static String getKey(byte[]... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Hash algorithm " + HASH_ALGORITHM + " is unavailable");
+        }
+
+        for (byte[] part : parts) {
+            int len = part.length;
+            digest.update(new byte[] {(byte) (len >>> 24), (byte) (len >>> 16), (byte) (len >>> 8), (byte) len});
+            digest.update(part);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Get a cache entry
+     * @param key  Cache key, from getKey()
+     * @return  The entry, or null if there is no (valid) entry for the key
+     */
+    public Entry get(String key) {
+        File entryFile = getEntryFile(key);
+        if ( !entryFile.isFile() ) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entryFile)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+
+            String tokenName = in.readUTF();
+
+            int n = in.readInt();
+            if (n < 0) {
+                return null;
+            }
+
+            float[] features = new float[n];
+            for (int i = 0; i < n; ++i) {
+                features[i] = in.readFloat();
+            }
+
+            return new Entry(tokenName, features);
+        } catch (IOException e) {
+            return null; // Treat a corrupt or truncated entry as a miss
+        }
+    }
+
+    /**
+     * Put an entry into the cache. The entry is written to a temporary file first and then moved into place, so that
+     * readers never see partially written entries.
+     * @param key        Cache key, from getKey()
+     * @param tokenName  Token name
+     * @param features   Feature vector
+     * @throws IOException  On failure to write the entry
+     */
+    public void put(String key, String tokenName, float[] features) throws IOException {
+        File tmpFile = File.createTempFile(key, ".tmp", cacheDir);
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(tokenName);
+                out.writeInt(features.length);
+                for (float v : features) {
+                    out.writeFloat(v);
+                }
+            }
+
+            Files.move(tmpFile.toPath(), getEntryFile(key).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (tmpFile.exists()) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(cacheDir, key + ENTRY_FILE_SUFFIX);
+    }
+}
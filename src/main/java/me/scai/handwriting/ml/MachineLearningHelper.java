@@ -1,14 +1,10 @@
 package me.scai.handwriting.ml;
 
-import me.scai.handwriting.CHandWritingTokenImageData;
-import me.scai.handwriting.CStroke;
 import me.scai.handwriting.CWrittenToken;
-import me.scai.handwriting.tokens.TokenFileSettings;
 import me.scai.handwriting.tokens.TokenSettings;
 import me.scai.parsetree.MathHelper;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.util.*;
 
 public class MachineLearningHelper {
@@ -18,8 +14,21 @@ public class MachineLearningHelper {
     public static DataSetWithStringLabels readDataFromDir(final String inDirName,
                                                           TokenSettings tokenSettings,
                                                           int newImageSize) {
-        DataSetWithStringLabels r = new DataSetWithStringLabels();
+        return readDataFromDir(inDirName, tokenSettings, newImageSize, null);
+    }
 
+    /**
+     * Read token data from a directory tree, in parallel (see TokenDataReader)
+     * @param inDirName      Root directory
+     * @param tokenSettings  Feature settings
+     * @param newImageSize   Image size for the image features (<= 0 for SDVE features only)
+     * @param featureCache   Feature cache (null for no caching)
+     * @return  The samples, labeled with the degenerated token names
+     */
+    public static DataSetWithStringLabels readDataFromDir(final String inDirName,
+                                                          TokenSettings tokenSettings,
+                                                          int newImageSize,
+                                                          FeatureCache featureCache) {
         File inDir = new File(inDirName);
 
 		/* Test the existence of the input directory */
@@ -28,209 +37,28 @@ public class MachineLearningHelper {
             System.exit(1);
         }
 
-        File [] allFiles = inDir.listFiles();
-
-		/* Recursively retrieve data from sub-directories */
-        for (int i = 0; i < allFiles.length; ++i) {
-            if ( allFiles[i].isDirectory() &&
-                 allFiles[i].getName().indexOf(".") != 0 ) { // Skip hidden folders
-                System.out.println("Reading data from subdirectory: " + allFiles[i].getPath());
-
-                DataSetWithStringLabels dataSetWithStringLabels =
-                        readDataFromDir(allFiles[i].getPath(), tokenSettings, newImageSize);
-                r.addAll(dataSetWithStringLabels);
-            }
-        }
-
-		/* Get the list of all .wt files */
-        File [] files = inDir.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                // return (name.startsWith(TokenFileSettings.WT_FILE_PREFIX) &&
-                //         name.endsWith(TokenFileSettings.WT_FILE_SUFFIX));
-                return name.endsWith(TokenFileSettings.WT_FILE_SUFFIX);
-            }
-        });
-
-        for (int i = 0; i < files.length; ++i) {
-
-            float[] x = null;
-            try {
-				/* Actual reading */
-                CWrittenToken t_wt = new CWrittenToken(files[i]);
-
-                String wtPath = files[i].getPath();
-                String imPath = wtPath.substring(0, wtPath.length() - TokenFileSettings.WT_FILE_SUFFIX.length()) +
-                        TokenFileSettings.IM_FILE_SUFFIX;
-                File imFile = new File(imPath);
-                CHandWritingTokenImageData t_imData =
-                        CHandWritingTokenImageData.readImFile(imFile,
-                                tokenSettings.isIncludeTokenSize(),
-                                tokenSettings.isIncludeTokenWHRatio(),
-                                tokenSettings.isIncludeTokenNumStrokes());
-
-				/* Skip exclusion tokens */
-                if ( tokenSettings.isTokenHardCoded(t_imData.tokenName) ) {
-                    continue;
-                }
-
-                float [] im_wh = new float[2]; // Width and height
-                im_wh[0] = t_imData.w;
-                im_wh[1] = t_imData.h;
-
-                t_wt.width = t_imData.w;
-                t_wt.height = t_imData.h;
-
-                if (newImageSize <= 0) {
-                    x = getSdveVector(t_wt, tokenSettings);
-                } else {
-                    x = getNewImagePlusSdveVector(t_wt, tokenSettings, newImageSize, t_imData.h, t_imData.w);
-                }
-
-                r.addSample(x, tokenSettings.getTokenDegeneracy().getDegenerated(t_imData.tokenName));
-
-            } catch (Exception e) {
-                System.err.println("ERROR: Failed to read valid data from file: " + files[i].getName() + 
-                                   " due to exception " + e.toString());
-            }
+        TokenDataReader reader = new TokenDataReader(tokenSettings, newImageSize, featureCache);
+        DataSetWithStringLabels r = reader.read(inDir, Runtime.getRuntime().availableProcessors());
 
+        if (featureCache != null) {
+            System.out.println("Read " + r.numSamples() + " samples (" + reader.getNumCacheHits() +
+                               " from feature cache)");
         }
 
         return r;
     }
 
     public static float[][] getNewImageData(CWrittenToken wt, int imgSize, float origImgH, float origImgW) {
-        if (imgSize <= 0) {
-            throw new IllegalArgumentException("Invalid image height and width");
-        }
-
-        if (origImgH == 0f && origImgW == 0f) {
-            throw new IllegalStateException("Written token instance has zero values in both height and width");
-        }
-
-        float grid = 1.0f / imgSize;
-        float hg = grid * 0.5f;  // half-grid size
-        float hgd = hg * 1.414f;
-
-        float lim_x = 1f;
-        float lim_y = 1f;
-        if (origImgH > origImgW) {
-            // Shrink lim_x
-            lim_x = origImgW / origImgH;
-        } else {
-            // Shrink lim_y
-            lim_y = origImgH / origImgW;
-        }
+        float[] flatImg = StrokeRasterizer.rasterize(wt, imgSize, origImgH, origImgW);
 
         float[][] img = new float[imgSize][imgSize];
-
-        for (int n = 0; n < wt.nStrokes(); ++n) {
-            CStroke stroke = wt.getStroke(n);
-
-            boolean down = false;
-
-            if (stroke.nPoints() <= 0) {
-                throw new IllegalStateException("Empty stroke");
-            } else {
-                final int np = stroke.nPoints();
-                final float[] xs = stroke.getXs();
-                final float[] ys = stroke.getYs();
-
-//                if (np == 2 && n == 1 && wt.getStroke(1).getXs()[0] == 0.977f) {
-//                    int iii = 111; // DEBUG
-//                }
-
-                if (np == 1 || (np == 2 && xs[0] == xs[1] && ys[0] == ys[1])) {
-                    // Single dot
-
-                    int ix = Math.round(xs[0] * (imgSize - 1) * lim_x);
-                    int iy = Math.round(ys[0] * (imgSize - 1) * lim_y);
-
-                    img[iy][ix] = 1.0f;
-                    down = true;
-
-                } else {
-                    for (int i = 0; i < imgSize; ++i) {
-                        for (int j = 0; j < imgSize; ++j) {
-                            float ctr_x = (i + 0.5f) / imgSize;
-                            float ctr_y = (j + 0.5f) / imgSize;
-
-                            for (int k = 0; k < np -1; ++k) {
-                                float x0 = xs[k] * lim_x;
-                                float y0 = ys[k] * lim_y;
-                                float x1 = xs[k + 1] * lim_x;
-                                float y1 = ys[k + 1] * lim_y;
-
-                                if (x0 == x1 && y0 == y1) {
-                                    /* The two points are the same */
-                                    if ((x0 - ctr_x) * (x0 - ctr_x) + (y0 - ctr_y) * (y0 - ctr_y) <= hgd * hgd) {
-                                        img[j][i] = 1f;
-                                    }
-                                } else {
-                                    float d = dist(x0, y0, x1, y1, ctr_x, ctr_y);
-
-                                    if (d <= hgd) {
-                                        float v = (hgd - d) / hgd;
-                                        img[j][i] = 1f - (1f - img[j][i]) * ((1f - v) / 2f);
-                                        down = true;
-                                    }
-                                }
-                            }
-                        }
-                    }
-
-                }
-            }
-
-            if (!down) {
-                System.out.println("Warning: no point for stroke");
-            }
-
+        for (int j = 0; j < imgSize; ++j) {
+            System.arraycopy(flatImg, j * imgSize, img[j], 0, imgSize);
         }
 
         return img;
     }
 
-
-    /**
-     * Calculate the distance from point (xp, yp) to the line passing through points (x1, y1) and (x2, y2)
-     * @param x1
-     * @param y1
-     * @param x2
-     * @param y2
-     * @param xp
-     * @param yp
-     * @return Distance
-     */
-    private static float dist(float x1, float y1, float x2, float y2, float xp, float yp) {
-        float px = x2 - x1;
-        float py = y2 - y1;
-
-        float q = px * px + py * py;
-
-        float u = ((xp - x1) * px + (yp - y1) * py) / q;
-
-        if (u > 1f) {
-            u = 1f;
-        } else if (u < 0f) {
-            u = 0f;
-        }
-
-        float x = x1 + u * px;
-        float y = y1 + u * py;
-
-        float dx = x - xp;
-        float dy = y - yp;
-
-        // Note: If the actual distance does not matter,
-        // if you only want to compare what this function
-        /// returns to other results of this function, you
-        // can just return the squared distance instead
-        // (i.e. remove the sqrt) to gain a little performance
-
-        return (float) Math.sqrt(dx * dx + dy * dy);
-    }
-
     public static float[] getSdveVector(CWrittenToken wt, TokenSettings tokenSettings) {
         assert(wt.width > 0 || wt.height > 0);
 
@@ -248,22 +76,11 @@ public class MachineLearningHelper {
     public static float[] getNewImagePlusSdveVector(CWrittenToken wt, TokenSettings tokenSettings,
                                                     int imgSize, float origImgH, float origImgW) {
         float[] x_sdve = getSdveVector(wt, tokenSettings);
-        float[][] x_img = getNewImageData(wt, imgSize, origImgH, origImgW);
+        float[] x_img = StrokeRasterizer.rasterize(wt, imgSize, origImgH, origImgW); // Row-major
 
-        assert(x_img.length == imgSize);
-        assert(x_img[0].length == imgSize);
-
-        float[] x = new float[imgSize * imgSize + x_sdve.length];
-        int cnt = 0;
-        for (int i = 0; i < imgSize; ++i) {
-            for (int j = 0; j < imgSize; ++j) {
-                x[cnt++] = x_img[i][j];
-            }
-        }
-
-        for (float v : x_sdve) {
-            x[cnt++] = v;
-        }
+        float[] x = new float[x_img.length + x_sdve.length];
+        System.arraycopy(x_img, 0, x, 0, x_img.length);
+        System.arraycopy(x_sdve, 0, x, x_img.length, x_sdve.length);
 
         return x;
     }
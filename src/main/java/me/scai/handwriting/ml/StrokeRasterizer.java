@@ -0,0 +1,180 @@
+package me.scai.handwriting.ml;
+
+import me.scai.handwriting.CStroke;
+import me.scai.handwriting.CWrittenToken;
+
+/**
+ * Rasterizes the strokes of a written token into a square image, with a linear intensity falloff around each
+ * stroke segment.
+ *
+ * A pixel within the distance hgd (half the diagonal of a pixel) of a segment is darkened according to its distance
+ * to the segment. Instead of testing every pixel against every segment, each segment is scanned row by row: for each
+ * pixel row, only the columns that lie within the bounding band of the segment are tested. Pixels are updated in the
+ * same order (stroke by stroke, segment by segment) and with the same arithmetic as the per-pixel algorithm, so the
+ * output is identical to it.
+ */
+final class StrokeRasterizer {
+    private StrokeRasterizer() {}
+
+    /**
+     * Rasterize a written token.
+     * @param wt        Written token, with the coordinates normalized to [0, 1]
+     * @param imgSize   Width and height of the image
+     * @param origImgH  Original height of the token, for preserving the aspect ratio
+     * @param origImgW  Original width of the token, for preserving the aspect ratio
+     * @return  Row-major image: the pixel at column i and row j is at index j * imgSize + i
+     */
+    static float[] rasterize(CWrittenToken wt, int imgSize, float origImgH, float origImgW) {
+        if (imgSize <= 0) {
+            throw new IllegalArgumentException("Invalid image height and width");
+        }
+
+        if (origImgH == 0f && origImgW == 0f) {
+            throw new IllegalStateException("Written token instance has zero values in both height and width");
+        }
+
+        float grid = 1.0f / imgSize;
+        float hg = grid * 0.5f;  // half-grid size
+        float hgd = hg * 1.414f;
+
+        float lim_x = 1f;
+        float lim_y = 1f;
+        if (origImgH > origImgW) {
+            // Shrink lim_x
+            lim_x = origImgW / origImgH;
+        } else {
+            // Shrink lim_y
+            lim_y = origImgH / origImgW;
+        }
+
+        float[] img = new float[imgSize * imgSize];
+
+        for (int n = 0; n < wt.nStrokes(); ++n) {
+            CStroke stroke = wt.getStroke(n);
+
+            boolean down = false;
+
+            if (stroke.nPoints() <= 0) {
+                throw new IllegalStateException("Empty stroke");
+            }
+
+            final int np = stroke.nPoints();
+
+            if (np == 1 || (np == 2 && stroke.getX(0) == stroke.getX(1) && stroke.getY(0) == stroke.getY(1))) {
+                // Single dot
+                int ix = Math.round(stroke.getX(0) * (imgSize - 1) * lim_x);
+                int iy = Math.round(stroke.getY(0) * (imgSize - 1) * lim_y);
+
+                img[iy * imgSize + ix] = 1.0f;
+                down = true;
+            } else {
+                for (int k = 0; k < np - 1; ++k) {
+                    float x0 = stroke.getX(k) * lim_x;
+                    float y0 = stroke.getY(k) * lim_y;
+                    float x1 = stroke.getX(k + 1) * lim_x;
+                    float y1 = stroke.getY(k + 1) * lim_y;
+
+                    down |= drawSegment(img, imgSize, hgd, x0, y0, x1, y1);
+                }
+            }
+
+            if (!down) {
+                System.out.println("Warning: no point for stroke");
+            }
+        }
+
+        return img;
+    }
+
+    /**
+     * Draw a segment into the image, scanning only the pixels that can be within hgd of it.
+     * @return  true if any pixel was darkened through the distance falloff
+     */
+    private static boolean drawSegment(float[] img, int imgSize, float hgd,
+                                       float x0, float y0, float x1, float y1) {
+        boolean down = false;
+
+        /* Band half-width for the candidate pixels. One extra grid unit guards against rounding at the band edges;
+         * whether a candidate pixel is actually darkened is decided by the exact distance test below. */
+        final float band = hgd + 1.0f / imgSize;
+
+        final boolean isPoint = (x0 == x1 && y0 == y1);
+
+        int jMin = Math.max(0, (int) Math.floor((Math.min(y0, y1) - band) * imgSize - 0.5f));
+        int jMax = Math.min(imgSize - 1, (int) Math.ceil((Math.max(y0, y1) + band) * imgSize - 0.5f));
+
+        for (int j = jMin; j <= jMax; ++j) {
+            float ctr_y = (j + 0.5f) / imgSize;
+
+            /* Range of the segment parameter t in which the segment is within the band of this row */
+            float t0 = 0f;
+            float t1 = 1f;
+            if (y0 != y1) {
+                float ta = (ctr_y - band - y0) / (y1 - y0);
+                float tb = (ctr_y + band - y0) / (y1 - y0);
+
+                t0 = Math.max(0f, Math.min(ta, tb));
+                t1 = Math.min(1f, Math.max(ta, tb));
+
+                if (t0 > t1) {
+                    continue;
+                }
+            }
+
+            float xa = x0 + t0 * (x1 - x0);
+            float xb = x0 + t1 * (x1 - x0);
+
+            int iMin = Math.max(0, (int) Math.floor((Math.min(xa, xb) - band) * imgSize - 0.5f));
+            int iMax = Math.min(imgSize - 1, (int) Math.ceil((Math.max(xa, xb) + band) * imgSize - 0.5f));
+
+            final int rowOffset = j * imgSize;
+            for (int i = iMin; i <= iMax; ++i) {
+                float ctr_x = (i + 0.5f) / imgSize;
+
+                if (isPoint) {
+                    /* The two points are the same */
+                    if ((x0 - ctr_x) * (x0 - ctr_x) + (y0 - ctr_y) * (y0 - ctr_y) <= hgd * hgd) {
+                        img[rowOffset + i] = 1f;
+                    }
+                } else {
+                    float d = dist(x0, y0, x1, y1, ctr_x, ctr_y);
+
+                    if (d <= hgd) {
+                        float v = (hgd - d) / hgd;
+                        img[rowOffset + i] = 1f - (1f - img[rowOffset + i]) * ((1f - v) / 2f);
+                        down = true;
+                    }
+                }
+            }
+        }
+
+        return down;
+    }
+
+    /**
+     * Calculate the distance from point (xp, yp) to the segment between points (x1, y1) and (x2, y2)
+     * @return Distance
+     */
+    static float dist(float x1, float y1, float x2, float y2, float xp, float yp) {
+        float px = x2 - x1;
+        float py = y2 - y1;
+
+        float q = px * px + py * py;
+
+        float u = ((xp - x1) * px + (yp - y1) * py) / q;
+
+        if (u > 1f) {
+            u = 1f;
+        } else if (u < 0f) {
+            u = 0f;
+        }
+
+        float x = x1 + u * px;
+        float y = y1 + u * py;
+
+        float dx = x - xp;
+        float dy = y - yp;
+
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+}
@@ -0,0 +1,245 @@
+package me.scai.handwriting.ml;
+
+import me.scai.handwriting.CHandWritingTokenImageData;
+import me.scai.handwriting.CWrittenToken;
+import me.scai.handwriting.tokens.TokenFileSettings;
+import me.scai.handwriting.tokens.TokenSettings;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads token training data (pairs of .wt and .im files) from a directory tree and extracts the feature vectors.
+ * The directory tree is walked with fork/join tasks, so that the files are read and the features are extracted on
+ * multiple cores. The samples are returned in the same order as a sequential, depth-first walk would return them:
+ * the samples in the subdirectories first, followed by those in the directory itself.
+ *
+ * Optionally, the feature vectors are cached on disk in a FeatureCache, keyed by the content of the token files and
+ * the feature settings.
+ */
+public class TokenDataReader {
+    /* Constants */
+    /* Version of the feature extraction. Increment it when the features change, to invalidate cached features. */
+    private static final int FEATURE_VERSION = 1;
+
+    private static final int FILE_BATCH_SIZE = 16; // Number of files read sequentially by a leaf task
+
+    /* Member variables */
+    private final TokenSettings tokenSettings;
+    private final int newImageSize;
+    private final FeatureCache featureCache;
+    private final byte[] settingsKey;
+
+    private final AtomicInteger numCacheHits = new AtomicInteger();
+
+    /* Constructor */
+    /**
+     * @param tokenSettings  Feature settings
+     * @param newImageSize   Image size for the image features (<= 0 for SDVE features only)
+     * @param featureCache   Feature cache (null for no caching)
+     */
+    public TokenDataReader(TokenSettings tokenSettings, int newImageSize, FeatureCache featureCache) {
+        this.tokenSettings = tokenSettings;
+        this.newImageSize = newImageSize;
+        this.featureCache = featureCache;
+
+        String settingsString = String.format("v%d;sz%b;whr%b;ns%b;np%d;maxns%d;img%d",
+                                              FEATURE_VERSION,
+                                              tokenSettings.isIncludeTokenSize(),
+                                              tokenSettings.isIncludeTokenWHRatio(),
+                                              tokenSettings.isIncludeTokenNumStrokes(),
+                                              tokenSettings.getNpPerStroke(),
+                                              tokenSettings.getMaxNumStrokes(),
+                                              newImageSize);
+        try {
+            settingsKey = settingsString.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* Methods */
+
+    /**
+     * Read the data from a directory tree
+     * @param inDir        Root directory
+     * @param parallelism  Number of threads to use
+     * @return  The samples, labeled with the degenerated token names
+     */
+    public DataSetWithStringLabels read(File inDir, int parallelism) {
+        if ( !inDir.isDirectory() ) {
+            throw new IllegalArgumentException("Cannot find directory " + inDir.getPath());
+        }
+
+        numCacheHits.set(0);
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new DirTask(inDir));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /* Number of samples read from the feature cache during the last read() */
+    public int getNumCacheHits() {
+        return numCacheHits.get();
+    }
+
+    /* Reads a directory, including its subdirectories */
+    private class DirTask extends RecursiveTask<DataSetWithStringLabels> {
+        private final File dir;
+
+        DirTask(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected DataSetWithStringLabels compute() {
+            File [] allFiles = dir.listFiles();
+            if (allFiles == null) {
+                return new DataSetWithStringLabels();
+            }
+
+            /* Recursively retrieve data from sub-directories */
+            List<DirTask> subDirTasks = new ArrayList<>();
+            for (File file : allFiles) {
+                if ( file.isDirectory() && file.getName().indexOf(".") != 0 ) { // Skip hidden folders
+                    System.out.println("Reading data from subdirectory: " + file.getPath());
+
+                    DirTask subDirTask = new DirTask(file);
+                    subDirTask.fork();
+                    subDirTasks.add(subDirTask);
+                }
+            }
+
+            /* Get the list of all .wt files */
+            File [] wtFiles = dir.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(TokenFileSettings.WT_FILE_SUFFIX);
+                }
+            });
+
+            DataSetWithStringLabels fileData = (wtFiles == null) ? new DataSetWithStringLabels() :
+                                               new FilesTask(wtFiles, 0, wtFiles.length).compute();
+
+            DataSetWithStringLabels r = new DataSetWithStringLabels();
+            for (DirTask subDirTask : subDirTasks) {
+                r.addAll(subDirTask.join());
+            }
+            r.addAll(fileData);
+
+            return r;
+        }
+    }
+
+    /* Reads a range of .wt files (and the corresponding .im files) in a directory */
+    private class FilesTask extends RecursiveTask<DataSetWithStringLabels> {
+        private final File[] wtFiles;
+        private final int from;
+        private final int to;
+
+        FilesTask(File[] wtFiles, int from, int to) {
+            this.wtFiles = wtFiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected DataSetWithStringLabels compute() {
+            if (to - from > FILE_BATCH_SIZE) {
+                int mid = (from + to) >>> 1;
+
+                FilesTask left = new FilesTask(wtFiles, from, mid);
+                left.fork();
+                DataSetWithStringLabels rightData = new FilesTask(wtFiles, mid, to).compute();
+
+                DataSetWithStringLabels r = left.join();
+                r.addAll(rightData);
+
+                return r;
+            }
+
+            DataSetWithStringLabels r = new DataSetWithStringLabels();
+            for (int i = from; i < to; ++i) {
+                try {
+                    readFile(wtFiles[i], r);
+                } catch (Exception e) {
+                    System.err.println("ERROR: Failed to read valid data from file: " + wtFiles[i].getName() +
+                                       " due to exception " + e.toString());
+                }
+            }
+
+            return r;
+        }
+    }
+
+    /* Read a token from a .wt file and the corresponding .im file, and add the sample to the data set */
+    private void readFile(File wtFile, DataSetWithStringLabels r) throws IOException {
+        String wtPath = wtFile.getPath();
+        String imPath = wtPath.substring(0, wtPath.length() - TokenFileSettings.WT_FILE_SUFFIX.length()) +
+                        TokenFileSettings.IM_FILE_SUFFIX;
+        File imFile = new File(imPath);
+
+        String cacheKey = null;
+        if (featureCache != null) {
+            cacheKey = FeatureCache.getKey(settingsKey,
+                                           Files.readAllBytes(wtFile.toPath()),
+                                           Files.readAllBytes(imFile.toPath()));
+
+            FeatureCache.Entry entry = featureCache.get(cacheKey);
+            if (entry != null) {
+                numCacheHits.incrementAndGet();
+
+                if ( !tokenSettings.isTokenHardCoded(entry.getTokenName()) ) {
+                    r.addSample(entry.getFeatures(),
+                                tokenSettings.getTokenDegeneracy().getDegenerated(entry.getTokenName()));
+                }
+                return;
+            }
+        }
+
+        /* Actual reading */
+        CWrittenToken wt = new CWrittenToken(wtFile);
+
+        CHandWritingTokenImageData imData =
+                CHandWritingTokenImageData.readImFile(imFile,
+                                                      tokenSettings.isIncludeTokenSize(),
+                                                      tokenSettings.isIncludeTokenWHRatio(),
+                                                      tokenSettings.isIncludeTokenNumStrokes());
+
+        /* Skip exclusion tokens */
+        if ( tokenSettings.isTokenHardCoded(imData.tokenName) ) {
+            return;
+        }
+
+        wt.width = imData.w;
+        wt.height = imData.h;
+
+        float[] x;
+        if (newImageSize <= 0) {
+            x = MachineLearningHelper.getSdveVector(wt, tokenSettings);
+        } else {
+            x = MachineLearningHelper.getNewImagePlusSdveVector(wt, tokenSettings, newImageSize, imData.h, imData.w);
+        }
+
+        if (cacheKey != null) {
+            try {
+                featureCache.put(cacheKey, imData.tokenName, x);
+            } catch (IOException e) {
+                System.err.println("WARNING: Failed to write feature cache entry for file: " + wtFile.getName() +
+                                   " due to exception " + e.toString());
+            }
+        }
+
+        r.addSample(x, tokenSettings.getTokenDegeneracy().getDegenerated(imData.tokenName));
+    }
+}
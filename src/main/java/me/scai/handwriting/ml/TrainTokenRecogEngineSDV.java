@@ -2,6 +2,7 @@ package me.scai.handwriting.ml;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import me.scai.handwriting.TokenEngineModel;
 import me.scai.handwriting.TokenRecogEngineSDV;
 import me.scai.parsetree.TextHelper;
 import net.sourceforge.argparse4j.ArgumentParsers;
@@ -19,6 +20,8 @@ public class TrainTokenRecogEngineSDV {
   private static final String RESOURCES_DIR = "resources";
   private static final String RESOURCES_CONFIG_DIR = "config";
 
+  private static final String TOKEN_ENGINE_MODEL_EXTENSION = ".model";
+
   public static final int DEFAULT_MAX_ITER = 10000;
   public static final int DEFAULT_HIDDEN_LAYER_SIZE_1 = 250;
   public static final int DEFAULT_NP_PER_STROKE = 16;
@@ -42,6 +45,8 @@ public class TrainTokenRecogEngineSDV {
   private boolean includeTokenWHRatio = true;
   private boolean includeTokenNumStrokes = true;
 
+  private String featureCacheDir = null;
+
   /* Methods */
   // Get the property values from Java system properties
   public TrainTokenRecogEngineSDV(int maxIter,
@@ -69,6 +74,11 @@ public class TrainTokenRecogEngineSDV {
     logger.info("Include token number of strokes = " + includeTokenNumStrokes);
   }
 
+  /* Directory of the on-disk feature cache (null for no caching) */
+  public void setFeatureCacheDir(String featureCacheDir) {
+    this.featureCacheDir = featureCacheDir;
+  }
+
   /* Training routine */
   public void train(int newImageSize,
                     String tokenDir,
@@ -126,6 +136,11 @@ public class TrainTokenRecogEngineSDV {
 
     tokEngine.setFeatures(ivs, bvs);
 
+    if (featureCacheDir != null) {
+      tokEngine.setFeatureCache(new FeatureCache(new File(featureCacheDir)));
+      logger.info("Using feature cache directory \"" + featureCacheDir + "\"");
+    }
+
     if (generateIntermediateDataOnly) {
       tokEngine.generateIntermediateData(tokenDir, dataDir, newImageSize);
     } else {
@@ -150,6 +165,17 @@ public class TrainTokenRecogEngineSDV {
       }
 
       logger.info("Wrote token engine to file \"" + tokenEngineSerFN + "\"");
+
+      /* Binary model, for memory-mapped loading */
+      final String tokenEngineModelFN = tokenEngineSerFN.replaceAll("\\.ser$", TOKEN_ENGINE_MODEL_EXTENSION);
+      try {
+        TokenEngineModel.write(tokEngine, new File(tokenEngineModelFN));
+
+        logger.info("Wrote token engine model to file \"" + tokenEngineModelFN + "\"");
+      } catch (IOException e) {
+        System.err.println("WRITE_TOKEN_ENGINE_MODEL_ERROR: Failed to write token engine model to file: " +
+                           tokenEngineModelFN);
+      }
     }
   }
 
@@ -178,6 +204,10 @@ public class TrainTokenRecogEngineSDV {
         .type(Boolean.class)
         .setDefault(false)
         .help("Only generate the intermediate data files; do not do training");
+    parser.addArgument("--feature_cache_dir")
+        .dest("featureCacheDir")
+        .type(String.class)
+        .help("Directory of the on-disk feature cache, for skipping feature extraction in repeated runs");
 
     parser.addArgument("--max_iter")
         .dest("maxIter")
@@ -228,6 +258,7 @@ public class TrainTokenRecogEngineSDV {
     final int newImageSize = (int) parsed.get("newImageSize");
     final boolean generateIntermediateDataOnly =
         (boolean) parsed.get("generateIntermediateDataOnly");
+    final String featureCacheDir = (String) parsed.get("featureCacheDir");
 
     final int maxIter = (int) parsed.get("maxIter");
     final int hiddenLayerSize1 = (int) parsed.get("hiddenLayerSize1");
@@ -248,6 +279,7 @@ public class TrainTokenRecogEngineSDV {
     System.out.println("engineDir = " + engineDir);
     System.out.println("newImageSize = " + newImageSize);
     System.out.println("generateIntermediateDataOnly = " + generateIntermediateDataOnly);
+    System.out.println("featureCacheDir = " + featureCacheDir);
 
     System.out.println("maxIter = " + maxIter);
     System.out.println("hiddenLayerSize1 = " + hiddenLayerSize1);
@@ -260,6 +292,7 @@ public class TrainTokenRecogEngineSDV {
     TrainTokenRecogEngineSDV trainer = new TrainTokenRecogEngineSDV(
         maxIter, hiddenLayerSize1, npPerStroke, maxNumStrokes,
         includeTokenSize, includeTokenWHRatio, includeTokenNumStrokes);
+    trainer.setFeatureCacheDir(featureCacheDir);
     trainer.train(newImageSize, tokenDir, dataDir, engineDir, generateIntermediateDataOnly);
   }
 }
@@ -0,0 +1,144 @@
+package me.scai.handwriting.remote;
+
+import me.scai.handwriting.CWrittenToken;
+import me.scai.handwriting.TokenRecogOutput;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous front end of a TokenRecogRemoteEngine. Requests run on an executor and are returned as
+ * PendingTokenRecognition futures, so that the caller can run local recognition in the meantime and hedge between the
+ * two: getWithinDeadline() takes the remote result only if it arrives in time, and cancels the request otherwise.
+ */
+public class AsyncTokenRecogRemoteEngine {
+    /* Constants */
+    private static final Logger logger = Logger.getLogger(AsyncTokenRecogRemoteEngine.class.getName());
+
+    /* Maximum number of concurrent requests on the shared executor. Requests beyond it wait in the queue; the ones
+     * cancelled in the meantime (e.g., when their deadline passes) are never sent. */
+    private static final int DEFAULT_MAX_THREADS = 4;
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 60L;
+
+    /* Shared by all instances without an executor of their own. Daemon threads do not keep the JVM alive. */
+    private static final ExecutorService DEFAULT_EXECUTOR = createDefaultExecutor();
+
+    /* Member variables */
+    private final TokenRecogRemoteEngine remoteEngine;
+    private final ExecutorService executor;
+
+    /* Constructors */
+    public AsyncTokenRecogRemoteEngine(TokenRecogRemoteEngine remoteEngine) {
+        this(remoteEngine, DEFAULT_EXECUTOR);
+    }
+
+    public AsyncTokenRecogRemoteEngine(TokenRecogRemoteEngine remoteEngine, ExecutorService executor) {
+        this.remoteEngine = remoteEngine;
+        this.executor = executor;
+    }
+
+    /**
+     * Start the remote recognition of a written token. The feature vector is extracted on the calling thread, so the
+     * written token is not accessed after this method returns.
+     * @param wt  Written token
+     * @return    Pending recognition
+     */
+    public PendingTokenRecognition recognizeAsync(CWrittenToken wt) {
+        final float[] featureVector = remoteEngine.getFeatureVector(wt);
+        final CancellationToken cancellationToken = new CancellationToken();
+
+        FutureTask<TokenRecogOutput> task = new FutureTask<>(new Callable<TokenRecogOutput>() {
+            @Override
+            public TokenRecogOutput call() throws TokenRecogRemoteEngineException {
+                return remoteEngine.recognize(featureVector, cancellationToken);
+            }
+        });
+
+        executor.execute(task);
+
+        return new PendingTokenRecognition(task, cancellationToken);
+    }
+
+    /**
+     * Recognize a batch of feature vectors, from TokenRecogRemoteEngine.getFeatureVector(), in a single remote request,
+     * waiting for the result until a deadline. If the result is not available by then, the request is cancelled.
+     * @param featureVectors    Feature vectors, all of the same length
+     * @param deadlineNanoTime  Deadline, in terms of System.nanoTime()
+     * @return                  Results of the recognition, in the same order as the feature vectors, or null if it
+     *                          failed or did not complete by the deadline
+     */
+    public List<TokenRecogOutput> recognizeBatchWithinDeadline(final List<float[]> featureVectors,
+                                                               long deadlineNanoTime) {
+        final CancellationToken cancellationToken = new CancellationToken();
+
+        FutureTask<List<TokenRecogOutput>> task = new FutureTask<>(new Callable<List<TokenRecogOutput>>() {
+            @Override
+            public List<TokenRecogOutput> call() throws TokenRecogRemoteEngineException {
+                return remoteEngine.recognizeBatch(featureVectors, cancellationToken);
+            }
+        });
+
+        executor.execute(task);
+
+        try {
+            return task.get(Math.max(0L, deadlineNanoTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            logger.warning("Remote token engine did not respond to the batch request before the deadline. " +
+                           "The request is cancelled");
+        } catch (ExecutionException e) {
+            logger.severe("Batch call to remote token engine failed due to: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        cancellationToken.cancel();
+        task.cancel(true);
+
+        return null;
+    }
+
+    /**
+     * Wait for the result of a pending recognition until a deadline. If the result is not available by then, the
+     * recognition is cancelled.
+     * @param pending           Pending recognition
+     * @param deadlineNanoTime  Deadline, in terms of System.nanoTime()
+     * @return                  Result of the recognition, or null if it failed or did not complete by the deadline
+     */
+    public TokenRecogOutput getWithinDeadline(PendingTokenRecognition pending, long deadlineNanoTime) {
+        try {
+            return pending.get(Math.max(0L, deadlineNanoTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            logger.warning("Remote token engine did not respond before the deadline. The request is cancelled");
+        } catch (ExecutionException e) {
+            logger.severe("Call to remote token engine failed due to: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (CancellationException e) {
+            /* Cancelled by the caller */
+        }
+
+        pending.cancel(true);
+
+        return null;
+    }
+
+    /* Private methods */
+    private static ExecutorService createDefaultExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_MAX_THREADS, DEFAULT_MAX_THREADS,
+                                                             IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(),
+                                                             new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "token-recog-remote");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+}
@@ -0,0 +1,17 @@
+package me.scai.handwriting.remote;
+
+/**
+ * Cancellation flag carried by a pending remote request. The request checks the flag before each attempt and gives up
+ * once it is set.
+ */
+public class CancellationToken {
+    private volatile boolean cancelled = false;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,51 @@
+package me.scai.handwriting.remote;
+
+import me.scai.handwriting.TokenRecogOutput;
+
+import java.util.concurrent.*;
+
+/**
+ * Pending asynchronous remote token recognition, from AsyncTokenRecogRemoteEngine.recognizeAsync(). Cancelling it also
+ * cancels its CancellationToken, so that the request is not retried.
+ */
+public class PendingTokenRecognition implements Future<TokenRecogOutput> {
+    private final FutureTask<TokenRecogOutput> task;
+    private final CancellationToken cancellationToken;
+
+    PendingTokenRecognition(FutureTask<TokenRecogOutput> task, CancellationToken cancellationToken) {
+        this.task = task;
+        this.cancellationToken = cancellationToken;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        cancellationToken.cancel();
+
+        return task.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return task.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return task.isDone();
+    }
+
+    @Override
+    public TokenRecogOutput get() throws InterruptedException, ExecutionException {
+        return task.get();
+    }
+
+    @Override
+    public TokenRecogOutput get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return task.get(timeout, unit);
+    }
+}
@@ -3,6 +3,8 @@ package me.scai.handwriting.remote;
 import me.scai.handwriting.CWrittenToken;
 import me.scai.handwriting.TokenRecogOutput;
 
+import java.util.List;
+
 public interface TokenRecogRemoteEngine {
     /**
      * Recognize CWrittenToken
@@ -10,4 +12,29 @@ public interface TokenRecogRemoteEngine {
      * @return Recognizer output
      */
      TokenRecogOutput recognize(CWrittenToken wt) throws TokenRecogRemoteEngineException;
+
+    /**
+     * Get the feature vector that is sent to the remote engine for a written token
+     * @param wt   Written token instance
+     * @return Feature vector
+     */
+    float[] getFeatureVector(CWrittenToken wt);
+
+    /**
+     * Recognize a feature vector, from getFeatureVector()
+     * @param featureVector       Feature vector
+     * @param cancellationToken   Cancellation token: no further attempts are made once it is cancelled
+     * @return Recognizer output
+     */
+    TokenRecogOutput recognize(float[] featureVector, CancellationToken cancellationToken)
+            throws TokenRecogRemoteEngineException;
+
+    /**
+     * Recognize a batch of feature vectors, from getFeatureVector(), in a single request
+     * @param featureVectors      Feature vectors, all of the same length
+     * @param cancellationToken   Cancellation token: no further attempts are made once it is cancelled
+     * @return Recognizer outputs, in the same order as the feature vectors
+     */
+    List<TokenRecogOutput> recognizeBatch(List<float[]> featureVectors, CancellationToken cancellationToken)
+            throws TokenRecogRemoteEngineException;
 }
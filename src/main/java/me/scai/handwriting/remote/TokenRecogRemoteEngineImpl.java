@@ -1,6 +1,7 @@
 package me.scai.handwriting.remote;
 
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.util.Base64;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
@@ -9,14 +10,30 @@ import me.scai.handwriting.TokenRecogOutput;
 import me.scai.handwriting.ml.MachineLearningHelper;
 import me.scai.handwriting.tokens.TokenSettings;
 import me.scai.network.webutils.JsonWebClient;
-import me.scai.network.webutils.exceptions.AllAttemptsFailedException;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * Client of the remote token recognition service.
+ *
+ * Single feature vectors are sent as {"featureVector": [x0, x1, ...]}, and the response is of the form
+ * {"winnerTokenName": "...", "recogPVals": [["name", p], ...]}.
+ *
+ * Batches of feature vectors are sent in a single request to the same URL, as a binary payload:
+ * {"numFeatureVectors": N, "featureVectorLength": L, "featureVectorsBase64": "..."}, where the payload holds the N * L
+ * feature values as little-endian 32-bit floats, vector by vector. The response is of the form
+ * {"tokenNames": ["name", ...], "recogPsBase64": "..."}, where the names are listed once for the whole batch and the
+ * payload holds the N * V probabilities (V: number of token names) in the same layout.
+ */
 public class TokenRecogRemoteEngineImpl implements TokenRecogRemoteEngine {
     /* Constants */
     private static final String HTTP_METHOD = "POST";
+    private static final int MAX_ATTEMPTS = 3;
 
     /* Member variables */
     private GenericUrl url;
@@ -31,8 +48,17 @@ public class TokenRecogRemoteEngineImpl implements TokenRecogRemoteEngine {
     @Override
     public TokenRecogOutput recognize(CWrittenToken wt)
         throws TokenRecogRemoteEngineException {
-        float[] x = MachineLearningHelper.getSdveVector(wt, tokenSettings);
+        return recognize(getFeatureVector(wt), new CancellationToken());
+    }
 
+    @Override
+    public float[] getFeatureVector(CWrittenToken wt) {
+        return MachineLearningHelper.getSdveVector(wt, tokenSettings);
+    }
+
+    @Override
+    public TokenRecogOutput recognize(float[] x, CancellationToken cancellationToken)
+        throws TokenRecogRemoteEngineException {
         // Construct JSON object for request
         JsonArray featureVector = new JsonArray();
         for (int i = 0; i < x.length; ++i) {
@@ -42,12 +68,7 @@ public class TokenRecogRemoteEngineImpl implements TokenRecogRemoteEngine {
         JsonObject reqObj = new JsonObject();
         reqObj.add("featureVector", featureVector);
 
-        JsonObject respObj = null;
-        try {
-            respObj = JsonWebClient.sendRequestAndGetResponseWithRepeats(url, HTTP_METHOD, reqObj);
-        } catch (AllAttemptsFailedException e) {
-            throw new TokenRecogRemoteEngineException("All retries have failed: " + e.getMessage());
-        }
+        JsonObject respObj = sendRequestWithRepeats(reqObj, cancellationToken);
 
         // Create the return object
         String winner = respObj.get("winnerTokenName").getAsString();
@@ -69,6 +90,113 @@ public class TokenRecogRemoteEngineImpl implements TokenRecogRemoteEngine {
         return output;
     }
 
+    @Override
+    public List<TokenRecogOutput> recognizeBatch(List<float[]> featureVectors, CancellationToken cancellationToken)
+        throws TokenRecogRemoteEngineException {
+        final int n = featureVectors.size();
+        if (n == 0) {
+            return new ArrayList<>();
+        }
+
+        final int vectorLength = featureVectors.get(0).length;
+
+        JsonObject reqObj = new JsonObject();
+        reqObj.addProperty("numFeatureVectors", n);
+        reqObj.addProperty("featureVectorLength", vectorLength);
+        reqObj.addProperty("featureVectorsBase64", encodeFloats(featureVectors, vectorLength));
+
+        JsonObject respObj = sendRequestWithRepeats(reqObj, cancellationToken);
+
+        try {
+            JsonArray jsonTokenNames = respObj.get("tokenNames").getAsJsonArray();
+
+            List<String> tokenNames = new ArrayList<>(jsonTokenNames.size());
+            for (int i = 0; i < jsonTokenNames.size(); ++i) {
+                tokenNames.add(jsonTokenNames.get(i).getAsString());
+            }
+            tokenNames = Collections.unmodifiableList(tokenNames); /* Shared by all outputs */
+
+            final int numTokenNames = tokenNames.size();
+            float[] ps = decodeFloats(respObj.get("recogPsBase64").getAsString());
+            if (numTokenNames == 0 || ps.length != n * numTokenNames) {
+                throw new TokenRecogRemoteEngineException("Unexpected number of probabilities in batch response: " +
+                                                          ps.length + " (expected: " + n * numTokenNames + ")");
+            }
+
+            List<TokenRecogOutput> outputs = new ArrayList<>(n);
+            for (int k = 0; k < n; ++k) {
+                final int offset = k * numTokenNames;
+
+                int winnerIdx = 0;
+                List<Float> candidatePs = new ArrayList<>(numTokenNames);
+                for (int i = 0; i < numTokenNames; ++i) {
+                    candidatePs.add(ps[offset + i]);
+
+                    if (ps[offset + i] > ps[offset + winnerIdx]) {
+                        winnerIdx = i;
+                    }
+                }
+
+                outputs.add(new TokenRecogOutput(tokenNames.get(winnerIdx), ps[offset + winnerIdx],
+                                                 tokenNames, candidatePs));
+            }
+
+            return outputs;
+        } catch (RuntimeException e) { /* Missing fields or malformed payload */
+            throw new TokenRecogRemoteEngineException("Malformed batch response: " + e.getMessage());
+        }
+    }
+
+    /* Encode feature vectors of the same length as base64 little-endian 32-bit floats, vector by vector */
+    static String encodeFloats(List<float[]> vectors, int vectorLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(vectors.size() * vectorLength * 4).order(ByteOrder.LITTLE_ENDIAN);
+        FloatBuffer floatBuffer = buffer.asFloatBuffer();
+
+        for (float[] vector : vectors) {
+            if (vector.length != vectorLength) {
+                throw new IllegalArgumentException("Feature vectors of different lengths: " + vector.length +
+                                                   " and " + vectorLength);
+            }
+
+            floatBuffer.put(vector);
+        }
+
+        return Base64.encodeBase64String(buffer.array());
+    }
+
+    /* Decode base64 little-endian 32-bit floats */
+    static float[] decodeFloats(String base64) {
+        byte[] bytes = Base64.decodeBase64(base64);
+        if (bytes.length % 4 != 0) {
+            throw new IllegalArgumentException("Length of binary payload is not a multiple of 4: " + bytes.length);
+        }
+
+        float[] xs = new float[bytes.length / 4];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(xs);
+
+        return xs;
+    }
+
+    /* Same as JsonWebClient.sendRequestAndGetResponseWithRepeats(), but gives up once the request is cancelled */
+    private JsonObject sendRequestWithRepeats(JsonObject reqObj, CancellationToken cancellationToken)
+        throws TokenRecogRemoteEngineException {
+        String lastErrMsg = null;
+
+        for (int i = 0; i < MAX_ATTEMPTS; ++i) {
+            if (cancellationToken.isCancelled()) {
+                throw new TokenRecogRemoteEngineException("Request cancelled");
+            }
+
+            try {
+                return JsonWebClient.sendRequestAndGetResponse(url, HTTP_METHOD, reqObj);
+            } catch (Exception e) {
+                lastErrMsg = e.getMessage();
+            }
+        }
+
+        throw new TokenRecogRemoteEngineException("All retries have failed: " + lastErrMsg);
+    }
+
     public static void main(String[] args) { //DEBUG
         final String url = "http://127.0.0.1:11610/glyphoid/token-recog";
 
@@ -0,0 +1,344 @@
+package me.scai.handwriting.utils;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * Immutable vector with structural sharing. The elements are stored in a 32-way trie plus a tail array of up to 32
+ * elements. "Modifying" operations (withElement, append, removeLast, ...) return a new vector that copies only the
+ * path from the root to the changed leaf (path copying), and shares all the other nodes with the old vector. Taking a
+ * snapshot of a vector is therefore just keeping a reference to it.
+ *
+ * Costs: get, withElement, append and removeLast are O(log32 n). Changes away from the end of the vector (see
+ * splice()) rebuild the part of the vector after the change.
+ *
+ * The java.util.List view is read-only.
+ */
+public final class PersistentVector<T> extends AbstractList<T> {
+    /* Constants */
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final Node EMPTY_NODE = new Node(new Object[WIDTH]);
+
+    private static final PersistentVector<?> EMPTY = new PersistentVector<>(0, BITS, EMPTY_NODE, new Object[0]);
+
+    /* Trie node */
+    private static final class Node {
+        final Object[] array;
+
+        Node(Object[] array) {
+            this.array = array;
+        }
+    }
+
+    /* Member variables */
+    private final int size;
+    private final int shift;    // Number of bits to shift the index by at the root level
+    private final Node root;
+    private final Object[] tail;
+
+    /* Constructor */
+    private PersistentVector(int size, int shift, Node root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    /* Factory methods */
+    @SuppressWarnings("unchecked")
+    public static <T> PersistentVector<T> empty() {
+        return (PersistentVector<T>) EMPTY;
+    }
+
+    public static <T> PersistentVector<T> of(List<? extends T> elements) {
+        PersistentVector<T> r = empty();
+        return r.appendAll(elements);
+    }
+
+    /* Read access */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int i) {
+        checkIndex(i);
+        return (T) leafFor(i)[i & MASK];
+    }
+
+    /* Persistent updates */
+
+    /* A vector with the i-th element replaced */
+    public PersistentVector<T> withElement(int i, T element) {
+        checkIndex(i);
+
+        if (i >= tailOffset()) {
+            Object[] newTail = tail.clone();
+            newTail[i & MASK] = element;
+            return new PersistentVector<>(size, shift, root, newTail);
+        }
+
+        return new PersistentVector<>(size, shift, assoc(shift, root, i, element), tail);
+    }
+
+    /* A vector with an element appended at the end */
+    public PersistentVector<T> append(T element) {
+        /* Room in the tail? */
+        if (size - tailOffset() < WIDTH) {
+            Object[] newTail = new Object[tail.length + 1];
+            System.arraycopy(tail, 0, newTail, 0, tail.length);
+            newTail[tail.length] = element;
+            return new PersistentVector<>(size + 1, shift, root, newTail);
+        }
+
+        /* Full tail: push it into the trie */
+        Node tailNode = new Node(tail);
+        Node newRoot;
+        int newShift = shift;
+
+        if ((size >>> BITS) > (1 << shift)) {
+            /* Root overflow */
+            newRoot = new Node(new Object[WIDTH]);
+            newRoot.array[0] = root;
+            newRoot.array[1] = newPath(shift, tailNode);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tailNode);
+        }
+
+        return new PersistentVector<>(size + 1, newShift, newRoot, new Object[] {element});
+    }
+
+    public PersistentVector<T> appendAll(List<? extends T> elements) {
+        PersistentVector<T> r = this;
+        for (T element : elements) {
+            r = r.append(element);
+        }
+
+        return r;
+    }
+
+    /* A vector without the last element */
+    public PersistentVector<T> removeLast() {
+        if (size == 0) {
+            throw new IllegalStateException("Cannot remove element from empty vector");
+        }
+
+        if (size == 1) {
+            return empty();
+        }
+
+        if (size - tailOffset() > 1) {
+            Object[] newTail = new Object[tail.length - 1];
+            System.arraycopy(tail, 0, newTail, 0, newTail.length);
+            return new PersistentVector<>(size - 1, shift, root, newTail);
+        }
+
+        /* The last leaf of the trie becomes the new tail */
+        Object[] newTail = leafFor(size - 2);
+
+        Node newRoot = popTail(shift, root);
+        int newShift = shift;
+        if (newRoot == null) {
+            newRoot = EMPTY_NODE;
+        }
+        if (shift > BITS && newRoot.array[1] == null) {
+            newRoot = (Node) newRoot.array[0];
+            newShift -= BITS;
+        }
+
+        return new PersistentVector<>(size - 1, newShift, newRoot, newTail);
+    }
+
+    /* A vector with only the first n elements */
+    public PersistentVector<T> truncate(int n) {
+        if (n < 0 || n > size) {
+            throw new IndexOutOfBoundsException("Invalid length " + n + " for vector of size " + size);
+        }
+
+        if (n == 0) {
+            return empty();
+        }
+
+        PersistentVector<T> r = this;
+        while (r.size > n) {
+            r = r.removeLast();
+        }
+
+        return r;
+    }
+
+    /**
+     * A vector with nRemoved elements starting at index replaced by the inserted elements. Replacing the same number
+     * of elements, or changing the end of the vector, costs O(change * log n); other changes also rebuild the
+     * elements after the change.
+     */
+    public PersistentVector<T> splice(int index, int nRemoved, List<? extends T> inserted) {
+        if (index < 0 || nRemoved < 0 || index + nRemoved > size) {
+            throw new IndexOutOfBoundsException("Invalid splice range [" + index + ", " + (index + nRemoved) +
+                                                ") for vector of size " + size);
+        }
+
+        if (nRemoved == inserted.size()) {
+            PersistentVector<T> r = this;
+            for (int k = 0; k < nRemoved; ++k) {
+                r = r.withElement(index + k, inserted.get(k));
+            }
+            return r;
+        }
+
+        PersistentVector<T> r = truncate(index).appendAll(inserted);
+        for (int i = index + nRemoved; i < size; ++i) {
+            r = r.append(get(i));
+        }
+
+        return r;
+    }
+
+    /**
+     * Length of the common prefix of this vector and another one, comparing the elements by identity. Leaves that
+     * are shared by the two vectors are skipped without comparing their elements.
+     */
+    public int commonPrefixLength(PersistentVector<T> other) {
+        final int n = Math.min(size, other.size);
+
+        int i = 0;
+        while (i < n) {
+            Object[] leaf = leafFor(i);
+            Object[] otherLeaf = other.leafFor(i);
+
+            if (leaf == otherLeaf) {
+                i = Math.min(n, (i | MASK) + 1);
+                continue;
+            }
+
+            final int leafEnd = Math.min(n, (i | MASK) + 1);
+            for (; i < leafEnd; ++i) {
+                if (leaf[i & MASK] != otherLeaf[i & MASK]) {
+                    return i;
+                }
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * Length of the common suffix of this vector and another one, comparing the elements by identity, up to a limit.
+     * If the two vectors have the same size, leaves that they share are skipped without comparing their elements.
+     */
+    public int commonSuffixLength(PersistentVector<T> other, int limit) {
+        limit = Math.min(limit, Math.min(size, other.size));
+
+        int n = 0;
+        while (n < limit) {
+            final int i = size - 1 - n;
+            final int j = other.size - 1 - n;
+
+            Object[] leaf = leafFor(i);
+            Object[] otherLeaf = other.leafFor(j);
+
+            if (i == j && leaf == otherLeaf) {
+                n = Math.min(limit, n + (i & MASK) + 1);
+                continue;
+            }
+
+            if (leaf[i & MASK] != otherLeaf[j & MASK]) {
+                return n;
+            }
+            n++;
+        }
+
+        return n;
+    }
+
+    /* Private helpers */
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for vector of size " + size);
+        }
+    }
+
+    private int tailOffset() {
+        return (size < WIDTH) ? 0 : (((size - 1) >>> BITS) << BITS);
+    }
+
+    private Object[] leafFor(int i) {
+        if (i >= tailOffset()) {
+            return tail;
+        }
+
+        Node node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Node) node.array[(i >>> level) & MASK];
+        }
+
+        return node.array;
+    }
+
+    private static Node assoc(int level, Node node, int i, Object element) {
+        Node r = new Node(node.array.clone());
+
+        if (level == 0) {
+            r.array[i & MASK] = element;
+        } else {
+            int subIdx = (i >>> level) & MASK;
+            r.array[subIdx] = assoc(level - BITS, (Node) node.array[subIdx], i, element);
+        }
+
+        return r;
+    }
+
+    private Node pushTail(int level, Node parent, Node tailNode) {
+        int subIdx = ((size - 1) >>> level) & MASK;
+        Node r = new Node(parent.array.clone());
+
+        Node nodeToInsert;
+        if (level == BITS) {
+            nodeToInsert = tailNode;
+        } else {
+            Node child = (Node) parent.array[subIdx];
+            nodeToInsert = (child != null) ? pushTail(level - BITS, child, tailNode) :
+                                             newPath(level - BITS, tailNode);
+        }
+
+        r.array[subIdx] = nodeToInsert;
+        return r;
+    }
+
+    private static Node newPath(int level, Node node) {
+        if (level == 0) {
+            return node;
+        }
+
+        Node r = new Node(new Object[WIDTH]);
+        r.array[0] = newPath(level - BITS, node);
+        return r;
+    }
+
+    private Node popTail(int level, Node node) {
+        int subIdx = ((size - 2) >>> level) & MASK;
+
+        if (level > BITS) {
+            Node newChild = popTail(level - BITS, (Node) node.array[subIdx]);
+            if (newChild == null && subIdx == 0) {
+                return null;
+            }
+
+            Node r = new Node(node.array.clone());
+            r.array[subIdx] = newChild;
+            return r;
+        } else if (subIdx == 0) {
+            return null;
+        } else {
+            Node r = new Node(node.array.clone());
+            r.array[subIdx] = null;
+            return r;
+        }
+    }
+}
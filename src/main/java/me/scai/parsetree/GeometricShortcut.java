@@ -7,6 +7,7 @@ import me.scai.parsetree.geometry.GeometryHelper;
 import me.scai.parsetree.geometry.PositionRelation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /* Class GeometricShortcut
  * Detects short cut for dividing non-head tokens into sets for parsing
@@ -222,91 +223,61 @@ class GeometricShortcut {
             labels[1][0] = 1;
         }
 
-        int nValid = 0;
         if ( shortcutType == ShortcutType.westEast ) {
-            int idxBnds0 = 0; /* For overlap checks */
-            int idxBnds1 = 2;
+            /* Tokens sorted by center X */
+            TokenSetSpatialIndex index = getSpatialIndex(wts);
+            int [] srtIdx = index.getOrderByCenter(TokenSetSpatialIndex.X);
+
+            /* Left and right bounds of the blocks srtIdx[0..i] (block 0) and srtIdx[i..nt - 1] (block 1).
+             * The overlap of each of the nt - 1 splits can then be checked in constant time. */
+            float [] block0Lefts = new float[nt];
+            float [] block0Rights = new float[nt];
+            float [] block1Lefts = new float[nt];
+            float [] block1Rights = new float[nt];
+
+            for (int j = 0; j < nt; ++j) {
+                float left = index.getMin(TokenSetSpatialIndex.X, srtIdx[j]);
+                float right = index.getMax(TokenSetSpatialIndex.X, srtIdx[j]);
+
+                block0Lefts[j] = (j == 0 || left < block0Lefts[j - 1]) ? left : block0Lefts[j - 1];
+                block0Rights[j] = (j == 0 || right > block0Rights[j - 1]) ? right : block0Rights[j - 1];
+            }
 
-			/* Calculate the center X of all tokens */
-            float [] cntX = new float[nt];
-            float [] leftXs = new float[nt];
-            float [] rightXs = new float[nt];
+            for (int j = nt - 1; j >= 0; --j) {
+                float left = index.getMin(TokenSetSpatialIndex.X, srtIdx[j]);
+                float right = index.getMax(TokenSetSpatialIndex.X, srtIdx[j]);
 
-            for (int i = 0; i < nt; ++i) {
-                float [] t_bnds = wts.getTokenBounds(i);
-                cntX[i] = (t_bnds[0] + t_bnds[2]) * 0.5f;
-                leftXs[i] = t_bnds[idxBnds0];
-                rightXs[i] = t_bnds[idxBnds1];
+                block1Lefts[j] = (j == nt - 1 || left < block1Lefts[j + 1]) ? left : block1Lefts[j + 1];
+                block1Rights[j] = (j == nt - 1 || right > block1Rights[j + 1]) ? right : block1Rights[j + 1];
             }
 
-			/* Sort */
-            int [] srtIdx = new int[nt];
-            MathHelper.sort(cntX, srtIdx);
-
-			/* Generate all the valid partitions */
-            labels = new int[nt - 1][];
+			/* Generate all the valid partitions: the first i + 1 tokens as block 0 and the rest as block 1.
+			 * Partitions with illegal overlaps between the blocks are discarded. */
+            ArrayList<int []> validLabels = new ArrayList<>();
 
             for (int i = 0; i < nt - 1; ++i) {
-                labels[i] = new int[nt];
-
-                float block0Left  = Float.POSITIVE_INFINITY;
-                float block0Right = Float.NEGATIVE_INFINITY;
-                float block1Left  = Float.POSITIVE_INFINITY;
-                float block1Right = Float.NEGATIVE_INFINITY;
-
-                for (int j = 0; j < nt; ++j) {
-                    if ( j > i ) {
-                        labels[i][srtIdx[j]] = 1;
-
-                        if (leftXs[srtIdx[j]] < block1Left) {
-                            block1Left = leftXs[srtIdx[j]];
-                        }
-                        if (rightXs[srtIdx[j]] > block1Right) {
-                            block1Right = rightXs[srtIdx[j]];
-                        }
-                    } else {
-                        labels[i][srtIdx[j]] = 0;
-
-                        if (leftXs[srtIdx[j]] < block0Left) {
-                            block0Left = leftXs[srtIdx[j]];
-                        }
-                        if (rightXs[srtIdx[j]] > block0Right) {
-                            block0Right = rightXs[srtIdx[j]];
-                        }
-                    }
-
-                    if ( bReverse ) {
-                        labels[i][srtIdx[j]] = 1 - labels[i][srtIdx[j]];
-                    }
+                // TODO: Remove magic number
+                if (block1Lefts[i + 1] != Float.POSITIVE_INFINITY &&
+                    GeometryHelper.pctOverlap(block0Lefts[i], block0Rights[i], block1Lefts[i + 1], block1Rights[i + 1],
+                                              returnUnityForEnclosingRelationsBipartite) > 0.35f) {
+                    continue;
                 }
 
-                // TODO: Remove magic number
-                if (block1Left != Float.POSITIVE_INFINITY &&
-                    GeometryHelper.pctOverlap(block0Left, block0Right, block1Left, block1Right, returnUnityForEnclosingRelationsBipartite) > 0.35f) {
-                    labels[i] = null;
-                } else {
-                    nValid++;
+                int [] t_labels = new int[nt];
+                for (int j = 0; j < nt; ++j) {
+                    int label = (j > i) ? 1 : 0;
+                    t_labels[srtIdx[j]] = bReverse ? (1 - label) : label;
                 }
 
+                validLabels.add(t_labels);
             }
+
+            labels = validLabels.toArray(new int[validLabels.size()][]);
         } else {
             throw new RuntimeException("Unexpected shortcut type");
         }
 
-        if (nValid == labels.length) {
-            return labels;
-        } else {
-            /* Discard the null arrays (invalidated by illegal overlaps */
-            int [][] cleanLabels = new int[nValid][];
-            int counter = 0;
-            for (int i = 0; i < labels.length; ++i) {
-                if (labels[i] != null) {
-                    cleanLabels[counter++] = labels[i];
-                }
-            }
-
-            return cleanLabels;
-        }
+        return labels;
     }
 
     public int [][] getPartitionTripartiteTerminal(CAbstractWrittenTokenSet wts, int [] iHead) {
@@ -336,49 +307,41 @@ class GeometricShortcut {
         float headCenterY = rectHead.getCentralY();
 
         int [][] labels = new int[1][];
-        int nnht = wts.nTokens() - iHead.length;
+        int nt = wts.nTokens();
+        int nnht = nt - iHead.length;
         labels[0] = new int[nnht];
 
-		/* Get indices to all non-head tokens */
-        ArrayList<Integer> inht = new ArrayList<Integer>();
-//        ArrayList<Rectangle> rnht = new ArrayList<Rectangle>(); /* Rectangles of non-head tokens */
-        ArrayList<Float> centersOfNonHeadTokens = new ArrayList<Float>();
-        for (int i = 0; i < wts.nTokens(); ++i) {
-            boolean bContains = false;
-            for (int j = 0; j < iHead.length; ++j) {
-                if ( iHead[j] == i ) {
-                    bContains = true;
-                    break;
-                }
-            }
-            if ( !bContains ) {
-                inht.add(i);
-
-                float[] tokenBounds = wts.getTokenBounds(i);
-                centersOfNonHeadTokens.add(0.5f * (tokenBounds[idxBnds0] + tokenBounds[idxBnds1]));
-//                rnht.add(new Rectangle(wts.getTokenBounds(i))); // TODO: Newing objects all the time is too expensive. Optimize.
-            }
+		/* Get the positions of the non-head tokens among all non-head tokens (-1 for head tokens) */
+        int [] nhPos = getNonHeadPositions(nt, iHead);
+
+        /* Label the tokens with a range query on the token centers along the dividing axis.
+         * The tokens on the side of the head center that comes first in the production get label 0. */
+        TokenSetSpatialIndex index = getSpatialIndex(wts);
+        int axis = (idxBnds0 == 0) ? TokenSetSpatialIndex.X : TokenSetSpatialIndex.Y;
+        float headCenter = (axis == TokenSetSpatialIndex.X) ? headCenterX : headCenterY;
+        int [] srtIdx = index.getOrderByCenter(axis);
+
+        int rankBegin, rankEnd;     /* Ranks (in srtIdx) of the tokens with label 0 */
+        if ( shortcutType == ShortcutType.verticalTerminalDivideWE ||
+             shortcutType == ShortcutType.horizontalTerminalDivideNS ) {
+            /* Centers less than the head center */
+            rankBegin = 0;
+            rankEnd = index.countCentersBelow(axis, headCenter);
+        } else if ( shortcutType == ShortcutType.verticalTerminalDivideEW ||
+                    shortcutType == ShortcutType.horizontalTerminalDivideSN ) {
+            /* Centers greater than the head center */
+            rankBegin = index.countCentersAtMost(axis, headCenter);
+            rankEnd = nt;
+        } else {
+            throw new RuntimeException("Unrecognized shortcut type");
         }
 
-        for (int i = 0; i < inht.size(); ++i) {
-            int idx;
-            if ( shortcutType == ShortcutType.verticalTerminalDivideWE ) {
-//                idx = rnht.get(i).isCenterWestOf(headCenterX) ? 0 : 1;
-                idx = centersOfNonHeadTokens.get(i) < headCenterX ? 0 : 1;
-            }  else if ( shortcutType == ShortcutType.verticalTerminalDivideEW ) {
-//                idx = rnht.get(i).isCenterEastOf(headCenterX) ? 0 : 1;
-                idx = centersOfNonHeadTokens.get(i) > headCenterX ? 0 : 1;
-            } else if ( shortcutType == ShortcutType.horizontalTerminalDivideNS) {
-//                idx = rnht.get(i).isCenterNorthOf(headCenterX) ? 1 : 0; // TODO: Long-standing, noticed bug? 2015-06-21
-                idx = centersOfNonHeadTokens.get(i) < headCenterY ? 0 : 1;
-            } else if ( shortcutType == ShortcutType.horizontalTerminalDivideSN ) {
-//                idx = rnht.get(i).isCenterSouthOf(headCenterY) ? 1 : 0;
-                idx = centersOfNonHeadTokens.get(i) > headCenterY ? 0 : 1;
-            } else {
-                throw new RuntimeException("Unrecognized shortcut type");
+        Arrays.fill(labels[0], 1);
+        for (int r = rankBegin; r < rankEnd; ++r) {
+            int pos = nhPos[srtIdx[r]];
+            if ( pos >= 0 ) {
+                labels[0][pos] = 0;
             }
-
-            labels[0][i] = idx;
         }
 
         /* TODO: Discard partitions in which non-head tokens have too much overlap with the head token */
@@ -409,6 +372,11 @@ class GeometricShortcut {
         CWrittenTokenSetNoStroke wts = (CWrittenTokenSetNoStroke) wts0;
         int nTokens = wts.getNumTokens();
 
+        /* The head must be a single integ token. Check it before scanning all the tokens. */
+        if (iHead.length != 1 || !integTokenName.equals(wts.tokens.get(iHead[0]).getRecogResult())) {
+            return null;
+        }
+
         for (int i = 0; i < nTokens; ++i) {
             AbstractToken wt = wts.tokens.get(i);
             if (wt.getRecogResult().equals(integTokenName)) {
@@ -518,6 +486,16 @@ class GeometricShortcut {
 
         int nTokens = wts.getNumTokens();
 
+        /* The head must be a single Sigma or Pi token. Check it before scanning all the tokens. */
+        if (iHead.length != 1) {
+            return null;
+        }
+
+        final String headTokenName = wts.tokens.get(iHead[0]).getRecogResult();
+        if (!sigmaTokenName.equals(headTokenName) && !piTokenName.equals(headTokenName)) {
+            return null;
+        }
+
         for (int i = 0; i < nTokens; ++i) {
             AbstractToken wt = wts.tokens.get(i);
             if (sigmaTokenName.equals(wt.getRecogResult()) ||
@@ -643,6 +621,32 @@ class GeometricShortcut {
         return labels;
     }
 
+    /* Get the spatial index of a token set. It is cached by CWrittenTokenSetNoStroke. */
+    private static TokenSetSpatialIndex getSpatialIndex(CAbstractWrittenTokenSet wts) {
+        if (wts instanceof CWrittenTokenSetNoStroke) {
+            return ((CWrittenTokenSetNoStroke) wts).getSpatialIndex();
+        } else {
+            return new TokenSetSpatialIndex(wts);
+        }
+    }
+
+    /* Map token indices to positions among the non-head tokens. Head tokens are mapped to -1. */
+    private static int[] getNonHeadPositions(int nt, int [] iHead) {
+        int [] nhPos = new int[nt];
+        for (int i : iHead) {
+            nhPos[i] = -1;
+        }
+
+        int cnt = 0;
+        for (int i = 0; i < nt; ++i) {
+            if (nhPos[i] == 0) {
+                nhPos[i] = cnt++;
+            }
+        }
+
+        return nhPos;
+    }
+
     private int[] getKeyBoundsIndices() {
         if ( shortcutType == ShortcutType.verticalTerminalDivideWE ) {
             return BOUND_INDICES_0_2;
@@ -687,87 +691,38 @@ class GeometricShortcut {
 //        iBndsNeo0 = 1 - iBndsChi0;
 //        iBndsNeo1 = 5 - iBndsChi1;
 
-        float[] headBoundsChi = new float[2];
-        headBoundsChi[0] = Float.POSITIVE_INFINITY;
-        headBoundsChi[1] = Float.NEGATIVE_INFINITY;
-
-        // Effort for NEO
-//        float[] headBoundsNeo = new float[2];
-//        headBoundsNeo[0] = Float.POSITIVE_INFINITY;
-//        headBoundsNeo[1] = Float.NEGATIVE_INFINITY;
-
-        float headCenterChi = 0f;
-
-        ArrayList<Integer> iHeadsList = new ArrayList<Integer>();
-        iHeadsList.ensureCapacity(iHead.length);
-        for (int i = 0; i < iHead.length; ++i) {
-            iHeadsList.add(iHead[i]);
-
-            float[] bnds = wts.getTokenBounds(iHead);
-
-            if (bnds[iBndsChi0] < headBoundsChi[0]) {
-                headBoundsChi[0] = bnds[iBndsChi0];
-            }
-            if (bnds[iBndsChi1] > headBoundsChi[1]) {
-                headBoundsChi[1] = bnds[iBndsChi1];
-            }
-
-            // Effort for NEO
-//            if (bnds[iBndsNeo0] < headBoundsNeo[0]) {
-//                headBoundsNeo[0] = bnds[iBndsNeo0];
-//            }
-//            if (bnds[iBndsNeo1] > headBoundsNeo[1]) {
-//                headBoundsNeo[1] = bnds[iBndsNeo1];
-//            }
-
-            headCenterChi += 0.5f * (bnds[iBndsChi0] + bnds[iBndsChi1]);
-        }
-
-        headCenterChi /= iHead.length;
+        final float[] headBounds = wts.getTokenBounds(iHead);
+        final float headLbChi = headBounds[iBndsChi0];
+        final float headUbChi = headBounds[iBndsChi1];
 
+        /* Only the tokens that intersect the head along the "chi" dimension can overlap with it */
         final int nTokens = wts.getNumTokens();
+        final boolean[] isHead = new boolean[nTokens];
+        for (int i : iHead) {
+            isHead[i] = true;
+        }
 
-
-        float lbSide0 = Float.POSITIVE_INFINITY;
-        float ubSide0 = Float.NEGATIVE_INFINITY;
-        float lbSide1 = Float.POSITIVE_INFINITY;
-        float ubSide1 = Float.NEGATIVE_INFINITY;
+        TokenSetSpatialIndex index = getSpatialIndex(wts);
+        int axis = (iBndsChi0 == 0) ? TokenSetSpatialIndex.X : TokenSetSpatialIndex.Y;
+        int[] candidates = new int[nTokens];
+        int nCandidates = index.queryOverlapping(axis, headLbChi, headUbChi, candidates);
 
         boolean invalidatingOverlapExists = false;
-        for (int i = 0; i < nTokens; ++i) {
-            if (iHeadsList.indexOf(i) != -1) {
+        for (int k = 0; k < nCandidates; ++k) {
+            final int i = candidates[k];
+            if (isHead[i]) {
                 continue;
             }
 
-            final float[] tokenBounds = wts.getTokenBounds(i);
-
             /* Screen for unwanted overlaps */
-            final float pctOverlapChi = GeometryHelper.pctOverlap(headBoundsChi[0], headBoundsChi[1],
-                                                               tokenBounds[iBndsChi0], tokenBounds[iBndsChi1],
+            final float pctOverlapChi = GeometryHelper.pctOverlap(headLbChi, headUbChi,
+                                                               index.getMin(axis, i), index.getMax(axis, i),
                                                                unityForEnclosingRelations);
 
             if (pctOverlapChi > 0.4f) { // TODO: Remove magic number
                 invalidatingOverlapExists = true;
                 break;
             }
-
-            // Effort for NEO
-            /* Process NEO dimension */
-//            if ((0.5f * (tokenBounds[iBndsChi0] + tokenBounds[iBndsChi1])) <= headCenterChi) {
-//                if (tokenBounds[iBndsNeo0] < lbSide0) {
-//                    lbSide0 = tokenBounds[iBndsNeo0];
-//                }
-//                if (tokenBounds[iBndsNeo1] > ubSide0) {
-//                    ubSide0 = tokenBounds[iBndsNeo1];
-//                }
-//            } else {
-//                if (tokenBounds[iBndsNeo0] < lbSide1) {
-//                    lbSide1 = tokenBounds[iBndsNeo0];
-//                }
-//                if (tokenBounds[iBndsNeo1] > ubSide1) {
-//                    ubSide1 = tokenBounds[iBndsNeo1];
-//                }
-//            }
         }
 
         // Effort for NEO
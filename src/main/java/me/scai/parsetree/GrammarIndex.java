@@ -0,0 +1,295 @@
+package me.scai.parsetree;
+
+import me.scai.handwriting.AbstractToken;
+import me.scai.handwriting.CWrittenToken;
+import me.scai.handwriting.NodeToken;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precompiled index of a GraphicalProductionSet, for fast filtering of productions during token set parsing.
+ *
+ *   1) LHS names are interned to ints and mapped to arrays of production indices.
+ *   2) Terminal types (including terminal name types such as "TERMINAL(l)") are interned to bit positions. The
+ *      allowed terminal types of each production (see GraphicalProductionSet.calcTermTypes()) are stored as bitsets.
+ *   3) The set of terminal types that a token name matches (see TerminalSet.match()) is computed once per token name
+ *      and cached as a bitset, together with the bitset of the productions that allow the token (TokenClass).
+ *   4) Token sets are described by TermTypeSignatures, built from the cached TokenClasses.
+ *
+ * The index is immutable after construction, except for the thread-safe token-name cache.
+ */
+final class GrammarIndex {
+    /* Member variables */
+    private final TerminalSet termSet;
+
+    private final Map<String, Integer> lhs2Id = new HashMap<>();
+    private final int[][] lhsId2ProdIndices;
+
+    private final Map<String, Integer> termType2Id = new HashMap<>();
+    private final String[] termTypes;
+    private final int nWords;
+
+    private final long[][] allowedTermTypeBits;     /* For each production */
+    private final int[][] requiredTermTypeIds;      /* For each production, in the order of matching */
+    private final int[] headTermTypeIds;            /* For each production: -1 if the head is not a terminal */
+
+    private final int nProds;
+    private final int nProdWords;
+
+    private final Map<String, TokenClass> tokenName2Class = new ConcurrentHashMap<>();
+
+    /* Terminal-type information about a token name */
+    static final class TokenClass {
+        final long[] typeBits;              /* Terminal types that the token name matches */
+        final long[] admittingProdBits;     /* Productions in which the token name is allowed */
+
+        TokenClass(long[] typeBits, long[] admittingProdBits) {
+            this.typeBits = typeBits;
+            this.admittingProdBits = admittingProdBits;
+        }
+    }
+
+    /* Constructor */
+    GrammarIndex(final List<GraphicalProduction> prods,
+                 final List<List<String>> allowedTermTypes,
+                 final List<Set<String>> requiredTermTypes,
+                 final TerminalSet termSet) {
+        this.termSet = termSet;
+
+        final int np = prods.size();
+        nProds = np;
+        nProdWords = (np + 63) >> 6;
+
+        /* Intern LHS names */
+        Map<Integer, List<Integer>> lhsId2ProdList = new HashMap<>();
+        for (int i = 0; i < np; ++i) {
+            String lhs = prods.get(i).lhs;
+
+            Integer lhsId = lhs2Id.get(lhs);
+            if (lhsId == null) {
+                lhsId = lhs2Id.size();
+                lhs2Id.put(lhs, lhsId);
+                lhsId2ProdList.put(lhsId, new ArrayList<Integer>());
+            }
+
+            lhsId2ProdList.get(lhsId).add(i);
+        }
+
+        lhsId2ProdIndices = new int[lhs2Id.size()][];
+        for (Map.Entry<Integer, List<Integer>> entry : lhsId2ProdList.entrySet()) {
+            lhsId2ProdIndices[entry.getKey()] = toIntArray(entry.getValue());
+        }
+
+        /* Intern terminal types: all terminal RHS items */
+        List<String> termTypeList = new ArrayList<>();
+        for (GraphicalProduction prod : prods) {
+            for (int j = 0; j < prod.rhs.length; ++j) {
+                if (prod.rhsIsTerminal[j] && !termType2Id.containsKey(prod.rhs[j])) {
+                    termType2Id.put(prod.rhs[j], termTypeList.size());
+                    termTypeList.add(prod.rhs[j]);
+                }
+            }
+        }
+
+        termTypes = termTypeList.toArray(new String[termTypeList.size()]);
+        nWords = (termTypes.length + 63) >> 6;
+
+        /* Per-production terminal types */
+        allowedTermTypeBits = new long[np][];
+        requiredTermTypeIds = new int[np][];
+        headTermTypeIds = new int[np];
+
+        for (int i = 0; i < np; ++i) {
+            allowedTermTypeBits[i] = new long[nWords];
+            for (String type : allowedTermTypes.get(i)) {
+                int typeId = termType2Id.get(type);
+                allowedTermTypeBits[i][typeId >> 6] |= 1L << (typeId & 63);
+            }
+
+            /* Terminal name types (e.g., "TERMINAL(gr_Si)") are matched first, because tokens such as "gr_Si" can
+             * match both "TERMINAL(gr_Si)" and "VARIABLE_SYMBOL". See getIdxValidProds(). */
+            LinkedList<Integer> requiredTypes = new LinkedList<>();
+            for (String reqType : requiredTermTypes.get(i)) {
+                if (reqType.indexOf(TerminalSet.terminalNameTypePrefix) == 0) {
+                    requiredTypes.addFirst(termType2Id.get(reqType));
+                } else {
+                    requiredTypes.addLast(termType2Id.get(reqType));
+                }
+            }
+            requiredTermTypeIds[i] = toIntArray(requiredTypes);
+
+            GraphicalProduction prod = prods.get(i);
+            headTermTypeIds[i] = prod.rhsIsTerminal[0] ? termType2Id.get(prod.rhs[0]) : -1;
+        }
+    }
+
+    private static int[] toIntArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        int k = 0;
+        for (int x : list) {
+            array[k++] = x;
+        }
+
+        return array;
+    }
+
+    /**
+     * Get the indices of all productions with a given LHS, in ascending order
+     * @param lhs  LHS name
+     * @return     Production indices; empty if no production has the LHS
+     */
+    int[] getProdIndicesOfLHS(final String lhs) {
+        Integer lhsId = lhs2Id.get(lhs);
+
+        return (lhsId == null) ? new int[0] : lhsId2ProdIndices[lhsId];
+    }
+
+    /**
+     * Get the bitset of the terminal types that a token name matches
+     * @param tokenName  Token name (recognition result)
+     * @return           Bitset, indexed by terminal type ID. Must not be modified.
+     */
+    long[] getTermTypeBits(final String tokenName) {
+        return getTokenClass(tokenName).typeBits;
+    }
+
+    TokenClass getTokenClass(final String tokenName) {
+        TokenClass tokenClass = tokenName2Class.get(tokenName);
+
+        if (tokenClass == null) {
+            long[] typeBits = new long[nWords];
+            for (int t = 0; t < termTypes.length; ++t) {
+                if (termSet.match(tokenName, termTypes[t])) {
+                    typeBits[t >> 6] |= 1L << (t & 63);
+                }
+            }
+
+            long[] prodBits = new long[nProdWords];
+            for (int i = 0; i < nProds; ++i) {
+                if (isAllowedInProd(i, typeBits)) {
+                    prodBits[i >> 6] |= 1L << (i & 63);
+                }
+            }
+
+            tokenClass = new TokenClass(typeBits, prodBits);
+            tokenName2Class.put(tokenName, tokenClass);
+        }
+
+        return tokenClass;
+    }
+
+    /**
+     * Calculate the terminal-type signature of a list of tokens
+     * @param tokens  Written tokens and node tokens
+     * @return        Signature in the bit space of this index
+     */
+    TermTypeSignature getSignature(final List<AbstractToken> tokens) {
+        TokenClass[] tokenClasses = new TokenClass[tokens.size()];
+
+        for (int k = 0; k < tokenClasses.length; ++k) {
+            AbstractToken token = tokens.get(k);
+
+            if (token instanceof CWrittenToken) {
+                tokenClasses[k] = getTokenClass(token.getRecogResult());
+            } else if (!(token instanceof NodeToken)) {
+                throw new IllegalStateException("Unsupported AbstractNode subtype");
+            }
+        }
+
+        return new TermTypeSignature(this, tokenClasses);
+    }
+
+    int getNumTermTypeWords() {
+        return nWords;
+    }
+
+    /* A new bitset with the bits of all productions set */
+    long[] getAllProdBits() {
+        long[] bits = new long[nProdWords];
+        for (int i = 0; i < nProds; ++i) {
+            bits[i >> 6] |= 1L << (i & 63);
+        }
+
+        return bits;
+    }
+
+    /* Whether a token with the given terminal-type bits can belong to production #prodIdx */
+    boolean isAllowedInProd(final int prodIdx, final long[] tokenBits) {
+        final long[] allowed = allowedTermTypeBits[prodIdx];
+
+        for (int w = 0; w < nWords; ++w) {
+            if ((allowed[w] & tokenBits[w]) != 0L) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /* Whether a token with the given terminal-type bits matches the head of production #prodIdx */
+    boolean matchesHead(final int prodIdx, final long[] tokenBits) {
+        final int typeId = headTermTypeIds[prodIdx];
+
+        return typeId >= 0 && (tokenBits[typeId >> 6] & (1L << (typeId & 63))) != 0L;
+    }
+
+    /**
+     * Whether the written tokens of a token set cover all the required terminal types of a production. Each token is
+     * greedily assigned to the first unmatched required type that it matches, in the same order as the original
+     * list-based algorithm. Token sets whose union of terminal types lacks a required type are rejected without the
+     * assignment.
+     * @param prodIdx    Production index
+     * @param signature  Terminal-type signature of the token set
+     * @return           true if all required types are matched
+     */
+    boolean coversRequiredTypes(final int prodIdx, final TermTypeSignature signature) {
+        final int[] required = requiredTermTypeIds[prodIdx];
+        final int nRequired = required.length;
+
+        if (nRequired == 0) {
+            return true;
+        }
+
+        final long[] unionBits = signature.getUnionTypeBits();
+        for (int typeId : required) {
+            if ((unionBits[typeId >> 6] & (1L << (typeId & 63))) == 0L) {
+                return false;
+            }
+        }
+
+        if (nRequired == 1) {
+            return true;
+        }
+
+        boolean[] matched = new boolean[nRequired];
+        int nUnmatched = nRequired;
+
+        for (int k = 0; k < signature.nTokens(); ++k) {
+            TokenClass tokenClass = signature.getTokenClass(k);
+            if (tokenClass == null) {
+                continue;
+            }
+
+            for (int r = 0; r < nRequired; ++r) {
+                final int typeId = required[r];
+
+                if (!matched[r] && (tokenClass.typeBits[typeId >> 6] & (1L << (typeId & 63))) != 0L) {
+                    matched[r] = true;
+                    nUnmatched--;
+                    break;
+                }
+            }
+
+            if (nUnmatched == 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    boolean hasRequiredTypes(final int prodIdx) {
+        return requiredTermTypeIds[prodIdx].length > 0;
+    }
+}
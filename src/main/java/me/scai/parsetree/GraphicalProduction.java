@@ -6,6 +6,7 @@ import me.scai.handwriting.CAbstractWrittenTokenSet;
 import me.scai.handwriting.CWrittenTokenSetNoStroke;
 
 import me.scai.parsetree.geometry.GeometricRelation;
+import me.scai.parsetree.geometry.NodeInternalGeometry;
 import me.scai.parsetree.geometry.PositionRelation;
 import me.scai.parsetree.geometry.AlignRelation;
 import me.scai.parsetree.geometry.HeightRelation;
@@ -166,6 +167,16 @@ public class GraphicalProduction {
 			            final int [] iHead,
 			            final CAbstractWrittenTokenSet [] remainingSets, 			//PerfTweak new
 			            final float [] maxGeomScore) {
+		return attempt(tokenSet, iHead, remainingSets, maxGeomScore, 0L);
+	}
+
+	/* Same as above, but the enumeration of partitions is aborted with a ParseDeadlineExceededException once the
+	 * deadline (in System.nanoTime(); 0 for none) has passed */
+	Node attempt(final CWrittenTokenSetNoStroke tokenSet,
+	             final int [] iHead,
+	             final CAbstractWrittenTokenSet [] remainingSets,
+	             final float [] maxGeomScore,
+	             final long deadlineNanos) {
 
 		if ( iHead.length == 0 ) {
 			throw new RuntimeException("GraphicalProductionSet.attempt encountered empty idxHead.");
@@ -188,6 +199,7 @@ public class GraphicalProduction {
 		}		
 
 		int [][] labels = null;
+		boolean bBruteForce = false;
 
 		if ( geomShortcut.existsTripartiteTerminal() && bUseShortcut ) {
 			/* Use this smarter approach when a geometric shortcut exists */
@@ -197,13 +209,11 @@ public class GraphicalProduction {
         } else if ( geomShortcut.existsSigmaPiStyle() && bUseShortcut) {
             labels = geomShortcut.getSigmaPiStyle(tokenSet, iHead);
         } else {
-			/* Get all possible partitions: in "labels" */
-			/* This is the brute-force approach. */
-			labels = MathHelper.getFullDiscreteSpace(nrn, nnht);
-            /* TODO: Discard the partitions that don't make sense to speed things up. */
+			/* Use the brute-force approach: All possible partitions are enumerated lazily below. */
+			bBruteForce = true;
 		}
 
-        if (labels == null || labels.length == 0) {
+        if ( !bBruteForce && (labels == null || labels.length == 0) ) {
             return null;
         }
 
@@ -226,130 +236,72 @@ public class GraphicalProduction {
                 inht[cnt++] = i;
             }
         }
-	    
-	    /* Construct the remaining sets and evaluate their geometric relations */
-	    CWrittenTokenSetNoStroke [][] a_rems = new CWrittenTokenSetNoStroke[labels.length][];
-	    float [] geomScores = new float[labels.length];
-	    
-	    for (int i = 0; i < labels.length; ++i) {		/* Iterate through all partitions */
-	    	a_rems[i] = new CWrittenTokenSetNoStroke[nrn];
-	    	boolean [] remsFilled = new boolean[nrn];
-	    	
-	    	for (int j = 0; j < nrn; ++j)
-	    		 /* TODO: Type safety check */
-	    		a_rems[i][j] = new CWrittenTokenSetNoStroke();
-    		
-    		for (int k = 0; k < labels[i].length; ++k) {
-    			int inode = labels[i][k];
-                int irt = inht[k];
-    			
-    			/* The last input argument sets bCheck to false for speed */
-    			/* Is this a dangerous action? */
-                // Omit token UUIDs for performance
-    			a_rems[i][inode].addTokenWithoutUuids(tokenSet.tokens.get(irt), tokenSet.tokenIDs.get(irt));
-    			
-    			remsFilled[inode] = true;
-    		}
-    		
-    		for (int j = 0; j < nrn; ++j) {
-    			a_rems[i][j].calcBounds();
-    		}
-    		
-    		/* If there is any unfilled remaining token set, skip */
-    		boolean bAllFilled = true;
-    		for (int j = 0; j < nrn; j++) {
-    			if ( !remsFilled[j] ) {
-    				bAllFilled = false;
-    				break;
-    			}
-    		}
-    		
-    		if ( !bAllFilled ) {
-    			continue;
-    		}
-    		
-//    		for (int j = 0; j < nrn; ++j)
-//    			a_rems[i][j].calcBounds();
-    		
-    		/* Verify geometric relations */
-//    		boolean bAllGeomRelVerified = true;
-    		if ( nrn > 0 ) {    		
-	    		float [] t_geomScores = new float[nrn];
-		    	for (int j = 0; j < nrn; ++j) {
-		    		
-		    		/* Assume: there is only one head 
-		    		 * TODO: Make more general */
-		    		/* TODO: Deal with the case in which the remaining node is a Terminal (T) */
-
-                    float terminalMultiplier = 1.0f;
-		    		if ( this.rhsIsTerminal[j + 1] ) {
-		    			/* TODO: Get the type of string, e.g, 1 -> DIGIT, ( -> BRACKET_L. 
-		    			 *       May need to add terminal set as an input argument. */
-		    			CWrittenTokenSetNoStroke tTokenSet = a_rems[i][j];
-		    			int t_nTokens = tTokenSet.nTokens();
-		    			if ( t_nTokens != 1 ) {
-//		    				t_geomScores[j] = 0.0f; //TODO: Think about whether throwing an exception makes more sense. MATH_FUNCTION_NAME has trouble with the exception paradigm
-                            terminalMultiplier = 0.0f;
-		    			}
-
-		    			/* TODO: Accommodate terminal name types (e.g., "TERMINAL(s)") */
-                        // TODO: NodeToken
-		    			if ( terminalSet.match(tTokenSet.tokens.get(0).getRecogResult(), this.rhs[j + 1]) ) {
-//		    				t_geomScores[j] = 1.0f;
-		    			}
-	    				else {
-//	    					t_geomScores[j] = 0.0f;
-                            terminalMultiplier = 0.0f;
-	    				}
-		    		}
-//		    		else {
-
-                    if ( geomRels[j + 1] == null ) {
-                        t_geomScores[j] = 1.0f;
-                        continue;
-                    }
-
-                    float [] t_t_geomScores = new float[geomRels[j + 1].length];
-                    for (int k = 0; k < geomRels[j + 1].length; ++k) {
-                        int idxInRel = geomRels[j + 1][k].idxInRel[0];
-                        float [] bndsInRel;
-                        if ( idxInRel == 0 ) {
-                            bndsInRel = tokenSet.getTokenBounds(iHead);
-                        }
-                        else {
-                            bndsInRel = a_rems[i][idxInRel - 1].getSetBounds();
-                        }
-
-                        float v = geomRels[j + 1][k].verify(a_rems[i][j], bndsInRel);
-
-                        t_t_geomScores[k] = v;
-
-                    }
-
-                    t_geomScores[j] = MathHelper.mean(t_t_geomScores) * terminalMultiplier;
-
-
-//		    		}
+
+	    /* Construct the remaining sets and evaluate their geometric relations.
+	     * As in MathHelper.indexMax(), the first partition is the initial best one, and ties
+	     * do not replace the best partition. */
+	    int [] bestLabels;
+	    final float [] bestScore = new float[1];
+	    PartitionScorer scorer = new PartitionScorer(tokenSet, iHead, inht);
+
+	    if ( !bBruteForce ) {
+	    	bestLabels = labels[0];
+		    for (int i = 0; i < labels.length; ++i) {		/* Iterate through all partitions */
+		    	float score = scorer.score(labels[i]);
+
+		    	if ( i == 0 || score > bestScore[0] ) {
+		    		bestScore[0] = score;
+		    		bestLabels = labels[i];
 		    	}
+		    }
+	    } else {
+	    	/* Brute-force approach: Enumerate the partitions lazily, in the order of
+	    	 * MathHelper.getFullDiscreteSpace(nrn, nnht). The first partition in that order puts all
+	    	 * non-head tokens into the first remaining node. If nrn > 1, it leaves other nodes unfilled
+	    	 * and scores 0. Partitions with unfilled nodes are never generated, and partitions that
+	    	 * cannot beat the best score are pruned by ScoreBoundPruner. */
+	    	bestLabels = new int[nnht];
+	    	boolean bFirst = (nrn <= 1);
+
+	    	PartitionEnumerator partitions =
+	    			new PartitionEnumerator(nrn, nnht, false, bFirst ? null : new ScoreBoundPruner(inht, tokenSet, bestScore));
+	    	int nPartitions = 0;
+	    	while ( partitions.next() ) {
+	    		if ( (++nPartitions & ParseDeadlineExceededException.CHECK_INTERVAL_MASK) == 0 ) {
+	    			ParseDeadlineExceededException.check(deadlineNanos);
+	    		}
+
+	    		int [] t_labels = partitions.getLabels();
+	    		float score = scorer.score(t_labels);
 
-		    	geomScores[i] = MathHelper.mean(t_geomScores);
-    		}
-    		else {
-    			/* This is the case in which the entire token is the head, 
-    			 * and the head is an NT. 
-    			 */
-    			if ( !rhsIsTerminal[0] ) {
-                    geomScores[i] = flagNTNeedsParsing;	/* 2.0f is a flag that indicates further geometric parsing is necessary */
-                } else {
-                    geomScores[i] = 1.0f;
-                }
-    		}
+	    		if ( bFirst || score > bestScore[0] ) {
+	    			bFirst = false;
+	    			bestScore[0] = score;
+	    			bestLabels = t_labels.clone();
+	    		}
+	    	}
 	    }
 
 	    /* Find the partition that leads to the maximum geometric score */
-	    int idxMax = MathHelper.indexMax(geomScores);
-	    maxGeomScore[0] = geomScores[idxMax];
-	    
+	    maxGeomScore[0] = bestScore[0];
+	    CWrittenTokenSetNoStroke [] bestRems = getRemainingSets(tokenSet, inht, bestLabels);
+
+	    /* Derive the terminal-type signatures of the winning remaining sets from that of the full set */
+	    TermTypeSignature signature = tokenSet.getTermTypeSignature();
+	    if ( signature != null ) {
+	    	for (int j = 0; j < bestRems.length; ++j) {
+	    		int [] remIndices = new int[bestRems[j].nTokens()];
+	    		int n = 0;
+	    		for (int k = 0; k < bestLabels.length; ++k) {
+	    			if ( bestLabels[k] == j ) {
+	    				remIndices[n++] = inht[k];
+	    			}
+	    		}
+
+	    		bestRems[j].setTermTypeSignature(signature.subset(remIndices));
+	    	}
+	    }
+
 	    /* For head */
 	    /* TODO: Replace with constructor */
 	    CWrittenTokenSetNoStroke headTokenSet = new CWrittenTokenSetNoStroke(tokenSet, iHead);
@@ -357,8 +309,8 @@ public class GraphicalProduction {
 	    remainingSets[0] = headTokenSet;
 	    
 	    /* For non-head */
-	    for (int i = 0; i < a_rems[idxMax].length; ++i) {
-	    	remainingSets[i + 1] = a_rems[idxMax][i];		//PerfTweak new
+	    for (int i = 0; i < bestRems.length; ++i) {
+	    	remainingSets[i + 1] = bestRems[i];		//PerfTweak new
 	    }
 	    
 	    Node n = new Node(lhs, sumString, rhs);
@@ -368,6 +320,247 @@ public class GraphicalProduction {
 	    return n;
 	}
 	
+	/* Construct the remaining token sets of a partition of the non-head tokens.
+	 * labels[k] is the index of the remaining node that non-head token #k belongs to. */
+	private CWrittenTokenSetNoStroke [] getRemainingSets(final CWrittenTokenSetNoStroke tokenSet,
+	                                                     final int [] inht,
+	                                                     final int [] labels) {
+		final int nrn = nrhs - 1;
+
+		CWrittenTokenSetNoStroke [] rems = new CWrittenTokenSetNoStroke[nrn];
+		for (int j = 0; j < nrn; ++j)
+			 /* TODO: Type safety check */
+			rems[j] = new CWrittenTokenSetNoStroke();
+
+		for (int k = 0; k < labels.length; ++k) {
+			int inode = labels[k];
+			int irt = inht[k];
+
+			/* The last input argument sets bCheck to false for speed */
+			/* Is this a dangerous action? */
+			// Omit token UUIDs for performance
+			rems[inode].addTokenWithoutUuids(tokenSet.tokens.get(irt), tokenSet.tokenIDs.get(irt));
+		}
+
+		for (int j = 0; j < nrn; ++j) {
+			rems[j].calcBounds();
+		}
+
+		return rems;
+	}
+
+	/* Scores the partitions of the non-head tokens in attempt(), without constructing any token sets.
+	 * The bounds of the tokens and of the head are looked up once. For each partition, the bounds of the
+	 * remaining sets are accumulated into reusable scratch buffers, and the geometric relations are verified
+	 * directly on them. The result is the same as that of scoring real remaining token sets: the bounds are
+	 * accumulated in the same order as in CWrittenTokenSetNoStroke.calcBounds(), and the scores are averaged
+	 * in the same order as before. A scorer is not thread-safe; use one per call of attempt(). */
+	private final class PartitionScorer {
+		private final int nrn = nrhs - 1;
+		private final int [] inht;
+
+		private final float [] headBounds;
+		private final float [][] tokenBounds;		/* Bounds of non-head token #k */
+		private final boolean [] tokenIsMajor;		/* Whether non-head token #k is of a major terminal type */
+		private final boolean [][] bTermMatches;	/* Whether non-head token #k matches terminal remaining node #j */
+
+		/* Scratch buffers */
+		private final int [] groupSizes;
+		private final int [] groupFirstTokens;
+		private final float [][] groupBounds;
+		private final float [][] groupMajorExtents;
+		private final float [] geomScores;
+		private final float [][] relScores;
+
+		PartitionScorer(final CWrittenTokenSetNoStroke tokenSet, final int [] iHead, final int [] inht) {
+			this.inht = inht;
+
+			headBounds = tokenSet.getTokenBounds(iHead);
+
+			tokenBounds = new float[inht.length][];
+			tokenIsMajor = new boolean[inht.length];
+			bTermMatches = new boolean[inht.length][nrn];
+			for (int k = 0; k < inht.length; ++k) {
+				tokenBounds[k] = tokenSet.getTokenBounds(inht[k]);
+				tokenIsMajor[k] = NodeInternalGeometry.isMajorTerminalType(tokenSet.getTokenTermTypes(inht[k]));
+
+				String recogResult = tokenSet.tokens.get(inht[k]).getRecogResult();
+				for (int j = 0; j < nrn; ++j) {
+					bTermMatches[k][j] = rhsIsTerminal[j + 1] && terminalSet.match(recogResult, rhs[j + 1]);
+				}
+			}
+
+			groupSizes = new int[nrn];
+			groupFirstTokens = new int[nrn];
+			groupBounds = new float[nrn][4];
+			groupMajorExtents = new float[nrn][2];
+			geomScores = new float[nrn];
+
+			relScores = new float[nrn][];
+			for (int j = 0; j < nrn; ++j) {
+				relScores[j] = (geomRels[j + 1] == null) ? null : new float[geomRels[j + 1].length];
+			}
+		}
+
+		/* Evaluate the geometric score of a partition of the non-head tokens.
+		 * labels[k] is the index of the remaining node that non-head token #k belongs to.
+		 * Return 0 if any of the remaining token sets is unfilled. */
+		float score(final int [] labels) {
+			accumulateGroups(labels);
+
+			/* If there is any unfilled remaining token set, skip */
+			for (int j = 0; j < nrn; j++) {
+				if ( groupSizes[j] == 0 ) {
+					return 0.0f;
+				}
+			}
+
+			/* Verify geometric relations */
+			if ( nrn == 0 ) {
+				/* This is the case in which the entire token is the head,
+				 * and the head is an NT.
+				 */
+				if ( !rhsIsTerminal[0] ) {
+					return flagNTNeedsParsing;	/* 2.0f is a flag that indicates further geometric parsing is necessary */
+				} else {
+					return 1.0f;
+				}
+			}
+
+			for (int j = 0; j < nrn; ++j) {
+				/* Assume: there is only one head
+				 * TODO: Make more general */
+
+				float terminalMultiplier = 1.0f;
+				if ( rhsIsTerminal[j + 1] ) {
+					if ( groupSizes[j] != 1 ) {
+						terminalMultiplier = 0.0f;
+					}
+
+					/* TODO: Accommodate terminal name types (e.g., "TERMINAL(s)") */
+					if ( !bTermMatches[groupFirstTokens[j]][j] ) {
+						terminalMultiplier = 0.0f;
+					}
+				}
+
+				if ( geomRels[j + 1] == null ) {
+					geomScores[j] = 1.0f;
+					continue;
+				}
+
+				float [] t_relScores = relScores[j];
+				for (int k = 0; k < geomRels[j + 1].length; ++k) {
+					int idxInRel = geomRels[j + 1][k].idxInRel[0];
+					float [] bndsInRel = (idxInRel == 0) ? headBounds : groupBounds[idxInRel - 1];
+
+					t_relScores[k] = geomRels[j + 1][k].verify(groupBounds[j], groupMajorExtents[j], bndsInRel);
+				}
+
+				geomScores[j] = MathHelper.mean(t_relScores) * terminalMultiplier;
+			}
+
+			return MathHelper.mean(geomScores);
+		}
+
+		/* Calculate the sizes, bounds and major token extents of the remaining sets of a partition */
+		private void accumulateGroups(final int [] labels) {
+			for (int j = 0; j < nrn; ++j) {
+				groupSizes[j] = 0;
+				groupFirstTokens[j] = -1;
+
+				float [] bounds = groupBounds[j];
+				bounds[0] = bounds[1] = Float.POSITIVE_INFINITY;
+				bounds[2] = bounds[3] = Float.NEGATIVE_INFINITY;
+
+				groupMajorExtents[j][0] = groupMajorExtents[j][1] = 0.0f;
+			}
+
+			for (int k = 0; k < labels.length; ++k) {
+				final int j = labels[k];
+				final float [] t_bounds = tokenBounds[k];
+				final float [] bounds = groupBounds[j];
+
+				if ( groupSizes[j]++ == 0 ) {
+					groupFirstTokens[j] = k;
+				}
+
+				if ( bounds[0] > t_bounds[0] )
+					bounds[0] = t_bounds[0];
+				if ( bounds[1] > t_bounds[1] )
+					bounds[1] = t_bounds[1];
+				if ( bounds[2] < t_bounds[2] )
+					bounds[2] = t_bounds[2];
+				if ( bounds[3] < t_bounds[3] )
+					bounds[3] = t_bounds[3];
+
+				if ( tokenIsMajor[k] ) {
+					float w = t_bounds[2] - t_bounds[0];
+					float h = t_bounds[3] - t_bounds[1];
+
+					if ( w > groupMajorExtents[j][0] )
+						groupMajorExtents[j][0] = w;
+					if ( h > groupMajorExtents[j][1] )
+						groupMajorExtents[j][1] = h;
+				}
+			}
+		}
+	}
+
+	/* Branch-and-bound pruning of the brute-force partition search in attempt().
+	 * Every geometric score is in [0, 1], so the score of a partition is at most the fraction of
+	 * remaining nodes that do not certainly score 0. A terminal remaining node with geometric
+	 * relations certainly scores 0 once it has more than one token, or once its first token does
+	 * not match the terminal type. A branch is pruned if its bound cannot beat the best score,
+	 * so the result is the same as that of the exhaustive search. */
+	private final class ScoreBoundPruner implements PartitionEnumerator.Pruner {
+		private final int nrn = nrhs - 1;
+		private final boolean [] bZeroable;	/* Whether remaining node #j can certainly score 0 */
+		private final boolean [][] bMatches;	/* Whether non-head token #k matches the type of remaining node #j */
+		private final float [] bestScore;
+
+		ScoreBoundPruner(final int [] inht, final CWrittenTokenSetNoStroke tokenSet, final float [] bestScore) {
+			this.bestScore = bestScore;
+
+			bZeroable = new boolean[nrn];
+			for (int j = 0; j < nrn; ++j) {
+				bZeroable[j] = rhsIsTerminal[j + 1] && geomRels[j + 1] != null;
+			}
+
+			bMatches = new boolean[inht.length][nrn];
+			for (int k = 0; k < inht.length; ++k) {
+				String recogResult = tokenSet.tokens.get(inht[k]).getRecogResult();
+				for (int j = 0; j < nrn; ++j) {
+					bMatches[k][j] = bZeroable[j] && terminalSet.match(recogResult, rhs[j + 1]);
+				}
+			}
+		}
+
+		@Override
+		public boolean prune(int [] labels, int depth, int [] partSizes) {
+			int nZero = 0;
+			for (int j = 0; j < nrn; ++j) {
+				if ( !bZeroable[j] || partSizes[j] == 0 ) {
+					continue;
+				}
+
+				if ( partSizes[j] > 1 ) {
+					nZero++;
+				} else {
+					for (int k = 0; k < depth; ++k) {
+						if ( labels[k] == j ) {
+							if ( !bMatches[k][j] ) {
+								nZero++;
+							}
+							break;
+						}
+					}
+				}
+			}
+
+			return (float) (nrn - nZero) / (float) nrn <= bestScore[0];
+		}
+	}
+	
 	/* Factory method */
 	public static GraphicalProduction genFromStrings(ArrayList<String> strs, TerminalSet termSet)
 		throws Exception 
@@ -22,15 +22,17 @@ public class GraphicalProductionSet {
 
     private List<List<String>> terminalTypes;
     private Map<Integer, Set<Integer>> transitiveChildrenProdMap; // Key: production index; Value: all children production indices.
-    private Set<Integer> visitedProdIndices;
 	
 	public TerminalSet terminalSet;
 	int [] searchIdx = null;  /* Package-private for testing */
+    private int searchIdxVersion = 0; /* Incremented whenever searchIdx changes, so that parse caches can be invalidated */
 
     private Map<String, List<Integer>> lhs2ProdIndices; // Map from lhs name to all possible production indicies
     ArrayList<Set<String>> requiredTermTypes; // Required terminal types of the productions
 
-    private LinkedList<Integer> prodStack; // Stack for calculation of required terminal types
+    private GrammarIndex grammarIndex; // Interned LHS names and terminal-type bitsets, for fast production filtering
+
+    private SharedArtifacts sharedArtifacts = new SharedArtifacts(); // Shared by all sessions of the same grammar
 
 	/* The array of possible terminal type for each production. 
 	 * Calculated by the private method: calcTermTypes() */
@@ -246,6 +248,17 @@ public class GraphicalProductionSet {
         for (int idx : searchIdxList) {
             searchIdx[counter++] = idx;
         }
+
+        searchIdxVersion++;
+    }
+
+    /**
+     * Get the version number of the set of enabled productions. The number changes every time a production is
+     * enabled or disabled, which allows callers (e.g., TokenSetParser) to detect that cached parsing results are stale.
+     * @return  Version number of the enabled-production search index
+     */
+    public int getSearchIdxVersion() {
+        return searchIdxVersion;
     }
 	
 	/* Read productions from production list file */
@@ -309,17 +322,17 @@ public class GraphicalProductionSet {
             requiredTermTypes.add(null);
         }
 
-        prodStack = new LinkedList<>(); // Create new stack as preparation
+        LinkedList<Integer> prodStack = new LinkedList<>(); // Stack of the productions being visited
 
         for (int i = 0; i < np; ++i) {
             assert(prodStack.isEmpty());
 
-            calcRequiredTermTypes(i);
+            calcRequiredTermTypes(i, prodStack);
         }
 
     }
 
-    private Set<String> calcRequiredTermTypes(int prodIdx) {
+    private Set<String> calcRequiredTermTypes(int prodIdx, LinkedList<Integer> prodStack) {
         prodStack.push(prodIdx);
 
         GraphicalProduction prod = prods.get(prodIdx);
@@ -367,7 +380,7 @@ public class GraphicalProductionSet {
                             childTermTypeSets.add(requiredTermTypes.get(childProdIdx));
                         } else {
                             // Recursive call
-                            childTermTypeSets.add(calcRequiredTermTypes(childProdIdx));
+                            childTermTypeSets.add(calcRequiredTermTypes(childProdIdx, prodStack));
                         }
                     }
                 }
@@ -399,6 +412,11 @@ public class GraphicalProductionSet {
     public List<Integer> getProductionIndicesFromLHS(String lhs) {
         return lhs2ProdIndices.get(lhs);
     }
+
+    /* Package-private for testing */
+    GrammarIndex getGrammarIndex() {
+        return grammarIndex;
+    }
 	
 	/* Read productions from production list file at a URL */
 	public void readProductionsFromUrl(URL prodListFileUrl, TerminalSet termSet)
@@ -432,6 +450,17 @@ public class GraphicalProductionSet {
 			                         TerminalSet termSet, 
 			                         String lhs,
 			                         ArrayList<int [][]> idxPossibleHead) throws InterruptedException {
+		return getIdxValidProds(tokenSet, searchSubsetIdx, termSet, lhs, idxPossibleHead, 0L);
+	}
+
+	/* Same as above, but the enumeration of possible heads is aborted with a ParseDeadlineExceededException once the
+	 * deadline (in System.nanoTime(); 0 for none) has passed */
+	int[][] getIdxValidProds(CWrittenTokenSetNoStroke tokenSet,
+	                         int [] searchSubsetIdx,
+	                         TerminalSet termSet,
+	                         String lhs,
+	                         ArrayList<int [][]> idxPossibleHead,
+	                         long deadlineNanos) throws InterruptedException {
 		/* TODO: Make use of geomShortcuts */
 
 		if ( idxPossibleHead.size() != 0 ) {
@@ -442,101 +471,35 @@ public class GraphicalProductionSet {
 		ArrayList<Integer> idxValidProdsList_woExclude = new ArrayList<>();
 		ArrayList<Integer> idxValidProdsList = new ArrayList<>();
 
-		for (int prodIdx : searchIdx) {
+		/* Terminal-type signature of the token set. Normally calculated by getAllTokensTerminalTypes() or derived from
+		 * the signature of a parent token set. */
+		TermTypeSignature signature = tokenSet.getTermTypeSignature();
+		if (signature == null || !signature.isFrom(grammarIndex)) {
+			signature = grammarIndex.getSignature(tokenSet.tokens);
+			tokenSet.setTermTypeSignature(signature);
+		}
 
-            /* Flags for exclusion due to lhs mismatch */
-            if ( lhs != null && !prods.get(prodIdx).lhs.equals(lhs) ) {
-                continue;
-            }
+		/* Candidate productions: the enabled ones with the specified lhs */
+		int[] candidateProdIdx = (lhs == null) ? searchIdx : grammarIndex.getProdIndicesOfLHS(lhs);
 
-			int[][] iph = evalWrittenTokenSet(prodIdx, tokenSet, termSet); // Get indices to possible head (iph)
+		for (int prodIdx : candidateProdIdx) {
+			if ( !prodIsEnabled.get(prodIdx) ) {
+				continue;
+			}
+
+			int[][] iph = evalWrittenTokenSet(prodIdx, tokenSet, termSet, deadlineNanos); // Get indices to possible head (iph)
 			if ( iph == null || iph.length == 0 ) {
 				continue;
 			}
 
 			idxValidProdsList_woExclude.add(prodIdx);
 
-            /* Exclusion due to missing terminal types */
-            boolean excluded4MissingTermType = false;
-
-            //TODO: Refactor the following code into a function
-            if ( !requiredTermTypes.get(prodIdx).isEmpty() ) {
-                boolean encounteredNodeToken = false;
+            /* Exclusion due to missing terminal types. Token sets with node tokens are not excluded. */
+            boolean excluded4MissingTermType = !signature.hasNodeToken() &&
+                                               !grammarIndex.coversRequiredTypes(prodIdx, signature);
 
-                LinkedList<String> requiredTypes = new LinkedList<>();
-
-                // Add the TERMINAL(x) type to the front, and the rest to the back.
-                // This is a very hacky way of dealing with the issue that tokens such
-                // as "gr_Si" can match both terminal type o"TERMINAL(gr_Si)" and terminal type "VARIABLE_SYMBOL", which
-                // can cause problems during the evaluation of SIGMA_TERM.
-                for (String reqType : requiredTermTypes.get(prodIdx)) {
-                    if (reqType.indexOf("TERMINAL(") == 0) {
-                        requiredTypes.addFirst(reqType);
-                    } else {
-                        requiredTypes.addLast(reqType);
-                    }
-
-                }
-
-//                // Initialize the boolean list
-//                List<Boolean> matched = new ArrayList<>();
-//                for (int i = 0; i < requiredTypes.size(); ++i) {
-//                    matched.add(false);
-//                }
-
-                for (int k = 0; k < tokenSet.nTokens(); ++k) {
-                    AbstractToken token = tokenSet.tokens.get(k);
-
-                    if (token instanceof CWrittenToken) {
-                        String tokenName = token.getRecogResult();
-
-                        int h = 0;
-                        Iterator<String> reqTypeIter = requiredTypes.iterator();
-                        while (reqTypeIter.hasNext()) {
-                            String type = reqTypeIter.next();
-
-                            if (termSet.match(tokenName, type)) {
-                                requiredTypes.remove(type);
-                                break;
-                            }
-                        }
-
-                        if (requiredTypes.isEmpty()) {
-                            break;
-                        }
-                    } else {
-                        // Encountered a node token. For now, we give the node token the benefit of the doubt.
-                        encounteredNodeToken = true;
-                        break;
-                    }
-                }
-
-                excluded4MissingTermType = !encounteredNodeToken && !requiredTypes.isEmpty();
-            }
-
-
-            /* Flags for exclusion due to extra terminal types for the given production */
-			boolean excluded4WrongTermType = false;
-
-            List<String> possibleTermTypesList = terminalTypes.get(prodIdx);
-			
-			for (int k = 0; k < tokenSet.nTokens(); ++k) {
-                AbstractToken token = tokenSet.tokens.get(k);
-
-                if (token instanceof CWrittenToken) {
-                    String tokenName = token.getRecogResult();
-
-                    if ( !termSet.typeListContains(possibleTermTypesList, tokenName) ) {
-                        excluded4WrongTermType = true;
-                        break;
-                    }
-                } else if (token instanceof NodeToken) {
-                    //TODO: Implement: Exclusion based on the grammar graph
-                } else {
-                    throw new IllegalStateException("Unsupported AbstractNode subtype");
-                }
-
-			}
+            /* Exclusion due to extra terminal types for the given production */
+			boolean excluded4WrongTermType = !signature.admittedByProd(prodIdx);
 
 			if ( excluded4MissingTermType || excluded4WrongTermType ) {
 				continue;
@@ -577,7 +540,17 @@ public class GraphicalProductionSet {
 	public int [][] evalWrittenTokenSet(int prodIdx,        /* TODO: Change the return type to Array<Array<Integer>> */
 										CWrittenTokenSetNoStroke wts,
 			                            TerminalSet termSet) throws InterruptedException {
-        Thread.sleep(0); // For effectiveness of timeout
+		return evalWrittenTokenSet(prodIdx, wts, termSet, 0L);
+	}
+
+	/* Same as above, with a deadline (in System.nanoTime(); 0 for none) for the enumeration of possible heads */
+	int [][] evalWrittenTokenSet(int prodIdx,
+	                             CWrittenTokenSetNoStroke wts,
+	                             TerminalSet termSet,
+	                             long deadlineNanos) throws InterruptedException {
+        if (Thread.interrupted()) { // For effectiveness of timeout. Unlike Thread.sleep(0), does not yield the CPU.
+            throw new InterruptedException();
+        }
 
         /* TODO: Generalize to written token sets with NodeToken */
 		/* TODO: Deal with a production in which none of the rhs items are terminal */
@@ -607,7 +580,9 @@ public class GraphicalProductionSet {
                     tTokenName = wts.tokens.get(i).getRecogResult();
                 }
 
-				if ( termSet.match(tTokenName, headNodeType) ) {
+				boolean headMatch = (tTokenName == null) ? termSet.match(tTokenName, headNodeType) :
+				                    grammarIndex.matchesHead(prodIdx, grammarIndex.getTermTypeBits(tTokenName));
+				if ( headMatch ) {
 					ArrayList<Integer> t_possibleHeadIdx = new ArrayList<>();
 					t_possibleHeadIdx.add(i);
 					
@@ -667,13 +642,11 @@ public class GraphicalProductionSet {
 
 				    /* Find all productions that fit this lhs */
                     boolean anyRHSMatch = false;
-                    for (int i = 0; i < prods.size(); ++i) {
-                        if (prods.get(i).lhs.equals(lhs)) {
-                            int[][] t_t_iph = evalWrittenTokenSet(i, wts, termSet);
-                            if (t_t_iph != null && t_t_iph.length > 0) {
-                                anyRHSMatch = true;
-                                break;
-                            }
+                    for (int i : grammarIndex.getProdIndicesOfLHS(lhs)) {
+                        int[][] t_t_iph = evalWrittenTokenSet(i, wts, termSet, deadlineNanos);
+                        if (t_t_iph != null && t_t_iph.length > 0) {
+                            anyRHSMatch = true;
+                            break;
                         }
                     }
 
@@ -696,28 +669,28 @@ public class GraphicalProductionSet {
 				/* There are rhs items other than the head NT. */
                 // TODO: Accommodate NodeToken
 
-				int[][] combs = null;
-				if ( prod.geomShortcut.existsBipartite() ) {
-					combs = prod.geomShortcut.getPartitionBipartite(wts, true);
-				} else if ( prod.geomShortcut.existsTripartiteNT1T2() ) {
-					combs = prod.geomShortcut.getPartitionTripartiteNT1T2(wts);
+				if ( prod.geomShortcut.existsBipartite() || prod.geomShortcut.existsTripartiteNT1T2() ) {
+					int[][] combs = prod.geomShortcut.existsBipartite() ?
+					                prod.geomShortcut.getPartitionBipartite(wts, true) :
+					                prod.geomShortcut.getPartitionTripartiteNT1T2(wts);
+
+					for (int i = 0; i < combs.length; ++i) {
+						addPossibleHeadIdx(possibleHeadIdx, combs[i]);
+					}
 				} else {
-					combs = MathHelper.getFullDiscreteSpace(2, wts.nTokens()); // Binary divide between head and non-head
+					/* Binary divide between head and non-head. The divisions are enumerated lazily,
+					 * instead of allocating the full label matrix of MathHelper.getFullDiscreteSpace(). */
                     /* TODO: Discard the partitions that don't make sense to speed things up.
                      * For example, interlocking partitions. */
-				}
-
-				
-				for (int i = 0; i < combs.length; ++i) {
-					ArrayList<Integer> t_possibleHeadIdx = new ArrayList<>();
-					
-					for (int j = 0; j < combs[i].length; ++j) {
-                        if (combs[i][j] == 1) {
-                            t_possibleHeadIdx.add(j);
-                        }
-                    }
-					
-					possibleHeadIdx.add(t_possibleHeadIdx);	
+					PartitionEnumerator divs = new PartitionEnumerator(2, wts.nTokens(), true, null);
+					int nDivs = 0;
+					while ( divs.next() ) {
+						if ( (++nDivs & ParseDeadlineExceededException.CHECK_INTERVAL_MASK) == 0 ) {
+							ParseDeadlineExceededException.check(deadlineNanos);
+						}
+
+						addPossibleHeadIdx(possibleHeadIdx, divs.getLabels());
+					}
 				}
 			}
 		}
@@ -734,6 +707,19 @@ public class GraphicalProductionSet {
 	}
 	
 	
+	/* Add the indices of the tokens labeled as head (label == 1) to possibleHeadIdx */
+	private static void addPossibleHeadIdx(ArrayList<ArrayList<Integer>> possibleHeadIdx, int[] labels) {
+		ArrayList<Integer> t_possibleHeadIdx = new ArrayList<>();
+
+		for (int j = 0; j < labels.length; ++j) {
+			if (labels[j] == 1) {
+				t_possibleHeadIdx.add(j);
+			}
+		}
+
+		possibleHeadIdx.add(t_possibleHeadIdx);
+	}
+
 	/* Get the count of non-head tokens in production #i */
 	public int getNumNonHeadTokens(int i) {
 		return prods.get(i).getNumNonHeadTokens();
@@ -782,17 +768,17 @@ public class GraphicalProductionSet {
         transitiveChildrenProdMap = new HashMap<>();
 
         for (int i = 0; i < prods.size(); ++i) {
-            visitedProdIndices = new HashSet<>();
-            getTransitiveChildrenProdIndices(i);
+            getTransitiveChildrenProdIndices(i, new HashSet<Integer>());
         }
     }
 
     /**
      * Get the children productions of a given production.
      * @param prodIdx
+     * @param visitedProdIndices  Productions visited so far, to prevent going in loops
      * @return
      */
-    private Set<Integer> getTransitiveChildrenProdIndices(int prodIdx) {
+    private Set<Integer> getTransitiveChildrenProdIndices(int prodIdx, Set<Integer> visitedProdIndices) {
         visitedProdIndices.add(prodIdx); // Prevent going in loops
 
         Set<Integer> result = new HashSet<>(); // TODO: Performance fine tune?
@@ -828,7 +814,7 @@ public class GraphicalProductionSet {
                     if (transitiveChildrenProdMap.containsKey(i)) {
                         result.addAll(transitiveChildrenProdMap.get(i)); // Use caching
                     } else {
-                        result.addAll(getTransitiveChildrenProdIndices(i));
+                        result.addAll(getTransitiveChildrenProdIndices(i, visitedProdIndices));
                     }
                 }
             }
@@ -848,6 +834,10 @@ public class GraphicalProductionSet {
 		for (int i = 0; i < prods.size(); ++i) {
             terminalTypes.add(calcTermTypes(i, termSet, null));
 		}
+
+        /* Compile the grammar index, now that the required and the possible terminal types are known */
+        grammarIndex = new GrammarIndex(prods, terminalTypes, requiredTermTypes, termSet);
+        termSet.setGrammarIndex(grammarIndex);
 	}
 
 	/* Get the list of all possible heads contained within a valid 
@@ -916,15 +906,104 @@ public class GraphicalProductionSet {
 		return termTypes;
 	}
 	
+    /**
+     * Create a new session of this production set. The session shares the compiled grammar (the productions, the
+     * terminal set, the grammar index and the derived lookup tables) with this production set and with all other
+     * sessions of it. Only the enabled/disabled state of the productions is owned by the session, so that each
+     * pooled worker can enable or disable productions without affecting the others.
+     * The shared structures must not be modified after this production set has been created.
+     * @return  New session, with the productions enabled and disabled in the same way as in this production set
+     */
+    public GraphicalProductionSet createSession() {
+        GraphicalProductionSet session = new GraphicalProductionSet();
+
+        session.prods = prods;
+        session.prodSumStrings = prodSumStrings;
+        session.terminalSet = terminalSet;
+
+        session.terminalTypes = terminalTypes;
+        session.transitiveChildrenProdMap = transitiveChildrenProdMap;
+        session.lhs2ProdIndices = lhs2ProdIndices;
+        session.requiredTermTypes = requiredTermTypes;
+        session.grammarIndex = grammarIndex;
+
+        session.sharedArtifacts = sharedArtifacts;
+
+        /* Per-session state */
+        session.prodIsEnabled = new ArrayList<>(prodIsEnabled);
+        session.populateSearchIdx();
+
+        return session;
+    }
+
+    /* Get the stringizer of the productions. The stringizer is stateless, so one instance is shared by all the
+     * sessions of this production set. */
 	public ParseTreeStringizer genStringizer() {
-		return new ParseTreeStringizer(this);
+		return sharedArtifacts.getStringizer(this);
 	}
-	
+
+    /* Get the Math TeX texifier of the productions. The instance is shared if the terminal set is that of the
+     * productions. */
+    public ParseTreeMathTexifier genMathTexifier(TerminalSet termSet) {
+        if (termSet != terminalSet) {
+            return new ParseTreeMathTexifier(this, termSet);
+        }
+
+        return sharedArtifacts.getMathTexifier(this);
+    }
+
+    /* Get the biaser of the productions. The biaser is stateless, so one instance is shared by all the sessions. */
+    public ParseTreeBiaser genBiaser() {
+        return sharedArtifacts.getBiaser(this);
+    }
+
+    /* Generate a new evaluator. Evaluators hold variables, so each call returns a new instance, but the evaluation
+     * instructions are compiled only once and shared. */
 	public ParseTreeEvaluator genEvaluator() {
-		return new ParseTreeEvaluator(this);
+		return new ParseTreeEvaluator(sharedArtifacts.getEvaluatorPrototype(this), this);
 	}
 
     public ArrayList<Boolean> getProdIsEnabled() {
         return prodIsEnabled;
     }
+
+    /* Artifacts derived from the compiled grammar, created lazily and shared by all sessions of a production set */
+    private static final class SharedArtifacts {
+        private ParseTreeStringizer stringizer;
+        private ParseTreeMathTexifier mathTexifier;
+        private ParseTreeBiaser biaser;
+        private ParseTreeEvaluator evaluatorPrototype;
+
+        synchronized ParseTreeStringizer getStringizer(GraphicalProductionSet gpSet) {
+            if (stringizer == null) {
+                stringizer = new ParseTreeStringizer(gpSet);
+            }
+
+            return stringizer;
+        }
+
+        synchronized ParseTreeMathTexifier getMathTexifier(GraphicalProductionSet gpSet) {
+            if (mathTexifier == null) {
+                mathTexifier = new ParseTreeMathTexifier(gpSet, gpSet.terminalSet);
+            }
+
+            return mathTexifier;
+        }
+
+        synchronized ParseTreeBiaser getBiaser(GraphicalProductionSet gpSet) {
+            if (biaser == null) {
+                biaser = new ParseTreeBiaser(gpSet);
+            }
+
+            return biaser;
+        }
+
+        synchronized ParseTreeEvaluator getEvaluatorPrototype(GraphicalProductionSet gpSet) {
+            if (evaluatorPrototype == null) {
+                evaluatorPrototype = new ParseTreeEvaluator(gpSet);
+            }
+
+            return evaluatorPrototype;
+        }
+    }
 }
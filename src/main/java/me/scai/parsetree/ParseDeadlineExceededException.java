@@ -0,0 +1,19 @@
+package me.scai.parsetree;
+
+/* Thrown by the checkpoints of the geometric evaluation once the time budget of a parse is spent, to abort the
+ * evaluations in flight. Caught by TokenSetParser.parse(), which falls back to a greedy parse. */
+final class ParseDeadlineExceededException extends RuntimeException {
+    /* Checkpoints in enumeration loops check the deadline once every (mask + 1) iterations */
+    static final int CHECK_INTERVAL_MASK = 0x3F;
+
+    ParseDeadlineExceededException() {
+        super("Parse time budget exceeded", null, false, false); /* No stack trace: this is control flow */
+    }
+
+    /* Throw if the deadline (in System.nanoTime()) has passed. A deadline of 0 means none. */
+    static void check(long deadlineNanos) {
+        if (deadlineNanos != 0L && System.nanoTime() - deadlineNanos > 0L) {
+            throw new ParseDeadlineExceededException();
+        }
+    }
+}
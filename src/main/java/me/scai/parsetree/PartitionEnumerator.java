@@ -0,0 +1,128 @@
+package me.scai.parsetree;
+
+/**
+ * Lazy enumerator of the partitions of a number of tokens into a number of parts. Each partition is given as an array
+ * of labels, one per token, and the partitions are generated in the same (lexicographic) order as the rows of
+ * MathHelper.getFullDiscreteSpace(nParts, nTokens), without allocating the whole label matrix.
+ *
+ * The labels are assigned token by token, depth first. After each assignment, the optional Pruner is asked whether
+ * the current branch can still lead to a useful partition. If not, the whole branch is skipped.
+ */
+final class PartitionEnumerator {
+    /* Callback for branch-and-bound pruning */
+    interface Pruner {
+        /* Return true if no partition that starts with labels[0], ..., labels[depth - 1] needs to be generated.
+         * partSizes holds the numbers of tokens assigned to the parts so far. */
+        boolean prune(int[] labels, int depth, int[] partSizes);
+    }
+
+    /* Member variables */
+    private final int nParts;
+    private final int nTokens;
+    private final boolean allowEmptyParts;
+    private final Pruner pruner;
+
+    private final int[] labels;
+    private final int[] partSizes;
+    private int nEmptyParts;
+
+    private int depth;       /* Number of tokens with an assigned label */
+    private boolean started;
+    private boolean done;
+
+    /* Constructor */
+    public PartitionEnumerator(int nParts, int nTokens, boolean allowEmptyParts, Pruner pruner) {
+        if (nParts < 0 || nTokens < 0) {
+            throw new IllegalArgumentException("Negative number of parts or tokens");
+        }
+
+        this.nParts = nParts;
+        this.nTokens = nTokens;
+        this.allowEmptyParts = allowEmptyParts;
+        this.pruner = pruner;
+
+        labels = new int[nTokens];
+        partSizes = new int[nParts];
+        nEmptyParts = nParts;
+
+        if (nTokens > 0) {
+            labels[0] = -1;
+        }
+    }
+
+    /* Advance to the next partition. Return false if there are no more partitions. */
+    public boolean next() {
+        if (done) {
+            return false;
+        }
+
+        if (nTokens == 0) {
+            /* There is only the empty partition */
+            done = true;
+            return !started && (allowEmptyParts || nParts == 0);
+        }
+
+        if (!started) {
+            started = true;
+            if (nParts == 0) {
+                done = true;
+                return false;
+            }
+        } else {
+            depth = nTokens - 1; /* Backtrack from the last partition */
+        }
+
+        while (depth >= 0) {
+            final int k = depth;
+
+            if (labels[k] >= 0) {
+                unassign(labels[k]);
+            }
+            labels[k]++;
+
+            if (labels[k] == nParts) {
+                labels[k] = -1;
+                depth--;
+                continue;
+            }
+
+            assign(labels[k]);
+
+            /* Skip the branch if the remaining tokens cannot fill all the empty parts */
+            if (!allowEmptyParts && nEmptyParts > nTokens - k - 1) {
+                continue;
+            }
+
+            if (pruner != null && pruner.prune(labels, k + 1, partSizes)) {
+                continue;
+            }
+
+            if (k == nTokens - 1) {
+                return true;
+            }
+
+            depth = k + 1;
+            labels[depth] = -1;
+        }
+
+        done = true;
+        return false;
+    }
+
+    /* Labels of the current partition. The array is owned by the enumerator and changes on each call to next(). */
+    public int[] getLabels() {
+        return labels;
+    }
+
+    private void assign(int part) {
+        if (partSizes[part]++ == 0) {
+            nEmptyParts--;
+        }
+    }
+
+    private void unassign(int part) {
+        if (--partSizes[part] == 0) {
+            nEmptyParts++;
+        }
+    }
+}
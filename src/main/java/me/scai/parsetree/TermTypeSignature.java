@@ -0,0 +1,94 @@
+package me.scai.parsetree;
+
+/**
+ * Terminal-type signature of a token set, in the terminal-type bit space of a GrammarIndex.
+ *
+ * Holds the terminal-type class of every written token and the union of their terminal-type bits. The set of
+ * productions that admit all the written tokens (i.e., that do not exclude the token set for a wrong terminal type) is
+ * computed lazily, once per signature. Signatures of subsets are derived from the signature of the full set without
+ * looking up any token names again.
+ */
+public final class TermTypeSignature {
+    /* Member variables */
+    private final GrammarIndex index;
+    private final GrammarIndex.TokenClass[] tokenClasses;   /* One per token; null for node tokens */
+    private final long[] unionTypeBits;
+    private final boolean hasNodeToken;
+
+    private volatile long[] admittingProdBits;              /* Lazily calculated */
+
+    /* Constructor */
+    TermTypeSignature(final GrammarIndex index, final GrammarIndex.TokenClass[] tokenClasses) {
+        this.index = index;
+        this.tokenClasses = tokenClasses;
+
+        unionTypeBits = new long[index.getNumTermTypeWords()];
+        boolean t_hasNodeToken = false;
+        for (GrammarIndex.TokenClass tokenClass : tokenClasses) {
+            if (tokenClass == null) {
+                t_hasNodeToken = true;
+            } else {
+                for (int w = 0; w < unionTypeBits.length; ++w) {
+                    unionTypeBits[w] |= tokenClass.typeBits[w];
+                }
+            }
+        }
+
+        hasNodeToken = t_hasNodeToken;
+    }
+
+    /**
+     * Derive the signature of a subset of the tokens
+     * @param indices  Indices of the tokens in the subset
+     * @return         Signature of the subset
+     */
+    public TermTypeSignature subset(final int[] indices) {
+        GrammarIndex.TokenClass[] subClasses = new GrammarIndex.TokenClass[indices.length];
+        for (int i = 0; i < indices.length; ++i) {
+            subClasses[i] = tokenClasses[indices[i]];
+        }
+
+        return new TermTypeSignature(index, subClasses);
+    }
+
+    public int nTokens() {
+        return tokenClasses.length;
+    }
+
+    public boolean hasNodeToken() {
+        return hasNodeToken;
+    }
+
+    /* Whether this signature was calculated in the bit space of the given index */
+    boolean isFrom(final GrammarIndex index) {
+        return this.index == index;
+    }
+
+    GrammarIndex.TokenClass getTokenClass(final int i) {
+        return tokenClasses[i];
+    }
+
+    long[] getUnionTypeBits() {
+        return unionTypeBits;
+    }
+
+    /* Whether every written token matches at least one of the terminal types allowed in production #prodIdx */
+    boolean admittedByProd(final int prodIdx) {
+        long[] bits = admittingProdBits;
+
+        if (bits == null) {
+            bits = index.getAllProdBits();
+            for (GrammarIndex.TokenClass tokenClass : tokenClasses) {
+                if (tokenClass != null) {
+                    for (int w = 0; w < bits.length; ++w) {
+                        bits[w] &= tokenClass.admittingProdBits[w];
+                    }
+                }
+            }
+
+            admittingProdBits = bits;
+        }
+
+        return (bits[prodIdx >> 6] & (1L << (prodIdx & 63))) != 0L;
+    }
+}
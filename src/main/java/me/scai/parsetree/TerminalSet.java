@@ -9,6 +9,7 @@ import java.util.Set;
 import java.util.Iterator;
 import java.net.URL;
 
+import me.scai.handwriting.AbstractToken;
 import me.scai.handwriting.TokenDegeneracy;
 
 import com.google.gson.JsonParser;
@@ -32,6 +33,9 @@ public class TerminalSet {
 	Map<String, String> token2TexNotationMap = new HashMap<>();
 	
 	private TokenDegeneracy tokenDegen;
+
+	/* Terminal-type bit space of the grammar compiled against this terminal set. Set by GraphicalProductionSet. */
+	private transient volatile GrammarIndex grammarIndex;
 	
 	/* Constructor */
 	/* Default constructor */
@@ -110,6 +114,18 @@ public class TerminalSet {
 		return token2TypesMap.get(token);
 	}
 	
+	void setGrammarIndex(GrammarIndex grammarIndex) {
+		this.grammarIndex = grammarIndex;
+	}
+
+	/* Get the terminal-type signature of a list of tokens.
+	 * Returns null if no grammar has been compiled against this terminal set. */
+	public TermTypeSignature getTermTypeSignature(List<AbstractToken> tokens) {
+		GrammarIndex index = grammarIndex;
+
+		return (index == null) ? null : index.getSignature(tokens);
+	}
+	
 	/* Test if a type is a terminal type */
 	public boolean isTypeTerminal(String type) {
 //		if ( type == epsString )
@@ -0,0 +1,77 @@
+package me.scai.parsetree;
+
+import java.util.Arrays;
+
+import me.scai.handwriting.CWrittenTokenSetNoStroke;
+
+/**
+ * Immutable key of the memo maps of TokenSetParser. A key consists of the token IDs of a token set and an interned
+ * tag, which is either the ID of a LHS name or the ID of a set of valid productions (see TokenSetParser).
+ *
+ * The token IDs are stored in the order of the token set, which is ascending in the common case, because cached data
+ * such as the indices of the possible heads depend on the order of the tokens in the set. The size of a key depends
+ * only on the number of tokens, not on the magnitude of the IDs, which keep growing over a session.
+ */
+final class TokenSetMemoKey {
+    /* Constants */
+    public static final int KIND_LHS = 0;
+    public static final int KIND_PROD_SET = 1;
+
+    /* Member variables */
+    private final int[] tokenIds;
+    private final int kind;
+    private final int tag;
+
+    private final int hashCode;
+
+    /* Constructor */
+    public TokenSetMemoKey(CWrittenTokenSetNoStroke tokenSet, int kind, int tag) {
+        final int n = tokenSet.tokenIDs.size();
+
+        int[] ids = new int[n];
+        for (int i = 0; i < n; ++i) {
+            ids[i] = tokenSet.tokenIDs.get(i);
+        }
+
+        this.tokenIds = ids;
+        this.kind = kind;
+        this.tag = tag;
+
+        int hc = Arrays.hashCode(tokenIds);
+        hc = 31 * hc + kind;
+        hc = 31 * hc + tag;
+        this.hashCode = hc;
+    }
+
+    /* Get the token IDs of the key, in the order of the original token set. The array must not be modified. */
+    public int[] getTokenIds() {
+        return tokenIds;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof TokenSetMemoKey)) {
+            return false;
+        }
+
+        TokenSetMemoKey that = (TokenSetMemoKey) obj;
+
+        return hashCode == that.hashCode &&
+               kind == that.kind &&
+               tag == that.tag &&
+               Arrays.equals(tokenIds, that.tokenIds);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return MathHelper.intArray2String(getTokenIds()) + "@" + (kind == KIND_LHS ? "L" : "P") + tag;
+    }
+}
@@ -2,7 +2,12 @@ package me.scai.parsetree;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
+import me.scai.handwriting.AbstractToken;
 import me.scai.handwriting.CWrittenTokenSetNoStroke;
 import me.scai.handwriting.NodeToken;
 
@@ -18,21 +23,62 @@ public class TokenSetParser implements ITokenSetParser {
 													 * No limit on levels of
 													 * recursive drill
 													 */
-	private int currDrillDepth = 0; /* Thread-safe? */
 
 	private boolean bDebug = false;
 
-	/* Temporary variables for parsing */
+	/* Parallel parsing: the candidate productions of evalGeometry are evaluated as fork/join tasks */
     private boolean usingMultiThreads = false;
+    private volatile boolean parallelParseInterrupted = false;
+
+	/* Anytime parsing: a beam width and a time budget bound the drill-down of evalGeometry. See setBeamWidth() and
+	 * setParseTimeBudget(). */
+	private int beamWidth = 0;                  /* 0: unlimited */
+	private long parseTimeBudgetMillis = 0L;    /* 0: no time budget */
+	private volatile long parseDeadlineNanos;
+	private volatile boolean bDeadlineReached;
+	private volatile boolean bBeamPrunedInParse; /* The current parse reached results affected by the beam width */
+	private boolean bLastParseApproximate = false;
+	private boolean bCacheStale = false;        /* Forces a reset of the memo maps at the next parse */
+
+	/* Maximum number of tokens folded into the tree in one step of the greedy fallback */
+	private static final int GREEDY_WINDOW = 3;
+
+	/* Temporary variables for parsing */
+
+	private Map<TokenSetMemoKey, int[]> tokenSetLHS2IdxValidProdsMap;
+	private Map<TokenSetMemoKey, ArrayList<int[][]>> tokenSetLHS2IdxPossibleHeadsMap;
+	private Map<TokenSetMemoKey, Integer> tokenSetLHS2IdxBestProdMap;
+
+	private Map<TokenSetMemoKey, Float> evalGeom2MaxScoreMap;
+	private Map<TokenSetMemoKey, Node[][]> evalGeom2NodesMap;
+	private Map<TokenSetMemoKey, float[][]> evalGeom2ScoresMap;
+	private Map<TokenSetMemoKey, CWrittenTokenSetNoStroke[][][]> evalGeom2RemSetsMap;
+
+	/* Memo keys that each geometric evaluation looked up or created, including those of its drill-downs. These are
+	 * the entries that parsing from scratch would have evaluated along with it. */
+	private Map<TokenSetMemoKey, TokenSetMemoKey[]> evalGeom2DepsMap;
+
+	/* Memo keys evaluated, or reused with their dependencies, by the current parse. Tree construction only follows
+	 * these, so that entries cached by earlier parses but not reached by the current one cannot change its outcome. */
+	private Set<TokenSetMemoKey> liveMemoKeys;
 
-	private Map<String, int[]> tokenSetLHS2IdxValidProdsMap;
-	private Map<String, ArrayList<int[][]>> tokenSetLHS2IdxPossibleHeadsMap;
-	private Map<String, Integer> tokenSetLHS2IdxBestProdMap;
+	/* Memo keys of the geometric evaluations in which the beam discarded hypotheses */
+	private Set<TokenSetMemoKey> beamPrunedMemoKeys;
 
-	private Map<String, Float> evalGeom2MaxScoreMap;
-	private Map<String, Node[][]> evalGeom2NodesMap;
-	private Map<String, float[][]> evalGeom2ScoresMap;
-	private Map<String, CWrittenTokenSetNoStroke[][][]> evalGeom2RemSetsMap;
+	/* Persistent (cross-parse) cache. The memo maps above survive across calls to parse(). Entries are
+	 * invalidated selectively: only the entries whose token subsets contain a changed or removed token are
+	 * dropped. Tokens are identified by their token IDs (CWrittenTokenSetNoStroke.tokenIDs). */
+	private static final int DEFAULT_PERSISTENT_CACHE_CAPACITY = 20000;
+
+	private int persistentCacheCapacity = DEFAULT_PERSISTENT_CACHE_CAPACITY; /* 0 disables the persistent cache */
+	private int cachedSearchIdxVersion = -1;
+
+	private Map<Integer, TokenFingerprint> tokenId2Fingerprint;
+	private Map<Integer, Set<TokenSetMemoKey>> tokenId2MemoKeys;
+
+	/* Interned IDs of LHS names and of sets of valid productions, used in memo keys */
+	private Map<String, Integer> lhs2InternedId;
+	private Map<ProdSet, Integer> prodSet2InternedId;
 
 	protected ParseTreeBiaser biaser;
     protected ParseTreeMatrixProcessor matrixProcessor;
@@ -47,7 +93,7 @@ public class TokenSetParser implements ITokenSetParser {
 		gpSet = t_gpSet;
 		setRecursionGeomScoreRatioThresh(t_recursionGeomScoreRatioThresh);
 
-		biaser = new ParseTreeBiaser(gpSet);
+		biaser = gpSet.genBiaser();
         matrixProcessor = new ParseTreeMatrixProcessor();
 	}
 
@@ -69,16 +115,95 @@ public class TokenSetParser implements ITokenSetParser {
 	}
 
 	public void init() {
-        setUsingMultiThreads(false);
+		tokenSetLHS2IdxValidProdsMap = new ConcurrentHashMap<TokenSetMemoKey, int[]>();
+		tokenSetLHS2IdxPossibleHeadsMap = new ConcurrentHashMap<TokenSetMemoKey, ArrayList<int[][]>>();
+		tokenSetLHS2IdxBestProdMap = new ConcurrentHashMap<TokenSetMemoKey, Integer>();
+
+		evalGeom2MaxScoreMap = new ConcurrentHashMap<TokenSetMemoKey, Float>();
+		evalGeom2NodesMap = new ConcurrentHashMap<TokenSetMemoKey, Node[][]>();
+		evalGeom2ScoresMap = new ConcurrentHashMap<TokenSetMemoKey, float[][]>();
+		evalGeom2RemSetsMap = new ConcurrentHashMap<TokenSetMemoKey, CWrittenTokenSetNoStroke[][][]>();
+		evalGeom2DepsMap = new ConcurrentHashMap<TokenSetMemoKey, TokenSetMemoKey[]>();
+		beamPrunedMemoKeys = Collections.newSetFromMap(new ConcurrentHashMap<TokenSetMemoKey, Boolean>());
+
+		tokenId2Fingerprint = new HashMap<>();
+		tokenId2MemoKeys = new HashMap<>();
+
+		lhs2InternedId = new ConcurrentHashMap<>();
+		prodSet2InternedId = new ConcurrentHashMap<>();
+
+		cachedSearchIdxVersion = gpSet.getSearchIdxVersion();
+
+		bCacheStale = false;
+	}
+
+	/**
+	 * Set the capacity of the persistent parse cache, i.e., the memo maps that survive across calls to parse().
+	 * If the number of cached entries exceeds the capacity at the beginning of a parse() call, the entire cache is
+	 * cleared. Setting the capacity to 0 disables the persistent cache.
+	 * @param persistentCacheCapacity  Maximum number of cached entries (>= 0)
+	 */
+	public void setPersistentCacheCapacity(int persistentCacheCapacity) {
+		if (persistentCacheCapacity < 0) {
+			throw new IllegalArgumentException("Negative persistent cache capacity: " + persistentCacheCapacity);
+		}
+
+		this.persistentCacheCapacity = persistentCacheCapacity;
+	}
+
+	public int getPersistentCacheCapacity() {
+		return persistentCacheCapacity;
+	}
+
+	/**
+	 * Set the beam width of parsing. In each geometric evaluation, i.e., for each token subset and set of candidate
+	 * productions of a LHS, at most beamWidth of the best partial hypotheses (production, head and partition) are
+	 * drilled down into. The rest are discarded, unless none of the kept ones leads to a complete parse, in which
+	 * case the next best ones are tried. Only effective if the recursion geometric score ratio threshold is greater
+	 * than 0.
+	 * @param beamWidth  Maximum number of hypotheses kept per evaluation (>= 1), or 0 for an unlimited beam
+	 */
+	public synchronized void setBeamWidth(int beamWidth) {
+		if (beamWidth < 0) {
+			throw new IllegalArgumentException("Negative beam width: " + beamWidth);
+		}
+
+		if (beamWidth != this.beamWidth) {
+			bCacheStale = true; /* Cached results depend on the beam width */
+		}
+		this.beamWidth = beamWidth;
+	}
+
+	public int getBeamWidth() {
+		return beamWidth;
+	}
+
+	/**
+	 * Set the time budget of parse(). Once the budget is spent, the geometric evaluations in flight are aborted, and
+	 * the tree is built greedily instead: the tokens are taken from left to right and folded, one small parse at a
+	 * time, into the tree of the tokens before them. The result is marked as approximate (see
+	 * isLastParseApproximate()). The greedy fallback gets the same budget again, so that parse() returns within about
+	 * twice the budget; if the fallback runs out of it too, parse() returns null.
+	 * @param parseTimeBudgetMillis  Time budget in milliseconds (>= 0), or 0 for no time budget
+	 */
+	public void setParseTimeBudget(long parseTimeBudgetMillis) {
+		if (parseTimeBudgetMillis < 0L) {
+			throw new IllegalArgumentException("Negative parse time budget: " + parseTimeBudgetMillis);
+		}
 
-		tokenSetLHS2IdxValidProdsMap = new ConcurrentHashMap<String, int[]>();
-		tokenSetLHS2IdxPossibleHeadsMap = new ConcurrentHashMap<String, ArrayList<int[][]>>();
-		tokenSetLHS2IdxBestProdMap = new ConcurrentHashMap<String, Integer>();
+		this.parseTimeBudgetMillis = parseTimeBudgetMillis;
+	}
+
+	public long getParseTimeBudget() {
+		return parseTimeBudgetMillis;
+	}
 
-		evalGeom2MaxScoreMap = new ConcurrentHashMap<String, Float>();
-		evalGeom2NodesMap = new ConcurrentHashMap<String, Node[][]>();
-		evalGeom2ScoresMap = new ConcurrentHashMap<String, float[][]>();
-		evalGeom2RemSetsMap = new ConcurrentHashMap<String, CWrittenTokenSetNoStroke[][][]>();
+	/**
+	 * @return true if and only if the result of the last call to parse() may differ from that of a full search,
+	 *         because the time budget ran out or because the beam discarded hypotheses
+	 */
+	public boolean isLastParseApproximate() {
+		return bLastParseApproximate;
 	}
 
     @Override
@@ -89,11 +214,33 @@ public class TokenSetParser implements ITokenSetParser {
 	@Override
 	public Node parse(CWrittenTokenSetNoStroke tokenSet)
             throws TokenSetParserException, InterruptedException {
-		init();
+		bDeadlineReached = false;
+		bBeamPrunedInParse = false;
+		bLastParseApproximate = false;
+		parseDeadlineNanos = (parseTimeBudgetMillis > 0L) ?
+		                     System.nanoTime() + parseTimeBudgetMillis * 1000000L : 0L;
+
+		prepareMemoMaps(tokenSet);
+		liveMemoKeys = Collections.newSetFromMap(new ConcurrentHashMap<TokenSetMemoKey, Boolean>());
 
 		tokenSet.getAllTokensTerminalTypes(termSet);
 
-		Node n = parse(tokenSet, "ROOT");
+		Node n;
+		try {
+			n = parse(tokenSet, "ROOT");
+		} catch (ParseDeadlineExceededException exc) {
+			bDeadlineReached = true;
+			try {
+				n = parseGreedily(tokenSet);
+			} catch (ParseDeadlineExceededException greedyExc) {
+				n = null;
+			}
+		}
+
+		if (bDeadlineReached) {
+			bCacheStale = true; /* Results cut short by the deadline must not be reused by later parses */
+		}
+		bLastParseApproximate = bDeadlineReached || bBeamPrunedInParse;
 
         /* Process bias (association) in grammar */
 		biaser.process(n);
@@ -104,29 +251,359 @@ public class TokenSetParser implements ITokenSetParser {
 		return n;
 	}
 
+	/**
+	 * Fallback of parse() once the time budget is spent. The tokens are taken in ascending order of their central X
+	 * coordinates, and folded from left to right into a node token: in each step, the longest run of the next tokens,
+	 * up to GREEDY_WINDOW of them, that can be parsed together with the node token of the tokens before them becomes
+	 * the new node token. If the tokens after a run cannot be folded, the next shorter run is tried. Each step parses
+	 * only a few tokens. The fallback gets a time budget of its own, the same as that of the parse.
+	 * @param tokenSet  The token set being parsed
+	 * @return          Parse tree, or null if the tokens could not be folded
+	 */
+	private Node parseGreedily(final CWrittenTokenSetNoStroke tokenSet)
+			throws InterruptedException {
+		parseDeadlineNanos = System.nanoTime() + parseTimeBudgetMillis * 1000000L;
+
+		/* The results of the aborted search are not reused */
+		init();
+		recordTokenFingerprints(tokenSet);
+		liveMemoKeys = Collections.newSetFromMap(new ConcurrentHashMap<TokenSetMemoKey, Boolean>());
+
+		final int nTokens = tokenSet.getNumTokens();
+		final Integer[] order = new Integer[nTokens];
+		for (int i = 0; i < nTokens; ++i) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Float.compare(tokenSet.tokens.get(a).getCentralX(), tokenSet.tokens.get(b).getCentralX());
+			}
+		});
+
+		/* Node tokens get distinct IDs that the tokens of the set do not use, as the memo keys are made of token IDs */
+		int maxTokenId = Integer.MIN_VALUE;
+		for (int tokenId : tokenSet.tokenIDs) {
+			maxTokenId = Math.max(maxTokenId, tokenId);
+		}
+
+		return foldGreedily(tokenSet, order, null, 0, 0, new int[] {maxTokenId + 1});
+	}
+
+	/* Fold the tokens order[from], order[from + 1], ... into the node token of the tokens before them (if any). See
+	 * parseGreedily(). nextNodeTokenId holds the ID of the next node token. Returns null if the tokens cannot be
+	 * folded. */
+	private Node foldGreedily(final CWrittenTokenSetNoStroke tokenSet, final Integer[] order,
+	                          final NodeToken nodeToken, final int nodeTokenId, final int from,
+	                          final int[] nextNodeTokenId)
+			throws InterruptedException {
+		final int nTokens = order.length;
+
+		for (int to = Math.min(nTokens, from + GREEDY_WINDOW); to > from; --to) {
+			CWrittenTokenSetNoStroke stepSet = getGreedyStepSet(tokenSet, order, nodeToken, nodeTokenId, from, to);
+			Node stepNode = parseGreedyStep(stepSet);
+			if (stepNode == null) {
+				continue;
+			}
+
+			if (to == nTokens) {
+				return stepNode;
+			}
+
+			Node n = foldGreedily(tokenSet, order, getGreedyNodeToken(stepNode, stepSet), nextNodeTokenId[0]++, to,
+			                      nextNodeTokenId);
+			if (n != null) {
+				return n;
+			}
+		}
+
+		return null;
+	}
+
+	/* Token set of a step of the greedy fallback: the node token of the tokens folded so far (if any), and the tokens
+	 * order[from], ..., order[to - 1] */
+	private CWrittenTokenSetNoStroke getGreedyStepSet(final CWrittenTokenSetNoStroke tokenSet, final Integer[] order,
+	                                                  final NodeToken nodeToken, final int nodeTokenId,
+	                                                  final int from, final int to) {
+		CWrittenTokenSetNoStroke stepSet = new CWrittenTokenSetNoStroke();
+		if (nodeToken != null) {
+			stepSet.addTokenWithoutUuids(nodeToken, nodeTokenId);
+		}
+		for (int k = from; k < to; ++k) {
+			final int i = order[k];
+			stepSet.addToken(tokenSet.tokens.get(i), tokenSet.getConstituentTokenUuids(i), tokenSet.tokenIDs.get(i));
+		}
+		stepSet.calcBounds();
+		stepSet.getAllTokensTerminalTypes(termSet);
+
+		return stepSet;
+	}
+
+	private Node parseGreedyStep(final CWrittenTokenSetNoStroke stepSet)
+			throws InterruptedException {
+		try {
+			return parse(stepSet, "ROOT");
+		} catch (TokenSetParserException exc) {
+			return null;
+		}
+	}
+
+	/* The node of the single lineage of a node token's tree that is made by the given production (see
+	 * NodeToken.getMatchingGraphicalProductionIndices()). The root node of the node token would leave a ROOT node in
+	 * the place of the production's LHS, which the biaser cannot process. */
+	private Node getMatchingLineageNode(final NodeToken nodeToken, final int idxProd) {
+		final String prodSumString = gpSet.prodSumStrings.get(idxProd);
+
+		for (Node nd = nodeToken.getNode(); nd != null; nd = (nd.ch != null && nd.ch.length == 1) ? nd.ch[0] : null) {
+			if (prodSumString.equals(nd.prodSumString)) {
+				return nd;
+			}
+		}
+
+		return nodeToken.getNode();
+	}
+
+	/* Node token of a folded step, processed as the node tokens of subset parsing (see TokenSet2NodeTokenParser) */
+	private NodeToken getGreedyNodeToken(final Node stepNode, final CWrittenTokenSetNoStroke stepSet) {
+		biaser.process(stepNode);
+		matrixProcessor.process(stepNode);
+
+		return new NodeToken(stepNode, stepSet);
+	}
+
+	/**
+	 * Get the memo maps ready for parsing a token set. If the persistent cache is usable, only the entries that
+	 * involve changed or removed tokens are invalidated. Otherwise, all memo maps are reset.
+	 * @param tokenSet  The token set about to be parsed
+	 */
+	private void prepareMemoMaps(CWrittenTokenSetNoStroke tokenSet) {
+		if (tokenId2Fingerprint == null ||
+			bCacheStale ||
+			persistentCacheCapacity == 0 ||
+			cachedSearchIdxVersion != gpSet.getSearchIdxVersion() ||
+			getNumMemoEntries() > persistentCacheCapacity) {
+			init();
+		} else {
+			Set<Integer> currentTokenIds = new HashSet<>(tokenSet.tokenIDs);
+
+			/* Tokens that are no longer present */
+			List<Integer> staleTokenIds = new ArrayList<>();
+			for (int tokenId : tokenId2Fingerprint.keySet()) {
+				if (!currentTokenIds.contains(tokenId)) {
+					staleTokenIds.add(tokenId);
+				}
+			}
+
+			/* Tokens that are present, but have changed since the last parse (e.g., moved or re-recognized) */
+			for (int i = 0; i < tokenSet.tokens.size(); ++i) {
+				final int tokenId = tokenSet.tokenIDs.get(i);
+				TokenFingerprint fingerprint = tokenId2Fingerprint.get(tokenId);
+
+				if (fingerprint != null && !fingerprint.matches(tokenSet.tokens.get(i))) {
+					staleTokenIds.add(tokenId);
+				}
+			}
+
+			for (int tokenId : staleTokenIds) {
+				invalidateToken(tokenId);
+			}
+		}
+
+		recordTokenFingerprints(tokenSet);
+	}
+
+	private void recordTokenFingerprints(CWrittenTokenSetNoStroke tokenSet) {
+		for (int i = 0; i < tokenSet.tokens.size(); ++i) {
+			tokenId2Fingerprint.put(tokenSet.tokenIDs.get(i), new TokenFingerprint(tokenSet.tokens.get(i)));
+		}
+	}
+
+	/**
+	 * Remove all memo entries whose token subsets contain the specified token.
+	 * @param tokenId  ID of the token that has changed or been removed
+	 */
+	private synchronized void invalidateToken(int tokenId) {
+		tokenId2Fingerprint.remove(tokenId);
+
+		Set<TokenSetMemoKey> keys = tokenId2MemoKeys.remove(tokenId);
+		if (keys == null) {
+			return;
+		}
+
+		for (TokenSetMemoKey key : keys) {
+			/* Unregister the key from the other tokens in it, so that the index only holds keys in the memo maps */
+			for (int otherTokenId : key.getTokenIds()) {
+				if (otherTokenId == tokenId) {
+					continue;
+				}
+
+				Set<TokenSetMemoKey> otherKeys = tokenId2MemoKeys.get(otherTokenId);
+				if (otherKeys != null) {
+					otherKeys.remove(key);
+					if (otherKeys.isEmpty()) {
+						tokenId2MemoKeys.remove(otherTokenId);
+					}
+				}
+			}
+
+			tokenSetLHS2IdxValidProdsMap.remove(key);
+			tokenSetLHS2IdxPossibleHeadsMap.remove(key);
+			tokenSetLHS2IdxBestProdMap.remove(key);
+
+			evalGeom2MaxScoreMap.remove(key);
+			evalGeom2NodesMap.remove(key);
+			evalGeom2ScoresMap.remove(key);
+			evalGeom2RemSetsMap.remove(key);
+			evalGeom2DepsMap.remove(key);
+			beamPrunedMemoKeys.remove(key);
+		}
+	}
+
+	private int getNumMemoEntries() {
+		return tokenSetLHS2IdxValidProdsMap.size() + evalGeom2NodesMap.size();
+	}
+
+	/* Number of distinct memo keys in the memo maps. For testing. */
+	synchronized int getNumMemoKeys() {
+		Set<TokenSetMemoKey> keys = new HashSet<>();
+		keys.addAll(tokenSetLHS2IdxValidProdsMap.keySet());
+		keys.addAll(tokenSetLHS2IdxPossibleHeadsMap.keySet());
+		keys.addAll(tokenSetLHS2IdxBestProdMap.keySet());
+		keys.addAll(evalGeom2NodesMap.keySet());
+
+		return keys.size();
+	}
+
+	/* Number of distinct memo keys in the index from token IDs to memo keys. For testing. */
+	synchronized int getNumIndexedMemoKeys() {
+		Set<TokenSetMemoKey> keys = new HashSet<>();
+		for (Set<TokenSetMemoKey> tokenKeys : tokenId2MemoKeys.values()) {
+			keys.addAll(tokenKeys);
+		}
+
+		return keys.size();
+	}
+
+	/* Mark a memo key as reached by the current parse, along with the keys that its evaluation depends on. The
+	 * dependencies of a key involve subsets of its tokens, so they are invalidated no later than the key itself. */
+	private void markLive(final TokenSetMemoKey key) {
+		if (!liveMemoKeys.add(key)) {
+			return;
+		}
+
+		if (beamPrunedMemoKeys.contains(key)) {
+			bBeamPrunedInParse = true;
+		}
+
+		TokenSetMemoKey[] deps = evalGeom2DepsMap.get(key);
+		if (deps != null) {
+			for (TokenSetMemoKey dep : deps) {
+				markLive(dep);
+			}
+		}
+	}
+
+	/* Keep track of which tokens a memo key depends on, for selective invalidation */
+	private void registerMemoKey(final TokenSetMemoKey key) {
+		for (int tokenId : key.getTokenIds()) {
+			Set<TokenSetMemoKey> keys = tokenId2MemoKeys.get(tokenId);
+			if (keys == null) {
+				keys = new HashSet<>();
+				tokenId2MemoKeys.put(tokenId, keys);
+			}
+
+			keys.add(key);
+		}
+	}
+
+	/* Cached nodes must not be modified by tree construction, biasing and matrix processing, because they may be
+	 * reused by subsequent calls to parse(). */
+	private static Node copyCachedNode(Node n) {
+		if (n == null) {
+			return null;
+		}
+
+		Node c = new Node(n);
+		clearParentLinks(c); /* The copy constructor links the children to the parent; freshly parsed nodes are not linked */
+
+		return c;
+	}
+
+	private static void clearParentLinks(Node n) {
+		if (n.ch == null) {
+			return;
+		}
+
+		for (Node child : n.ch) {
+			if (child != null) {
+				child.p = null;
+				clearParentLinks(child);
+			}
+		}
+	}
+
+	/**
+	 * Snapshot of the properties of a token that the parsing results depend on. Used to detect whether a token with
+	 * a given ID has changed between two calls to parse().
+	 */
+	private static class TokenFingerprint {
+		private final AbstractToken token;
+		private final float[] bounds;
+		private final String recogResult;
+
+		TokenFingerprint(AbstractToken token) {
+			this.token = token;
+			this.bounds = Arrays.copyOf(token.getBounds(), token.getBounds().length);
+			this.recogResult = token.getRecogResult();
+		}
+
+		boolean matches(AbstractToken other) {
+			if (token instanceof NodeToken || other instanceof NodeToken) {
+				/* The parse tree inside a node token is not compared: require the same instance */
+				if (token != other) {
+					return false;
+				}
+			}
+
+			if (token.getClass() != other.getClass()) {
+				return false;
+			}
+
+			return Arrays.equals(bounds, other.getBounds()) &&
+				   (recogResult == null ? other.getRecogResult() == null : recogResult.equals(other.getRecogResult()));
+		}
+	}
+
 
     /* Side effect input arguments:
      *     nodes,
      *     maxGeomScores,
-     *     aRemainingSets */
+     *     aRemainingSets,
+     *     callerDeps (if not null, the memo key of this evaluation is added to it) */
 	private float evalGeometry(final CWrittenTokenSetNoStroke tokenSet,
                                final int[] idxValidProds,
                                final int[] idxValidProds_wwoe,
                                final ArrayList<int[][]> idxPossibleHead,
                                final Node[][] nodes,
                                final float[][] maxGeomScores,
-                               final CWrittenTokenSetNoStroke[][][] aRemainingSets)
+                               final CWrittenTokenSetNoStroke[][][] aRemainingSets,
+                               final int drillDepth,
+                               final Set<TokenSetMemoKey> callerDeps)
         throws InterruptedException {
 
 		final float selectiveDrillThresh = recursionGeomScoreRatioThresh; /* To disable selective drill, set to 0.0f */
 
-		final String[] hashKey1 = new String[1];
 //		String tHashKey = tokenSet.toString() + "@"+ MathHelper.intArray2String(idxValidProds);
 //        String tHashKey = tokenSet.toString() + "@"+ MathHelper.intArray2HashCode(idxValidProds);
 //        String tHashKey = "" + tokenSet.hashCode() + "@"+ MathHelper.intArray2String(idxValidProds);
-        String tHashKey = getHashCodeFromTokenSetAndIdxValidProds(tokenSet, idxValidProds);
+        TokenSetMemoKey tHashKey = getProdSetMemoKey(tokenSet, idxValidProds);
+        if (callerDeps != null) {
+            callerDeps.add(tHashKey);
+        }
 
         if (existsInEvalGeom2MaxScoreMap(tHashKey)) {
+			markLive(tHashKey);
+
 			Node[][] r_nodes = getFromEvalGeom2NodesMap(tHashKey);
 			for (int i = 0; i < r_nodes.length; ++i) {
                 nodes[i] = r_nodes[i];
@@ -147,16 +624,15 @@ public class TokenSetParser implements ITokenSetParser {
 
 		/* First pass: Obtain the geometric scores without drill-down */
 		boolean[][] bToDrill = null;
+		int width = 0;                   /* Beam width of this evaluation; 0: unlimited */
+		List<int[]> beamDiscarded = null; /* Hypotheses discarded by the beam, best first */
+		float[][] shallowScores = null;  /* Scores of the first pass, for restoring discarded hypotheses */
 		if (selectiveDrillThresh > 0.0f) {
 			final float[][] maxGeomScores_noFlag = new float[maxGeomScores.length][];
 
-//            Thread[] jobThreads = new Thread[idxValidProds.length];
-			for (int ii = 0; ii < idxValidProds.length; ++ii) {
-                final int i = ii;
-
-//                Runnable jobRunnable = new Runnable() {
-//                    @Override
-//                    public void run() {
+			forEachProduction(idxValidProds.length, new ProductionJob() {
+                    @Override
+                    public void run(final int i) {
                         int nrhs = gpSet.prods.get(idxValidProds[i]).rhs.length;
 				        /* Number of right-hand size elements, including the head */
 
@@ -166,6 +642,8 @@ public class TokenSetParser implements ITokenSetParser {
                         aRemainingSets[i] = new CWrittenTokenSetNoStroke[idxPossibleHead.get(i).length][];
 
                         for (int j = 0; j < idxPossibleHead.get(i).length; ++j) {
+                            checkDeadline();
+
                             final int[] idxHead = idxPossibleHead.get(i)[j];
 
                             final CWrittenTokenSetNoStroke[] remainingSets = new CWrittenTokenSetNoStroke[nrhs];
@@ -186,7 +664,7 @@ public class TokenSetParser implements ITokenSetParser {
                                     List<Integer> matchingProds = nodeToken.getMatchingGraphicalProductionIndices(gpSet); // TODO: null is okay?
                                     if (matchingProds.contains(idxValidProds[i])) {
 
-                                        n = nodeToken.getNode();
+                                        n = getMatchingLineageNode(nodeToken, idxValidProds[i]);
                                         maxGeomScore[0] = 1.0f;
                                         remainingSets[0] = tokenSet; // TODO: What needs to be done about aRemainingSets?
                                     } else {
@@ -196,7 +674,8 @@ public class TokenSetParser implements ITokenSetParser {
                                     }
 
                                 } else {
-                                    n = gpSet.prods.get(idxValidProds[i]).attempt(tokenSet, idxHead, remainingSets, maxGeomScore);
+                                    n = gpSet.prods.get(idxValidProds[i]).attempt(tokenSet, idxHead, remainingSets, maxGeomScore,
+                                                                                  parseDeadlineNanos);
                                 }
 
 						        /* If the head child is a terminal, replace tokenName with the actual name of the token */
@@ -216,18 +695,8 @@ public class TokenSetParser implements ITokenSetParser {
                             }
 
                         }
-//                    }
-//                };
-
-//                jobThreads[i] = new Thread(jobRunnable);
-//                jobThreads[i].start();
-			}
-
-//            for (int i = 0; i < jobThreads.length; ++i) {
-//                try {
-//                    jobThreads[i].join();
-//                } catch(InterruptedException exc) {}
-//            }
+                    }
+            });
 
 			/* Determine which ones need to be drilled down */
 			int[] t_idxMax2 = MathHelper.indexMax2D(maxGeomScores_noFlag);
@@ -248,20 +717,27 @@ public class TokenSetParser implements ITokenSetParser {
 					}
 				}
 			}
-		}
-
-		/* Second pass: Selective drill-down */
-//        Thread[] jobThreads2p = new Thread[idxValidProds.length]; /* Second-pass jobs */
-		for (int ii = 0; ii < idxValidProds.length; ++ii) { /* Iterate through valid productions */
 
+			width = beamWidth;
+			if (width > 0) {
+				shallowScores = new float[maxGeomScores.length][];
+				for (int i = 0; i < maxGeomScores.length; ++i) {
+					shallowScores[i] = maxGeomScores[i].clone();
+				}
 
-            final int i = ii;
+				beamDiscarded = applyBeam(width, bToDrill, maxGeomScores_noFlag, maxGeomScores);
+			}
+		}
 
-            final boolean[] bToDrill2p = bToDrill[i];
+		/* Second pass: Selective drill-down */
+		final boolean[][] bToDrillFinal = bToDrill;
+		final TokenSetMemoKey[] hashKey1 = new TokenSetMemoKey[idxValidProds.length]; /* Last LHS key drilled into, for each production */
+		final Set<TokenSetMemoKey> deps = Collections.newSetFromMap(new ConcurrentHashMap<TokenSetMemoKey, Boolean>());
 
-//            Runnable jobRunnable2p = new Runnable() {
-//                @Override
-//                public void run() {
+		final ProductionJob drillJob = new ProductionJob() { /* Iterate through valid productions */
+                @Override
+                public void run(final int i) throws InterruptedException {
+                    final boolean[] bToDrill2p = bToDrillFinal[i];
 
                     int nrhs = gpSet.prods.get(idxValidProds[i]).rhs.length;
 			        /* Number of right-hand size elements, including the head */
@@ -274,6 +750,8 @@ public class TokenSetParser implements ITokenSetParser {
 
 			        /* Iterate through all potential heads */
                     for (int j = 0; j < idxPossibleHead.get(i).length; ++j) {
+                        checkDeadline();
+
                         int[] idxHead = idxPossibleHead.get(i)[j];
 
                         /* Includes the head */
@@ -289,7 +767,8 @@ public class TokenSetParser implements ITokenSetParser {
                         } else {
                             Node n;
                             if (selectiveDrillThresh == 0.0f) {
-                                n = gpSet.prods.get(idxValidProds[i]).attempt(tokenSet, idxHead, remainingSets, maxGeomScore);
+                                n = gpSet.prods.get(idxValidProds[i]).attempt(tokenSet, idxHead, remainingSets, maxGeomScore,
+                                                                                  parseDeadlineNanos);
 
                                 /* If the head child is a terminal, replace tokenName with the actual name of the token */
                                 if (n != null && termSet.isTypeTerminal(n.ch[0].termName)) {
@@ -307,12 +786,14 @@ public class TokenSetParser implements ITokenSetParser {
                                 bToDrillThis = bToDrill2p[j];
                             }
 
-                            if (bToDrillThis && currDrillDepth < drillDepthLimit && maxGeomScore[0] != 0.0f && nrhs > 1) {
+                            if (bToDrillThis && drillDepth < drillDepthLimit && maxGeomScore[0] != 0.0f && nrhs > 1) {
                                 /* Drill one level down: get the maximum geometric scores from its children */
                                 float[] d_scores = new float[nrhs];
 
                                 for (int k = 0; k < nrhs; ++k) {
                                     /* Iterate through all rhs items, including the head and the non-heads. */
+                                    checkDeadline();
+
                                     ArrayList<int[][]> d_idxPossibleHead = new ArrayList<>();
 
                                     String d_lhs;
@@ -340,8 +821,8 @@ public class TokenSetParser implements ITokenSetParser {
 
                                         if (bDebug) {
                                             System.out.println("Drilling down from level "
-                                                    + currDrillDepth + " to level "
-                                                    + (currDrillDepth + 1) + ": "
+                                                    + drillDepth + " to level "
+                                                    + (drillDepth + 1) + ": "
                                                     + gpSet.prods.get(idxValidProds[i]).lhs
                                                     + " --> " + d_lhs);
                                         }
@@ -369,9 +850,11 @@ public class TokenSetParser implements ITokenSetParser {
                                         int[] d_idxValidProds = null;
                                         int[] d_idxValidProds_noExclude = null;
 
-                                        hashKey1[0] = d_tokenSet.toString() + "@" + d_lhs;
+                                        hashKey1[i] = getLhsMemoKey(d_tokenSet, d_lhs);
+                                        deps.add(hashKey1[i]);
+                                        liveMemoKeys.add(hashKey1[i]);
 
-                                        if (!existsInTokenSetLHS2IdxValidProdsMap(hashKey1[0]) || singleNodeToken) {
+                                        if (!existsInTokenSetLHS2IdxValidProdsMap(hashKey1[i]) || singleNodeToken) {
                                             // WARNING: The "|| singleNodeToken" is added to deal with a bug in the test case
                                             // Test_HandwritingEngineImpl.testSubsetParsingFollowedByRemoveTokenThenAddTokens
                                             // TODO: The logic here need to be thought and tested more carefully to avoid unnecessary performance degradation.
@@ -379,7 +862,8 @@ public class TokenSetParser implements ITokenSetParser {
 
                                             if (singleNodeToken) {
 
-                                                d_idxValidProds_wwoe = gpSet.getIdxValidProds(d_tokenSet, null, termSet, d_lhs, d_idxPossibleHead);
+                                                d_idxValidProds_wwoe = gpSet.getIdxValidProds(d_tokenSet, null, termSet, d_lhs, d_idxPossibleHead,
+                                                                                              parseDeadlineNanos);
                                                 d_idxValidProds = d_idxValidProds_wwoe[0];
                                                 d_idxValidProds_noExclude = d_idxValidProds_wwoe[1];
 
@@ -389,12 +873,14 @@ public class TokenSetParser implements ITokenSetParser {
                                                     if (nodeTokenDirectMatchProdIndex != -1) {
                                                         d_scores[k] = 1.0f;
 
-                                                        String remHashKey = d_tokenSet.toString() + "@" + d_lhs;
+                                                        TokenSetMemoKey remHashKey = getLhsMemoKey(d_tokenSet, d_lhs);
                                                         putInTokenSetLHS2IdxBestProdMap(remHashKey, nodeTokenDirectMatchProdIndex);
                                                         putInTokenSetLHS2IdxValidProdsMap(remHashKey, new int[] {nodeTokenDirectMatchProdIndex});
 
                                                         // TODO: Put node array array in evalGeom2NodesMap
-                                                        String tHashKey2 = d_tokenSet.toString() + "@" + nodeTokenDirectMatchProdIndex;
+                                                        TokenSetMemoKey tHashKey2 = getProdSetMemoKey(d_tokenSet, new int[] {nodeTokenDirectMatchProdIndex});
+                                                        deps.add(tHashKey2);
+                                                        liveMemoKeys.add(tHashKey2);
                                                         Node[][] tNodes = new Node[1][1];
                                                         tNodes[0][0] = nodeTokenDirectMatchNode;
 
@@ -404,9 +890,7 @@ public class TokenSetParser implements ITokenSetParser {
                                                         CWrittenTokenSetNoStroke[][][] tWtSets = new CWrittenTokenSetNoStroke[1][1][1];
                                                         tWtSets[0][0][0] = d_tokenSet; // This is just a placeholder!
 
-                                                        this.evalGeom2ScoresMap.put(tHashKey2, tScores);
-                                                        this.evalGeom2NodesMap.put(tHashKey2, tNodes);
-                                                        this.evalGeom2RemSetsMap.put(tHashKey2, tWtSets);
+                                                        putEvalGeomNodeTokenData(tHashKey2, tNodes, tScores, tWtSets);
 
                                                         continue; //TODO: Prevent early exit
                                                     }
@@ -422,24 +906,25 @@ public class TokenSetParser implements ITokenSetParser {
                                                     d_idxPossibleHead.add(iph);
                                                 }
                                             } else {
-                                                d_idxValidProds_wwoe = gpSet.getIdxValidProds(d_tokenSet, null, termSet, d_lhs, d_idxPossibleHead);
+                                                d_idxValidProds_wwoe = gpSet.getIdxValidProds(d_tokenSet, null, termSet, d_lhs, d_idxPossibleHead,
+                                                                                              parseDeadlineNanos);
                                                 d_idxValidProds = d_idxValidProds_wwoe[0];
                                                 d_idxValidProds_noExclude = d_idxValidProds_wwoe[1];
                                             }
 
                                         /* Store results in hash maps */
-                                            putInTokenSetLHS2IdxValidProdsMap(hashKey1[0], d_idxValidProds);
-                                            // tokenSetLHS2IdxValidProdsNoExcludeMap.put(hashKey1[0], d_idxValidProds_wwoe[1]);
+                                            putInTokenSetLHS2IdxValidProdsMap(hashKey1[i], d_idxValidProds);
+                                            // tokenSetLHS2IdxValidProdsNoExcludeMap.put(hashKey1[i], d_idxValidProds_wwoe[1]);
 
-                                            putInTokenSetLHS2IdxPossibleHeadsMap(hashKey1[0], d_idxPossibleHead);
+                                            putInTokenSetLHS2IdxPossibleHeadsMap(hashKey1[i], d_idxPossibleHead);
                                         } else {
                                             if (bDebug) {
-                                                System.out.println("Hash map getting: " + hashKey1[0]);
+                                                System.out.println("Hash map getting: " + hashKey1[i]);
                                             }
                                         /* Retrieve results from hash maps */
-                                            d_idxValidProds = getFromTokenSetLHS2IdxValidProdsMap(hashKey1[0]);
-                                            // d_idxValidProds_noExclude = tokenSetLHS2IdxValidProdsNoExcludeMap.get(hashKey1[0]);
-                                            d_idxPossibleHead = getFromTokenSetLHS2IdxPossibleHeadsMap(hashKey1[0]);
+                                            d_idxValidProds = getFromTokenSetLHS2IdxValidProdsMap(hashKey1[i]);
+                                            // d_idxValidProds_noExclude = tokenSetLHS2IdxValidProdsNoExcludeMap.get(hashKey1[i]);
+                                            d_idxPossibleHead = getFromTokenSetLHS2IdxPossibleHeadsMap(hashKey1[i]);
                                         }
 
                                         if (d_idxValidProds.length == 0) {
@@ -452,15 +937,13 @@ public class TokenSetParser implements ITokenSetParser {
                                         CWrittenTokenSetNoStroke[][][] d_aRemainingSets = new CWrittenTokenSetNoStroke[d_idxValidProds.length][][];
                                         // int [] d_t_idxMax2 = new int[2];
 
-                                        currDrillDepth++; /* To check: thread-safe? */
-
                                         /************************************/
                                         /*          Recursive call          */
                                         float d_maxGeomScore = evalGeometry(d_tokenSet, d_idxValidProds, d_idxValidProds_noExclude,
-                                                                            d_idxPossibleHead, d_nodes, d_c_maxGeomScores, d_aRemainingSets);
+                                                                            d_idxPossibleHead, d_nodes, d_c_maxGeomScores, d_aRemainingSets,
+                                                                            drillDepth + 1, deps);
                                         /************************************/
 
-                                        currDrillDepth--;
                                         if (d_maxGeomScore == 0.0f) {
                                             break;  /* Because geometric mean will be calculated, if any of the score is zero, the result will also be zero */
                                         }
@@ -481,163 +964,241 @@ public class TokenSetParser implements ITokenSetParser {
                         }
 
                     }
-//                }
-//            };
-
-//            jobThreads2p[i] = new Thread(jobRunnable2p);
-		}
-
-//        if (getUsingMultiThreads()) {
-//            for (int i = 0; i < jobThreads2p.length; ++i) {
-//                jobThreads2p[i].start();
-//                try {
-//                    jobThreads2p[i].join();
-//                } catch (InterruptedException exc) {}
-//            }
-//        } else {
-//            for (int i = 0; i < jobThreads2p.length; ++i) {
-//                jobThreads2p[i].start();
-//            }
-//            for (int i = 0; i < jobThreads2p.length; ++i) {
-//                try {
-//                    jobThreads2p[i].join();
-//                } catch (InterruptedException exc) {}
-//            }
-//
-//            setUsingMultiThreads(true);
-//        }
-
-		/* Get return value */
-		int[] idxMax2 = MathHelper.indexMax2D(maxGeomScores); /* TODO: Resolve ties */
-		float maxScore = maxGeomScores[idxMax2[0]][idxMax2[1]];
-
-		/* Look for flags that indicate the need for further parsing and parse them further. Loop until all of them are gotten rid of through
-		 * recursive calls. */
-		/* We probably don't need to store all the aRemainingSets. This can probably reduce the number of GC and speed things up. Make this an
-		 * option? */
-		while (maxScore == GraphicalProduction.flagNTNeedsParsing) {
-			int i = idxMax2[0];
-			int j = idxMax2[1];
-
-			GraphicalProduction c_prod = gpSet.prods.get(idxValidProds[i]);
-			String c_lhs = c_prod.rhs[0];
-			ArrayList<int[][]> c_idxPossibleHead = new ArrayList<int[][]>();
-
-			int[][] c_idxValidProds_wwoe = null;
-			int[] c_idxValidProds = null;
-			int[] c_idxValidProds_noExclude = null;
-
-			String hashKey = tokenSet.toString() + "@" + c_lhs;
-			if (!existsInTokenSetLHS2IdxValidProdsMap(tokenSet.toString())) {
-				c_idxValidProds_wwoe = gpSet.getIdxValidProds(tokenSet, null,
-						termSet, c_lhs, c_idxPossibleHead);
-				c_idxValidProds = c_idxValidProds_wwoe[0];
-				c_idxValidProds_noExclude = c_idxValidProds_wwoe[1];
-
-				/* Store results in hash maps */
-				putInTokenSetLHS2IdxValidProdsMap(hashKey, c_idxValidProds);
-				// tokenSetLHS2IdxValidProdsNoExcludeMap.put(hashKey,
-				// c_idxValidProds_noExclude);
-				putInTokenSetLHS2IdxPossibleHeadsMap(hashKey, c_idxPossibleHead);
-			} else {
-				if (this.bDebug)
-					System.out.println("Hash map getting: " + hashKey);
-
-				/* Retrieve results from hash maps */
-				c_idxValidProds = getFromTokenSetLHS2IdxValidProdsMap(hashKey);
-				// c_idxValidProds_noExclude = tokenSetLHS2IdxValidProdsNoExcludeMap.get(hashKey);
-				c_idxPossibleHead = getFromTokenSetLHS2IdxPossibleHeadsMap(hashKey);
-	 		}
-
-			if (c_idxValidProds == null || c_idxValidProds.length == 0) {
-				maxGeomScores[i][j] = 0.0f; /* Necessary? */
-			} else {
-				Node[][] c_nodes = new Node[c_idxValidProds.length][];
-				float[][] c_maxGeomScores = new float[c_idxValidProds.length][];
-				CWrittenTokenSetNoStroke[][][] c_aRemainingSets = new CWrittenTokenSetNoStroke[c_idxValidProds.length][][];
-
-				/* Recursive call */
-				float c_maxScore = evalGeometry(tokenSet, c_idxValidProds,
-						c_idxValidProds_noExclude, c_idxPossibleHead, c_nodes,
-						c_maxGeomScores, c_aRemainingSets);
-
-				maxGeomScores[i][j] = c_maxScore;
-			}
+                }
+		};
 
-			/* Re-calculate the maximum */
-			idxMax2 = MathHelper.indexMax2D(maxGeomScores);
+		forEachProduction(idxValidProds.length, drillJob);
+
+		int[] idxMax2;
+		float maxScore;
+		int nWidened = 0;
+		while (true) {
+			/* Get return value */
+			idxMax2 = MathHelper.indexMax2D(maxGeomScores); /* TODO: Resolve ties */
 			maxScore = maxGeomScores[idxMax2[0]][idxMax2[1]];
 
+			/* Look for flags that indicate the need for further parsing and parse them further. Loop until all of them are gotten rid of through
+			 * recursive calls. */
+			/* We probably don't need to store all the aRemainingSets. This can probably reduce the number of GC and speed things up. Make this an
+			 * option? */
+			while (maxScore == GraphicalProduction.flagNTNeedsParsing) {
+				checkDeadline();
+
+				int i = idxMax2[0];
+				int j = idxMax2[1];
+
+				GraphicalProduction c_prod = gpSet.prods.get(idxValidProds[i]);
+				String c_lhs = c_prod.rhs[0];
+				ArrayList<int[][]> c_idxPossibleHead = new ArrayList<int[][]>();
+
+				int[][] c_idxValidProds_wwoe = null;
+				int[] c_idxValidProds = null;
+				int[] c_idxValidProds_noExclude = null;
+
+				TokenSetMemoKey hashKey = getLhsMemoKey(tokenSet, c_lhs);
+				deps.add(hashKey);
+				liveMemoKeys.add(hashKey);
+				if (!existsInTokenSetLHS2IdxValidProdsMap(hashKey)) {
+					c_idxValidProds_wwoe = gpSet.getIdxValidProds(tokenSet, null,
+							termSet, c_lhs, c_idxPossibleHead, parseDeadlineNanos);
+					c_idxValidProds = c_idxValidProds_wwoe[0];
+					c_idxValidProds_noExclude = c_idxValidProds_wwoe[1];
+
+					/* Store results in hash maps */
+					putInTokenSetLHS2IdxValidProdsMap(hashKey, c_idxValidProds);
+					// tokenSetLHS2IdxValidProdsNoExcludeMap.put(hashKey,
+					// c_idxValidProds_noExclude);
+					putInTokenSetLHS2IdxPossibleHeadsMap(hashKey, c_idxPossibleHead);
+				} else {
+					if (this.bDebug)
+						System.out.println("Hash map getting: " + hashKey);
+
+					/* Retrieve results from hash maps */
+					c_idxValidProds = getFromTokenSetLHS2IdxValidProdsMap(hashKey);
+					// c_idxValidProds_noExclude = tokenSetLHS2IdxValidProdsNoExcludeMap.get(hashKey);
+					c_idxPossibleHead = getFromTokenSetLHS2IdxPossibleHeadsMap(hashKey);
+		 		}
+
+				if (c_idxValidProds == null || c_idxValidProds.length == 0) {
+					maxGeomScores[i][j] = 0.0f; /* Necessary? */
+				} else {
+					Node[][] c_nodes = new Node[c_idxValidProds.length][];
+					float[][] c_maxGeomScores = new float[c_idxValidProds.length][];
+					CWrittenTokenSetNoStroke[][][] c_aRemainingSets = new CWrittenTokenSetNoStroke[c_idxValidProds.length][][];
+
+					/* Recursive call */
+					float c_maxScore = evalGeometry(tokenSet, c_idxValidProds,
+							c_idxValidProds_noExclude, c_idxPossibleHead, c_nodes,
+							c_maxGeomScores, c_aRemainingSets, drillDepth, deps);
+
+					maxGeomScores[i][j] = c_maxScore;
+				}
+
+				/* Re-calculate the maximum */
+				idxMax2 = MathHelper.indexMax2D(maxGeomScores);
+				maxScore = maxGeomScores[idxMax2[0]][idxMax2[1]];
+
+			}
+
+			/* If none of the hypotheses in the beam survived the drill-down, widen the beam to the next best ones, so
+			 * that a complete tree can still be found. Hypotheses that are not drilled into keep their scores. */
+			if (beamDiscarded == null || nWidened >= beamDiscarded.size() || maxScore != 0.0f) {
+				break;
+			}
+
+			checkDeadline();
+
+			for (boolean[] row : bToDrillFinal) {
+				Arrays.fill(row, false);
+			}
+
+			for (int[] c : beamDiscarded.subList(nWidened, Math.min(nWidened + width, beamDiscarded.size()))) {
+				bToDrillFinal[c[0]][c[1]] = true;
+				maxGeomScores[c[0]][c[1]] = shallowScores[c[0]][c[1]];
+			}
+			nWidened += width;
+
+			forEachProduction(idxValidProds.length, drillJob);
 		}
 
 
 		/* Optional: store result in hash map */
 		int idxBestProd = idxValidProds[idxMax2[0]];
-        if (hashKey1[0] != null) {
-            putInTokenSetLHS2IdxBestProdMap(hashKey1[0], idxBestProd);
+        TokenSetMemoKey lastHashKey1 = null;
+        for (TokenSetMemoKey key : hashKey1) {
+            if (key != null) {
+                lastHashKey1 = key;
+            }
+        }
+        if (lastHashKey1 != null) {
+            putInTokenSetLHS2IdxBestProdMap(lastHashKey1, idxBestProd);
         }
 
-        putEvalGeomMapsData(tHashKey, maxScore, nodes, maxGeomScores, aRemainingSets);
+        putEvalGeomMapsData(tHashKey, maxScore, nodes, maxGeomScores, aRemainingSets,
+                            deps.toArray(new TokenSetMemoKey[deps.size()]));
+        if (beamDiscarded != null) {
+            beamPrunedMemoKeys.add(tHashKey);
+        }
+        liveMemoKeys.add(tHashKey);
 
 		return maxScore;
 	}
 
-    private synchronized boolean existsInTokenSetLHS2IdxValidProdsMap(final String key) {
+    /* Abort the evaluations in flight once the deadline of the parse has passed. See parse(). */
+    private void checkDeadline() {
+        ParseDeadlineExceededException.check(parseDeadlineNanos);
+    }
+
+    /* Keep only the best width hypotheses to be drilled down. The discarded hypotheses get a score of 0, as in
+     * selective drill. Return the discarded hypotheses, as {i, j} pairs, best first. */
+    private List<int[]> applyBeam(final int width, final boolean[][] bToDrill, final float[][] scores,
+                                  final float[][] maxGeomScores) {
+        List<int[]> candidates = new ArrayList<>();
+        for (int i = 0; i < bToDrill.length; ++i) {
+            for (int j = 0; j < bToDrill[i].length; ++j) {
+                if (bToDrill[i][j]) {
+                    candidates.add(new int[] {i, j});
+                }
+            }
+        }
+
+        if (candidates.size() <= width) {
+            return null;
+        }
+
+        /* Stable sort: ties are resolved in favor of the first hypothesis, as in MathHelper.indexMax2D() */
+        Collections.sort(candidates, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Float.compare(scores[b[0]][b[1]], scores[a[0]][a[1]]);
+            }
+        });
+
+        List<int[]> discarded = new ArrayList<>(candidates.subList(width, candidates.size()));
+        for (int[] c : discarded) {
+            bToDrill[c[0]][c[1]] = false;
+            maxGeomScores[c[0]][c[1]] = 0.0f;
+        }
+
+        bBeamPrunedInParse = true;
+
+        return discarded;
+    }
+
+    private synchronized boolean existsInTokenSetLHS2IdxValidProdsMap(final TokenSetMemoKey key) {
         return tokenSetLHS2IdxValidProdsMap.containsKey(key);
     }
 
-    private synchronized int[] getFromTokenSetLHS2IdxValidProdsMap(final String key) {
+    private synchronized int[] getFromTokenSetLHS2IdxValidProdsMap(final TokenSetMemoKey key) {
         return tokenSetLHS2IdxValidProdsMap.get(key);
     }
 
-    private synchronized ArrayList<int [][]> getFromTokenSetLHS2IdxPossibleHeadsMap(final String key) {
+    private synchronized ArrayList<int [][]> getFromTokenSetLHS2IdxPossibleHeadsMap(final TokenSetMemoKey key) {
         return tokenSetLHS2IdxPossibleHeadsMap.get(key);
     }
 
-    private synchronized void putInTokenSetLHS2IdxValidProdsMap(final String key, final int[] idxValidProds) {
+    private synchronized void putInTokenSetLHS2IdxValidProdsMap(final TokenSetMemoKey key, final int[] idxValidProds) {
         tokenSetLHS2IdxValidProdsMap.put(key, idxValidProds);
+        registerMemoKey(key);
     }
 
-    private synchronized void putInTokenSetLHS2IdxPossibleHeadsMap(final String key, final ArrayList<int [][]> idxPossibleHeads) {
+    private synchronized void putInTokenSetLHS2IdxPossibleHeadsMap(final TokenSetMemoKey key, final ArrayList<int [][]> idxPossibleHeads) {
         tokenSetLHS2IdxPossibleHeadsMap.put(key, idxPossibleHeads);
+        registerMemoKey(key);
     }
 
-    private synchronized void putInTokenSetLHS2IdxBestProdMap(final String key, final int idxBestProd) {
+    private synchronized void putInTokenSetLHS2IdxBestProdMap(final TokenSetMemoKey key, final int idxBestProd) {
         tokenSetLHS2IdxBestProdMap.put(key, idxBestProd);
+        registerMemoKey(key);
     }
 
-    private synchronized boolean existsInEvalGeom2MaxScoreMap(final String key) {
+    private synchronized boolean existsInEvalGeom2MaxScoreMap(final TokenSetMemoKey key) {
         return evalGeom2MaxScoreMap.containsKey(key);
     }
 
-    private synchronized float getFromEvalGeom2MaxScoreMap(final String key) {
+    private synchronized float getFromEvalGeom2MaxScoreMap(final TokenSetMemoKey key) {
         return evalGeom2MaxScoreMap.get(key);
     }
 
-    private synchronized Node[][] getFromEvalGeom2NodesMap(final String key) {
+    private synchronized Node[][] getFromEvalGeom2NodesMap(final TokenSetMemoKey key) {
         return evalGeom2NodesMap.get(key);
     }
 
-    private synchronized float[][] getFromEvalGeom2ScoresMap(final String key) {
+    private synchronized float[][] getFromEvalGeom2ScoresMap(final TokenSetMemoKey key) {
         return evalGeom2ScoresMap.get(key);
     }
 
-    private synchronized CWrittenTokenSetNoStroke[][][] getFromEvalGeom2RemSetsMap(final String key) {
+    private synchronized CWrittenTokenSetNoStroke[][][] getFromEvalGeom2RemSetsMap(final TokenSetMemoKey key) {
         return evalGeom2RemSetsMap.get(key);
     }
 
-    private synchronized void putEvalGeomMapsData(final String key,
+    private synchronized void putEvalGeomMapsData(final TokenSetMemoKey key,
                                                   final float maxScore,
                                                   final Node[][] nodes,
                                                   final float[][] maxGeomScores,
-                                                  final CWrittenTokenSetNoStroke[][][] remainingSets) {
+                                                  final CWrittenTokenSetNoStroke[][][] remainingSets,
+                                                  final TokenSetMemoKey[] deps) {
         evalGeom2MaxScoreMap.put(key, maxScore);
         evalGeom2NodesMap.put(key, nodes);
         evalGeom2ScoresMap.put(key, maxGeomScores);
         evalGeom2RemSetsMap.put(key, remainingSets);
+        evalGeom2DepsMap.put(key, deps);
+        registerMemoKey(key);
     }
 
-//    private Map<String, Integer> tokenSetLHS2IdxBestProdMap;
+    /* Same as putEvalGeomMapsData, but for the direct match of a single node token, for which no maximum score is
+     * stored */
+    private synchronized void putEvalGeomNodeTokenData(final TokenSetMemoKey key,
+                                                       final Node[][] nodes,
+                                                       final float[][] maxGeomScores,
+                                                       final CWrittenTokenSetNoStroke[][][] remainingSets) {
+        evalGeom2NodesMap.put(key, nodes);
+        evalGeom2ScoresMap.put(key, maxGeomScores);
+        evalGeom2RemSetsMap.put(key, remainingSets);
+        registerMemoKey(key);
+    }
+
+//    private Map<TokenSetMemoKey, Integer> tokenSetLHS2IdxBestProdMap;
 
 
 	/* This implements a recursive descend parser */
@@ -654,9 +1215,10 @@ public class TokenSetParser implements ITokenSetParser {
 		int[][] idxValidProds_wwoe = null; /* wwoe: "with and without exclusion" */
 		int[] idxValidProds = null;
 
-		String hashKey = tokenSet.toString() + "@" + lhs;
+		TokenSetMemoKey hashKey = getLhsMemoKey(tokenSet, lhs);
+		liveMemoKeys.add(hashKey);
 		if ( !existsInTokenSetLHS2IdxValidProdsMap(hashKey) ) {
-			idxValidProds_wwoe = gpSet.getIdxValidProds(tokenSet, null, termSet, lhs, idxPossibleHead);
+			idxValidProds_wwoe = gpSet.getIdxValidProds(tokenSet, null, termSet, lhs, idxPossibleHead, parseDeadlineNanos);
 			idxValidProds = idxValidProds_wwoe[0];
 			// idxValidProds_noExclude = idxValidProds_wwoe[1];
 
@@ -678,9 +1240,7 @@ public class TokenSetParser implements ITokenSetParser {
 		float[][] maxGeomScores = new float[idxValidProds.length][];
 		CWrittenTokenSetNoStroke[][][] aRemainingSets = new CWrittenTokenSetNoStroke[idxValidProds.length][][];
 
-		currDrillDepth = 0;
-
-		evalGeometry(tokenSet, idxValidProds, null, idxPossibleHead, nodes, maxGeomScores, aRemainingSets);
+		evalGeometry(tokenSet, idxValidProds, null, idxPossibleHead, nodes, maxGeomScores, aRemainingSets, 0, null);
 
 		/* Select the maximum geometric score */
 		int[] idxMax2 = MathHelper.indexMax2D(maxGeomScores);
@@ -695,7 +1255,7 @@ public class TokenSetParser implements ITokenSetParser {
 		LinkedList<CWrittenTokenSetNoStroke[]> rsStack = new LinkedList<>();
 		LinkedList<Integer> levelStack = new LinkedList<>();
 
-		Node t_node = nodes[idxMax2[0]][idxMax2[1]];
+		Node t_node = copyCachedNode(nodes[idxMax2[0]][idxMax2[1]]);
 		CWrittenTokenSetNoStroke[] t_remSets = aRemainingSets[idxMax2[0]][idxMax2[1]]; /* Includes the head */
 
 		rsStack.push(t_remSets);
@@ -771,18 +1331,20 @@ public class TokenSetParser implements ITokenSetParser {
                             return null;
                         }
 
-						String tHashKey1 = t_remSet.toString() + "@" + nStackTop.rhsTypes[k];
+						TokenSetMemoKey tHashKey1 = getLhsMemoKey(t_remSet, nStackTop.rhsTypes[k]);
 
 						int[] t_idxValidProds = null;
-						t_idxValidProds = getFromTokenSetLHS2IdxValidProdsMap(tHashKey1);
+						if (liveMemoKeys.contains(tHashKey1)) {
+							t_idxValidProds = getFromTokenSetLHS2IdxValidProdsMap(tHashKey1);
+						}
 
                         if (t_idxValidProds == null) {
                             throw new TokenSetParserException("No valid productions could be found");
                         }
 
-                        String tHashKey2 = getHashCodeFromTokenSetAndIdxValidProds(t_remSet, t_idxValidProds);
+                        TokenSetMemoKey tHashKey2 = getProdSetMemoKey(t_remSet, t_idxValidProds);
 
-						float[][] t_c_scores = this.evalGeom2ScoresMap.get(tHashKey2);
+						float[][] t_c_scores = liveMemoKeys.contains(tHashKey2) ? this.evalGeom2ScoresMap.get(tHashKey2) : null;
 						/* TODO: Why can't we store the best Node? */
 
 						Node[][] t_c_nodes = this.evalGeom2NodesMap.get(tHashKey2);
@@ -792,7 +1354,7 @@ public class TokenSetParser implements ITokenSetParser {
 						}
 
 						int[] t_c_idxMax2 = MathHelper.indexMax2D(t_c_scores);
-						Node t_c_node = t_c_nodes[t_c_idxMax2[0]][t_c_idxMax2[1]];
+						Node t_c_node = copyCachedNode(t_c_nodes[t_c_idxMax2[0]][t_c_idxMax2[1]]);
 						CWrittenTokenSetNoStroke[] t_c_remSets = this.evalGeom2RemSetsMap.get(tHashKey2)[t_c_idxMax2[0]][t_c_idxMax2[1]];
 
                         nStack.push(t_c_node);
@@ -827,6 +1389,13 @@ public class TokenSetParser implements ITokenSetParser {
 		return null; /* If we are here, parsing has failed for some reason */
 	}
 
+    /**
+     * Turn parallel parsing on or off. In parallel mode, the candidate productions of each geometric evaluation,
+     * including the recursive drill-downs, are evaluated as tasks in a fork/join pool with one worker per available
+     * processor. The pool is shared by all parsers, so parsers need no shutdown. The memo maps are shared among the
+     * tasks. With the default (unlimited) drill depth, the parsing results are identical to those of sequential parsing.
+     * @param usingMultiThreads  Whether parallel parsing is to be used
+     */
     public void setUsingMultiThreads(boolean usingMultiThreads) {
         this.usingMultiThreads = usingMultiThreads;
     }
@@ -835,9 +1404,173 @@ public class TokenSetParser implements ITokenSetParser {
         return usingMultiThreads;
     }
 
-    private String getHashCodeFromTokenSetAndIdxValidProds(CWrittenTokenSetNoStroke wtSet, int[] idxValidProds) {
-        return wtSet.toString() + "@" + MathHelper.intArray2String(idxValidProds);
-//        return Integer.toString(wtSet.hashCode()) + "@" + MathHelper.intArray2HashCode(idxValidProds);
+    /* Evaluation of one of the candidate productions in evalGeometry */
+    private interface ProductionJob {
+        void run(int i) throws InterruptedException;
+    }
+
+    /* Fork/join pool of the parallel parsers, created on first use. Its workers are daemon threads, which do not keep
+     * the JVM alive. */
+    private static class SharedForkJoinPool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool();
+    }
+
+    /* Run a job for each of the candidate productions 0, 1, ..., n - 1. The jobs are run as fork/join tasks in
+     * parallel mode and in ascending order otherwise. */
+    private void forEachProduction(final int n, final ProductionJob job) throws InterruptedException {
+        if (!usingMultiThreads || n < 2) {
+            for (int i = 0; i < n; ++i) {
+                job.run(i);
+            }
+            return;
+        }
+
+        ProductionTask task = new ProductionTask(job, 0, n);
+
+        try {
+            if (ForkJoinTask.inForkJoinPool()) {
+                /* Nested evaluation (drill-down) inside a task of the pool */
+                task.invoke();
+            } else {
+                parallelParseInterrupted = false;
+                SharedForkJoinPool.INSTANCE.execute(task);
+
+                try {
+                    task.get();
+                } catch (InterruptedException exc) {
+                    parallelParseInterrupted = true;
+                    task.cancel(true);
+
+                    throw exc;
+                } catch (ExecutionException exc) {
+                    throw unwrapExecutionException(exc.getCause());
+                }
+            }
+        } catch (RuntimeException exc) {
+            throw unwrapExecutionException(exc);
+        }
+    }
+
+    /* Rethrows InterruptedException wrapped by ProductionTask. Other exceptions, including the abort at the deadline,
+     * are returned for rethrowing. */
+    private static RuntimeException unwrapExecutionException(Throwable thr) throws InterruptedException {
+        for (Throwable t = thr; t != null; t = t.getCause()) {
+            if (t instanceof InterruptedException) {
+                throw (InterruptedException) t;
+            } else if (t instanceof ParseDeadlineExceededException) {
+                return (ParseDeadlineExceededException) t;
+            }
+        }
+
+        if (thr instanceof RuntimeException) {
+            return (RuntimeException) thr;
+        } else if (thr instanceof Error) {
+            throw (Error) thr;
+        } else {
+            return new RuntimeException(thr);
+        }
+    }
+
+    /* Fork/join task that runs a ProductionJob for the productions in [lo, hi) */
+    private class ProductionTask extends RecursiveAction {
+        private final ProductionJob job;
+        private final int lo;
+        private final int hi;
+
+        ProductionTask(ProductionJob job, int lo, int hi) {
+            this.job = job;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                final int mid = (lo + hi) >>> 1;
+                final ProductionTask right = new ProductionTask(job, mid, hi);
+                right.fork();
+                try {
+                    new ProductionTask(job, lo, mid).invoke();
+                } finally {
+                    /* Unlike invokeAll(), wait for both halves even if one fails, so that no task of an evaluation
+                     * aborted at the deadline keeps running into the greedy fallback of parse() */
+                    right.quietlyJoin();
+                }
+                right.join();
+                return;
+            }
+
+            try {
+                if (parallelParseInterrupted) {
+                    throw new InterruptedException("Parallel parsing interrupted");
+                }
+
+                job.run(lo);
+            } catch (InterruptedException exc) {
+                throw new InterruptedJobException(exc);
+            }
+        }
+    }
+
+    private static class InterruptedJobException extends RuntimeException {
+        InterruptedJobException(InterruptedException cause) {
+            super(cause);
+        }
+    }
+
+    /* Memo key for a token set and a LHS name */
+    private TokenSetMemoKey getLhsMemoKey(CWrittenTokenSetNoStroke wtSet, String lhs) {
+        Integer lhsId = lhs2InternedId.get(lhs);
+        if (lhsId == null) {
+            synchronized (lhs2InternedId) {
+                lhsId = lhs2InternedId.get(lhs);
+                if (lhsId == null) {
+                    lhsId = lhs2InternedId.size();
+                    lhs2InternedId.put(lhs, lhsId);
+                }
+            }
+        }
+
+        return new TokenSetMemoKey(wtSet, TokenSetMemoKey.KIND_LHS, lhsId);
+    }
+
+    /* Memo key for a token set and a set of valid productions */
+    private TokenSetMemoKey getProdSetMemoKey(CWrittenTokenSetNoStroke wtSet, int[] idxValidProds) {
+        ProdSet prodSet = new ProdSet(idxValidProds);
+
+        Integer prodSetId = prodSet2InternedId.get(prodSet);
+        if (prodSetId == null) {
+            synchronized (prodSet2InternedId) {
+                prodSetId = prodSet2InternedId.get(prodSet);
+                if (prodSetId == null) {
+                    prodSetId = prodSet2InternedId.size();
+                    prodSet2InternedId.put(new ProdSet(idxValidProds.clone()), prodSetId);
+                }
+            }
+        }
+
+        return new TokenSetMemoKey(wtSet, TokenSetMemoKey.KIND_PROD_SET, prodSetId);
+    }
+
+    /* Array of production indices, with value semantics, for interning */
+    private static final class ProdSet {
+        private final int[] idxProds;
+        private final int hashCode;
+
+        ProdSet(int[] idxProds) {
+            this.idxProds = idxProds;
+            this.hashCode = Arrays.hashCode(idxProds);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ProdSet && Arrays.equals(idxProds, ((ProdSet) obj).idxProds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
     }
 
     public GraphicalProductionSet getGraphicalProductionSet() {
@@ -8,6 +8,8 @@ public class TokenSetParserOutput {
 
     private String errorMsg;
 
+    private boolean approximate;    /* The parsing was cut short by a time budget or a beam width */
+
     public TokenSetParserOutput(String stringizerOutput, String evaluatorOutput, String mathTex) {
         this.stringizerOutput = stringizerOutput;
         this.evaluatorOutput = evaluatorOutput;
@@ -35,6 +37,10 @@ public class TokenSetParserOutput {
         return errorMsg;
     }
 
+    public boolean isApproximate() {
+        return approximate;
+    }
+
     /* Setters */
     public void setStringizerOutput(String stringizerOutput) {
         this.stringizerOutput = stringizerOutput;
@@ -51,4 +57,8 @@ public class TokenSetParserOutput {
     public void setErrorMsg(String errorMsg) {
         this.errorMsg = errorMsg;
     }
+
+    public void setApproximate(boolean approximate) {
+        this.approximate = approximate;
+    }
 }
@@ -84,6 +84,18 @@ public class ParseTreeEvaluator {
         /* Put default scientific constants */
         ScientificConstants.inject2VariableMap(varMap);
 	}
+
+	/* Constructor: shares the evaluation instructions of a prototype evaluator of the same productions, which are not
+	 * modified after construction. The new evaluator has its own variable map and stacks. */
+	public ParseTreeEvaluator(ParseTreeEvaluator prototype, GraphicalProductionSet gpSet) {
+		prodSet = gpSet;
+
+		sumString2FuncNameMap = prototype.sumString2FuncNameMap;
+		sumString2NodeIdxMap = prototype.sumString2NodeIdxMap;
+
+		/* Put default scientific constants */
+		ScientificConstants.inject2VariableMap(varMap);
+	}
 	
 	public String evalRes2String(Object evalRes) {
         if (evalRes == null) {
@@ -1,7 +1,6 @@
 package me.scai.parsetree.geometry;
 
 import com.google.gson.annotations.Expose;
-import me.scai.handwriting.CAbstractWrittenTokenSet;
 
 /* AlignRelation */
 public class AlignRelation extends GeometricRelation {
@@ -64,8 +63,7 @@ public class AlignRelation extends GeometricRelation {
 	}
 	
 	@Override
-	public float verify(CAbstractWrittenTokenSet wtsTested,  float [] bndsInRel) {
-		float [] bndsTested = wtsTested.getSetBounds();
+	public float verify(float [] bndsTested, float [] majorTokenExtents, float [] bndsInRel) {
 		if ( bndsInRel.length != 4 )
 			throw new IllegalArgumentException("tiTested does not have length 1");
 	
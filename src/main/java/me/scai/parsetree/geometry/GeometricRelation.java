@@ -62,5 +62,12 @@ public abstract class GeometricRelation {
 	/*	   "ti" stands for token index */
 	//public abstract float eval(CWrittenTokenSet wts, int [] tiTested, int [] tiInRel); /* To remove? */
 	public abstract void parseString(String str, int t_idxTested);
-	public abstract float verify(CAbstractWrittenTokenSet wtsTested,  float [] bndsInRel);
+	public float verify(CAbstractWrittenTokenSet wtsTested,  float [] bndsInRel) {
+		return verify(wtsTested.getSetBounds(), null, bndsInRel);
+	}
+
+	/* verify from precomputed bounds, without a token set object. Used for scoring candidate partitions.
+	 *     majorTokenExtents: {max width, max height} of the major tokens in the tested token set
+	 *                        (see NodeInternalGeometry.isMajorTerminalType()). Only used by SpacingRelation. */
+	public abstract float verify(float [] bndsTested, float [] majorTokenExtents, float [] bndsInRel);
 }
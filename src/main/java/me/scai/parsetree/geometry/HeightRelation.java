@@ -1,7 +1,6 @@
 package me.scai.parsetree.geometry;
 
 import com.google.gson.annotations.Expose;
-import me.scai.handwriting.CAbstractWrittenTokenSet;
 
 /* HeightRelation */
 public class HeightRelation extends GeometricRelation {
@@ -30,8 +29,7 @@ public class HeightRelation extends GeometricRelation {
 
 	
 	@Override
-	public float verify(CAbstractWrittenTokenSet wtsTested,  float [] bndsInRel) {
-		float [] bndsTested = wtsTested.getSetBounds();
+	public float verify(float [] bndsTested, float [] majorTokenExtents, float [] bndsInRel) {
 		if ( bndsInRel.length != 4 )
 			throw new IllegalArgumentException("tiTested does not have length 1");
 		
@@ -11,14 +11,15 @@ public class NodeInternalGeometry {
 	/* Member variables */
 	private TerminalSet termSet;
 	public final static List<String> majorTerminalTypes = new ArrayList<String>();
+	static {
+		majorTerminalTypes.add("DIGIT");
+		majorTerminalTypes.add("VARIABLE_SYMBOL");
+	}
 	/* ~Member variables */
 	
 	/* Constructor */
 	public NodeInternalGeometry(TerminalSet tTermSet) {
 		termSet = tTermSet;
-		
-		majorTerminalTypes.add("DIGIT");
-		majorTerminalTypes.add("VARIABLE_SYMBOL");
 	}
 	
 	/* Methods */
@@ -82,6 +83,10 @@ public class NodeInternalGeometry {
 	}
 	
 	public boolean isTerminalTypeMajor(List<String> termTypes) {
+		return isMajorTerminalType(termTypes);
+	}
+
+	public static boolean isMajorTerminalType(List<String> termTypes) {
         boolean match = false;
 
         if (termTypes != null) {
@@ -78,9 +78,17 @@ public class SpacingRelation extends GeometricRelation {
 	
 	@Override
 	public float verify(CAbstractWrittenTokenSet wtsTested,  float [] bndsInRel) {
+		float [] majorTokenExtents = new float[2];
+		majorTokenExtents[0] = getMaxMajorTokenWidth(wtsTested);
+		majorTokenExtents[1] = getMaxMajorTokenHeight(wtsTested);
+
+		return verify(wtsTested.getSetBounds(), majorTokenExtents, bndsInRel);
+	}
+
+	@Override
+	public float verify(float [] bndsTested, float [] majorTokenExtents, float [] bndsInRel) {
 		float v = 0.0f;
 		
-		float [] bndsTested = wtsTested.getSetBounds();
 		if ( bndsInRel.length != 4 ) {
 			throw new IllegalArgumentException("tiTested does not have length 1");
 		}
@@ -99,9 +107,9 @@ public class SpacingRelation extends GeometricRelation {
 		yBoundsInRel[0] = bndsInRel[1];
 		yBoundsInRel[1] = bndsInRel[3];
 		
-		float maxWidth = getMaxMajorTokenWidth(wtsTested);
+		float maxWidth = majorTokenExtents[0];
 		float meanMaxWidth = maxWidth; /* TODO: Count the in-relation-to token set */
-		float maxHeight = getMaxMajorTokenHeight(wtsTested);
+		float maxHeight = majorTokenExtents[1];
 		float meanMaxHeight = maxHeight; /* TODO: Count the in-relation-to token set */
 		
 		float overlapWidth = GeometryHelper.pctOverlap(xBoundsTested, xBoundsInRel);
@@ -145,9 +145,18 @@ public interface HandwritingEngine {
 
     /* Injection of serialized state */
     void injectSerializedState(JsonObject json);
+    void injectSerializedStateBinary(byte[] state);
 
     /* State and stack */
     JsonObject getStateSerialization();
     String getStateSerializationString();
+
+    /**
+     * Get the state in the compact binary form, an alternative to getStateSerialization() for persisting and migrating
+     * sessions
+     * @param maxNumRecogPs  If > 0, only the largest maxNumRecogPs recognition probabilities of each token are kept
+     * @return  The state, to be passed to injectSerializedStateBinary()
+     */
+    byte[] getStateSerializationBinary(int maxNumRecogPs);
 }
 
@@ -6,6 +6,7 @@ import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
 import me.scai.handwriting.*;
 
@@ -16,6 +17,7 @@ import me.scai.parsetree.evaluation.exceptions.ParseTreeEvaluatorException;
 import me.scai.parsetree.evaluation.PlatoVarMap;
 import me.scai.parsetree.evaluation.ValueUnion;
 import me.scai.plato.helpers.CWrittenTokenSetJsonHelper;
+import me.scai.plato.helpers.CompactStateCodec;
 import me.scai.utilities.PooledWorker;
 import org.apache.commons.lang.ArrayUtils;
 
@@ -27,7 +29,66 @@ public class HandwritingEngineImpl implements HandwritingEngine, PooledWorker {
     private static final String CURRENT_TOKEN_SET_JSON_KEY    = "currentTokenSet";
     private static final String ABSTRACT_2_WRITTEN_TOKEN_UUIDS_JSON_KEY = "abstract2WrittenTokenUuids";
 
-    private static final int STATE_STACK_CAPACITY = 20;
+    /* Compact binary form of the state: "GSES" */
+    private static final int BINARY_STATE_MAGIC = 0x47534553;
+    private static final int BINARY_STATE_VERSION = 1;
+
+    private static final int STATE_STACK_CAPACITY = 200;
+    private static final int STATE_CHECKPOINT_INTERVAL = 10;
+
+    /* Snapshot of the engine state, for undo/redo. currentTokenSet and abstract2WrittenTokenUuids are never modified
+     * in place once they have been snapshotted (see updateCurrentTokenSet()), so they are held by reference. */
+    private static final class EngineSnapshot {
+        private final StrokeCuratorSnapshot strokeCuratorSnapshot;
+        private final CWrittenTokenSetNoStroke currentTokenSet;
+        private final LinkedList<List<String>> abstract2WrittenTokenUuids;
+
+        EngineSnapshot(StrokeCuratorSnapshot strokeCuratorSnapshot,
+                       CWrittenTokenSetNoStroke currentTokenSet,
+                       LinkedList<List<String>> abstract2WrittenTokenUuids) {
+            this.strokeCuratorSnapshot = strokeCuratorSnapshot;
+            this.currentTokenSet = currentTokenSet;
+            this.abstract2WrittenTokenUuids = abstract2WrittenTokenUuids;
+        }
+    }
+
+    /* Difference between two engine snapshots: the stroke-curator delta, plus the old and new abstract token sets */
+    private static final class EngineDelta {
+        private final StrokeCuratorSnapshot.Delta strokeCuratorDelta;
+        private final EngineSnapshot from;
+        private final EngineSnapshot to;
+
+        EngineDelta(StrokeCuratorSnapshot.Delta strokeCuratorDelta, EngineSnapshot from, EngineSnapshot to) {
+            this.strokeCuratorDelta = strokeCuratorDelta;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static final DeltaStateStack.Codec<EngineSnapshot, EngineDelta> STATE_CODEC =
+            new DeltaStateStack.Codec<EngineSnapshot, EngineDelta>() {
+        @Override
+        public EngineDelta diff(EngineSnapshot from, EngineSnapshot to) {
+            /* Only the token-set references of the two snapshots are kept, not the stroke curator snapshots */
+            return new EngineDelta(StrokeCuratorSnapshot.CODEC.diff(from.strokeCuratorSnapshot, to.strokeCuratorSnapshot),
+                                   new EngineSnapshot(null, from.currentTokenSet, from.abstract2WrittenTokenUuids),
+                                   new EngineSnapshot(null, to.currentTokenSet, to.abstract2WrittenTokenUuids));
+        }
+
+        @Override
+        public EngineSnapshot apply(EngineSnapshot state, EngineDelta delta) {
+            return new EngineSnapshot(StrokeCuratorSnapshot.CODEC.apply(state.strokeCuratorSnapshot,
+                                                                        delta.strokeCuratorDelta),
+                                      delta.to.currentTokenSet,
+                                      delta.to.abstract2WrittenTokenUuids);
+        }
+
+        @Override
+        public EngineDelta inverse(EngineDelta delta) {
+            return new EngineDelta(StrokeCuratorSnapshot.CODEC.inverse(delta.strokeCuratorDelta),
+                                   delta.to, delta.from);
+        }
+    };
 
     /* Member variables */
     public StrokeCurator strokeCurator;
@@ -45,12 +106,18 @@ public class HandwritingEngineImpl implements HandwritingEngine, PooledWorker {
     // Only the node tokens are tracked by this variable
     private LinkedList<List<String>> abstract2WrittenTokenUuids;
 
+    // Stable token IDs of the written tokens, keyed by written-token UUID. A token keeps its ID for as long as its
+    // UUID is unchanged, which lets the parser reuse the results cached from previous parses.
+    private Map<String, Integer> writtenTokenUuid2TokenId = new HashMap<>();
+    private int nextTokenId = 0;
+
 
     // State stack for undo/redo
-    private StateStack<HandwritingEngineState> stateStack = new StateStack<>(STATE_STACK_CAPACITY);
-    private JsonObject initialState;
+    private DeltaStateStack<EngineSnapshot, EngineDelta> stateStack;
 
     /* Constructor */
+    /* Pooled workers should be given their own sessions of one shared production set (see
+     * GraphicalProductionSet.createSession()), so that the compiled grammar is not duplicated across workers. */
     public HandwritingEngineImpl(StrokeCurator tStrokeCurator,
                                  TokenSetParser tTokenSetParser,
                                  GraphicalProductionSet gpSet,
@@ -59,7 +126,7 @@ public class HandwritingEngineImpl implements HandwritingEngine, PooledWorker {
         tokenSetParser = tTokenSetParser;
 
         stringizer     = gpSet.genStringizer();
-        mathTexifier   = new ParseTreeMathTexifier(gpSet, termSet);
+        mathTexifier   = gpSet.genMathTexifier(termSet);
         evaluator      = gpSet.genEvaluator();
 
         tokenSet2NodeTokenParser = new TokenSet2NodeTokenParser(tokenSetParser, stringizer);
@@ -67,7 +134,8 @@ public class HandwritingEngineImpl implements HandwritingEngine, PooledWorker {
         currentTokenSet = new CWrittenTokenSetNoStroke();
         abstract2WrittenTokenUuids = new LinkedList<>();
 
-        initialState = getStateSerialization();
+        stateStack = new DeltaStateStack<>(STATE_CODEC, getStateSnapshot(),
+                                           STATE_STACK_CAPACITY, STATE_CHECKPOINT_INTERVAL);
     }
 
     /* Mehtods */
@@ -369,10 +437,37 @@ public class HandwritingEngineImpl implements HandwritingEngine, PooledWorker {
                 evalRes,
                 mathTexifier.texify(parseOutRoot)
         );
+        output.setApproximate(tokenSetParser.isLastParseApproximate());
 
         return output;
     }
 
+    /**
+     * Set the beam width of parsing (see TokenSetParser.setBeamWidth()). With a limited beam, parsing is faster on
+     * large token sets, and the results may be marked as approximate (see TokenSetParserOutput.isApproximate()).
+     * @param beamWidth  Maximum number of hypotheses kept per geometric evaluation (>= 1), or 0 for an unlimited beam
+     */
+    public void setParseBeamWidth(int beamWidth) {
+        tokenSetParser.setBeamWidth(beamWidth);
+    }
+
+    public int getParseBeamWidth() {
+        return tokenSetParser.getBeamWidth();
+    }
+
+    /**
+     * Set the time budget of each parse (see TokenSetParser.setParseTimeBudget()). Parses that run out of the budget
+     * fall back to a greedy left-to-right parse and are marked as approximate.
+     * @param parseTimeBudgetMillis  Time budget in milliseconds (>= 0), or 0 for no time budget
+     */
+    public void setParseTimeBudget(long parseTimeBudgetMillis) {
+        tokenSetParser.setParseTimeBudget(parseTimeBudgetMillis);
+    }
+
+    public long getParseTimeBudget() {
+        return tokenSetParser.getParseTimeBudget();
+    }
+
 
     @Override
     public JsonArray getGraphicalProductions() {
@@ -456,17 +551,12 @@ public class HandwritingEngineImpl implements HandwritingEngine, PooledWorker {
 
     @Override
     public void undoUserAction() {
-        stateStack.undo();
-
-        injectSerializedState(stateStack.getLastSerializedState() == null ?
-                              initialState : stateStack.getLastSerializedState());
+        restoreStateSnapshot(stateStack.undo());
     }
 
     @Override
     public void redoUserAction() {
-        stateStack.redo();
-
-        injectSerializedState(stateStack.getLastSerializedState());
+        restoreStateSnapshot(stateStack.redo());
     }
 
     @Override
@@ -568,6 +658,14 @@ public class HandwritingEngineImpl implements HandwritingEngine, PooledWorker {
             if (nodeTokensOkay) {
                 refreshFromStrokeCurator = false;
 
+                // Copy before modifying: the old token set and UUID list may be held by the undo/redo state stack
+                int[] allTokenIndices = new int[currentTokenSet.getNumTokens()];
+                for (int i = 0; i < allTokenIndices.length; ++i) {
+                    allTokenIndices[i] = i;
+                }
+                currentTokenSet = new CWrittenTokenSetNoStroke(currentTokenSet, allTokenIndices);
+                abstract2WrittenTokenUuids = new LinkedList<>(abstract2WrittenTokenUuids);
+
                 // Remove any tokens to be removed from currentTokenSet
                 Iterator<Integer> removeIdxIter = tokensToRemove.iterator();
                 while (removeIdxIter.hasNext()) {
@@ -600,7 +698,9 @@ public class HandwritingEngineImpl implements HandwritingEngine, PooledWorker {
         // abandon node tokens (if any).
         if (refreshFromStrokeCurator) {
             // Update currentTokenSet
-            this.currentTokenSet = new CWrittenTokenSetNoStroke(strokeCurator.getTokenSet(), strokeCurator.getTokenUuids());
+            this.currentTokenSet = new CWrittenTokenSetNoStroke(strokeCurator.getTokenSet(),
+                                                                strokeCurator.getTokenUuids(),
+                                                                getStableTokenIds(strokeCurator.getTokenUuids()));
 
             // Update abstract2WrittenTokenUuids
             this.abstract2WrittenTokenUuids = new LinkedList<>();
@@ -619,6 +719,31 @@ public class HandwritingEngineImpl implements HandwritingEngine, PooledWorker {
 
     }
 
+    /**
+     * Get the stable token IDs for the written tokens with the specified UUIDs. Written tokens that have been seen
+     * before keep their old IDs; new ones get fresh IDs. IDs of UUIDs that are no longer present are forgotten.
+     * @param wtUuids  UUIDs of the written tokens
+     * @return         Token IDs, in the same order as wtUuids
+     */
+    private List<Integer> getStableTokenIds(List<String> wtUuids) {
+        Map<String, Integer> newUuid2TokenId = new HashMap<>();
+        List<Integer> tokenIds = new ArrayList<>();
+
+        for (String wtUuid : wtUuids) {
+            Integer tokenId = writtenTokenUuid2TokenId.get(wtUuid);
+            if (tokenId == null) {
+                tokenId = nextTokenId++;
+            }
+
+            newUuid2TokenId.put(wtUuid, tokenId);
+            tokenIds.add(tokenId);
+        }
+
+        writtenTokenUuid2TokenId = newUuid2TokenId;
+
+        return tokenIds;
+    }
+
     /**
      * Translate index of abstract token (in currentTokenSet) to the token indices in stroke curator
      * @param idxToken  Index of the abstract token in currentTokenSet
@@ -692,8 +817,80 @@ public class HandwritingEngineImpl implements HandwritingEngine, PooledWorker {
 
     }
 
+    /* The current token set may contain node tokens (parsed subsets), which have no binary form, so it is embedded in
+     * its (compact) JSON form */
+    @Override
+    public byte[] getStateSerializationBinary(int maxNumRecogPs) {
+        CompactStateCodec.Writer writer = new CompactStateCodec.Writer();
+
+        writer.writeMagic(BINARY_STATE_MAGIC);
+        writer.writeVarint(BINARY_STATE_VERSION);
+
+        writer.writeByteArray(strokeCurator.getStateSerializationBinary(maxNumRecogPs));
+
+        /* toString() keeps the null members, which jsonObj2CWrittenTokenSetNoStroke() expects */
+        writer.writeString(CWrittenTokenSetJsonHelper.CAbstractWrittenTokenSet2JsonObj(currentTokenSet).toString());
+
+        writer.writeVarint(abstract2WrittenTokenUuids.size());
+        for (List<String> uuids : abstract2WrittenTokenUuids) {
+            writer.writeVarint(uuids.size());
+            for (String uuid : uuids) {
+                writer.writeUuid(uuid);
+            }
+        }
+
+        return writer.toByteArray();
+    }
+
+    @Override
+    public void injectSerializedStateBinary(byte[] state) {
+        CompactStateCodec.Reader reader = new CompactStateCodec.Reader(state);
+
+        reader.readMagic(BINARY_STATE_MAGIC, "handwriting engine state");
+        long version = reader.readVarint();
+        if (version != BINARY_STATE_VERSION) {
+            throw new IllegalArgumentException("Unsupported version of compact handwriting engine state: " + version);
+        }
+
+        byte[] strokeCuratorState = reader.readByteArray();
+
+        JsonObject currentTokenSetJson = new JsonParser().parse(reader.readString()).getAsJsonObject();
+
+        LinkedList<List<String>> newAbstract2WrittenTokenUuids = new LinkedList<>();
+        final int nt = reader.readCount(1);
+        for (int i = 0; i < nt; ++i) {
+            int n = reader.readCount(1);
+
+            List<String> uuids = new ArrayList<>(n);
+            for (int j = 0; j < n; ++j) {
+                uuids.add(reader.readUuid());
+            }
+
+            newAbstract2WrittenTokenUuids.add(uuids);
+        }
+
+        if ( !reader.isAtEnd() ) {
+            throw new IllegalArgumentException("Unexpected data after the end of compact handwriting engine state");
+        }
+
+        strokeCurator.injectSerializedStateBinary(strokeCuratorState);
+        currentTokenSet = CWrittenTokenSetJsonHelper.jsonObj2CWrittenTokenSetNoStroke(currentTokenSetJson);
+        abstract2WrittenTokenUuids = newAbstract2WrittenTokenUuids;
+    }
+
+    private EngineSnapshot getStateSnapshot() {
+        return new EngineSnapshot(strokeCurator.getStateSnapshot(), currentTokenSet, abstract2WrittenTokenUuids);
+    }
+
+    private void restoreStateSnapshot(EngineSnapshot snapshot) {
+        strokeCurator.restoreStateSnapshot(snapshot.strokeCuratorSnapshot);
+
+        currentTokenSet = snapshot.currentTokenSet;
+        abstract2WrittenTokenUuids = snapshot.abstract2WrittenTokenUuids;
+    }
+
     private void pushStateStack(HandwritingEngineUserAction action) {
-        stateStack.push(new HandwritingEngineState(action, getStateSerialization()));
+        stateStack.push(action.toString(), getStateSnapshot());
     }
 
 }
\ No newline at end of file
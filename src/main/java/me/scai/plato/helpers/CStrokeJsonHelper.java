@@ -63,14 +63,13 @@ public class CStrokeJsonHelper {
                                                      ") and the actual length of xs (" + ys.size() + ")");
         }
 
-        CStroke stroke = new CStroke();
+        float[] x = new float[numPoints];
+        float[] y = new float[numPoints];
         for (int i = 0; i < numPoints; ++i) {
-            float x = xs.get(i).getAsFloat();
-            float y = ys.get(i).getAsFloat();
-
-            stroke.addPoint(x, y);
+            x[i] = xs.get(i).getAsFloat();
+            y[i] = ys.get(i).getAsFloat();
         }
 
-        return stroke;
+        return new CStroke(x, y);
     }
 }
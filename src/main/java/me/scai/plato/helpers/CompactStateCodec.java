@@ -0,0 +1,458 @@
+package me.scai.plato.helpers;
+
+import me.scai.handwriting.CStroke;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Primitives of the compact binary form of the session state (see StrokeCurator.getStateSerializationBinary() and
+ * HandwritingEngine.getStateSerializationBinary()), an alternative to the JSON form for persisting and migrating
+ * sessions.
+ *
+ *   - Counts and indices are unsigned varints (7 bits per byte, low-order groups first).
+ *   - Stroke coordinates are stored, where possible, as fixed-point values with 0 - 3 decimal digits: the first point
+ *     as a zig-zag varint, the following ones as zig-zag varint deltas to the previous point. A stroke is stored in
+ *     fixed point only if all of its coordinates are reproduced exactly, so the encoding is lossless. Otherwise, the
+ *     coordinates are stored as raw float32 values.
+ *   - Probabilities are stored as float32, optionally only the largest K of each vector (the others decode as 0).
+ *   - UUIDs in the canonical form take 16 bytes. Other strings are stored in UTF-8.
+ */
+public final class CompactStateCodec {
+    /* Constants */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAX_FIXED_POINT_DIGITS = 3;
+    private static final int FLOAT_COORDINATES = 0xff;     // Instead of the number of fixed-point digits
+    private static final long MAX_FIXED_POINT_VALUE = 1L << 40;
+
+    private static final int PS_NULL = 0;
+    private static final int PS_ALL = 1;
+    private static final int PS_TOP_K = 2;
+
+    /* Upper limit of the length of a probability vector stored as top K, whose length is not backed by data */
+    private static final int MAX_SPARSE_PROBABILITIES = 1 << 16;
+
+    private static final int MIN_STROKE_POINT_BYTES = 2;    // One varint delta for each of x and y
+    private static final int FLOAT_BYTES = 4;
+    private static final int MIN_TOP_K_PROBABILITY_BYTES = 5; // Varint index delta and float32
+
+    private static final int STRING_UUID = 0;
+    private static final int STRING_UTF_8 = 1;
+
+    private static final double[] SCALES = {1.0, 10.0, 100.0, 1000.0};
+
+    private CompactStateCodec() {}
+
+    /* Fixed point to float. Encoding and decoding must use the same expression. */
+    private static float fromFixedPoint(long value, int nDigits) {
+        return (float) (value / SCALES[nDigits]);
+    }
+
+    /* Writes the compact form into a byte array */
+    public static final class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        /* Four-byte magic number, identifying the kind of state */
+        public void writeMagic(int magic) {
+            writeInt(magic);
+        }
+
+        public void writeVarint(long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("Negative value for unsigned varint: " + value);
+            }
+
+            writeUnsignedVarint(value);
+        }
+
+        /* Zig-zag encoding: small negative values take few bytes, too */
+        public void writeSignedVarint(long value) {
+            writeUnsignedVarint((value << 1) ^ (value >> 63));
+        }
+
+        public void writeFloat(float value) {
+            writeInt(Float.floatToIntBits(value));
+        }
+
+        public void writeByteArray(byte[] bytes) {
+            writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        public void writeString(String str) {
+            writeByteArray(str.getBytes(UTF_8));
+        }
+
+        /* A string that is usually a UUID. Other (or null) strings are allowed, but take more space. */
+        public void writeUuid(String str) {
+            UUID uuid = parseUuid(str);
+
+            if (uuid != null) {
+                out.write(STRING_UUID);
+                writeLong(uuid.getMostSignificantBits());
+                writeLong(uuid.getLeastSignificantBits());
+            } else {
+                out.write(STRING_UTF_8);
+                writeNullableString(str);
+            }
+        }
+
+        public void writeNullableString(String str) {
+            out.write((str == null) ? 0 : 1);
+            if (str != null) {
+                writeString(str);
+            }
+        }
+
+        public void writeStroke(CStroke stroke) {
+            final float[] xs = stroke.getXs();
+            final float[] ys = stroke.getYs();
+            final int np = stroke.nPoints();
+
+            writeVarint(np);
+            if (np == 0) {
+                return;
+            }
+
+            for (int nDigits = 0; nDigits <= MAX_FIXED_POINT_DIGITS; ++nDigits) {
+                long[] fxs = toFixedPoint(xs, np, nDigits);
+                long[] fys = (fxs == null) ? null : toFixedPoint(ys, np, nDigits);
+
+                if (fys != null) {
+                    out.write(nDigits);
+                    writeDeltas(fxs);
+                    writeDeltas(fys);
+                    return;
+                }
+            }
+
+            out.write(FLOAT_COORDINATES);
+            for (int i = 0; i < np; ++i) {
+                writeFloat(xs[i]);
+            }
+            for (int i = 0; i < np; ++i) {
+                writeFloat(ys[i]);
+            }
+        }
+
+        /**
+         * Write a probability vector
+         * @param ps         The probabilities (may be null)
+         * @param maxNumPs   If > 0, only the largest maxNumPs probabilities are written
+         */
+        public void writeProbabilities(double[] ps, int maxNumPs) {
+            if (ps == null) {
+                out.write(PS_NULL);
+                return;
+            }
+
+            if (maxNumPs <= 0 || ps.length <= maxNumPs) {
+                out.write(PS_ALL);
+                writeVarint(ps.length);
+                for (double p : ps) {
+                    writeFloat((float) p);
+                }
+                return;
+            }
+
+            /* Indices of the largest maxNumPs probabilities, in ascending order of index */
+            double[] sorted = ps.clone();
+            Arrays.sort(sorted);
+            final double threshold = sorted[ps.length - maxNumPs];
+
+            int[] indices = new int[maxNumPs];
+            int n = 0;
+            for (int i = 0; i < ps.length && n < maxNumPs; ++i) {
+                if (ps[i] > threshold) {
+                    indices[n++] = i;
+                }
+            }
+            for (int i = 0; i < ps.length && n < maxNumPs; ++i) { // Ties at the threshold: lowest indices first
+                if (ps[i] == threshold) {
+                    indices[n++] = i;
+                }
+            }
+            Arrays.sort(indices, 0, n);
+
+            out.write(PS_TOP_K);
+            writeVarint(ps.length);
+            writeVarint(n);
+            int prevIdx = 0;
+            for (int k = 0; k < n; ++k) {
+                writeVarint(indices[k] - prevIdx);
+                writeFloat((float) ps[indices[k]]);
+                prevIdx = indices[k];
+            }
+        }
+
+        public byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        /* Private methods */
+
+        /* The value is treated as an unsigned 64-bit integer */
+        private void writeUnsignedVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        private void writeInt(int value) {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        private void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        private void writeDeltas(long[] values) {
+            long prev = 0;
+            for (long value : values) {
+                writeSignedVarint(value - prev);
+                prev = value;
+            }
+        }
+
+        /* The coordinates in fixed point, or null if they cannot all be reproduced exactly */
+        private static long[] toFixedPoint(float[] coords, int np, int nDigits) {
+            long[] r = new long[np];
+
+            for (int i = 0; i < np; ++i) {
+                double scaled = Math.rint(coords[i] * SCALES[nDigits]);
+                if ( !(Math.abs(scaled) < MAX_FIXED_POINT_VALUE) ) { // Also false for NaN
+                    return null;
+                }
+
+                r[i] = (long) scaled;
+                if (Float.floatToIntBits(fromFixedPoint(r[i], nDigits)) != Float.floatToIntBits(coords[i])) {
+                    return null;
+                }
+            }
+
+            return r;
+        }
+
+        private static UUID parseUuid(String str) {
+            if (str == null) {
+                return null;
+            }
+
+            try {
+                UUID uuid = UUID.fromString(str);
+                return uuid.toString().equals(str) ? uuid : null; // Only the canonical form is reproduced exactly
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /* Reads the compact form from a byte array. Malformed input results in IllegalArgumentException. */
+    public static final class Reader {
+        private final byte[] bytes;
+        private int pos = 0;
+
+        public Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /* Check the four-byte magic number */
+        public void readMagic(int magic, String stateName) {
+            if (bytes.length < 4 || readInt() != magic) {
+                throw new IllegalArgumentException("Data is not a compact " + stateName);
+            }
+        }
+
+        public long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IllegalArgumentException("Malformed varint at offset " + pos);
+        }
+
+        /* A varint that is used as a count or an index */
+        public int readCount() {
+            long value = readVarint();
+            if (value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid count or index " + value + " at offset " + pos);
+            }
+
+            return (int) value;
+        }
+
+        /**
+         * Read a count of elements that are to follow, before allocating storage for them. Each element takes at least
+         * minBytesPerElement bytes, so a count beyond the remaining data (e.g., of corrupt data) is rejected instead
+         * of leading to a huge allocation.
+         * @param minBytesPerElement  Minimum number of bytes of each element (> 0)
+         * @return                    Count
+         */
+        public int readCount(int minBytesPerElement) {
+            final int count = readCount();
+            if ((long) count * minBytesPerElement > bytes.length - pos) {
+                throw new IllegalArgumentException("Count " + count + " exceeds the remaining data at offset " + pos);
+            }
+
+            return count;
+        }
+
+        public long readSignedVarint() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public float readFloat() {
+            return Float.intBitsToFloat(readInt());
+        }
+
+        public byte[] readByteArray() {
+            int length = readCount();
+            ensureAvailable(length);
+
+            byte[] r = Arrays.copyOfRange(bytes, pos, pos + length);
+            pos += length;
+            return r;
+        }
+
+        public String readString() {
+            return new String(readByteArray(), UTF_8);
+        }
+
+        public String readUuid() {
+            int type = readByte();
+            if (type == STRING_UUID) {
+                long mostSigBits = readLong();
+                long leastSigBits = readLong();
+                return new UUID(mostSigBits, leastSigBits).toString();
+            } else if (type == STRING_UTF_8) {
+                return readNullableString();
+            } else {
+                throw new IllegalArgumentException("Invalid string type " + type + " at offset " + (pos - 1));
+            }
+        }
+
+        public String readNullableString() {
+            return (readByte() == 0) ? null : readString();
+        }
+
+        /* Read a stroke. Like CStrokeJsonHelper.json2CStroke(), returns null for a stroke without points. */
+        public CStroke readStroke() {
+            final int np = readCount(MIN_STROKE_POINT_BYTES);
+            if (np == 0) {
+                return null;
+            }
+
+            float[] xs = new float[np];
+            float[] ys = new float[np];
+
+            int encoding = readByte();
+            if (encoding == FLOAT_COORDINATES) {
+                for (int i = 0; i < np; ++i) {
+                    xs[i] = readFloat();
+                }
+                for (int i = 0; i < np; ++i) {
+                    ys[i] = readFloat();
+                }
+            } else if (encoding <= MAX_FIXED_POINT_DIGITS) {
+                readDeltas(xs, encoding);
+                readDeltas(ys, encoding);
+            } else {
+                throw new IllegalArgumentException("Invalid stroke encoding " + encoding + " at offset " + (pos - 1));
+            }
+
+            return new CStroke(xs, ys);
+        }
+
+        /* Read a probability vector. The probabilities that were not written (see Writer.writeProbabilities()) are 0. */
+        public double[] readProbabilities() {
+            int type = readByte();
+
+            if (type == PS_NULL) {
+                return null;
+            } else if (type == PS_ALL) {
+                double[] ps = new double[readCount(FLOAT_BYTES)];
+                for (int i = 0; i < ps.length; ++i) {
+                    ps[i] = readFloat();
+                }
+                return ps;
+            } else if (type == PS_TOP_K) {
+                final int length = readCount();
+                if (length > MAX_SPARSE_PROBABILITIES) {
+                    throw new IllegalArgumentException("Probability vector length " + length + " too large at offset " +
+                                                       pos);
+                }
+
+                double[] ps = new double[length];
+                int n = readCount(MIN_TOP_K_PROBABILITY_BYTES);
+
+                int idx = 0;
+                for (int k = 0; k < n; ++k) {
+                    idx += readCount();
+                    if (idx >= ps.length) {
+                        throw new IllegalArgumentException("Probability index " + idx + " out of bounds at offset " +
+                                                           pos);
+                    }
+                    ps[idx] = readFloat();
+                }
+                return ps;
+            } else {
+                throw new IllegalArgumentException("Invalid probability vector type " + type + " at offset " +
+                                                   (pos - 1));
+            }
+        }
+
+        /* Whether all bytes have been read */
+        public boolean isAtEnd() {
+            return pos == bytes.length;
+        }
+
+        /* Private methods */
+        private void ensureAvailable(int n) {
+            if (n > bytes.length - pos) {
+                throw new IllegalArgumentException("Unexpected end of data at offset " + pos);
+            }
+        }
+
+        private int readByte() {
+            ensureAvailable(1);
+            return bytes[pos++] & 0xff;
+        }
+
+        private int readInt() {
+            ensureAvailable(4);
+            int r = ((bytes[pos] & 0xff) << 24) | ((bytes[pos + 1] & 0xff) << 16) |
+                    ((bytes[pos + 2] & 0xff) << 8) | (bytes[pos + 3] & 0xff);
+            pos += 4;
+            return r;
+        }
+
+        private long readLong() {
+            long high = readInt() & 0xffffffffL;
+            long low = readInt() & 0xffffffffL;
+            return (high << 32) | low;
+        }
+
+        private void readDeltas(float[] coords, int nDigits) {
+            long value = 0;
+            for (int i = 0; i < coords.length; ++i) {
+                value += readSignedVarint();
+                coords[i] = fromFixedPoint(value, nDigits);
+            }
+        }
+    }
+}
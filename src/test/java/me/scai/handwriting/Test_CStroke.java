@@ -2,7 +2,7 @@ package me.scai.handwriting;
 
 import org.junit.Test;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class Test_CStroke {
     private static final float floatTol = 1E-9f;
@@ -50,4 +50,109 @@ public class Test_CStroke {
         assertEquals(stroke.max_y, y2, floatTol);
 
     }
+
+    @Test
+    public void testManyPoints() {
+        final int np = 1000; /* Exceeds the initial capacity many times */
+
+        CStroke stroke = new CStroke();
+        for (int i = 0; i < np; ++i) {
+            stroke.addPoint(i, -i);
+        }
+
+        assertEquals(np, stroke.nPoints());
+
+        float[] xs = stroke.getXs();
+        float[] ys = stroke.getYs();
+        assertEquals(np, xs.length);
+        assertEquals(np, ys.length);
+
+        for (int i = 0; i < np; ++i) {
+            assertEquals(i, xs[i], floatTol);
+            assertEquals(-i, ys[i], floatTol);
+            assertEquals(i, stroke.getX(i), floatTol);
+            assertEquals(-i, stroke.getY(i), floatTol);
+        }
+
+        assertEquals(0f, stroke.min_x, floatTol);
+        assertEquals(np - 1, stroke.max_x, floatTol);
+        assertEquals(-(np - 1), stroke.min_y, floatTol);
+        assertEquals(0f, stroke.max_y, floatTol);
+
+        /* Adding a point after getXs() does not change the returned array */
+        stroke.addPoint(np, -np);
+        assertEquals(np, xs.length);
+        assertEquals(np + 1, stroke.getXs().length);
+        assertEquals(np, stroke.getX(np), floatTol);
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        CStroke stroke0 = new CStroke(new float[] {0f, 1f, 2f}, new float[] {0f, 2f, 4f});
+        CStroke stroke1 = new CStroke(stroke0);
+
+        stroke0.addPoint(3f, 6f);
+        stroke0.normalizeAxes(0f, 3f, 0f, 6f);
+
+        assertEquals(3, stroke1.nPoints());
+        assertFalse(stroke1.isNormalized());
+        assertArrayEquals(new float[] {0f, 1f, 2f}, stroke1.getXs(), floatTol);
+        assertArrayEquals(new float[] {0f, 2f, 4f}, stroke1.getYs(), floatTol);
+        assertEquals(2f, stroke1.max_x, floatTol);
+        assertEquals(4f, stroke1.max_y, floatTol);
+
+        stroke1.addPoint(-1f, -1f);
+        assertEquals(4, stroke0.nPoints());
+        assertEquals(4, stroke1.nPoints());
+    }
+
+    @Test
+    public void testReturnedCoordinatesAreCopies() {
+        CStroke stroke = new CStroke(new float[] {0f, 1f, 2f}, new float[] {0f, 2f, 4f});
+
+        float[] xs = stroke.getXs();
+        float[] ys = stroke.getYs();
+        xs[0] = 100f;
+        ys[0] = 100f;
+
+        assertEquals(0f, stroke.getX(0), floatTol);
+        assertEquals(0f, stroke.getY(0), floatTol);
+        assertArrayEquals(new float[] {0f, 1f, 2f}, stroke.getXs(), floatTol);
+
+        /* Interleaved reading and adding */
+        for (int i = 3; i < 100; ++i) {
+            stroke.addPoint(i, 2f * i);
+            assertEquals(i + 1, stroke.getXs().length);
+            assertEquals(2f * i, stroke.getYs()[i], floatTol);
+        }
+    }
+
+    @Test
+    public void testNormalizeAxes() {
+        CStroke stroke = new CStroke(new float[] {10f, 20f, 30f}, new float[] {5f, 5f, 5f});
+        stroke.normalizeAxes(stroke.min_x, stroke.max_x, stroke.min_y, stroke.max_y);
+
+        assertTrue(stroke.isNormalized());
+        assertArrayEquals(new float[] {0f, 0.5f, 1f}, stroke.getXs(), floatTol);
+        assertArrayEquals(new float[] {0f, 0f, 0f}, stroke.getYs(), floatTol); /* Zero height */
+    }
+
+    @Test
+    public void testCumulativeLengths() {
+        CStroke stroke = new CStroke(new float[] {0f, 3f, 3f}, new float[] {0f, 4f, 4f});
+        assertArrayEquals(new float[] {0f, 5f, 5f}, stroke.getCumulativeLengths(), floatTol);
+
+        /* Adding points and normalizing discard the cached lengths */
+        stroke.addPoint(3f, 8f);
+        assertArrayEquals(new float[] {0f, 5f, 5f, 9f}, stroke.getCumulativeLengths(), floatTol);
+
+        CStroke copy = new CStroke(stroke);
+
+        stroke.normalizeAxes(0f, 3f, 0f, 8f);
+        assertArrayEquals(new float[] {0f, (float) Math.sqrt(1.25), (float) Math.sqrt(1.25),
+                                       (float) Math.sqrt(1.25) + 0.5f},
+                          stroke.getCumulativeLengths(), 1E-6f);
+
+        assertArrayEquals(new float[] {0f, 5f, 5f, 9f}, copy.getCumulativeLengths(), floatTol);
+    }
 }
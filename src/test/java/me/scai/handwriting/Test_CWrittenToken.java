@@ -9,11 +9,15 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import me.scai.parsetree.MathHelper;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
 
 public class Test_CWrittenToken {
   static final float floatTol = 1e-6F;
@@ -154,4 +158,96 @@ public class Test_CWrittenToken {
     }
   }
 
+  /* Reference SDV computation, with the diffs, segment lengths and cumulative sums recomputed from scratch */
+  private static float [] getReferenceSDV(CWrittenToken wt, int npPerStroke, int maxNumStrokes, float hwRatio) {
+    float [] sdv = new float[(npPerStroke - 1) * maxNumStrokes];
+
+    int sdvIdx = 0;
+    for (int i = 0; i < Math.min(wt.nStrokes(), maxNumStrokes); ++i) {
+      float [] xs = wt.getStroke(i).getXs();
+      float [] ys = wt.getStroke(i).getYs();
+
+      if (xs.length <= 2) {
+        sdvIdx += (npPerStroke - 1);
+        continue;
+      }
+
+      float [] dx = MathHelper.diff(xs);
+      float [] dy = MathHelper.diff(ys);
+
+      float [] ls = new float[dx.length];
+      for (int j = 0; j < dx.length; ++j)
+        ls[j] = (float) Math.sqrt((double) (dx[j] * dx[j] + dy[j] * dy[j]));
+
+      float [] cuml = MathHelper.cumsum(ls, true);
+      float ulen = MathHelper.sum(ls) / (npPerStroke - 1);
+
+      float cx = xs[0];
+      float cy = ys[0];
+      float cl = 0f;
+      int cp = 0;
+
+      for (int k = 0; k < npPerStroke - 1; ++k) {
+        cl += ulen;
+
+        while (cuml[cp] < cl && cp + 1 < cuml.length - 1)
+          ++cp;
+
+        if (cuml[cp] == cuml[cp - 1]) {
+          sdv[sdvIdx] = (sdvIdx > 0) ? sdv[sdvIdx - 1] : 0.0f;
+        } else {
+          float cf = (cl - cuml[cp - 1]) / (cuml[cp] - cuml[cp - 1]);
+
+          float cx1 = xs[cp - 1] + (xs[cp] - xs[cp - 1]) * cf;
+          float cy1 = ys[cp - 1] + (ys[cp] - ys[cp - 1]) * cf;
+
+          sdv[sdvIdx] = (float) Math.atan2((double) ((cy1 - cy) * hwRatio), (double) (cx1 - cx));
+
+          cx = cx1;
+          cy = cy1;
+        }
+
+        sdvIdx++;
+      }
+    }
+
+    return sdv;
+  }
+
+  @Test
+  public void testSDVSameAsReference() {
+    final int npPerStroke = 16;
+    final int maxNumStrokes = 4;
+
+    Random random = new Random(31L);
+
+    for (int iter = 0; iter < 200; ++iter) {
+      CWrittenToken wt = new CWrittenToken();
+
+      int ns = 1 + random.nextInt(5);
+      for (int i = 0; i < ns; ++i) {
+        int np = 3 + random.nextInt(i == 0 ? 600 : 30); /* Up to high-rate digitizer lengths */
+
+        CStroke stroke = new CStroke(random.nextInt(100), random.nextInt(100));
+        stroke.addPoint(stroke.getX(0) + 1f, stroke.getY(0)); /* Zero-length strokes are not supported */
+        for (int j = 2; j < np; ++j) {
+          /* Repeated points give zero-length segments */
+          float step = random.nextInt(4) == 0 ? 0f : 1f;
+          stroke.addPoint(stroke.getX(j - 1) + step * (random.nextInt(7) - 3),
+                          stroke.getY(j - 1) + step * (random.nextInt(7) - 3));
+        }
+
+        wt.addStroke(stroke);
+      }
+
+      float [] wh = {2f, 3f};
+
+      float [] sdv = wt.getSDV(npPerStroke, maxNumStrokes, wh); /* Normalizes the token */
+      assertArrayEquals(getReferenceSDV(wt, npPerStroke, maxNumStrokes, wh[1] / wh[0]), sdv, 0f);
+
+      /* Cached cumulative lengths give the same result */
+      assertArrayEquals(sdv, wt.getSDV(npPerStroke, maxNumStrokes, wh), 0f);
+    }
+  }
+
 }
@@ -0,0 +1,137 @@
+package me.scai.handwriting;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class Test_DeltaStateStack {
+    /* Codec over immutable lists of strings, with list splices as the deltas */
+    private static final DeltaStateStack.Codec<List<String>, ListSplice<String>> LIST_CODEC =
+            new DeltaStateStack.Codec<List<String>, ListSplice<String>>() {
+        @Override
+        public ListSplice<String> diff(List<String> from, List<String> to) {
+            return ListSplice.diff(from, to);
+        }
+
+        @Override
+        public List<String> apply(List<String> state, ListSplice<String> delta) {
+            return delta.applyToCopy(state);
+        }
+
+        @Override
+        public ListSplice<String> inverse(ListSplice<String> delta) {
+            return delta.inverse();
+        }
+    };
+
+    @Test
+    public void testListSpliceDiff() {
+        String a = "a", b = "b", c = "c", d = "d", e = "e";
+
+        List<String> from = Arrays.asList(a, b, c, d);
+        List<String> to = Arrays.asList(a, e, d);
+
+        ListSplice<String> splice = ListSplice.diff(from, to);
+        assertEquals(1, splice.getIndex());
+        assertEquals(Arrays.asList(b, c), splice.getRemoved());
+        assertEquals(Arrays.asList(e), splice.getInserted());
+
+        assertEquals(to, splice.applyToCopy(from));
+        assertEquals(from, splice.inverse().applyToCopy(to));
+
+        List<String> inPlace = new ArrayList<>(from);
+        splice.applyTo(inPlace);
+        assertEquals(to, inPlace);
+
+        assertTrue(ListSplice.diff(from, from).isEmpty());
+    }
+
+    @Test
+    public void testListSpliceComparesByIdentity() {
+        String x0 = new String("x");
+        String x1 = new String("x");
+
+        ListSplice<String> splice = ListSplice.diff(Arrays.asList(x0), Arrays.asList(x1));
+
+        assertFalse(splice.isEmpty());
+        assertSame(x1, splice.getInserted().get(0));
+    }
+
+    @Test
+    public void testUndoRedo() {
+        DeltaStateStack<List<String>, ListSplice<String>> stack =
+                new DeltaStateStack<>(LIST_CODEC, new ArrayList<String>(), 10, 3);
+
+        List<List<String>> states = new ArrayList<>();
+        states.add(stack.getState());
+
+        List<String> state = new ArrayList<>();
+        for (int i = 0; i < 7; ++i) {
+            state = new ArrayList<>(state);
+            state.add(i / 2, "s" + i);
+
+            stack.push("Action" + i, state);
+            states.add(state);
+        }
+
+        assertEquals(7, stack.getSize());
+        assertEquals("Action6", stack.getLastUserAction());
+
+        /* Undo all the way back, and redo all the way forward */
+        for (int i = 6; i >= 0; --i) {
+            assertEquals(states.get(i), stack.undo());
+            assertEquals(states.get(i), stack.getState());
+        }
+        assertFalse(stack.canUndo());
+        assertNull(stack.getLastUserAction());
+        assertEquals(7, stack.getUndoneSize());
+
+        for (int i = 1; i <= 7; ++i) {
+            assertEquals(states.get(i), stack.redo());
+        }
+        assertFalse(stack.canRedo());
+
+        /* Pushing after undo discards the undone actions */
+        stack.undo();
+        stack.undo();
+        stack.push("Branch", Arrays.asList("b"));
+
+        assertFalse(stack.canRedo());
+        assertEquals(6, stack.getSize());
+        assertEquals("Branch", stack.getLastUserAction());
+        assertEquals(states.get(5), stack.undo());
+    }
+
+    @Test
+    public void testCapacity() {
+        DeltaStateStack<List<String>, ListSplice<String>> stack =
+                new DeltaStateStack<>(LIST_CODEC, new ArrayList<String>(), 3, 2);
+
+        List<String> state = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            state = new ArrayList<>(state);
+            state.add("s" + i);
+            stack.push("Action" + i, state);
+        }
+
+        assertEquals(3, stack.getCapacity());
+        assertEquals(3, stack.getSize());
+
+        stack.undo();
+        stack.undo();
+        assertEquals(Arrays.asList("s0", "s1"), stack.undo());
+
+        assertFalse(stack.canUndo());
+
+        try {
+            stack.undo();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
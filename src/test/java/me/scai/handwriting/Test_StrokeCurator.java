@@ -1,13 +1,23 @@
 package me.scai.handwriting;
 
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import me.scai.plato.helpers.CStrokeJsonHelper;
+import me.scai.plato.helpers.CompactStateCodec;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertArrayEquals;
@@ -669,4 +679,339 @@ public class Test_StrokeCurator {
 
     }
 
+    /* Undo and redo should restore the exact serialized states, including the token UUIDs and bounds */
+    @Test
+    public void testUndoRedoRestoresSerializedStates() {
+        List<String> states = new ArrayList<>();
+        states.add(curator.getStateSerializationString());
+
+        curator.addStroke(TestHelper.getMockStroke(new float[] {24, 0, 40}, new float[] {0, 28, 28}));
+        states.add(curator.getStateSerializationString());
+        curator.addStroke(TestHelper.getMockStroke(new float[] {28, 28, 28}, new float[] {12, 26, 40}));
+        states.add(curator.getStateSerializationString());
+        curator.addStroke(TestHelper.getMockStroke(new float[] {60, 70, 80, 90}, new float[] {20, 20, 20, 20}));
+        states.add(curator.getStateSerializationString());
+        curator.addStroke(TestHelper.getMockStroke(new float[] {75, 75, 75, 75}, new float[] {5, 15, 25, 35}));
+        states.add(curator.getStateSerializationString());
+
+        curator.moveToken(0, new float[] {1.0f, 1.0f, 41.0f, 41.0f});
+        states.add(curator.getStateSerializationString());
+
+        curator.mergeStrokesAsToken(new int[] {1});
+        states.add(curator.getStateSerializationString());
+
+        curator.forceSetRecogWinner(0, "A");
+        states.add(curator.getStateSerializationString());
+
+        curator.removeToken(1);
+        states.add(curator.getStateSerializationString());
+
+        curator.clear();
+        states.add(curator.getStateSerializationString());
+
+        /* Undo all the actions */
+        for (int i = states.size() - 2; i >= 0; --i) {
+            curator.undoUserAction();
+            assertEquals(states.get(i), curator.getStateSerializationString());
+        }
+        assertFalse(curator.canUndoUserAction());
+
+        /* Redo all the actions */
+        for (int i = 1; i < states.size(); ++i) {
+            curator.redoUserAction();
+            assertEquals(states.get(i), curator.getStateSerializationString());
+        }
+        assertFalse(curator.canRedoUserAction());
+    }
+
+    /* Snapshots share the rows of the unchanged strokes and tokens with the previous snapshots */
+    @Test
+    public void testStateSnapshotStructuralSharing() {
+        StrokeCuratorConfigurable curatorImpl = (StrokeCuratorConfigurable) curator;
+
+        curator.addStroke(TestHelper.getMockStroke(new float[] {24, 0, 40}, new float[] {0, 28, 28}));
+        curator.addStroke(TestHelper.getMockStroke(new float[] {60, 70, 80, 90}, new float[] {20, 20, 20, 20}));
+        curator.addStroke(TestHelper.getMockStroke(new float[] {120, 125, 125, 125}, new float[] {8, 0, 20, 40}));
+
+        StrokeCuratorSnapshot snapshot0 = curatorImpl.getStateSnapshot();
+        assertEquals(3, snapshot0.getNumStrokes());
+        assertEquals(3, snapshot0.getNumTokens());
+
+        /* No change: the same snapshot */
+        assertSame(snapshot0, curatorImpl.getStateSnapshot());
+
+        /* Moving a token changes only the row of that token */
+        curator.moveToken(1, new float[] {60, 30, 90, 30});
+        StrokeCuratorSnapshot snapshot1 = curatorImpl.getStateSnapshot();
+
+        assertNotSame(snapshot0, snapshot1);
+        assertSame(snapshot0.getStrokeRows(), snapshot1.getStrokeRows());
+        assertSame(snapshot0.getTokenRows().get(0), snapshot1.getTokenRows().get(0));
+        assertNotSame(snapshot0.getTokenRows().get(1), snapshot1.getTokenRows().get(1));
+        assertSame(snapshot0.getTokenRows().get(2), snapshot1.getTokenRows().get(2));
+
+        StrokeCuratorSnapshot.Delta delta = StrokeCuratorSnapshot.Delta.diff(snapshot0, snapshot1);
+        assertTrue(delta.getStrokeSplice().isEmpty());
+        assertEquals(1, delta.getTokenSplice().getIndex());
+        assertEquals(1, delta.getTokenSplice().getRemoved().size());
+        assertEquals(1, delta.getTokenSplice().getInserted().size());
+
+        /* Removing the first token shifts the other rows, which are still shared */
+        curator.removeToken(0);
+        StrokeCuratorSnapshot snapshot2 = curatorImpl.getStateSnapshot();
+
+        assertEquals(2, snapshot2.getNumStrokes());
+        assertEquals(2, snapshot2.getNumTokens());
+        assertSame(snapshot1.getStrokeRows().get(2), snapshot2.getStrokeRows().get(1));
+
+        /* Restoring an old snapshot brings back the old state */
+        curatorImpl.restoreStateSnapshot(snapshot0);
+        assertSame(snapshot0, curatorImpl.getStateSnapshot());
+        assertEquals(3, curator.getNumTokens());
+        assertArrayEquals(snapshot0.getTokenRows().get(1).bounds, curator.getWrittenTokenSet().getTokenBounds(1), 0f);
+    }
+
+    /* Copy of the configuration, without the remote token engine */
+    private URL getLocalConfigUrl() throws Exception {
+        URL configUrl = this.getClass().getClassLoader().getResource(TEST_ROOT_DIR +
+                File.separator + RESOURCES_DIR +
+                File.separator + RESOURCES_CONFIG_DIR +
+                File.separator + STROKE_CURATOR_CONFIG_FILE);
+
+        JsonObject configObj;
+        try (Reader reader = new InputStreamReader(configUrl.openStream(), StandardCharsets.UTF_8)) {
+            configObj = new JsonParser().parse(reader).getAsJsonObject();
+        }
+        configObj.addProperty("remoteTokenEngineUrl", "");
+
+        File configFile = File.createTempFile("stroke_curator_config", ".json");
+        configFile.deleteOnExit();
+        FileUtils.writeStringToFile(configFile, configObj.toString(), "UTF-8");
+
+        return configFile.toURI().toURL();
+    }
+
+    private static void addStrokesOf4Plus1(StrokeCurator curator) {
+        /* "4" in two strokes, "+" in two strokes and "1" */
+        curator.addStroke(TestHelper.getMockStroke(new float[] {24, 0, 40}, new float[] {0, 28, 28}));
+        curator.addStroke(TestHelper.getMockStroke(new float[] {28, 28, 28}, new float[] {12, 26, 40}));
+        curator.addStroke(TestHelper.getMockStroke(new float[] {60, 70, 80, 90}, new float[] {20, 20, 20, 20}));
+        curator.addStroke(TestHelper.getMockStroke(new float[] {75, 75, 75, 75}, new float[] {5, 15, 25, 35}));
+        curator.addStroke(TestHelper.getMockStroke(new float[] {120, 125, 125, 125}, new float[] {8, 0, 20, 40}));
+    }
+
+    @Test
+    public void testRecogCache() throws Exception {
+        URL configUrl = getLocalConfigUrl();
+        TokenRecogEngine tokenEngine = TestHelper.readTokenEngine();
+
+        StrokeCuratorConfigurable uncachedCurator = new StrokeCuratorConfigurable(configUrl, tokenEngine);
+        uncachedCurator.setRecogCacheCapacity(0);
+        assertNull(uncachedCurator.getRecogCache());
+        addStrokesOf4Plus1(uncachedCurator);
+
+        StrokeCuratorConfigurable cachedCurator = new StrokeCuratorConfigurable(configUrl, tokenEngine);
+        TokenRecogCache cache = cachedCurator.getRecogCache();
+        assertNotNull(cache);
+
+        addStrokesOf4Plus1(cachedCurator);
+        assertEquals(uncachedCurator.getWrittenTokenRecogWinners(), cachedCurator.getWrittenTokenRecogWinners());
+
+        long nMisses = cache.getMissCount();
+        assertTrue(nMisses > 0);
+
+        /* Writing the same strokes again is served from the cache */
+        cachedCurator.clear();
+        addStrokesOf4Plus1(cachedCurator);
+
+        assertEquals(uncachedCurator.getWrittenTokenRecogWinners(), cachedCurator.getWrittenTokenRecogWinners());
+        JsonObject uncachedState = uncachedCurator.getStateSerialization();
+        JsonObject cachedState = cachedCurator.getStateSerialization();
+        uncachedState.remove("tokenUuids"); /* Random */
+        cachedState.remove("tokenUuids");
+        assertEquals(uncachedState.toString(), cachedState.toString());
+        assertEquals(nMisses, cache.getMissCount());
+        assertTrue(cache.getHitCount() > 0);
+    }
+
+
+    @Test
+    public void testInjectSerializedStatePrefetchesRecogResults() throws Exception {
+        URL configUrl = getLocalConfigUrl();
+        TokenRecogEngine tokenEngine = TestHelper.readTokenEngine();
+
+        StrokeCuratorConfigurable uncachedCurator = new StrokeCuratorConfigurable(configUrl, tokenEngine);
+        uncachedCurator.setRecogCacheCapacity(0);
+        addStrokesOf4Plus1(uncachedCurator);
+        JsonObject state = uncachedCurator.getStateSerialization();
+
+        StrokeCuratorConfigurable uncachedCuratorPrime = new StrokeCuratorConfigurable(configUrl, tokenEngine);
+        uncachedCuratorPrime.setRecogCacheCapacity(0);
+        uncachedCuratorPrime.injectSerializedState(state);
+
+        StrokeCuratorConfigurable cachedCuratorPrime = new StrokeCuratorConfigurable(configUrl, tokenEngine);
+        TokenRecogCache cache = cachedCuratorPrime.getRecogCache();
+        cachedCuratorPrime.injectSerializedState(state);
+
+        JsonObject uncachedState = uncachedCuratorPrime.getStateSerialization();
+        JsonObject cachedState = cachedCuratorPrime.getStateSerialization();
+        assertEquals(uncachedState.toString(), cachedState.toString());
+
+        /* The single strokes and the final tokens are recognized ahead of time, in one batch */
+        int nStrokes = state.get("strokes").getAsJsonArray().size();
+        assertTrue(cache.getHitCount() >= nStrokes);
+        assertEquals(TokenRecogCache.DEFAULT_CAPACITY, cache.getCapacity());
+
+        /* A cache smaller than the batch is grown while the batch is used, and then restored */
+        StrokeCuratorConfigurable smallCachedCuratorPrime = new StrokeCuratorConfigurable(configUrl, tokenEngine);
+        smallCachedCuratorPrime.setRecogCacheCapacity(2);
+        TokenRecogCache smallCache = smallCachedCuratorPrime.getRecogCache();
+        smallCachedCuratorPrime.injectSerializedState(state);
+
+        assertEquals(uncachedState.toString(), smallCachedCuratorPrime.getStateSerialization().toString());
+        assertTrue(smallCache.getHitCount() >= nStrokes);
+        assertEquals(2, smallCache.getCapacity());
+        assertEquals(2, smallCache.size());
+    }
+
+    @Test
+    public void testGridMergesSameAsScanningAllTokens() {
+        StrokeCuratorConfigurable gridCurator = (StrokeCuratorConfigurable) curator;
+        StrokeCuratorConfigurable scanCurator = (StrokeCuratorConfigurable) curatorPrime;
+        scanCurator.setScanningAllTokens(true);
+
+        /* Short strokes scattered over a few rows, close enough for many of them to overlap and merge */
+        Random random = new Random(20151006L);
+        for (int i = 0; i < 120; ++i) {
+            float x0 = random.nextInt(300);
+            float y0 = random.nextInt(3) * 60f + random.nextInt(20);
+            float w = 2f + random.nextInt(30);
+            float h = 2f + random.nextInt(40);
+
+            float[] xs = {x0, x0 + w * random.nextFloat(), x0 + w};
+            float[] ys = {y0, y0 + h, y0 + h * random.nextFloat()};
+
+            gridCurator.addStroke(TestHelper.getMockStroke(xs, ys));
+            scanCurator.addStroke(TestHelper.getMockStroke(xs, ys));
+
+            /* Now and then, change the tokens otherwise */
+            if (i % 17 == 16) {
+                gridCurator.removeLastToken();
+                scanCurator.removeLastToken();
+            } else if (i % 23 == 22) {
+                float[] bounds = {x0 + 100f, y0, x0 + 100f + w, y0 + h};
+                gridCurator.moveToken(0, bounds);
+                scanCurator.moveToken(0, bounds);
+            }
+
+            assertEquals("Stroke " + i, scanCurator.getSerializedConstStrokeIndices(),
+                         gridCurator.getSerializedConstStrokeIndices());
+            assertEquals(scanCurator.getWrittenTokenRecogWinners(), gridCurator.getWrittenTokenRecogWinners());
+        }
+
+        /* The fixture exercises merging */
+        assertTrue(gridCurator.getNumTokens() < gridCurator.getNumStrokes());
+    }
+
+    /* Undoing and then redoing any action, including a stroke merging into a token in the middle, restores the state
+     * exactly */
+    @Test
+    public void testRandomActionsUndoRedoRoundTrip() {
+        for (long seed = 0L; seed < 8L; ++seed) {
+            curator.clear();
+
+            Random random = new Random(seed);
+            for (int i = 0; i < 40; ++i) {
+                String stateBefore = curator.getStateSerializationString();
+                int nTokens = curator.getNumTokens();
+
+                int action = (nTokens == 0) ? 0 : random.nextInt(6);
+                String actionName;
+                if (action <= 2) {
+                    /* Short strokes in a small area, so that many of them merge into existing tokens */
+                    float x0 = random.nextInt(120);
+                    float y0 = random.nextInt(40);
+                    float w = 2f + random.nextInt(20);
+                    float h = 2f + random.nextInt(30);
+
+                    curator.addStroke(TestHelper.getMockStroke(new float[] {x0, x0 + w * random.nextFloat(), x0 + w},
+                                                               new float[] {y0, y0 + h, y0 + h * random.nextFloat()}));
+                    actionName = "addStroke";
+                } else if (action == 3) {
+                    curator.removeToken(random.nextInt(nTokens));
+                    actionName = "removeToken";
+                } else if (action == 4) {
+                    float x0 = random.nextInt(120);
+                    float y0 = random.nextInt(40);
+                    curator.moveToken(random.nextInt(nTokens), new float[] {x0, y0, x0 + 10f, y0 + 20f});
+                    actionName = "moveToken";
+                } else if (random.nextBoolean() && curator.getNumStrokes() > 1) {
+                    curator.mergeStrokesAsToken(new int[] {random.nextInt(curator.getNumStrokes())});
+                    actionName = "mergeStrokesAsToken";
+                } else {
+                    curator.forceSetRecogWinner(random.nextInt(nTokens), "x");
+                    actionName = "forceSetRecogWinner";
+                }
+
+                String stateAfter = curator.getStateSerializationString();
+                String message = "Seed " + seed + ", action " + i + " (" + actionName + ")";
+
+                curator.undoUserAction();
+                assertEquals(message, stateBefore, curator.getStateSerializationString());
+
+                curator.redoUserAction();
+                assertEquals(message, stateAfter, curator.getStateSerializationString());
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryStateRoundTrip() {
+        addStrokesOf4Plus1(curator);
+        curator.addStroke(TestHelper.getMockStroke(new float[] {60.5f, 60.25f, 60.125f}, new float[] {1.1f, 14.2f, 27.3f}));
+        curator.moveToken(0, new float[] {-40f, 0f, 0f, 28f});
+        curator.forceSetRecogWinner(1, "t");
+
+        String jsonState = curator.getStateSerializationString();
+        byte[] binaryState = curator.getStateSerializationBinary(0);
+        assertTrue(binaryState.length * 2 < jsonState.length());
+
+        /* Injecting the binary form gives the same state as injecting the JSON form */
+        curatorPrime.injectSerializedState(new JsonParser().parse(jsonState).getAsJsonObject());
+        String jsonInjectedState = curatorPrime.getStateSerializationString();
+
+        curatorPrime.clear();
+        curatorPrime.injectSerializedStateBinary(binaryState);
+        assertEquals(jsonInjectedState, curatorPrime.getStateSerializationString());
+        assertEquals(curator.getTokenUuids(), curatorPrime.getTokenUuids());
+
+        /* Keeping only the top-K recognition probabilities makes the state smaller. The probabilities are not needed
+         * for injection. */
+        byte[] topKBinaryState = curator.getStateSerializationBinary(3);
+        assertTrue(topKBinaryState.length < binaryState.length);
+
+        curatorPrime.clear();
+        curatorPrime.injectSerializedStateBinary(topKBinaryState);
+        assertEquals(jsonInjectedState, curatorPrime.getStateSerializationString());
+
+        /* Corrupted state */
+        try {
+            curatorPrime.injectSerializedStateBinary(Arrays.copyOf(binaryState, binaryState.length / 2));
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+
+        /* Huge number of strokes after the header (magic number and version) */
+        CompactStateCodec.Writer writer = new CompactStateCodec.Writer();
+        writer.writeVarint(Integer.MAX_VALUE);
+        byte[] count = writer.toByteArray();
+
+        byte[] hugeCountState = Arrays.copyOf(binaryState, 5 + count.length);
+        System.arraycopy(count, 0, hugeCountState, 5, count.length);
+        try {
+            curatorPrime.injectSerializedStateBinary(hugeCountState);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
 }
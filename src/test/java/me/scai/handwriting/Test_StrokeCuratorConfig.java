@@ -9,6 +9,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -96,6 +98,46 @@ public class Test_StrokeCuratorConfig {
 		assertEquals(config.mergePartners.get("root").size(), 0);
 	}
 
-
+    @Test
+    public void testCompiledRules() {
+        StrokeCuratorConfig config = StrokeCuratorConfig.fromJson(
+                "{\"tokenPairRules\": [" +
+                "  {\"tokenA\": \"-\", \"tokenB\": \"-\"," +
+                "   \"predicaments\": [\"relativeWidthDifference < 0.5\", \"relativeLeftXOffset < 0.4\"]," +
+                "   \"recommendation\": \"mergeAs: \\\"=\\\"\"}," +
+                "  {\"tokenA\": \"gr_io\", \"tokenB\": \".\"," +
+                "   \"predicaments\": [\"isWidthAContainingWidthB == 1\", \"unknownPredicament == 0\"]," +
+                "   \"recommendation\": \"mergeAs: \\\"i\\\"\"}]," +
+                " \"mergePartners\": {\"root\": [\"-\"]}}");
+
+        /* Rules apply to their token pair in either order */
+        float[] dashA = {0f, 0f, 10f, 1f};
+        float[] dashB = {1f, 5f, 10f, 6f};
+        List<Float> ctrXs = Arrays.asList(5f, 5.5f);
+        List<Float> ctrYs = Arrays.asList(0.5f, 5.5f);
+        assertEquals("=", config.applyRule("-", "-", dashA, dashB, ctrXs, ctrYs));
+        assertNull(config.applyRule("-", "-", dashA, new float[] {8f, 5f, 30f, 6f}, ctrXs, ctrYs));
+
+        float[] stem = {0f, 3f, 2f, 10f};
+        float[] dot = {0.5f, 0f, 1.5f, 1f};
+        assertEquals("i", config.applyRule(".", "gr_io", dot, stem, ctrXs, ctrYs));
+        assertEquals("i", config.applyRule(config.getTokenId("gr_io"), config.getTokenId("."), stem, dot,
+                                           ctrXs, ctrYs));
+        assertNull(config.applyRule("-", ".", dashA, dot, ctrXs, ctrYs));
+        assertNull(config.applyRule("x", "y", dashA, dashB, ctrXs, ctrYs));
+
+        assertTrue(config.hasRulesFor("-"));
+        assertTrue(config.hasRulesFor("."));
+        assertFalse(config.hasRulesFor("root"));
+        assertFalse(config.hasRulesFor("x"));
+        assertEquals(StrokeCuratorConfig.NO_RULES_TOKEN_ID, config.getTokenId("x"));
+
+        /* Tokens with a merge-partner list merge only with the listed partners, in either order */
+        assertTrue(config.potentiallyMergeable("root", "-"));
+        assertTrue(config.potentiallyMergeable("-", "root"));
+        assertFalse(config.potentiallyMergeable("root", "."));
+        assertFalse(config.potentiallyMergeable("x", "root"));
+        assertTrue(config.potentiallyMergeable("x", "y"));
+        assertTrue(config.potentiallyMergeable("-", "."));
+    }
 }
-
@@ -0,0 +1,133 @@
+package me.scai.handwriting;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Test_TokenBoundsGrid {
+    private static float[] getRandomBounds(Random random) {
+        float x = random.nextInt(400) * 0.25f;
+        float y = random.nextInt(200) * 0.25f;
+        /* Mostly small tokens, with the occasional long one (e.g., a fraction line) and zero-extent ones (dots) */
+        float w = (random.nextInt(10) == 0) ? random.nextInt(400) * 0.25f : random.nextInt(8) * 0.5f;
+        float h = random.nextInt(8) * 0.5f;
+
+        return new float[] {x, y, x + w, y + h};
+    }
+
+    private static CWrittenToken getToken(float[] bounds) {
+        CWrittenToken token = new CWrittenToken();
+        token.setBounds(bounds);
+        token.setRecogResult("1");
+        token.bNormalized = true;
+
+        return token;
+    }
+
+    private static int[] linearQuery(CAbstractWrittenTokenSet wts, float[] bounds) {
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < wts.getNumTokens(); ++i) {
+            float[] t = wts.getTokenBounds(i);
+            if (t[0] <= bounds[2] && bounds[0] <= t[2] && t[1] <= bounds[3] && bounds[1] <= t[3]) {
+                indices.add(i);
+            }
+        }
+
+        int[] r = new int[indices.size()];
+        for (int k = 0; k < r.length; ++k) {
+            r[k] = indices.get(k);
+        }
+        return r;
+    }
+
+    @Test
+    public void testQuerySameAsLinearScanUnderChanges() {
+        Random random = new Random(20151004L);
+
+        CWrittenTokenSetNoStroke wts = new CWrittenTokenSetNoStroke();
+        TokenBoundsGrid grid = new TokenBoundsGrid();
+
+        for (int iter = 0; iter < 2000; ++iter) {
+            int op = random.nextInt(10);
+
+            if (op < 5 || wts.getNumTokens() == 0) {
+                /* Add */
+                wts.addTokenWithoutUuids(getToken(getRandomBounds(random)), 0);
+                grid.invalidateFrom(wts.getNumTokens() - 1);
+            } else if (op < 7) {
+                /* Remove */
+                int i = random.nextInt(wts.getNumTokens());
+                wts.removeToken(i);
+                grid.invalidateFrom(i);
+            } else {
+                /* Move, or grow as in a merge */
+                int i = random.nextInt(wts.getNumTokens());
+                wts.setTokenBounds(i, getRandomBounds(random));
+                grid.invalidate(i);
+            }
+
+            grid.sync(wts);
+            assertEquals(wts.getNumTokens(), grid.size());
+
+            float[] query = getRandomBounds(random);
+            assertArrayEquals(linearQuery(wts, query), grid.query(query));
+        }
+    }
+
+    @Test
+    public void testBatchedInvalidationsBeforeSync() {
+        Random random = new Random(20151005L);
+
+        CWrittenTokenSetNoStroke wts = new CWrittenTokenSetNoStroke();
+        TokenBoundsGrid grid = new TokenBoundsGrid();
+
+        for (int round = 0; round < 200; ++round) {
+            /* Several changes of all kinds, e.g., those of a merge or of a state restoration, then one sync */
+            final int nChanges = 1 + random.nextInt(8);
+            for (int c = 0; c < nChanges; ++c) {
+                int op = random.nextInt(10);
+
+                if (op < 5 || wts.getNumTokens() == 0) {
+                    wts.addTokenWithoutUuids(getToken(getRandomBounds(random)), 0);
+                    grid.invalidateFrom(wts.getNumTokens() - 1);
+                } else if (op < 7) {
+                    int i = random.nextInt(wts.getNumTokens());
+                    wts.removeToken(i);
+                    grid.invalidateFrom(i);
+                } else {
+                    /* Possibly the same token more than once, or a token that is then shifted by a removal */
+                    int i = random.nextInt(wts.getNumTokens());
+                    wts.setTokenBounds(i, getRandomBounds(random));
+                    grid.invalidate(i);
+                }
+            }
+
+            grid.sync(wts);
+            assertEquals(wts.getNumTokens(), grid.size());
+
+            for (int q = 0; q < 5; ++q) {
+                float[] query = getRandomBounds(random);
+                assertArrayEquals(linearQuery(wts, query), grid.query(query));
+            }
+        }
+    }
+
+    @Test
+    public void testQueryTouchingBounds() {
+        CWrittenTokenSetNoStroke wts = new CWrittenTokenSetNoStroke();
+        TokenBoundsGrid grid = new TokenBoundsGrid();
+
+        wts.addTokenWithoutUuids(getToken(new float[] {0f, 0f, 1f, 1f}), 0);
+        wts.addTokenWithoutUuids(getToken(new float[] {2f, 0f, 2f, 0f}), 0); /* Zero extent */
+        wts.addTokenWithoutUuids(getToken(new float[] {5f, 5f, 6f, 6f}), 0);
+        grid.sync(wts);
+
+        assertArrayEquals(new int[] {0, 1}, grid.query(new float[] {1f, 0f, 2f, 0f}));
+        assertArrayEquals(new int[] {2}, grid.query(new float[] {6f, 6f, 7f, 7f}));
+        assertArrayEquals(new int[0], grid.query(new float[] {3f, 3f, 4f, 4f}));
+    }
+}
@@ -0,0 +1,161 @@
+package me.scai.handwriting;
+
+import com.google.gson.JsonObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Test_TokenEngineModel {
+    private static TokenRecogEngineSDV tokenEngine;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        tokenEngine = (TokenRecogEngineSDV) TestHelper.readTokenEngine();
+    }
+
+    private static File writeModelFile(TokenRecogEngineSDV tokEngine) throws IOException {
+        File modelFile = File.createTempFile("token_engine", ".model");
+        modelFile.deleteOnExit();
+
+        TokenEngineModel.write(tokEngine, modelFile);
+
+        return modelFile;
+    }
+
+    @Test
+    public void testRecognizeSameAsSerializedEngine() throws IOException {
+        TokenRecogEngineSDV modelEngine = new TokenRecogEngineSDV(TokenEngineModel.load(writeModelFile(tokenEngine)));
+
+        assertTrue(modelEngine.isReadyToRecognize());
+        assertEquals(tokenEngine.getAllTokenNames(), modelEngine.getAllTokenNames());
+        assertArrayEquals(tokenEngine.getHardCodedTokens(), modelEngine.getHardCodedTokens());
+        assertTrue(Arrays.equals(tokenEngine.getFeatures(), modelEngine.getFeatures()));
+        assertEquals(tokenEngine.getNpPerStroke(), modelEngine.getNpPerStroke());
+        assertEquals(tokenEngine.getMaxNumStrokes(), modelEngine.getMaxNumStrokes());
+
+        final int nTokens = tokenEngine.getAllTokenNames().size();
+        final int inputCount = tokenEngine.bnet.getInputCount();
+
+        Random random = new Random(4321L);
+        double[] expectedPs = new double[nTokens];
+        double[] ps = new double[nTokens];
+        for (int i = 0; i < 50; ++i) {
+            float[] sdve = new float[inputCount];
+            for (int j = 0; j < inputCount; ++j) {
+                sdve[j] = random.nextFloat() * 2f - 1f;
+            }
+
+            assertEquals(tokenEngine.recognize(sdve, expectedPs), modelEngine.recognize(sdve, ps));
+            assertArrayEquals(expectedPs, ps, 0.0);
+        }
+
+        /* Written tokens, including a hard-coded one */
+        CWrittenToken wtCross = new CWrittenToken();
+        wtCross.addStroke(TestHelper.getMockStroke(new float[] {0, 20, 40}, new float[] {20, 20, 20}));
+        wtCross.addStroke(TestHelper.getMockStroke(new float[] {20, 20, 20}, new float[] {0, 20, 40}));
+        wtCross.normalizeAxes();
+
+        CWrittenToken wtDot = new CWrittenToken();
+        wtDot.addStroke(TestHelper.getMockStroke(new float[] {10, 11}, new float[] {10, 11}));
+        wtDot.normalizeAxes();
+
+        for (CWrittenToken wt : Arrays.asList(wtCross, wtDot)) {
+            assertEquals(tokenEngine.recognize(wt, expectedPs), modelEngine.recognize(wt, ps));
+            assertArrayEquals(expectedPs, ps, 0.0);
+        }
+    }
+
+    @Test
+    public void testLoadedModelIsShared() throws IOException {
+        File modelFile = writeModelFile(tokenEngine);
+
+        TokenEngineModel model = TokenEngineModel.load(modelFile);
+        assertSame(model, TokenEngineModel.load(modelFile));
+
+        TokenRecogEngineSDV engine1 = new TokenRecogEngineSDV(model);
+        TokenRecogEngineSDV engine2 = new TokenRecogEngineSDV(model);
+        assertSame(engine1.getBatchEvaluator(), engine2.getBatchEvaluator());
+    }
+
+    @Test
+    public void testOverwriteLoadedModelFile() throws IOException {
+        final File modelFile = writeModelFile(tokenEngine);
+        TokenEngineModel model = TokenEngineModel.load(modelFile);
+        TokenRecogEngineSDV modelEngine = new TokenRecogEngineSDV(model);
+
+        final int nTokens = tokenEngine.getAllTokenNames().size();
+        float[] sdve = new float[tokenEngine.bnet.getInputCount()];
+        Arrays.fill(sdve, 0.25f);
+
+        double[] expectedPs = new double[nTokens];
+        modelEngine.recognize(sdve, expectedPs);
+
+        /* The mapped file is replaced, not truncated and rewritten: the loaded model keeps working */
+        TokenEngineModel.write(modelEngine, modelFile);
+
+        double[] ps = new double[nTokens];
+        modelEngine.recognize(sdve, ps);
+        assertArrayEquals(expectedPs, ps, 0.0);
+
+        TokenRecogEngineSDV reloadedEngine = new TokenRecogEngineSDV(TokenEngineModel.load(modelFile));
+        reloadedEngine.recognize(sdve, ps);
+        assertArrayEquals(expectedPs, ps, 0.0);
+
+        /* No temporary file is left behind */
+        File[] leftovers = modelFile.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(modelFile.getName()) && name.endsWith(".tmp");
+            }
+        });
+        assertEquals(0, leftovers.length);
+    }
+
+    @Test
+    public void testReadFromStream() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TokenEngineModel.write(tokenEngine, bytes);
+
+        TokenEngineModel model = TokenEngineModel.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(tokenEngine.getAllTokenNames(), model.getTokenNames());
+
+        /* Writing the model of an engine created from a model reproduces the same bytes */
+        ByteArrayOutputStream bytesPrime = new ByteArrayOutputStream();
+        TokenEngineModel.write(new TokenRecogEngineSDV(model), bytesPrime);
+        assertArrayEquals(bytes.toByteArray(), bytesPrime.toByteArray());
+    }
+
+    @Test
+    public void testTokenDegeneracy() throws Exception {
+        TokenRecogEngineSDV tokEngine = (TokenRecogEngineSDV) TestHelper.readTokenEngine();
+
+        JsonObject tokenDegenObj = new JsonObject();
+        tokenDegenObj.addProperty("O", "0");
+        tokenDegenObj.addProperty("l", "1");
+        tokEngine.loadTokenDegeneracy(tokenDegenObj);
+
+        TokenEngineModel model = TokenEngineModel.load(writeModelFile(tokEngine));
+
+        assertEquals("0", model.getTokenDegen().getDegenerated("O"));
+        assertEquals("1", model.getTokenDegen().getDegenerated("l"));
+        assertEquals("x", model.getTokenDegen().getDegenerated("x"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidFile() throws IOException {
+        TokenEngineModel.read(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedFile() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TokenEngineModel.write(tokenEngine, bytes);
+
+        TokenEngineModel.read(new ByteArrayInputStream(Arrays.copyOf(bytes.toByteArray(), bytes.size() - 8)));
+    }
+}
@@ -0,0 +1,82 @@
+package me.scai.handwriting;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Test_TokenRecogCache {
+    private static TokenRecogOutput getOutput(String winner) {
+        return new TokenRecogOutput(winner, 1f, Arrays.asList(winner), Arrays.asList(1f));
+    }
+
+    @Test
+    public void testQuantization() {
+        TokenRecogCache cache = new TokenRecogCache(4, 0.01f);
+
+        assertEquals(cache.getKey(new float[] {0.1f, -0.5f}), cache.getKey(new float[] {0.1001f, -0.5001f}));
+        assertNotEquals(cache.getKey(new float[] {0.1f, -0.5f}), cache.getKey(new float[] {0.12f, -0.5f}));
+        assertNotEquals(cache.getKey(new float[] {0.1f}), cache.getKey(new float[] {0.1f, 0f}));
+    }
+
+    @Test
+    public void testLruEvictionAndCounters() {
+        TokenRecogCache cache = new TokenRecogCache(2, 0.01f);
+
+        TokenRecogCache.Key k0 = cache.getKey(new float[] {0f});
+        TokenRecogCache.Key k1 = cache.getKey(new float[] {1f});
+        TokenRecogCache.Key k2 = cache.getKey(new float[] {2f});
+
+        assertNull(cache.get(k0));
+        cache.put(k0, getOutput("0"));
+        cache.put(k1, getOutput("1"));
+
+        assertEquals("0", cache.get(k0).getWinner()); /* k1 is now the least recently used */
+
+        cache.put(k2, getOutput("2"));
+        assertEquals(2, cache.size());
+        assertNull(cache.get(k1));
+        assertEquals("0", cache.get(k0).getWinner());
+        assertEquals("2", cache.get(k2).getWinner());
+
+        assertEquals(3, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        cache.resetCounters();
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void testSetCapacity() {
+        TokenRecogCache cache = new TokenRecogCache(2, 0.01f);
+
+        TokenRecogCache.Key k0 = cache.getKey(new float[] {0f});
+        TokenRecogCache.Key k1 = cache.getKey(new float[] {1f});
+        TokenRecogCache.Key k2 = cache.getKey(new float[] {2f});
+
+        /* Growing the capacity keeps more results */
+        cache.ensureCapacity(3);
+        cache.put(k0, getOutput("0"));
+        cache.put(k1, getOutput("1"));
+        cache.put(k2, getOutput("2"));
+        assertEquals(3, cache.getCapacity());
+        assertEquals(3, cache.size());
+
+        /* Restoring it evicts the least recently used results */
+        cache.get(k0);
+        cache.setCapacity(2);
+        assertEquals(2, cache.getCapacity());
+        assertEquals(2, cache.size());
+        assertFalse(cache.containsKey(k1));
+        assertTrue(cache.containsKey(k0));
+        assertTrue(cache.containsKey(k2));
+
+        try {
+            cache.setCapacity(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package me.scai.handwriting;
+
+import org.encog.ml.data.MLData;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Test_TokenRecogEngineSDV {
+    private static TokenRecogEngineSDV tokenEngine;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        tokenEngine = (TokenRecogEngineSDV) TestHelper.readTokenEngine();
+    }
+
+    private static float[][] getRandomSdves(Random random, int n) {
+        final int inputCount = tokenEngine.bnet.getInputCount();
+
+        float[][] sdves = new float[n][inputCount];
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < inputCount; ++j) {
+                sdves[i][j] = random.nextFloat() * 2f - 1f;
+            }
+        }
+
+        return sdves;
+    }
+
+    @Test
+    public void testRecognizeSameAsEncog() {
+        final int nTokens = tokenEngine.getAllTokenNames().size();
+
+        float[][] sdves = getRandomSdves(new Random(1234L), 50);
+        double[] ps = new double[nTokens];
+
+        for (float[] sdve : sdves) {
+            MLData mlData = TokenRecogEngineSDV.getMLData(sdve);
+            double[] expectedPs = tokenEngine.bnet.compute(mlData).getData();
+            int expectedWinner = tokenEngine.bnet.winner(mlData);
+
+            assertEquals(expectedWinner, tokenEngine.recognize(sdve, ps));
+            assertArrayEquals(expectedPs, ps, 0.0);
+        }
+    }
+
+    @Test
+    public void testRecognizeBatchSameAsSingle() {
+        final int nTokens = tokenEngine.getAllTokenNames().size();
+
+        /* Not a multiple of the block size */
+        float[][] sdves = getRandomSdves(new Random(5678L), 3 * FlatNetworkBatchEvaluator.BLOCK_SIZE + 5);
+
+        double[][] batchPs = new double[sdves.length][nTokens];
+        int[] batchWinners = tokenEngine.recognizeBatch(sdves, batchPs);
+
+        double[] ps = new double[nTokens];
+        for (int i = 0; i < sdves.length; ++i) {
+            assertEquals(tokenEngine.recognize(sdves[i], ps), batchWinners[i]);
+            assertArrayEquals(ps, batchPs[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testRecognizeBatchOfWrittenTokens() {
+        final int nTokens = tokenEngine.getAllTokenNames().size();
+
+        List<CWrittenToken> wts = new ArrayList<>();
+
+        CWrittenToken wtLine = new CWrittenToken();
+        wtLine.addStroke(TestHelper.getMockStroke(new float[] {10, 20, 30, 40}, new float[] {10, 10, 11, 10}));
+        wtLine.normalizeAxes();
+        wts.add(wtLine);
+
+        CWrittenToken wtDot = new CWrittenToken(); /* Hard-coded token */
+        wtDot.addStroke(TestHelper.getMockStroke(new float[] {10, 11}, new float[] {10, 11}));
+        wtDot.normalizeAxes();
+        wts.add(wtDot);
+
+        CWrittenToken wtCross = new CWrittenToken();
+        wtCross.addStroke(TestHelper.getMockStroke(new float[] {0, 20, 40}, new float[] {20, 20, 20}));
+        wtCross.addStroke(TestHelper.getMockStroke(new float[] {20, 20, 20}, new float[] {0, 20, 40}));
+        wtCross.normalizeAxes();
+        wts.add(wtCross);
+
+        double[][] batchPs = new double[wts.size()][nTokens];
+        int[] batchWinners = tokenEngine.recognizeBatch(wts, batchPs);
+
+        double[] ps = new double[nTokens];
+        for (int i = 0; i < wts.size(); ++i) {
+            assertEquals(tokenEngine.recognize(wts.get(i), ps), batchWinners[i]);
+            assertArrayEquals(ps, batchPs[i], 0.0);
+        }
+
+        assertEquals(".", tokenEngine.getTokenName(batchWinners[1]));
+    }
+}
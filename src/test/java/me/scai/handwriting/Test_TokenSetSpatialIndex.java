@@ -0,0 +1,111 @@
+package me.scai.handwriting;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Test_TokenSetSpatialIndex {
+    private static CWrittenTokenSetNoStroke getRandomTokenSet(Random random, int nt) {
+        float[][] bounds = new float[nt][];
+        String[] names = new String[nt];
+
+        for (int i = 0; i < nt; ++i) {
+            float x = random.nextInt(40) * 0.25f;
+            float y = random.nextInt(20) * 0.25f;
+            float w = random.nextInt(8) * 0.5f;
+            float h = random.nextInt(8) * 0.5f;
+
+            bounds[i] = new float[] {x, y, x + w, y + h};
+            names[i] = "1";
+        }
+
+        return TestHelper.getMockTokenSet(bounds, names);
+    }
+
+    @Test
+    public void testQueryOverlappingSameAsLinearScan() {
+        Random random = new Random(20150621L);
+
+        for (int iter = 0; iter < 200; ++iter) {
+            CWrittenTokenSetNoStroke wts = getRandomTokenSet(random, 1 + random.nextInt(30));
+            TokenSetSpatialIndex index = wts.getSpatialIndex();
+
+            for (int axis = TokenSetSpatialIndex.X; axis <= TokenSetSpatialIndex.Y; ++axis) {
+                float lb = random.nextInt(40) * 0.25f - 1f;
+                float ub = lb + random.nextInt(8) * 0.5f;
+
+                boolean[] expected = new boolean[wts.getNumTokens()];
+                for (int i = 0; i < wts.getNumTokens(); ++i) {
+                    float[] bounds = wts.getTokenBounds(i);
+                    expected[i] = bounds[axis] <= ub && bounds[axis + 2] >= lb;
+                }
+
+                int[] indices = new int[wts.getNumTokens()];
+                int n = index.queryOverlapping(axis, lb, ub, indices);
+
+                boolean[] actual = new boolean[wts.getNumTokens()];
+                for (int k = 0; k < n; ++k) {
+                    assertFalse(actual[indices[k]]); /* No duplicates */
+                    actual[indices[k]] = true;
+                }
+
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testCenterOrderAndCounts() {
+        Random random = new Random(42L);
+
+        for (int iter = 0; iter < 100; ++iter) {
+            CWrittenTokenSetNoStroke wts = getRandomTokenSet(random, 1 + random.nextInt(20));
+            TokenSetSpatialIndex index = wts.getSpatialIndex();
+
+            for (int axis = TokenSetSpatialIndex.X; axis <= TokenSetSpatialIndex.Y; ++axis) {
+                int[] order = index.getOrderByCenter(axis);
+
+                /* Ascending centers; ties in ascending index order */
+                for (int r = 1; r < order.length; ++r) {
+                    float c0 = index.getCenter(axis, order[r - 1]);
+                    float c1 = index.getCenter(axis, order[r]);
+
+                    assertTrue(c0 < c1 || (c0 == c1 && order[r - 1] < order[r]));
+                }
+
+                float value = random.nextInt(40) * 0.25f;
+                int nBelow = 0;
+                int nAtMost = 0;
+                for (int i = 0; i < wts.getNumTokens(); ++i) {
+                    float[] bounds = wts.getTokenBounds(i);
+                    float center = (bounds[axis] + bounds[axis + 2]) * 0.5f;
+
+                    nBelow += (center < value) ? 1 : 0;
+                    nAtMost += (center <= value) ? 1 : 0;
+                }
+
+                assertEquals(nBelow, index.countCentersBelow(axis, value));
+                assertEquals(nAtMost, index.countCentersAtMost(axis, value));
+            }
+        }
+    }
+
+    @Test
+    public void testIndexInvalidatedOnChange() {
+        float[][] bounds = {{0, 0, 1, 1}, {2, 0, 3, 1}};
+        String[] names = {"1", "2"};
+
+        CWrittenTokenSetNoStroke wts = TestHelper.getMockTokenSet(bounds, names);
+        TokenSetSpatialIndex index = wts.getSpatialIndex();
+        assertSame(index, wts.getSpatialIndex());
+
+        wts.setTokenBounds(1, new float[] {-3, 0, -2, 1});
+        index = wts.getSpatialIndex();
+        assertArrayEquals(new int[] {1, 0}, index.getOrderByCenter(TokenSetSpatialIndex.X));
+
+        wts.removeToken(0);
+        assertEquals(1, wts.getSpatialIndex().nTokens());
+    }
+}
@@ -0,0 +1,140 @@
+package me.scai.handwriting.ml;
+
+import me.scai.handwriting.CStroke;
+import me.scai.handwriting.CWrittenToken;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Test_StrokeRasterizer {
+    private static final int[] IMG_SIZES = {8, 16, 32, 64};
+
+    @Test
+    public void testRandomStrokesMatchPerPixelRasterization() {
+        Random random = new Random(1234L);
+
+        for (int trial = 0; trial < 50; ++trial) {
+            CWrittenToken wt = new CWrittenToken();
+
+            int nStrokes = 1 + random.nextInt(3);
+            for (int n = 0; n < nStrokes; ++n) {
+                CStroke stroke = new CStroke(random.nextFloat(), random.nextFloat());
+
+                int np = 2 + random.nextInt(30);
+                for (int k = 1; k < np; ++k) {
+                    stroke.addPoint(random.nextFloat(), random.nextFloat());
+                }
+
+                wt.addStroke(stroke);
+            }
+
+            float origImgH = 0.2f + random.nextFloat();
+            float origImgW = 0.2f + random.nextFloat();
+
+            for (int imgSize : IMG_SIZES) {
+                assertSameImage(wt, imgSize, origImgH, origImgW);
+            }
+        }
+    }
+
+    @Test
+    public void testAxisAlignedStrokesAndRepeatedPoints() {
+        CWrittenToken wt = new CWrittenToken();
+
+        wt.addStroke(new CStroke(new float[] {0f, 1f}, new float[] {0.5f, 0.5f}));    // Horizontal
+        wt.addStroke(new CStroke(new float[] {0.25f, 0.25f}, new float[] {0f, 1f}));  // Vertical
+        wt.addStroke(new CStroke(new float[] {0f, 0.3f, 0.3f, 0.6f}, new float[] {0f, 0.3f, 0.3f, 0.1f})); // Repeated point
+        wt.addStroke(new CStroke(new float[] {0.9f, 0.9f}, new float[] {0.9f, 0.9f})); // Dot
+
+        for (int imgSize : IMG_SIZES) {
+            assertSameImage(wt, imgSize, 1f, 1f);
+            assertSameImage(wt, imgSize, 2f, 1f);
+            assertSameImage(wt, imgSize, 1f, 3f);
+        }
+    }
+
+    @Test
+    public void testGetNewImagePlusSdveLayout() {
+        CWrittenToken wt = new CWrittenToken();
+        wt.addStroke(new CStroke(new float[] {0.1f, 0.9f}, new float[] {0.2f, 0.7f}));
+
+        float[][] img = MachineLearningHelper.getNewImageData(wt, 16, 1f, 1f);
+        float[] flatImg = StrokeRasterizer.rasterize(wt, 16, 1f, 1f);
+
+        for (int j = 0; j < 16; ++j) {
+            for (int i = 0; i < 16; ++i) {
+                assertEquals(flatImg[j * 16 + i], img[j][i], 0f);
+            }
+        }
+    }
+
+    private static void assertSameImage(CWrittenToken wt, int imgSize, float origImgH, float origImgW) {
+        float[][] expected = rasterizePerPixel(wt, imgSize, origImgH, origImgW);
+        float[][] actual = MachineLearningHelper.getNewImageData(wt, imgSize, origImgH, origImgW);
+
+        for (int j = 0; j < imgSize; ++j) {
+            assertArrayEquals(expected[j], actual[j], 0f);
+        }
+    }
+
+    /* Reference: tests every pixel against every segment */
+    private static float[][] rasterizePerPixel(CWrittenToken wt, int imgSize, float origImgH, float origImgW) {
+        float hgd = 1.0f / imgSize * 0.5f * 1.414f;
+
+        float lim_x = 1f;
+        float lim_y = 1f;
+        if (origImgH > origImgW) {
+            lim_x = origImgW / origImgH;
+        } else {
+            lim_y = origImgH / origImgW;
+        }
+
+        float[][] img = new float[imgSize][imgSize];
+
+        for (int n = 0; n < wt.nStrokes(); ++n) {
+            CStroke stroke = wt.getStroke(n);
+            final int np = stroke.nPoints();
+            final float[] xs = stroke.getXs();
+            final float[] ys = stroke.getYs();
+
+            if (np == 1 || (np == 2 && xs[0] == xs[1] && ys[0] == ys[1])) {
+                int ix = Math.round(xs[0] * (imgSize - 1) * lim_x);
+                int iy = Math.round(ys[0] * (imgSize - 1) * lim_y);
+
+                img[iy][ix] = 1.0f;
+                continue;
+            }
+
+            for (int i = 0; i < imgSize; ++i) {
+                for (int j = 0; j < imgSize; ++j) {
+                    float ctr_x = (i + 0.5f) / imgSize;
+                    float ctr_y = (j + 0.5f) / imgSize;
+
+                    for (int k = 0; k < np - 1; ++k) {
+                        float x0 = xs[k] * lim_x;
+                        float y0 = ys[k] * lim_y;
+                        float x1 = xs[k + 1] * lim_x;
+                        float y1 = ys[k + 1] * lim_y;
+
+                        if (x0 == x1 && y0 == y1) {
+                            if ((x0 - ctr_x) * (x0 - ctr_x) + (y0 - ctr_y) * (y0 - ctr_y) <= hgd * hgd) {
+                                img[j][i] = 1f;
+                            }
+                        } else {
+                            float d = StrokeRasterizer.dist(x0, y0, x1, y1, ctr_x, ctr_y);
+
+                            if (d <= hgd) {
+                                float v = (hgd - d) / hgd;
+                                img[j][i] = 1f - (1f - img[j][i]) * ((1f - v) / 2f);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return img;
+    }
+}
@@ -0,0 +1,176 @@
+package me.scai.handwriting.ml;
+
+import me.scai.handwriting.TokenDegeneracy;
+import me.scai.handwriting.tokens.TokenSettings;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class Test_TokenDataReader {
+    private static final String IM_TEMPLATE_FILE = "tokens/no_source_equal_separator.im";
+    private static final String[] TOKEN_NAMES = {"a", "b", "x", "."};
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private File dataDir;
+    private TokenSettings tokenSettings;
+
+    @Before
+    public void setUp() throws IOException, URISyntaxException {
+        List<String> imTemplateLines = Files.readAllLines(
+                new File(getClass().getClassLoader().getResource(IM_TEMPLATE_FILE).toURI()).toPath(),
+                StandardCharsets.UTF_8);
+
+        dataDir = tmpFolder.newFolder("token_data");
+
+        Random random = new Random(42L);
+        writeTokens(dataDir, "root", 5, imTemplateLines, random);
+        writeTokens(new File(dataDir, "sub1"), "sub1", 40, imTemplateLines, random);
+        writeTokens(new File(new File(dataDir, "sub1"), "sub11"), "sub11", 7, imTemplateLines, random);
+        writeTokens(new File(dataDir, "sub2"), "sub2", 20, imTemplateLines, random);
+        writeTokens(new File(dataDir, ".hidden"), "hidden", 3, imTemplateLines, random);
+
+        Map<String, String> degenTable = new HashMap<>();
+        degenTable.put("b", "a");
+
+        tokenSettings = new TokenSettings(false, true, true, new String[] {"."}, 16, 4,
+                                          new TokenDegeneracy(degenTable));
+    }
+
+    @Test
+    public void testParallelReadMatchesSequentialRead() {
+        DataSetWithStringLabels seq = new TokenDataReader(tokenSettings, 0, null).read(dataDir, 1);
+        DataSetWithStringLabels par = new TokenDataReader(tokenSettings, 0, null).read(dataDir, 4);
+
+        /* The hidden directory and the hard-coded tokens are skipped */
+        assertTrue(seq.numSamples() > 0);
+        assertTrue(seq.numSamples() < 5 + 40 + 7 + 20);
+        assertFalse(seq.getYSet().contains("."));
+        assertFalse(seq.getYSet().contains("b")); // Degenerated to "a"
+
+        assertSameData(seq, par);
+    }
+
+    @Test
+    public void testImageFeatures() {
+        DataSetWithStringLabels sdveOnly = new TokenDataReader(tokenSettings, 0, null).read(dataDir, 2);
+        DataSetWithStringLabels withImage = new TokenDataReader(tokenSettings, 16, null).read(dataDir, 2);
+
+        assertEquals(sdveOnly.numSamples(), withImage.numSamples());
+        assertEquals(sdveOnly.getX().get(0).length + 16 * 16, withImage.getX().get(0).length);
+    }
+
+    @Test
+    public void testFeatureCache() throws IOException {
+        FeatureCache featureCache = new FeatureCache(tmpFolder.newFolder("feature_cache"));
+
+        TokenDataReader reader = new TokenDataReader(tokenSettings, 16, featureCache);
+
+        DataSetWithStringLabels firstRun = reader.read(dataDir, 4);
+        assertEquals(0, reader.getNumCacheHits());
+
+        DataSetWithStringLabels secondRun = reader.read(dataDir, 4);
+        assertEquals(firstRun.numSamples(), reader.getNumCacheHits());
+        assertSameData(firstRun, secondRun);
+
+        /* Different settings do not hit the cached features */
+        TokenDataReader sdveReader = new TokenDataReader(tokenSettings, 0, featureCache);
+        sdveReader.read(dataDir, 4);
+        assertEquals(0, sdveReader.getNumCacheHits());
+
+        /* A changed token file is re-extracted */
+        File changedFile = new File(new File(dataDir, "sub2"), "sub2_0.wt");
+        try (PrintWriter pw = new PrintWriter(new java.io.FileWriter(changedFile, true))) {
+            pw.println();
+        }
+
+        reader.read(dataDir, 4);
+        assertEquals(firstRun.numSamples() - 1, reader.getNumCacheHits());
+    }
+
+    @Test
+    public void testCorruptCacheEntryIsMiss() throws IOException {
+        File cacheDir = tmpFolder.newFolder("feature_cache");
+        FeatureCache featureCache = new FeatureCache(cacheDir);
+
+        String key = FeatureCache.getKey(new byte[] {1, 2}, new byte[] {3});
+        assertNull(featureCache.get(key));
+
+        featureCache.put(key, "x", new float[] {1f, -2f, 3.5f});
+        FeatureCache.Entry entry = featureCache.get(key);
+        assertEquals("x", entry.getTokenName());
+        assertArrayEquals(new float[] {1f, -2f, 3.5f}, entry.getFeatures(), 0f);
+
+        /* Keys depend on the division into parts */
+        assertNotEquals(key, FeatureCache.getKey(new byte[] {1}, new byte[] {2, 3}));
+
+        /* Truncate the entry */
+        File entryFile = new File(cacheDir, key + ".feat");
+        byte[] bytes = Files.readAllBytes(entryFile.toPath());
+        Files.write(entryFile.toPath(), Arrays.copyOf(bytes, bytes.length - 2));
+        assertNull(featureCache.get(key));
+    }
+
+    private static void assertSameData(DataSetWithStringLabels expected, DataSetWithStringLabels actual) {
+        assertEquals(expected.numSamples(), actual.numSamples());
+        assertEquals(expected.getY(), actual.getY());
+
+        for (int i = 0; i < expected.numSamples(); ++i) {
+            assertArrayEquals(expected.getX().get(i), actual.getX().get(i), 0f);
+        }
+    }
+
+    /* Write random tokens as pairs of .wt and .im files */
+    private static void writeTokens(File dir, String prefix, int numTokens, List<String> imTemplateLines,
+                                    Random random) throws IOException {
+        assertTrue(dir.isDirectory() || dir.mkdirs());
+
+        for (int k = 0; k < numTokens; ++k) {
+            String tokenName = TOKEN_NAMES[random.nextInt(TOKEN_NAMES.length)];
+
+            int nStrokes = 1 + random.nextInt(3);
+            try (PrintWriter pw = new PrintWriter(new File(dir, prefix + "_" + k + ".wt"), "UTF-8")) {
+                pw.println("Token name: " + tokenName);
+                pw.println("CWrittenToken (nStrokes=" + nStrokes + "):");
+
+                for (int n = 0; n < nStrokes; ++n) {
+                    int np = 2 + random.nextInt(20);
+                    pw.println("Stroke (np=" + np + "):");
+                    pw.println("        xs=" + randomCoords(np, random));
+                    pw.println("        ys=" + randomCoords(np, random));
+                }
+            }
+
+            try (PrintWriter pw = new PrintWriter(new File(dir, prefix + "_" + k + ".im"), "UTF-8")) {
+                pw.println("Token name: " + tokenName);
+                for (int i = 1; i < imTemplateLines.size(); ++i) {
+                    pw.println(imTemplateLines.get(i));
+                }
+            }
+        }
+    }
+
+    private static String randomCoords(int np, Random random) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < np; ++i) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(String.format(Locale.US, "%.3f", random.nextFloat()));
+        }
+
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,208 @@
+package me.scai.handwriting.remote;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import me.scai.handwriting.CWrittenToken;
+import me.scai.handwriting.TestHelper;
+import me.scai.handwriting.TokenRecogOutput;
+import me.scai.handwriting.tokens.TokenSettings;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class Test_AsyncTokenRecogRemoteEngine {
+    private static final TokenSettings TOKEN_SETTINGS = new TokenSettings(false, true, true, null, 16, 4, null);
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String url;
+
+    private final AtomicInteger nRequests = new AtomicInteger();
+    private volatile JsonArray lastFeatureVector;
+    private final CountDownLatch firstResponseSent = new CountDownLatch(1);
+
+    private volatile long delayMillis = 0L;
+    private volatile boolean failing = false;
+
+    /* Stub of the single-request endpoint: responds after a delay, with "x" as the winner, or with an error if failing.
+     * Requests are handled concurrently, as by a real server. */
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/token-recog", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                nRequests.incrementAndGet();
+
+                String reqBody = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+                lastFeatureVector = new JsonParser().parse(reqBody).getAsJsonObject()
+                                                    .get("featureVector").getAsJsonArray();
+
+                if (delayMillis > 0L) {
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                try {
+                    if (failing) {
+                        exchange.sendResponseHeaders(500, -1);
+                        exchange.close();
+                        return;
+                    }
+
+                    JsonArray recogPVals = new JsonArray();
+                    recogPVals.add(getCandidate("x", 0.9f));
+                    recogPVals.add(getCandidate("y", 0.1f));
+
+                    JsonObject respObj = new JsonObject();
+                    respObj.addProperty("winnerTokenName", "x");
+                    respObj.add("recogPVals", recogPVals);
+
+                    byte[] respBytes = respObj.toString().getBytes("UTF-8");
+                    exchange.getResponseHeaders().add("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(200, respBytes.length);
+
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(respBytes);
+                    os.close();
+                } finally {
+                    firstResponseSent.countDown();
+                }
+            }
+        });
+
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/token-recog";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testResponseWithinDeadline() {
+        delayMillis = 10L;
+
+        TokenRecogRemoteEngineImpl remoteEngine = new TokenRecogRemoteEngineImpl(url, TOKEN_SETTINGS);
+        AsyncTokenRecogRemoteEngine asyncEngine = new AsyncTokenRecogRemoteEngine(remoteEngine);
+
+        CWrittenToken wt = getWrittenToken();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        PendingTokenRecognition pending = asyncEngine.recognizeAsync(wt);
+        TokenRecogOutput output = asyncEngine.getWithinDeadline(pending, deadline);
+
+        assertNotNull(output);
+        assertEquals("x", output.getWinner());
+        assertEquals(0.9f, output.getMaxP(), 0f);
+
+        /* The feature vector of the remote engine is sent */
+        float[] featureVector = remoteEngine.getFeatureVector(wt);
+        assertEquals(featureVector.length, lastFeatureVector.size());
+        for (int i = 0; i < featureVector.length; ++i) {
+            assertEquals(featureVector[i], lastFeatureVector.get(i).getAsFloat(), 0f);
+        }
+
+        assertEquals(1, nRequests.get());
+        assertTrue(pending.isDone());
+        assertFalse(pending.isCancelled());
+        assertFalse(pending.getCancellationToken().isCancelled());
+    }
+
+    @Test
+    public void testResponseAfterDeadlineIsCancelled() throws InterruptedException {
+        /* The first attempt fails late; had the request not been cancelled, it would be retried */
+        delayMillis = 1000L;
+        failing = true;
+
+        AsyncTokenRecogRemoteEngine asyncEngine =
+                new AsyncTokenRecogRemoteEngine(new TokenRecogRemoteEngineImpl(url, TOKEN_SETTINGS));
+
+        long t0 = System.nanoTime();
+        PendingTokenRecognition pending = asyncEngine.recognizeAsync(getWrittenToken());
+        TokenRecogOutput output = asyncEngine.getWithinDeadline(pending, t0 + TimeUnit.MILLISECONDS.toNanos(50));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+
+        assertNull(output);
+        assertTrue("Waited for " + elapsedMillis + " ms", elapsedMillis < delayMillis);
+
+        assertTrue(pending.isCancelled());
+        assertTrue(pending.getCancellationToken().isCancelled());
+
+        /* No retry follows the late failure */
+        assertTrue(firstResponseSent.await(5, TimeUnit.SECONDS));
+        Thread.sleep(500L);
+        assertEquals(1, nRequests.get());
+    }
+
+    @Test
+    public void testFailedResponse() {
+        failing = true;
+
+        AsyncTokenRecogRemoteEngine asyncEngine =
+                new AsyncTokenRecogRemoteEngine(new TokenRecogRemoteEngineImpl(url, TOKEN_SETTINGS));
+
+        PendingTokenRecognition pending = asyncEngine.recognizeAsync(getWrittenToken());
+        assertNull(asyncEngine.getWithinDeadline(pending, System.nanoTime() + TimeUnit.SECONDS.toNanos(5)));
+
+        assertEquals(3, nRequests.get()); /* All attempts were made */
+    }
+
+    @Test
+    public void testCancelledRequestIsNotSent() {
+        TokenRecogRemoteEngineImpl remoteEngine = new TokenRecogRemoteEngineImpl(url, TOKEN_SETTINGS);
+
+        CancellationToken cancellationToken = new CancellationToken();
+        cancellationToken.cancel();
+
+        try {
+            remoteEngine.recognize(new float[] {0f}, cancellationToken);
+            fail("Expected TokenRecogRemoteEngineException");
+        } catch (TokenRecogRemoteEngineException e) {
+            assertEquals("Request cancelled", e.getMessage());
+        }
+
+        assertEquals(0, nRequests.get());
+    }
+
+    /* Private methods */
+    private static CWrittenToken getWrittenToken() {
+        CWrittenToken wt = new CWrittenToken();
+        wt.addStroke(TestHelper.getMockStroke(new float[] {0, 10, 20}, new float[] {0, 30, 0}));
+        wt.normalizeAxes();
+
+        return wt;
+    }
+
+    private static JsonArray getCandidate(String tokenName, float p) {
+        JsonArray candidate = new JsonArray();
+        candidate.add(new JsonPrimitive(tokenName));
+        candidate.add(new JsonPrimitive(p));
+
+        return candidate;
+    }
+}
@@ -0,0 +1,394 @@
+package me.scai.handwriting.remote;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import me.scai.handwriting.*;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/* Stroke curator with a remote token engine, served by a local stub HTTP server */
+public class Test_StrokeCuratorRemote {
+    private static final String TEST_ROOT_DIR = TestHelper.TEST_ROOT_DIR;
+    private static final String RESOURCES_DIR = "resources";
+    private static final String RESOURCES_CONFIG_DIR = "config";
+    private static final String STROKE_CURATOR_CONFIG_FILE = "stroke_curator_config.json";
+
+    private TokenRecogEngine tokenEngine;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String url;
+
+    private final AtomicInteger nSingleRequests = new AtomicInteger();
+    private final AtomicInteger nBatchRequests = new AtomicInteger();
+
+    private final AtomicInteger nSinglesInFlight = new AtomicInteger();
+
+    private volatile long batchDelayMillis = 0L;
+    private volatile long singleDelayMillis = 0L;
+    private volatile boolean singleFailing = false;
+
+    /* Stub of the remote token engine, for both single and batch requests. The probabilities are a deterministic
+     * function of the feature vector, which differs from the local token engine. */
+    @Before
+    public void setUp() throws Exception {
+        tokenEngine = TestHelper.readTokenEngine();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/token-recog", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String reqBody = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+                JsonObject reqObj = new JsonParser().parse(reqBody).getAsJsonObject();
+
+                if (reqObj.has("featureVector") && !respondToSingle(exchange, reqObj)) {
+                    return;
+                }
+                JsonObject respObj = reqObj.has("featureVector") ? getSingleResponse(reqObj) : respondToBatch(reqObj);
+
+                byte[] respBytes = respObj.toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, respBytes.length);
+
+                OutputStream os = exchange.getResponseBody();
+                os.write(respBytes);
+                os.close();
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/token-recog";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testPrefetchOfVerticalStrokeMatchesSingleRecognition() throws Exception {
+        URL configUrl = getConfigUrl(url, 0L);
+
+        /* Perfectly vertical: zero width, for which the local and remote feature vectors differ */
+        CStroke stroke = TestHelper.getMockStroke(new float[] {10, 10, 10, 10}, new float[] {0, 10, 20, 30});
+        CWrittenToken wt = new CWrittenToken();
+        wt.addStroke(new CStroke(stroke));
+        wt.normalizeAxes();
+        assertFalse(tokenEngine.isTokenHardCoded(wt));
+
+        StrokeCuratorConfigurable singleCurator = new StrokeCuratorConfigurable(configUrl, tokenEngine);
+        singleCurator.setRecogCacheCapacity(0);
+        singleCurator.addStroke(new CStroke(stroke));
+        JsonObject state = singleCurator.getStateSerialization();
+
+        final int nSingleRequestsBefore = nSingleRequests.get();
+        assertTrue(nSingleRequestsBefore > 0);
+        assertEquals(0, nBatchRequests.get());
+
+        StrokeCuratorConfigurable prefetchCurator = new StrokeCuratorConfigurable(configUrl, tokenEngine);
+        prefetchCurator.injectSerializedState(state);
+
+        assertEquals(nSingleRequestsBefore, nSingleRequests.get()); /* Served from the prefetched results */
+        assertEquals(1, nBatchRequests.get());
+        assertTrue(prefetchCurator.getRecogCache().getHitCount() > 0);
+
+        assertEquals(singleCurator.getWrittenTokenRecogWinners(), prefetchCurator.getWrittenTokenRecogWinners());
+        assertArrayEquals(singleCurator.getWrittenTokenRecogPs().get(0),
+                          prefetchCurator.getWrittenTokenRecogPs().get(0), 0.0);
+    }
+
+    @Test
+    public void testPrefetchLargerThanRecogCache() throws Exception {
+        URL configUrl = getConfigUrl(url, 0L);
+
+        /* More single strokes than the default capacity of the cache */
+        final int nStrokes = TokenRecogCache.DEFAULT_CAPACITY + 8;
+        List<CStroke> strokes = new ArrayList<>();
+        for (int i = 0; i < nStrokes; ++i) {
+            float x = 50f * i;
+            strokes.add(TestHelper.getMockStroke(new float[] {x, x + 20f, x + 10f + i * 0.1f},
+                                                 new float[] {0f, 10f + i * 0.1f, 30f}));
+        }
+
+        StrokeCuratorConfigurable singleCurator = new StrokeCuratorConfigurable(configUrl, tokenEngine);
+        singleCurator.setRecogCacheCapacity(0);
+        for (CStroke stroke : strokes) {
+            singleCurator.addStroke(stroke);
+        }
+        JsonObject state = singleCurator.getStateSerialization();
+
+        StrokeCuratorConfigurable prefetchCurator = new StrokeCuratorConfigurable(configUrl, tokenEngine);
+        final int nSingleRequestsBefore = nSingleRequests.get();
+        prefetchCurator.injectSerializedState(state);
+
+        assertEquals(nSingleRequestsBefore, nSingleRequests.get()); /* No prefetched result was evicted */
+        assertEquals(1, nBatchRequests.get());
+        assertEquals(singleCurator.getWrittenTokenRecogWinners(), prefetchCurator.getWrittenTokenRecogWinners());
+
+        /* The cache is back at its configured capacity once the prefetched results are used */
+        assertEquals(TokenRecogCache.DEFAULT_CAPACITY, prefetchCurator.getRecogCache().getCapacity());
+        assertEquals(TokenRecogCache.DEFAULT_CAPACITY, prefetchCurator.getRecogCache().size());
+    }
+
+    @Test
+    public void testPrefetchWithinDeadline() throws Exception {
+        StrokeCuratorConfigurable singleCurator = new StrokeCuratorConfigurable(getConfigUrl(url, 0L), tokenEngine);
+        singleCurator.setRecogCacheCapacity(0);
+        singleCurator.addStroke(TestHelper.getMockStroke(new float[] {0, 10, 20}, new float[] {0, 30, 0}));
+        JsonObject state = singleCurator.getStateSerialization();
+
+        /* The batch request takes much longer than the deadline; the single requests are fast */
+        batchDelayMillis = 5000L;
+        final long deadlineMillis = 200L;
+
+        StrokeCuratorConfigurable prefetchCurator =
+                new StrokeCuratorConfigurable(getConfigUrl(url, deadlineMillis), tokenEngine);
+
+        long t0 = System.nanoTime();
+        prefetchCurator.injectSerializedState(state);
+        long elapsedMillis = (System.nanoTime() - t0) / 1000000L;
+
+        assertEquals(1, nBatchRequests.get());
+        assertTrue("Injection took " + elapsedMillis + " ms", elapsedMillis < batchDelayMillis);
+        assertEquals(singleCurator.getWrittenTokenRecogWinners(), prefetchCurator.getWrittenTokenRecogWinners());
+    }
+
+    @Test
+    public void testDeadlineExpiryFallsBackToLocal() throws Exception {
+        CStroke stroke = TestHelper.getMockStroke(new float[] {0, 10, 20}, new float[] {0, 30, 0});
+
+        StrokeCuratorConfigurable localCurator = new StrokeCuratorConfigurable(getResourceConfigUrl(), tokenEngine);
+        localCurator.addStroke(new CStroke(stroke));
+
+        /* The remote results differ from the local ones, but arrive too late */
+        StrokeCuratorConfigurable remoteCurator = new StrokeCuratorConfigurable(getConfigUrl(url, 0L), tokenEngine);
+        remoteCurator.addStroke(new CStroke(stroke));
+        assertFalse(Arrays.equals(localCurator.getWrittenTokenRecogPs().get(0),
+                                  remoteCurator.getWrittenTokenRecogPs().get(0)));
+
+        singleDelayMillis = 2000L;
+        StrokeCuratorConfigurable hedgedCurator =
+                new StrokeCuratorConfigurable(getConfigUrl(url, 100L), tokenEngine);
+
+        long t0 = System.nanoTime();
+        hedgedCurator.addStroke(new CStroke(stroke));
+        long elapsedMillis = (System.nanoTime() - t0) / 1000000L;
+
+        assertTrue("Adding the stroke took " + elapsedMillis + " ms", elapsedMillis < singleDelayMillis);
+        assertEquals(localCurator.getWrittenTokenRecogWinners(), hedgedCurator.getWrittenTokenRecogWinners());
+        assertArrayEquals(localCurator.getWrittenTokenRecogPs().get(0),
+                          hedgedCurator.getWrittenTokenRecogPs().get(0), 0.0);
+
+        /* The fallback results are not cached: once the remote engine is fast again, its results are used */
+        singleDelayMillis = 0L;
+        hedgedCurator.removeLastToken();
+        hedgedCurator.addStroke(new CStroke(stroke));
+        assertEquals(remoteCurator.getWrittenTokenRecogWinners(), hedgedCurator.getWrittenTokenRecogWinners());
+        assertArrayEquals(remoteCurator.getWrittenTokenRecogPs().get(0),
+                          hedgedCurator.getWrittenTokenRecogPs().get(0), 0.0);
+    }
+
+    @Test
+    public void testLateRemoteRequestIsCancelled() throws Exception {
+        CStroke stroke = TestHelper.getMockStroke(new float[] {0, 10, 20}, new float[] {0, 30, 0});
+
+        /* Number of remote calls made for the stroke, one request each */
+        StrokeCuratorConfigurable fastCurator = new StrokeCuratorConfigurable(getConfigUrl(url, 5000L), tokenEngine);
+        fastCurator.setRecogCacheCapacity(0);
+        fastCurator.addStroke(new CStroke(stroke));
+        final int nCalls = nSingleRequests.get();
+        assertTrue(nCalls > 0);
+
+        /* Each request fails, after the deadline. Requests that were not cancelled would be retried. */
+        singleDelayMillis = 500L;
+        singleFailing = true;
+
+        StrokeCuratorConfigurable hedgedCurator = new StrokeCuratorConfigurable(getConfigUrl(url, 50L), tokenEngine);
+        hedgedCurator.setRecogCacheCapacity(0);
+        hedgedCurator.addStroke(new CStroke(stroke));
+
+        waitForSinglesToFinish();
+        Thread.sleep(500L);
+        waitForSinglesToFinish();
+
+        assertTrue(nSingleRequests.get() - nCalls <= nCalls);
+
+        StrokeCuratorConfigurable localCurator = new StrokeCuratorConfigurable(getResourceConfigUrl(), tokenEngine);
+        localCurator.addStroke(new CStroke(stroke));
+        assertEquals(localCurator.getWrittenTokenRecogWinners(), hedgedCurator.getWrittenTokenRecogWinners());
+    }
+
+    /* Private methods */
+
+    /* Delay or fail a single request if so configured. Returns false if the response has been sent already. */
+    private boolean respondToSingle(HttpExchange exchange, JsonObject reqObj) throws IOException {
+        nSingleRequests.incrementAndGet();
+        nSinglesInFlight.incrementAndGet();
+
+        try {
+            if (singleDelayMillis > 0L) {
+                try {
+                    Thread.sleep(singleDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (singleFailing) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return false;
+            }
+
+            return true;
+        } finally {
+            nSinglesInFlight.decrementAndGet();
+        }
+    }
+
+    private void waitForSinglesToFinish() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (nSinglesInFlight.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0, nSinglesInFlight.get());
+    }
+
+    private JsonObject getSingleResponse(JsonObject reqObj) {
+
+        JsonArray jsonFeatureVector = reqObj.get("featureVector").getAsJsonArray();
+        float[] x = new float[jsonFeatureVector.size()];
+        for (int j = 0; j < x.length; ++j) {
+            x[j] = jsonFeatureVector.get(j).getAsFloat();
+        }
+
+        final float[] ps = getStubPs(x);
+
+        /* In descending order of probability */
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < ps.length; ++i) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(ps[b], ps[a]);
+            }
+        });
+
+        JsonArray recogPVals = new JsonArray();
+        for (int i : order) {
+            JsonArray candidate = new JsonArray();
+            candidate.add(new JsonPrimitive(tokenEngine.getTokenName(i)));
+            candidate.add(new JsonPrimitive(ps[i]));
+            recogPVals.add(candidate);
+        }
+
+        JsonObject respObj = new JsonObject();
+        respObj.addProperty("winnerTokenName", tokenEngine.getTokenName(order.get(0)));
+        respObj.add("recogPVals", recogPVals);
+
+        return respObj;
+    }
+
+    private JsonObject respondToBatch(JsonObject reqObj) {
+        nBatchRequests.incrementAndGet();
+
+        if (batchDelayMillis > 0L) {
+            try {
+                Thread.sleep(batchDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int n = reqObj.get("numFeatureVectors").getAsInt();
+        int len = reqObj.get("featureVectorLength").getAsInt();
+        float[] xs = TokenRecogRemoteEngineImpl.decodeFloats(reqObj.get("featureVectorsBase64").getAsString());
+
+        List<float[]> ps = new ArrayList<>();
+        for (int k = 0; k < n; ++k) {
+            ps.add(getStubPs(Arrays.copyOfRange(xs, k * len, (k + 1) * len)));
+        }
+
+        JsonArray tokenNames = new JsonArray();
+        for (String tokenName : tokenEngine.tokenNames) {
+            tokenNames.add(new JsonPrimitive(tokenName));
+        }
+
+        JsonObject respObj = new JsonObject();
+        respObj.add("tokenNames", tokenNames);
+        respObj.addProperty("recogPsBase64", TokenRecogRemoteEngineImpl.encodeFloats(ps, tokenNames.size()));
+
+        return respObj;
+    }
+
+    private float[] getStubPs(float[] x) {
+        double s = 0.0;
+        for (int j = 0; j < x.length; ++j) {
+            s += x[j] * (j + 1);
+        }
+
+        float[] ps = new float[tokenEngine.tokenNames.size()];
+        for (int i = 0; i < ps.length; ++i) {
+            ps[i] = (float) Math.abs(Math.sin(s * (i + 1)));
+        }
+
+        return ps;
+    }
+
+    private URL getResourceConfigUrl() {
+        return this.getClass().getClassLoader().getResource(TEST_ROOT_DIR +
+                File.separator + RESOURCES_DIR +
+                File.separator + RESOURCES_CONFIG_DIR +
+                File.separator + STROKE_CURATOR_CONFIG_FILE);
+    }
+
+    private URL getConfigUrl(String remoteTokenEngineUrl, long deadlineMillis) throws Exception {
+        URL configUrl = getResourceConfigUrl();
+
+        JsonObject configObj;
+        try (Reader reader = new InputStreamReader(configUrl.openStream(), StandardCharsets.UTF_8)) {
+            configObj = new JsonParser().parse(reader).getAsJsonObject();
+        }
+        configObj.addProperty("remoteTokenEngineUrl", remoteTokenEngineUrl);
+        configObj.addProperty("remoteTokenEngineDeadlineMillis", deadlineMillis);
+
+        File configFile = File.createTempFile("stroke_curator_config", ".json");
+        configFile.deleteOnExit();
+        FileUtils.writeStringToFile(configFile, configObj.toString(), "UTF-8");
+
+        return configFile.toURI().toURL();
+    }
+}
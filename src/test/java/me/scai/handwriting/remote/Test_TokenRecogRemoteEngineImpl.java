@@ -0,0 +1,142 @@
+package me.scai.handwriting.remote;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import me.scai.handwriting.TokenRecogOutput;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class Test_TokenRecogRemoteEngineImpl {
+    private static final List<String> TOKEN_NAMES = Arrays.asList("a", "b", "c");
+
+    private HttpServer server;
+    private String url;
+
+    private final AtomicInteger nRequests = new AtomicInteger();
+    private volatile JsonObject lastRequest;
+
+    /* Stub of the batch endpoint: the probability of token name #i is the sum of the features times (i + 1) */
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/token-recog", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                nRequests.incrementAndGet();
+
+                String reqBody = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+                JsonObject reqObj = new JsonParser().parse(reqBody).getAsJsonObject();
+                lastRequest = reqObj;
+
+                int n = reqObj.get("numFeatureVectors").getAsInt();
+                int len = reqObj.get("featureVectorLength").getAsInt();
+                float[] xs = TokenRecogRemoteEngineImpl.decodeFloats(reqObj.get("featureVectorsBase64").getAsString());
+
+                List<float[]> ps = new ArrayList<>();
+                for (int k = 0; k < n; ++k) {
+                    float sum = 0f;
+                    for (int j = 0; j < len; ++j) {
+                        sum += xs[k * len + j];
+                    }
+
+                    float[] tokenPs = new float[TOKEN_NAMES.size()];
+                    for (int i = 0; i < tokenPs.length; ++i) {
+                        tokenPs[i] = sum * (i + 1);
+                    }
+                    ps.add(tokenPs);
+                }
+
+                JsonArray tokenNames = new JsonArray();
+                for (String tokenName : TOKEN_NAMES) {
+                    tokenNames.add(new JsonPrimitive(tokenName));
+                }
+
+                JsonObject respObj = new JsonObject();
+                respObj.add("tokenNames", tokenNames);
+                respObj.addProperty("recogPsBase64", TokenRecogRemoteEngineImpl.encodeFloats(ps, TOKEN_NAMES.size()));
+
+                byte[] respBytes = respObj.toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, respBytes.length);
+
+                OutputStream os = exchange.getResponseBody();
+                os.write(respBytes);
+                os.close();
+            }
+        });
+        server.start();
+
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/token-recog";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testEncodeDecodeFloats() {
+        List<float[]> vectors = Arrays.asList(new float[] {0f, -1.5f, Float.MAX_VALUE},
+                                              new float[] {1e-7f, Float.NaN, 42f});
+
+        float[] xs = TokenRecogRemoteEngineImpl.decodeFloats(TokenRecogRemoteEngineImpl.encodeFloats(vectors, 3));
+
+        assertArrayEquals(new float[] {0f, -1.5f, Float.MAX_VALUE, 1e-7f, Float.NaN, 42f}, xs, 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeFloatsOfDifferentLengths() {
+        TokenRecogRemoteEngineImpl.encodeFloats(Arrays.asList(new float[] {1f, 2f}, new float[] {3f}), 2);
+    }
+
+    @Test
+    public void testRecognizeBatchInSingleRequest() throws TokenRecogRemoteEngineException {
+        TokenRecogRemoteEngineImpl remoteEngine = new TokenRecogRemoteEngineImpl(url, null);
+
+        List<float[]> featureVectors = Arrays.asList(new float[] {0.1f, 0.2f}, new float[] {1f, 2f},
+                                                     new float[] {-1f, -2f});
+        List<TokenRecogOutput> outputs = remoteEngine.recognizeBatch(featureVectors, new CancellationToken());
+
+        assertEquals(1, nRequests.get());
+        assertEquals(3, lastRequest.get("numFeatureVectors").getAsInt());
+        assertEquals(2, lastRequest.get("featureVectorLength").getAsInt());
+
+        assertEquals(featureVectors.size(), outputs.size());
+        for (int k = 0; k < outputs.size(); ++k) {
+            float sum = featureVectors.get(k)[0] + featureVectors.get(k)[1];
+            TokenRecogOutput output = outputs.get(k);
+
+            assertEquals(TOKEN_NAMES, output.getCandidateNames());
+            assertArrayEquals(new float[] {sum, sum * 2, sum * 3}, output.getCandidatePsAsFloatArray(), 0f);
+        }
+
+        assertEquals("c", outputs.get(0).getWinner());
+        assertEquals(9f, outputs.get(1).getMaxP(), 1e-6f);
+        assertEquals("a", outputs.get(2).getWinner()); /* All negative */
+    }
+
+    @Test
+    public void testRecognizeEmptyBatch() throws TokenRecogRemoteEngineException {
+        TokenRecogRemoteEngineImpl remoteEngine = new TokenRecogRemoteEngineImpl(url, null);
+
+        assertTrue(remoteEngine.recognizeBatch(new ArrayList<float[]>(), new CancellationToken()).isEmpty());
+        assertEquals(0, nRequests.get());
+    }
+}
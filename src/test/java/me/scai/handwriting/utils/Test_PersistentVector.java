@@ -0,0 +1,125 @@
+package me.scai.handwriting.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Test_PersistentVector {
+    @Test
+    public void testAppendAndRemoveLastAcrossTrieLevels() {
+        final int n = 40000; // Requires three trie levels
+
+        List<PersistentVector<Integer>> versions = new ArrayList<>();
+        PersistentVector<Integer> vec = PersistentVector.empty();
+        for (int i = 0; i < n; ++i) {
+            vec = vec.append(i);
+            if (i % 997 == 0) {
+                versions.add(vec);
+            }
+        }
+
+        assertEquals(n, vec.size());
+        for (int i = 0; i < n; ++i) {
+            assertEquals(i, (int) vec.get(i));
+        }
+
+        /* Old versions are unaffected by later appends */
+        for (int k = 0; k < versions.size(); ++k) {
+            PersistentVector<Integer> version = versions.get(k);
+            assertEquals(k * 997 + 1, version.size());
+            assertEquals(k * 997, (int) version.get(version.size() - 1));
+        }
+
+        for (int i = n - 1; i >= 0; --i) {
+            vec = vec.removeLast();
+            assertEquals(i, vec.size());
+            if (i > 0) {
+                assertEquals(i - 1, (int) vec.get(i - 1));
+            }
+        }
+        assertTrue(vec.isEmpty());
+    }
+
+    @Test
+    public void testRandomOperationsAgainstArrayList() {
+        Random random = new Random(20261017L);
+
+        List<Integer> model = new ArrayList<>();
+        PersistentVector<Integer> vec = PersistentVector.empty();
+
+        for (int step = 0; step < 3000; ++step) {
+            PersistentVector<Integer> prev = vec;
+            List<Integer> prevModel = new ArrayList<>(model);
+
+            int op = random.nextInt(5);
+            if (op <= 1 || model.isEmpty()) {
+                int v = random.nextInt();
+                vec = vec.append(v);
+                model.add(v);
+            } else if (op == 2) {
+                int i = random.nextInt(model.size());
+                int v = random.nextInt();
+                vec = vec.withElement(i, v);
+                model.set(i, v);
+            } else if (op == 3) {
+                vec = vec.removeLast();
+                model.remove(model.size() - 1);
+            } else {
+                int index = random.nextInt(model.size() + 1);
+                int nRemoved = random.nextInt(Math.min(3, model.size() - index) + 1);
+                List<Integer> inserted = new ArrayList<>();
+                for (int k = random.nextInt(3); k > 0; --k) {
+                    inserted.add(random.nextInt());
+                }
+
+                vec = vec.splice(index, nRemoved, inserted);
+                model.subList(index, index + nRemoved).clear();
+                model.addAll(index, inserted);
+            }
+
+            assertEquals(model, vec);
+            assertEquals(prevModel, prev); // Persistence: the old version is unchanged
+        }
+    }
+
+    @Test
+    public void testCommonPrefixLength() {
+        PersistentVector<String> vec = PersistentVector.empty();
+        for (int i = 0; i < 1000; ++i) {
+            vec = vec.append("s" + i);
+        }
+
+        assertEquals(1000, vec.commonPrefixLength(vec));
+        assertEquals(1000, vec.commonPrefixLength(vec.append("x")));
+        assertEquals(500, vec.commonPrefixLength(vec.withElement(500, "x")));
+        assertEquals(999, vec.commonPrefixLength(vec.withElement(999, "x")));
+        assertEquals(0, vec.commonPrefixLength(PersistentVector.of(Arrays.asList("y"))));
+    }
+
+    @Test
+    public void testCommonSuffixLength() {
+        PersistentVector<String> vec = PersistentVector.empty();
+        for (int i = 0; i < 1000; ++i) {
+            vec = vec.append("s" + i);
+        }
+
+        assertEquals(1000, vec.commonSuffixLength(vec, 1000));
+        assertEquals(10, vec.commonSuffixLength(vec, 10));
+        assertEquals(499, vec.commonSuffixLength(vec.withElement(500, "x"), 1000));
+        assertEquals(0, vec.commonSuffixLength(vec.withElement(999, "x"), 1000));
+
+        /* Different sizes: the elements are compared from the ends */
+        PersistentVector<String> shorter = vec.splice(100, 1, new ArrayList<String>());
+        assertEquals(899, vec.commonSuffixLength(shorter, 1000));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testListViewIsReadOnly() {
+        PersistentVector.of(Arrays.asList(1, 2, 3)).add(4);
+    }
+}
@@ -1,6 +1,9 @@
 package me.scai.parsetree;
 
+import me.scai.handwriting.CWrittenTokenSetNoStroke;
 import me.scai.handwriting.TestHelper;
+import me.scai.parsetree.evaluation.ParseTreeEvaluator;
+import me.scai.parsetree.evaluation.ValueUnion;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -262,6 +265,148 @@ public class Test_GraphicalProductionSet {
 
     /* Private methods */
 
+    @Test
+    public void testGrammarIndexLHS2Prods() {
+        GrammarIndex grammarIndex = gpSet.getGrammarIndex();
+
+        Set<String> lhsNames = new HashSet<>();
+        for (GraphicalProduction prod : gpSet.prods) {
+            lhsNames.add(prod.lhs);
+        }
+
+        for (String lhs : lhsNames) {
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < gpSet.numProductions(); ++i) {
+                if (gpSet.prods.get(i).lhs.equals(lhs)) {
+                    expected.add(i);
+                }
+            }
+
+            int[] prodIndices = grammarIndex.getProdIndicesOfLHS(lhs);
+            assertEquals(expected.size(), prodIndices.length);
+            for (int i = 0; i < prodIndices.length; ++i) {
+                assertEquals((int) expected.get(i), prodIndices[i]);
+            }
+        }
+
+        assertEquals(0, grammarIndex.getProdIndicesOfLHS("NO_SUCH_LHS").length);
+    }
+
+    @Test
+    public void testGrammarIndexHeadMatch() {
+        GrammarIndex grammarIndex = gpSet.getGrammarIndex();
+        String[] tokenNames = {"1", "x", "+", "-", "(", "gr_Si", "o", "0", "sqrt"};
+
+        for (int i = 0; i < gpSet.numProductions(); ++i) {
+            GraphicalProduction prod = gpSet.prods.get(i);
+
+            for (String tokenName : tokenNames) {
+                boolean expected = prod.rhsIsTerminal[0] && gpSet.terminalSet.match(tokenName, prod.rhs[0]);
+
+                assertEquals(prod.sumString + " / " + tokenName,
+                             expected, grammarIndex.matchesHead(i, grammarIndex.getTermTypeBits(tokenName)));
+            }
+        }
+    }
+
+    @Test
+    public void testTermTypeSignatureOfSubset() {
+        float[][] bounds = {{0, 0, 1, 1}, {2, 0, 3, 1}, {4, 0, 5, 1}, {6, 0, 7, 1}};
+        String[] names = {"1", "+", "x", "gr_Si"};
+
+        CWrittenTokenSetNoStroke tokenSet = TestHelper.getMockTokenSet(bounds, names);
+        tokenSet.getAllTokensTerminalTypes(gpSet.terminalSet);
+        assertNotNull(tokenSet.getTermTypeSignature());
+
+        int[][] subsets = {{0}, {1, 2}, {0, 2, 3}, {3, 1}};
+        for (int[] indices : subsets) {
+            /* Derived signature */
+            CWrittenTokenSetNoStroke subset = new CWrittenTokenSetNoStroke(tokenSet, indices);
+            TermTypeSignature derived = subset.getTermTypeSignature();
+            assertNotNull(derived);
+
+            /* Signature calculated from scratch */
+            CWrittenTokenSetNoStroke subset2 = new CWrittenTokenSetNoStroke(tokenSet, indices);
+            subset2.setTermTypeSignature(null);
+            subset2.getAllTokensTerminalTypes(gpSet.terminalSet);
+            TermTypeSignature calculated = subset2.getTermTypeSignature();
+
+            GrammarIndex grammarIndex = gpSet.getGrammarIndex();
+            assertArrayEquals(calculated.getUnionTypeBits(), derived.getUnionTypeBits());
+            for (int i = 0; i < gpSet.numProductions(); ++i) {
+                assertEquals(calculated.admittedByProd(i), derived.admittedByProd(i));
+                assertEquals(grammarIndex.coversRequiredTypes(i, calculated),
+                             grammarIndex.coversRequiredTypes(i, derived));
+            }
+        }
+
+        /* Adding a token invalidates the signature */
+        tokenSet.addTokenWithoutUuids(tokenSet.tokens.get(0), 4);
+        assertNull(tokenSet.getTermTypeSignature());
+    }
+
+    @Test
+    public void testSessionsShareCompiledGrammar() {
+        GraphicalProductionSet session0 = gpSet.createSession();
+        GraphicalProductionSet session1 = gpSet.createSession();
+
+        assertSame(gpSet.prods, session0.prods);
+        assertSame(gpSet.prods, session1.prods);
+        assertSame(gpSet.terminalSet, session1.terminalSet);
+        assertSame(gpSet.requiredTermTypes, session1.requiredTermTypes);
+        assertSame(gpSet.getGrammarIndex(), session1.getGrammarIndex());
+
+        /* Stateless artifacts are shared */
+        assertSame(session0.genStringizer(), session1.genStringizer());
+        assertSame(session0.genMathTexifier(gpSet.terminalSet), session1.genMathTexifier(gpSet.terminalSet));
+        assertSame(session0.genBiaser(), session1.genBiaser());
+    }
+
+    @Test
+    public void testSessionsHaveIndependentEnabledProductions() {
+        final int np = gpSet.numProductions();
+
+        GraphicalProductionSet session0 = gpSet.createSession();
+        GraphicalProductionSet session1 = gpSet.createSession();
+
+        int numDisabled = session0.disableProductionsByLHS("MATRIX");
+        assertTrue(numDisabled > 0);
+
+        assertEquals(np - numDisabled, session0.searchIdx.length);
+        assertEquals(np, session1.searchIdx.length);
+        assertEquals(np, gpSet.searchIdx.length);
+
+        for (boolean isEnabled : session1.getProdIsEnabled()) {
+            assertTrue(isEnabled);
+        }
+
+        /* A new session starts from the enabled productions of the set it is created from */
+        GraphicalProductionSet session2 = session0.createSession();
+        assertArrayEquals(session0.searchIdx, session2.searchIdx);
+
+        session0.enableAllProductions();
+        assertEquals(np, session0.searchIdx.length);
+        assertEquals(np - numDisabled, session2.searchIdx.length);
+    }
+
+    @Test
+    public void testSessionEvaluatorsHaveIndependentVariables() {
+        GraphicalProductionSet session0 = gpSet.createSession();
+        GraphicalProductionSet session1 = gpSet.createSession();
+
+        ParseTreeEvaluator evaluator0 = session0.genEvaluator();
+        ParseTreeEvaluator evaluator1 = session1.genEvaluator();
+        assertNotSame(evaluator0, evaluator1);
+
+        evaluator0.getVarMap().addVar("A", new ValueUnion(42.0));
+
+        assertTrue(evaluator0.getVarMap().containsVarName("A"));
+        assertFalse(evaluator1.getVarMap().containsVarName("A"));
+
+        /* Both evaluators come with the default constants */
+        assertEquals(evaluator0.getVarMap().numVars() - 1, evaluator1.getVarMap().numVars());
+    }
+
     /**
      * Find production by summary string
      * @param prodSumString   Production summary string
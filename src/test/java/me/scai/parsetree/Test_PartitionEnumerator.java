@@ -0,0 +1,89 @@
+package me.scai.parsetree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class Test_PartitionEnumerator {
+    private static List<int[]> enumerate(PartitionEnumerator enumerator) {
+        List<int[]> partitions = new ArrayList<>();
+        while (enumerator.next()) {
+            partitions.add(enumerator.getLabels().clone());
+        }
+
+        return partitions;
+    }
+
+    private static boolean hasEmptyPart(int[] labels, int nParts) {
+        boolean[] filled = new boolean[nParts];
+        for (int label : labels) {
+            filled[label] = true;
+        }
+
+        for (boolean f : filled) {
+            if (!f) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Test
+    public void testSameOrderAsFullDiscreteSpace() {
+        for (int nParts = 0; nParts <= 3; ++nParts) {
+            for (int nTokens = 0; nTokens <= 5; ++nTokens) {
+                int[][] fullSpace = MathHelper.getFullDiscreteSpace(nParts, nTokens);
+                List<int[]> partitions = enumerate(new PartitionEnumerator(nParts, nTokens, true, null));
+
+                assertEquals(fullSpace.length, partitions.size());
+                for (int i = 0; i < fullSpace.length; ++i) {
+                    assertArrayEquals(fullSpace[i], partitions.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSkipEmptyParts() {
+        final int nParts = 3;
+        final int nTokens = 5;
+
+        List<int[]> expected = new ArrayList<>();
+        for (int[] labels : MathHelper.getFullDiscreteSpace(nParts, nTokens)) {
+            if (!hasEmptyPart(labels, nParts)) {
+                expected.add(labels);
+            }
+        }
+
+        List<int[]> partitions = enumerate(new PartitionEnumerator(nParts, nTokens, false, null));
+
+        assertEquals(expected.size(), partitions.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertArrayEquals(expected.get(i), partitions.get(i));
+        }
+
+        /* More parts than tokens */
+        assertFalse(new PartitionEnumerator(4, 3, false, null).next());
+    }
+
+    @Test
+    public void testPruner() {
+        /* Prune all branches in which the first token is not in part 1 */
+        PartitionEnumerator.Pruner pruner = new PartitionEnumerator.Pruner() {
+            @Override
+            public boolean prune(int[] labels, int depth, int[] partSizes) {
+                return labels[0] != 1;
+            }
+        };
+
+        List<int[]> partitions = enumerate(new PartitionEnumerator(2, 3, true, pruner));
+
+        assertEquals(4, partitions.size());
+        assertArrayEquals(new int[] {1, 0, 0}, partitions.get(0));
+        assertArrayEquals(new int[] {1, 1, 1}, partitions.get(3));
+    }
+}
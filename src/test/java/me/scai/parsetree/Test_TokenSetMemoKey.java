@@ -0,0 +1,69 @@
+package me.scai.parsetree;
+
+import me.scai.handwriting.CWrittenTokenSetNoStroke;
+import me.scai.handwriting.TestHelper;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Test_TokenSetMemoKey {
+    private static CWrittenTokenSetNoStroke getTokenSet(int... tokenIds) {
+        float[][] bounds = new float[tokenIds.length][];
+        String[] names = new String[tokenIds.length];
+        for (int i = 0; i < tokenIds.length; ++i) {
+            bounds[i] = new float[] {i, 0f, i + 0.5f, 1f};
+            names[i] = "1";
+        }
+
+        CWrittenTokenSetNoStroke tokenSet = TestHelper.getMockTokenSet(bounds, names);
+        for (int i = 0; i < tokenIds.length; ++i) {
+            tokenSet.tokenIDs.set(i, tokenIds[i]);
+        }
+
+        return tokenSet;
+    }
+
+    @Test
+    public void testEqualsAndHashCode() {
+        TokenSetMemoKey key0 = new TokenSetMemoKey(getTokenSet(0, 3, 70), TokenSetMemoKey.KIND_LHS, 2);
+        TokenSetMemoKey key1 = new TokenSetMemoKey(getTokenSet(0, 3, 70), TokenSetMemoKey.KIND_LHS, 2);
+
+        assertEquals(key0, key1);
+        assertEquals(key0.hashCode(), key1.hashCode());
+
+        /* Different tag, kind or token IDs */
+        assertNotEquals(key0, new TokenSetMemoKey(getTokenSet(0, 3, 70), TokenSetMemoKey.KIND_LHS, 3));
+        assertNotEquals(key0, new TokenSetMemoKey(getTokenSet(0, 3, 70), TokenSetMemoKey.KIND_PROD_SET, 2));
+        assertNotEquals(key0, new TokenSetMemoKey(getTokenSet(0, 3), TokenSetMemoKey.KIND_LHS, 2));
+        assertNotEquals(key0, new TokenSetMemoKey(getTokenSet(0, 3, 71), TokenSetMemoKey.KIND_LHS, 2));
+    }
+
+    @Test
+    public void testTokenOrderMatters() {
+        TokenSetMemoKey keyAscending = new TokenSetMemoKey(getTokenSet(1, 2, 5), TokenSetMemoKey.KIND_PROD_SET, 0);
+        TokenSetMemoKey keyUnordered = new TokenSetMemoKey(getTokenSet(2, 1, 5), TokenSetMemoKey.KIND_PROD_SET, 0);
+
+        assertNotEquals(keyAscending, keyUnordered);
+        assertEquals(keyUnordered, new TokenSetMemoKey(getTokenSet(2, 1, 5), TokenSetMemoKey.KIND_PROD_SET, 0));
+    }
+
+    @Test
+    public void testGetTokenIds() {
+        assertArrayEquals(new int[] {0, 63, 64, 130},
+                          new TokenSetMemoKey(getTokenSet(0, 63, 64, 130), TokenSetMemoKey.KIND_LHS, 0).getTokenIds());
+        assertArrayEquals(new int[] {4, 1},
+                          new TokenSetMemoKey(getTokenSet(4, 1), TokenSetMemoKey.KIND_LHS, 0).getTokenIds());
+        assertArrayEquals(new int[0],
+                          new TokenSetMemoKey(new CWrittenTokenSetNoStroke(), TokenSetMemoKey.KIND_LHS, 0).getTokenIds());
+    }
+
+    @Test
+    public void testLargeTokenIds() {
+        /* Token IDs keep growing over a session */
+        TokenSetMemoKey key = new TokenSetMemoKey(getTokenSet(1000000, Integer.MAX_VALUE), TokenSetMemoKey.KIND_LHS, 1);
+
+        assertArrayEquals(new int[] {1000000, Integer.MAX_VALUE}, key.getTokenIds());
+        assertEquals(key, new TokenSetMemoKey(getTokenSet(1000000, Integer.MAX_VALUE), TokenSetMemoKey.KIND_LHS, 1));
+        assertNotEquals(key, new TokenSetMemoKey(getTokenSet(1000000), TokenSetMemoKey.KIND_LHS, 1));
+    }
+}
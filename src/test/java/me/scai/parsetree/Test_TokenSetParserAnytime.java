@@ -0,0 +1,121 @@
+package me.scai.parsetree;
+
+import me.scai.handwriting.CWrittenTokenSetNoStroke;
+import me.scai.handwriting.TestHelper;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Test_TokenSetParserAnytime {
+    private static final float[][] BOUNDS = {
+            {0, 0, 1, 1}, {-0.5f, 1.3f, 3.5f, 1.4f}, {0, 1.7f, 1, 2.7f}, {2, 1.7f, 3, 2.7f}, {2, 0, 3, 1}
+    };
+    private static final String[] NAMES = {"1", "-", "2", "4", "3"};
+
+    /* A sum of 21 tokens written from left to right, "1+2+3+4+1+...+3", whose exact parse takes seconds */
+    private static final int LONG_SUM_NUM_TOKENS = 21;
+    private static final String LONG_SUM_GREEDY_RESULT = "((((((((((1 + 2) + 3) + 4) + 1) + 2) + 3) + 4) + 1) + 2) + 3)";
+
+    private static final long TIME_BUDGET_MILLIS = 500L;
+
+    private static String parseToString(TestHelper.WorkerTuple workerTuple) throws Exception {
+        CWrittenTokenSetNoStroke tokenSet = TestHelper.getMockTokenSet(BOUNDS, NAMES);
+
+        return workerTuple.stringizer.stringize(workerTuple.tokenSetParser.parse(tokenSet));
+    }
+
+    private static CWrittenTokenSetNoStroke getLongSumTokenSet() {
+        float[][] bounds = new float[LONG_SUM_NUM_TOKENS][];
+        String[] names = new String[LONG_SUM_NUM_TOKENS];
+
+        for (int i = 0; i < LONG_SUM_NUM_TOKENS; ++i) {
+            float x = i * 1.5f;
+            if (i % 2 == 0) {
+                bounds[i] = new float[] {x, 0, x + 1, 1};
+                names[i] = String.valueOf(1 + (i / 2) % 4);
+            } else {
+                bounds[i] = new float[] {x + 0.1f, 0.3f, x + 0.9f, 0.7f};
+                names[i] = "+";
+            }
+        }
+
+        return TestHelper.getMockTokenSet(bounds, names);
+    }
+
+    @Test
+    public void testDefaultIsExact() throws Exception {
+        TestHelper.WorkerTuple workerTuple = TestHelper.getTestWorkerTuple();
+
+        assertEquals(0, workerTuple.tokenSetParser.getBeamWidth());
+        assertEquals(0L, workerTuple.tokenSetParser.getParseTimeBudget());
+
+        assertEquals("(13 / 24)", parseToString(workerTuple));
+        assertFalse(workerTuple.tokenSetParser.isLastParseApproximate());
+    }
+
+    @Test
+    public void testWideBeamSameAsFullSearch() throws Exception {
+        TestHelper.WorkerTuple fullWorkerTuple = TestHelper.getTestWorkerTuple();
+        TestHelper.WorkerTuple beamWorkerTuple = TestHelper.getTestWorkerTuple();
+        beamWorkerTuple.tokenSetParser.setBeamWidth(1000);
+
+        assertEquals(parseToString(fullWorkerTuple), parseToString(beamWorkerTuple));
+        assertFalse(beamWorkerTuple.tokenSetParser.isLastParseApproximate());
+    }
+
+    @Test
+    public void testNarrowBeamIsApproximate() throws Exception {
+        TestHelper.WorkerTuple workerTuple = TestHelper.getTestWorkerTuple();
+        workerTuple.tokenSetParser.setBeamWidth(1);
+
+        assertNotNull(parseToString(workerTuple));
+        assertTrue(workerTuple.tokenSetParser.isLastParseApproximate());
+
+        /* Going back to an unlimited beam discards the approximate cached results */
+        workerTuple.tokenSetParser.setBeamWidth(0);
+        assertEquals(parseToString(TestHelper.getTestWorkerTuple()), parseToString(workerTuple));
+        assertFalse(workerTuple.tokenSetParser.isLastParseApproximate());
+    }
+
+    @Test
+    public void testNarrowBeamApproximationIsPerParse() throws Exception {
+        TestHelper.WorkerTuple workerTuple = TestHelper.getTestWorkerTuple();
+        workerTuple.tokenSetParser.setBeamWidth(1);
+
+        parseToString(workerTuple);
+        assertTrue(workerTuple.tokenSetParser.isLastParseApproximate());
+
+        /* A different, single token: the beam has nothing to discard, though pruned results are still cached */
+        CWrittenTokenSetNoStroke tokenSet = TestHelper.getMockTokenSet(new float[][] {{10, 0, 11, 1}}, new String[] {"7"});
+        tokenSet.tokenIDs.set(0, 100);
+        assertEquals("7", workerTuple.stringizer.stringize(workerTuple.tokenSetParser.parse(tokenSet)));
+        assertFalse(workerTuple.tokenSetParser.isLastParseApproximate());
+
+        /* Reusing the cached pruned results is approximate again */
+        parseToString(workerTuple);
+        assertTrue(workerTuple.tokenSetParser.isLastParseApproximate());
+    }
+
+    @Test
+    public void testTimeBudget() throws Exception {
+        TestHelper.WorkerTuple workerTuple = TestHelper.getTestWorkerTuple();
+        workerTuple.tokenSetParser.setParseTimeBudget(TIME_BUDGET_MILLIS);
+
+        /* Warm-up: the first greedy fallback runs code that the exact search does not */
+        workerTuple.tokenSetParser.parse(getLongSumTokenSet());
+
+        long t0 = System.nanoTime();
+        Node n = workerTuple.tokenSetParser.parse(getLongSumTokenSet());
+        long elapsedMillis = (System.nanoTime() - t0) / 1000000L;
+
+        /* The search is aborted at the deadline, and the greedy fallback gets the same budget again */
+        assertTrue("Parsing took " + elapsedMillis + " ms", elapsedMillis < 3L * TIME_BUDGET_MILLIS);
+        assertTrue(workerTuple.tokenSetParser.isLastParseApproximate());
+        assertEquals(LONG_SUM_GREEDY_RESULT, workerTuple.stringizer.stringize(n));
+
+        /* Without the time budget, results that were cut short are not reused */
+        workerTuple.tokenSetParser.setParseTimeBudget(0L);
+        assertEquals(parseToString(TestHelper.getTestWorkerTuple()), parseToString(workerTuple));
+        assertFalse(workerTuple.tokenSetParser.isLastParseApproximate());
+    }
+}
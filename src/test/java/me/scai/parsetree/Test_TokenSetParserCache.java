@@ -0,0 +1,165 @@
+package me.scai.parsetree;
+
+import me.scai.handwriting.CWrittenToken;
+import me.scai.handwriting.CWrittenTokenSetNoStroke;
+import me.scai.handwriting.TestHelper;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/* The persistent (cross-parse) cache of TokenSetParser must not change the parsing results */
+public class Test_TokenSetParserCache {
+    private static final String[] TOKEN_NAMES = {"1", "2", "3", "+", "-", "x", "(", ")", "4", "a"};
+
+    private static CWrittenTokenSetNoStroke getTokenSet(List<float[]> bounds, List<String> names, List<Integer> ids) {
+        CWrittenTokenSetNoStroke tokenSet = new CWrittenTokenSetNoStroke();
+
+        for (int i = 0; i < bounds.size(); ++i) {
+            CWrittenToken token = new CWrittenToken();
+            token.setBounds(bounds.get(i));
+            token.setRecogResult(names.get(i));
+            token.bNormalized = true;
+
+            tokenSet.addTokenWithoutUuids(token, ids.get(i));
+        }
+        tokenSet.calcBounds();
+
+        return tokenSet;
+    }
+
+    /* Parse and describe the whole tree. Failures are included, because they must be the same too. */
+    private static String parseToString(TokenSetParser parser, CWrittenTokenSetNoStroke tokenSet)
+            throws InterruptedException {
+        try {
+            return treeToString(parser.parse(tokenSet));
+        } catch (TokenSetParserException exc) {
+            return "TokenSetParserException: " + exc.getMessage();
+        }
+    }
+
+    private static String treeToString(Node n) {
+        if (n == null) {
+            return "null";
+        }
+
+        StringBuilder sb = new StringBuilder(n.toString());
+        if (n.ch != null) {
+            sb.append("[");
+            for (Node child : n.ch) {
+                sb.append(treeToString(child)).append(",");
+            }
+            sb.append("]");
+        }
+
+        return sb.toString();
+    }
+
+    @Test
+    public void testCachedSubsetNotReachedByFreshParse() throws InterruptedException {
+        TokenSetParser cachedParser = TestHelper.getTestWorkerTuple().tokenSetParser;
+        TokenSetParser freshParser = TestHelper.getTestWorkerTuple().tokenSetParser;
+        freshParser.setPersistentCacheCapacity(0);
+
+        List<float[]> bounds = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+
+        /* "3 3": the results for the two tokens get cached */
+        bounds.add(new float[] {0.072f, 0f, 1.072f, 1f});
+        names.add("3");
+        ids.add(0);
+        bounds.add(new float[] {3.013f, -0.5f, 4.013f, 0.5f});
+        names.add("3");
+        ids.add(2);
+
+        CWrittenTokenSetNoStroke tokenSet = getTokenSet(bounds, names, ids);
+        assertEquals(parseToString(freshParser, tokenSet), parseToString(cachedParser, tokenSet));
+
+        /* An "x" overlapping the second "3". Parsing from scratch fails without evaluating the two "3"s together;
+         * their cached results must not be used to complete the tree. */
+        bounds.add(new float[] {3.070f, 0f, 4.070f, 1f});
+        names.add("x");
+        ids.add(3);
+
+        tokenSet = getTokenSet(bounds, names, ids);
+        assertEquals(parseToString(freshParser, tokenSet), parseToString(cachedParser, tokenSet));
+    }
+
+    @Test
+    public void testSameAsFreshParsesAfterRandomEdits() throws InterruptedException {
+        TokenSetParser cachedParser = TestHelper.getTestWorkerTuple().tokenSetParser;
+        TokenSetParser freshParser = TestHelper.getTestWorkerTuple().tokenSetParser;
+        freshParser.setPersistentCacheCapacity(0);
+
+        Random rand = new Random(42L);
+
+        for (int trial = 0; trial < 200; ++trial) {
+            List<float[]> bounds = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            List<Integer> ids = new ArrayList<>();
+            int nextId = 0;
+
+            for (int step = 0; step < 8; ++step) {
+                final int op = rand.nextInt(4);
+
+                if (bounds.size() < 2 || op == 0) {
+                    /* Add a token, possibly raised and small, as in a superscript */
+                    float x = bounds.size() * 1.5f + rand.nextFloat() * 0.3f;
+                    float y = (rand.nextInt(3) == 0) ? -0.6f : 0f;
+                    float size = (rand.nextInt(3) == 0) ? 0.5f : 1f;
+
+                    bounds.add(new float[] {x, y, x + size, y + size});
+                    names.add(TOKEN_NAMES[rand.nextInt(TOKEN_NAMES.length)]);
+                    ids.add(nextId++);
+                } else if (op == 1 && bounds.size() > 2) {
+                    /* Remove a token */
+                    int i = rand.nextInt(bounds.size());
+                    bounds.remove(i);
+                    names.remove(i);
+                    ids.remove(i);
+                } else if (op == 2) {
+                    /* Move a token */
+                    int i = rand.nextInt(bounds.size());
+                    float[] b = bounds.get(i).clone();
+                    b[1] -= 0.5f;
+                    b[3] -= 0.5f;
+                    bounds.set(i, b);
+                } else {
+                    /* Change the recognition result of a token */
+                    names.set(rand.nextInt(names.size()), TOKEN_NAMES[rand.nextInt(TOKEN_NAMES.length)]);
+                }
+
+                CWrittenTokenSetNoStroke tokenSet = getTokenSet(bounds, names, ids);
+                assertEquals("Trial " + trial + ", step " + step,
+                             parseToString(freshParser, tokenSet), parseToString(cachedParser, tokenSet));
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidatedKeysLeaveIndex() throws InterruptedException {
+        TokenSetParser parser = TestHelper.getTestWorkerTuple().tokenSetParser;
+
+        List<float[]> bounds = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            bounds.add(new float[] {1.5f * i, 0f, 1.5f * i + 1f, 1f});
+            names.add((i % 2 == 0) ? "1" : "+");
+            ids.add(i);
+        }
+
+        /* Replace the last token over and over: the keys that involve it also involve the other tokens */
+        for (int k = 0; k < 20; ++k) {
+            parseToString(parser, getTokenSet(bounds, names, ids));
+            assertEquals(parser.getNumMemoKeys(), parser.getNumIndexedMemoKeys());
+
+            ids.set(ids.size() - 1, ids.size() + k);
+            names.set(names.size() - 1, (k % 2 == 0) ? "2" : "3");
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package me.scai.parsetree;
+
+import me.scai.handwriting.CWrittenTokenSetNoStroke;
+import me.scai.handwriting.TestHelper;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Test_TokenSetParserParallel {
+    private static final float[][][] BOUNDS = {
+            {{0, 0, 1, 1}, {2, 0, 3, 1}, {4, 0, 5, 1}},
+            {{0, 0, 1, 1}, {1.2f, -0.6f, 1.7f, -0.1f}},
+            {{0, 0, 1, 1}, {-0.5f, 1.3f, 3.5f, 1.4f}, {0, 1.7f, 1, 2.7f}, {2, 1.7f, 3, 2.7f}, {2, 0, 3, 1}},
+            {{-0.1f, -0.2f, 5, 1.2f}, {0.5f, 0, 1.5f, 1}, {2, 0, 3, 1}, {3.5f, 0, 4.5f, 1}},
+            {{0, 0, 0.5f, 2}, {1, 0, 2, 1}, {2.5f, 0, 3, 1}, {3.5f, 0, 4.5f, 1}, {5, 0, 5.5f, 2}, {6, 0, 7, 1}}
+    };
+
+    private static final String[][] NAMES = {
+            {"1", "+", "2"},
+            {"2", "3"},
+            {"1", "-", "2", "4", "3"},
+            {"root", "1", "+", "2"},
+            {"(", "1", "+", "2", ")", "3"}
+    };
+
+    /* Parse and stringize. Parsing failures are included in the output, because they must be the same too. */
+    private static String parseToString(TestHelper.WorkerTuple workerTuple, CWrittenTokenSetNoStroke tokenSet)
+            throws InterruptedException {
+        try {
+            Node root = workerTuple.tokenSetParser.parse(tokenSet);
+
+            return workerTuple.stringizer.stringize(root) + " | " + workerTuple.mathTexifier.texify(root);
+        } catch (TokenSetParserException exc) {
+            return "TokenSetParserException: " + exc.getMessage();
+        }
+    }
+
+    @Test
+    public void testParallelParsingSameAsSequential() throws InterruptedException {
+        TestHelper.WorkerTuple seqWorkerTuple = TestHelper.getTestWorkerTuple();
+        TestHelper.WorkerTuple parWorkerTuple = TestHelper.getTestWorkerTuple();
+
+        parWorkerTuple.tokenSetParser.setUsingMultiThreads(true);
+        assertTrue(parWorkerTuple.tokenSetParser.getUsingMultiThreads());
+
+        for (int i = 0; i < BOUNDS.length; ++i) {
+            assertEquals(parseToString(seqWorkerTuple, TestHelper.getMockTokenSet(BOUNDS[i], NAMES[i])),
+                         parseToString(parWorkerTuple, TestHelper.getMockTokenSet(BOUNDS[i], NAMES[i])));
+        }
+    }
+
+    @Test
+    public void testParallelParsersShareThePool() throws Exception {
+        TestHelper.WorkerTuple seqWorkerTuple = TestHelper.getTestWorkerTuple();
+
+        final String[] expected = new String[BOUNDS.length];
+        for (int i = 0; i < BOUNDS.length; ++i) {
+            expected[i] = parseToString(seqWorkerTuple, TestHelper.getMockTokenSet(BOUNDS[i], NAMES[i]));
+        }
+
+        /* Parsers that parse at the same time, from threads of their own */
+        final int nParsers = 3;
+        final String[][] results = new String[nParsers][BOUNDS.length];
+        final Exception[] errors = new Exception[nParsers];
+
+        Thread[] threads = new Thread[nParsers];
+        for (int k = 0; k < nParsers; ++k) {
+            final TestHelper.WorkerTuple parWorkerTuple = TestHelper.getTestWorkerTuple();
+            parWorkerTuple.tokenSetParser.setUsingMultiThreads(true);
+
+            final int kParser = k;
+            threads[k] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < BOUNDS.length; ++i) {
+                            results[kParser][i] =
+                                    parseToString(parWorkerTuple, TestHelper.getMockTokenSet(BOUNDS[i], NAMES[i]));
+                        }
+                    } catch (Exception exc) {
+                        errors[kParser] = exc;
+                    }
+                }
+            });
+            threads[k].start();
+        }
+
+        for (int k = 0; k < nParsers; ++k) {
+            threads[k].join();
+
+            assertNull(errors[k]);
+            assertArrayEquals(expected, results[k]);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package me.scai.parsetree.geometry;
+
+import me.scai.handwriting.CWrittenTokenSetNoStroke;
+import me.scai.handwriting.TestHelper;
+import me.scai.parsetree.TerminalSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class Test_GeometricRelationVerify {
+    private static final float tol = 0f; /* The two paths must agree exactly */
+
+    @Test
+    public void testVerifyFromBoundsSameAsFromTokenSet() {
+        TerminalSet termSet = TestHelper.getTestWorkerTuple().termSet;
+
+        float[][] bounds = {{0, 0, 1, 1}, {1.2f, 0.2f, 1.6f, 0.6f}, {3, -0.5f, 4, 1.5f}};
+        String[] names = {"1", "-", "x"};
+
+        CWrittenTokenSetNoStroke wtsTested = TestHelper.getMockTokenSet(bounds, names);
+        wtsTested.getAllTokensTerminalTypes(termSet);
+
+        float[] bndsInRel = {-3, 0, -2, 1};
+
+        /* Major token extents: "1" and "x" are major, "-" is not */
+        float[] majorTokenExtents = {1f, 2f};
+
+        GeometricRelation[] rels = {
+                SpacingRelation.createFromString("SpacingHorizontalExceedsMeanMaxMajorTokenWidth(0)", 1, termSet),
+                SpacingRelation.createFromString("SpacingHorizontalBelowMeanMaxMajorTokenWidth(0)", 1, termSet),
+                SpacingRelation.createFromString("SpacingVerticalExceedsMeanMaxMajorTokenHeight(0)", 1, termSet),
+                PositionRelation.createFromString("PositionEast(0)", 1),
+                AlignRelation.createFromString("AlignMiddle(0)", 1),
+                HeightRelation.createFromString("HeightRelationGreater(0)", 1),
+                WidthRelation.createFromString("WidthRelationGreater(0)", 1)
+        };
+
+        for (GeometricRelation rel : rels) {
+            assertEquals(rel.verify(wtsTested, bndsInRel),
+                         rel.verify(wtsTested.getSetBounds(), majorTokenExtents, bndsInRel), tol);
+        }
+    }
+}
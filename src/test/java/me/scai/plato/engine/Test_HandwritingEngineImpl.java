@@ -7,6 +7,9 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 public class Test_HandwritingEngineImpl {
@@ -54,6 +57,31 @@ public class Test_HandwritingEngineImpl {
         assertEquals("(1 ^ 2)", parseRes.getStringizerOutput());
     }
 
+    @Test
+    public void testParseBeamWidthAndTimeBudget() throws HandwritingEngineException {
+        HandwritingEngineImpl hwEngImpl = (HandwritingEngineImpl) hwEng;
+        assertEquals(0, hwEngImpl.getParseBeamWidth());
+        assertEquals(0L, hwEngImpl.getParseTimeBudget());
+
+        hwEng.addStroke(TestHelper.getMockStroke(new float[] {10, 10, 10, 10, 10, 10},
+                                                 new float[] {15, 20, 25, 30, 35, 40}));
+        hwEng.addStroke(TestHelper.getMockStroke(new float[] {15, 30, 30, 15, 15, 30},
+                                                 new float[] {0, 0, 10, 10, 20, 20}));
+
+        TokenSetParserOutput exactRes = hwEng.parseTokenSet();
+        assertFalse(exactRes.isApproximate());
+
+        hwEngImpl.setParseBeamWidth(1000);
+        hwEngImpl.setParseTimeBudget(60000L);
+        assertEquals(1000, hwEngImpl.tokenSetParser.getBeamWidth());
+        assertEquals(60000L, hwEngImpl.tokenSetParser.getParseTimeBudget());
+
+        /* Neither the wide beam nor the generous time budget cuts the search short */
+        TokenSetParserOutput res = hwEng.parseTokenSet();
+        assertEquals(exactRes.getStringizerOutput(), res.getStringizerOutput());
+        assertFalse(res.isApproximate());
+    }
+
     @Test
     public void testDisableNonExistentGrammarNode() {
         boolean exceptionThrown = false;
@@ -667,6 +695,118 @@ public class Test_HandwritingEngineImpl {
         roundTripVerifyStateSerializationThruInjection(hwEng);
     }
 
+    @Test
+    public void testIncrementalParsingWithTokenChanges() throws HandwritingEngineException {
+        /* Parse after every change, so that the parser can reuse results cached from previous parses. The results
+         * should always be the same as those from a fresh engine with the same state. */
+        addSeven(hwEng);
+        verifyParsingSameAsFreshEngine(hwEng);
+
+        /* Add 2nd stroke: "2" */
+        hwEng.addStroke(TestHelper.getMockStroke(new float[] {15, 30, 30, 15, 15, 30},
+                                                 new float[] {30, 30, 40, 40, 50, 50}));
+        verifyParsingSameAsFreshEngine(hwEng);
+
+        /* Add 3rd stroke: "-" */
+        hwEng.addStroke(TestHelper.getMockStroke(new float[] {0, 10, 20, 30, 40},
+                                                 new float[] {25, 25, 25, 25, 25}));
+
+        /* Add 4th stroke: "1" */
+        hwEng.addStroke(TestHelper.getMockStroke(new float[] {20, 20.1f, 20.2f, 20.3f, 20.4f},
+                                                 new float[] {0, 5, 10, 15, 20}));
+        TestHelper.verifyTokenSet(hwEng, new boolean[] {false, false, false, false}, new String[] {"7", "2", "-", "1"});
+        verifyParsingSameAsFreshEngine(hwEng);
+
+        /* Move the "1" within the numerator: cached results involving the token must not be reused */
+        int idx_1 = findLastAbstractTokenByName(hwEng.getTokenSet(), "1");
+        hwEng.moveToken(idx_1, new float[] {5f, 0f, 5f, 20f});
+        verifyParsingSameAsFreshEngine(hwEng);
+
+        /* Undo the move */
+        hwEng.undoUserAction();
+        verifyParsingSameAsFreshEngine(hwEng);
+
+        /* Remove the "-" */
+        hwEng.removeToken(findLastAbstractTokenByName(hwEng.getTokenSet(), "-"));
+        TestHelper.verifyTokenSet(hwEng, new boolean[] {false, false, false}, new String[] {"7", "2", "1"});
+        verifyParsingSameAsFreshEngine(hwEng);
+    }
+
+
+    @Test
+    public void testUndoRedoRestoresSerializedStates() throws HandwritingEngineException {
+        List<String> states = new ArrayList<>();
+        states.add(hwEng.getStateSerializationString());
+
+        addSeven(hwEng);
+        states.add(hwEng.getStateSerializationString());
+
+        hwEng.addStroke(TestHelper.getMockStroke(new float[] {15, 30, 30, 15, 15, 30},
+                                                 new float[] {30, 30, 40, 40, 50, 50}));
+        states.add(hwEng.getStateSerializationString());
+
+        /* Subset parsing creates a node token, which is then updated by the following actions */
+        hwEng.parseTokenSubset(new int[] {0, 1});
+        states.add(hwEng.getStateSerializationString());
+
+        hwEng.addStroke(TestHelper.getMockStroke(new float[] {0, 10, 20, 30, 40},
+                                                 new float[] {25, 25, 25, 25, 25}));
+        states.add(hwEng.getStateSerializationString());
+
+        hwEng.moveToken(1, new float[] {0f, 55f, 40f, 55f});
+        states.add(hwEng.getStateSerializationString());
+
+        hwEng.removeToken(1);
+        states.add(hwEng.getStateSerializationString());
+
+        /* Undo all the actions */
+        for (int i = states.size() - 2; i >= 0; --i) {
+            hwEng.undoUserAction();
+            assertEquals(states.get(i), hwEng.getStateSerializationString());
+        }
+        assertFalse(hwEng.canUndoUserAction());
+
+        /* Redo all the actions */
+        for (int i = 1; i < states.size(); ++i) {
+            hwEng.redoUserAction();
+            assertEquals(states.get(i), hwEng.getStateSerializationString());
+        }
+        assertFalse(hwEng.canRedoUserAction());
+
+        TestHelper.verifyTokenSet(hwEng, new boolean[] {true}, new String[] {"72"});
+    }
+
+    @Test
+    public void testBinaryStateRoundTrip() throws HandwritingEngineException {
+        addSeven(hwEng);
+        hwEng.addStroke(TestHelper.getMockStroke(new float[] {15, 30, 30, 15, 15, 30},
+                                                 new float[] {30, 30, 40, 40, 50, 50}));
+
+        /* Subset parsing creates a node token */
+        hwEng.parseTokenSubset(new int[] {0, 1});
+        hwEng.addStroke(TestHelper.getMockStroke(new float[] {0, 10, 20, 30, 40},
+                                                 new float[] {25, 25, 25, 25, 25}));
+        hwEng.moveToken(1, new float[] {0f, 55f, 40f, 55f});
+
+        String jsonState = hwEng.getStateSerializationString();
+        byte[] binaryState = hwEng.getStateSerializationBinary(0);
+        assertTrue(binaryState.length < jsonState.length());
+
+        /* Injecting the binary form gives the same state as injecting the JSON form */
+        HandwritingEngine jsonHwEng = TestHelper.getHandwritingEngine();
+        jsonHwEng.injectSerializedState(hwEng.getStateSerialization());
+
+        HandwritingEngine binaryHwEng = TestHelper.getHandwritingEngine();
+        binaryHwEng.injectSerializedStateBinary(binaryState);
+
+        assertEquals(jsonHwEng.getStateSerializationString(), binaryHwEng.getStateSerializationString());
+        assertEquals(jsonState, binaryHwEng.getStateSerializationString());
+
+        /* Top-K recognition probabilities only */
+        HandwritingEngine topKHwEng = TestHelper.getHandwritingEngine();
+        topKHwEng.injectSerializedStateBinary(hwEng.getStateSerializationBinary(3));
+        assertEquals(jsonHwEng.getStateSerializationString(), topKHwEng.getStateSerializationString());
+    }
 
     /* Test helper methods */
     // Round-trip verification of the JSON serialization and deserialization of handwriting engine state through
@@ -682,6 +822,15 @@ public class Test_HandwritingEngineImpl {
         assertEquals(stateJsonStr0, stateJsonStr1);
     }
 
+    // Verify that parsing gives the same result as parsing by a fresh engine with the same state, which has nothing
+    // cached from previous parses
+    private void verifyParsingSameAsFreshEngine(HandwritingEngine hwEng) throws HandwritingEngineException {
+        HandwritingEngine freshHwEng = TestHelper.getHandwritingEngine();
+        freshHwEng.injectSerializedState(hwEng.getStateSerialization());
+
+        assertEquals(freshHwEng.parseTokenSet().getStringizerOutput(), hwEng.parseTokenSet().getStringizerOutput());
+    }
+
     private int findLastAbstractTokenByName(CAbstractWrittenTokenSet wtSet, String tokenName) {
         int tokenIdx = -1;
 
@@ -0,0 +1,189 @@
+package me.scai.plato.helpers;
+
+import me.scai.handwriting.CStroke;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class Test_CompactStateCodec {
+    private static CStroke roundTrip(CStroke stroke) {
+        CompactStateCodec.Writer writer = new CompactStateCodec.Writer();
+        writer.writeStroke(stroke);
+
+        CompactStateCodec.Reader reader = new CompactStateCodec.Reader(writer.toByteArray());
+        CStroke r = reader.readStroke();
+        assertTrue(reader.isAtEnd());
+
+        return r;
+    }
+
+    private static void assertSameCoordinates(float[] expected, float[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(Float.floatToIntBits(expected[i]), Float.floatToIntBits(actual[i]));
+        }
+    }
+
+    @Test
+    public void testStrokeRoundTripIsLossless() {
+        float[][][] coords = {
+                {{0f, 10f, 20f, 30f}, {5f, 5f, -5f, 1000f}},                         /* Integers */
+                {{40.0f, 50.0f, 60.0f, 70.0f}, {-10.0f, -10.1f, -10.2f, -10.1f}},    /* Decimals */
+                {{5.973f, 7.189f, 8.527f}, {30.449f, 30.225f, 30.000f}},
+                {{1f / 3f, 2f / 3f, 1f}, {0f, 0.1f, 0.2f}},                          /* No short decimal form */
+                {{-0.0f, Float.NaN, 1e20f}, {0f, 0f, 0f}}
+        };
+
+        for (float[][] xy : coords) {
+            CStroke stroke = new CStroke(xy[0], xy[1]);
+            CStroke r = roundTrip(stroke);
+
+            assertSameCoordinates(stroke.getXs(), r.getXs());
+            assertSameCoordinates(stroke.getYs(), r.getYs());
+        }
+
+        assertNull(roundTrip(new CStroke()));
+    }
+
+    @Test
+    public void testStrokeFixedPointIsCompact() {
+        float[] xs = new float[100];
+        float[] ys = new float[100];
+        for (int i = 0; i < xs.length; ++i) {
+            xs[i] = 100f + i * 0.5f;
+            ys[i] = 200f - i * 0.25f;
+        }
+
+        CompactStateCodec.Writer writer = new CompactStateCodec.Writer();
+        writer.writeStroke(new CStroke(xs, ys));
+
+        /* Deltas of 50 and -25 in hundredths: one or two bytes per coordinate, instead of four */
+        assertTrue(writer.toByteArray().length < 2 * 2 * xs.length + 16);
+    }
+
+    @Test
+    public void testProbabilities() {
+        double[] ps = {0.1, 0.5, 0.05, 0.3, 0.05};
+
+        CompactStateCodec.Writer writer = new CompactStateCodec.Writer();
+        writer.writeProbabilities(ps, 0);
+        writer.writeProbabilities(ps, 2);
+        writer.writeProbabilities(ps, 10);
+        writer.writeProbabilities(null, 2);
+
+        CompactStateCodec.Reader reader = new CompactStateCodec.Reader(writer.toByteArray());
+
+        double[] all = reader.readProbabilities();
+        assertEquals(ps.length, all.length);
+        for (int i = 0; i < ps.length; ++i) {
+            assertEquals((float) ps[i], all[i], 0.0);
+        }
+
+        double[] top2 = reader.readProbabilities();
+        assertArrayEquals(new double[] {0.0, (float) 0.5, 0.0, (float) 0.3, 0.0}, top2, 0.0);
+
+        assertEquals(ps.length, reader.readProbabilities().length);
+        assertNull(reader.readProbabilities());
+        assertTrue(reader.isAtEnd());
+    }
+
+    @Test
+    public void testCountsBeyondDataAreRejected() {
+        /* A stroke, a dense and a sparse probability vector of huge lengths, followed by no data */
+        CompactStateCodec.Writer writer = new CompactStateCodec.Writer();
+        writer.writeVarint(Integer.MAX_VALUE);
+        assertRejected(writer.toByteArray(), 0);
+
+        writer = new CompactStateCodec.Writer();
+        writer.writeVarint(1); // All probabilities
+        writer.writeVarint(Integer.MAX_VALUE);
+        assertRejected(writer.toByteArray(), 1);
+
+        writer = new CompactStateCodec.Writer();
+        writer.writeVarint(2); // Top K
+        writer.writeVarint(Integer.MAX_VALUE);
+        writer.writeVarint(1);
+        assertRejected(writer.toByteArray(), 1);
+
+        writer = new CompactStateCodec.Writer();
+        writer.writeVarint(2);
+        writer.writeVarint(10);
+        writer.writeVarint(Integer.MAX_VALUE);
+        assertRejected(writer.toByteArray(), 1);
+
+        /* A count of two elements of at least one byte each, followed by two bytes and by one byte */
+        writer = new CompactStateCodec.Writer();
+        writer.writeVarint(2);
+        writer.writeVarint(0);
+        byte[] bytes = writer.toByteArray();
+
+        writer.writeVarint(0);
+        assertEquals(2, new CompactStateCodec.Reader(writer.toByteArray()).readCount(1));
+
+        try {
+            new CompactStateCodec.Reader(bytes).readCount(1);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /* Reading a stroke (0) or a probability vector (1) from the data fails with IllegalArgumentException */
+    private static void assertRejected(byte[] bytes, int what) {
+        CompactStateCodec.Reader reader = new CompactStateCodec.Reader(bytes);
+        try {
+            if (what == 0) {
+                reader.readStroke();
+            } else {
+                reader.readProbabilities();
+            }
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testVarintsAndStrings() {
+        String uuid = UUID.randomUUID().toString();
+
+        CompactStateCodec.Writer writer = new CompactStateCodec.Writer();
+        writer.writeMagic(0x12345678);
+        writer.writeVarint(0);
+        writer.writeVarint(Long.MAX_VALUE);
+        writer.writeSignedVarint(-1);
+        writer.writeSignedVarint(Long.MIN_VALUE);
+        writer.writeUuid(uuid);
+        writer.writeUuid("not-a-uuid");
+        writer.writeUuid(null);
+        writer.writeString("\u221a2");
+
+        byte[] bytes = writer.toByteArray();
+        CompactStateCodec.Reader reader = new CompactStateCodec.Reader(bytes);
+        reader.readMagic(0x12345678, "test state");
+        assertEquals(0, reader.readVarint());
+        assertEquals(Long.MAX_VALUE, reader.readVarint());
+        assertEquals(-1, reader.readSignedVarint());
+        assertEquals(Long.MIN_VALUE, reader.readSignedVarint());
+        assertEquals(uuid, reader.readUuid());
+        assertEquals("not-a-uuid", reader.readUuid());
+        assertNull(reader.readUuid());
+        assertEquals("\u221a2", reader.readString());
+        assertTrue(reader.isAtEnd());
+
+        /* Wrong magic number */
+        try {
+            new CompactStateCodec.Reader(bytes).readMagic(0x12345679, "test state");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+
+        /* Truncated data */
+        CompactStateCodec.Reader truncatedReader = new CompactStateCodec.Reader(new byte[] {(byte) 0x80});
+        try {
+            truncatedReader.readVarint();
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}